@@ -93,6 +93,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -114,6 +115,7 @@ public class BuildManager implements ApplicationComponent{
   private static final String IWS_EXTENSION = ".iws";
   private static final String IPR_EXTENSION = ".ipr";
   private static final String IDEA_PROJECT_DIR_PATTERN = "/.idea/";
+  private static final String KEEP_ALIVE_REGISTRY_KEY = "compiler.process.keep.alive";
   private static final Function<String, Boolean> PATH_FILTER = 
     SystemInfo.isFileSystemCaseSensitive?
     new Function<String, Boolean>() {
@@ -517,7 +519,7 @@ public class BuildManager implements ApplicationComponent{
                      CmdlineProtoUtil.createForceCompileRequest(projectPath, scopes, paths, userData, globals, currentFSChanges);
           }
 
-          myMessageDispatcher.registerBuildMessageHandler(sessionId, new BuilderMessageHandlerWrapper(handler) {
+          final BuilderMessageHandlerWrapper sessionHandler = new BuilderMessageHandlerWrapper(handler) {
             @Override
             public void sessionTerminated(UUID sessionId) {
               try {
@@ -527,7 +529,9 @@ public class BuildManager implements ApplicationComponent{
                 future.setDone();
               }
             }
-          }, params);
+          };
+          final boolean keepAlive = Registry.is(KEEP_ALIVE_REGISTRY_KEY);
+          myMessageDispatcher.registerBuildMessageHandler(sessionId, sessionHandler, params, keepAlive);
 
           try {
             projectTaskQueue.submit(new Runnable() {
@@ -539,42 +543,16 @@ public class BuildManager implements ApplicationComponent{
                     return;
                   }
                   myBuildsInProgress.put(projectPath, future);
-                  final Process process = launchBuildProcess(project, myListenPort, sessionId);
-                  final OSProcessHandler processHandler = new OSProcessHandler(process) {
-                    @Override
-                    protected boolean shouldDestroyProcessRecursively() {
-                      return true;
-                    }
-                  };
+                  if (keepAlive) {
+                    runInKeptAliveProcess(project, projectPath, sessionId, sessionHandler);
+                    return;
+                  }
                   final StringBuilder stdErrOutput = new StringBuilder();
-                  processHandler.addProcessListener(new ProcessAdapter() {
-                    @Override
-                    public void onTextAvailable(ProcessEvent event, Key outputType) {
-                      // re-translate builder's output to idea.log
-                      final String text = event.getText();
-                      if (!StringUtil.isEmptyOrSpaces(text)) {
-                        LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
-                        if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
-                          stdErrOutput.append(text);
-                        }
-                      }
-                    }
-                  });
-                  processHandler.startNotify();
+                  final OSProcessHandler processHandler =
+                    startProcessHandler(createBuildProcessCommandLine(project, myListenPort, sessionId, false).createProcess(), stdErrOutput);
                   final boolean terminated = processHandler.waitFor();
                   if (terminated) {
-                    final int exitValue = processHandler.getProcess().exitValue();
-                    if (exitValue != 0) {
-                      final StringBuilder msg = new StringBuilder();
-                      msg.append("Abnormal build process termination: ");
-                      if (stdErrOutput.length() > 0) {
-                        msg.append("\n").append(stdErrOutput);
-                      }
-                      else {
-                        msg.append("unknown error");
-                      }
-                      handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
-                    }
+                    reportAbnormalTermination(processHandler, stdErrOutput, sessionId, handler);
                   }
                   else {
                     handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure("Disconnected from build process", null));
@@ -668,7 +646,104 @@ public class BuildManager implements ApplicationComponent{
     return cmdBuilder.build();
   }
 
-  private Process launchBuildProcess(Project project, final int port, final UUID sessionId) throws ExecutionException {
+  /**
+   * Runs the session in the build process which has run the previous session of the project if it is still alive and has been
+   * launched with the same parameters, otherwise launches a new process. The process is kept running after the session completes,
+   * so the next session doesn't spend time on the VM startup and reuses the project model loaded by the process.
+   */
+  private void runInKeptAliveProcess(Project project, String projectPath, UUID sessionId, BuilderMessageHandlerWrapper sessionHandler)
+    throws ExecutionException {
+    final GeneralCommandLine cmdLine = createBuildProcessCommandLine(project, myListenPort, sessionId, true);
+    // the id of the first session is the only parameter which differs between sessions
+    final String signature = StringUtil.replace(cmdLine.getCommandLineString(), sessionId.toString(), "");
+
+    KeptAliveProcess process;
+    synchronized (myProjectDataMap) {
+      final ProjectData data = myProjectDataMap.get(projectPath);
+      process = data != null ? data.keptAliveProcess : null;
+      if (data != null) {
+        data.keptAliveProcess = null;
+      }
+    }
+    if (process != null && !(signature.equals(process.signature) && myMessageDispatcher.startSession(sessionId, process.channel))) {
+      process.shutdown();
+      process = null;
+    }
+    if (process == null) {
+      final StringBuilder stdErrOutput = new StringBuilder();
+      process = new KeptAliveProcess(signature, startProcessHandler(cmdLine.createProcess(), stdErrOutput), stdErrOutput);
+    }
+
+    final OSProcessHandler processHandler = process.processHandler;
+    try {
+      sessionHandler.waitForTermination(processHandler);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.shutdown();
+      return;
+    }
+
+    final Channel channel = sessionHandler.getChannel();
+    if (!processHandler.isProcessTerminated() && channel != null && channel.isConnected() && !project.isDisposed()) {
+      synchronized (myProjectDataMap) {
+        final ProjectData data = myProjectDataMap.get(projectPath);
+        if (data != null) {
+          process.channel = channel;
+          data.shutdownKeptAliveProcess();
+          data.keptAliveProcess = process;
+          return;
+        }
+      }
+    }
+    process.shutdown();
+    if (processHandler.waitFor()) {
+      reportAbnormalTermination(processHandler, process.stdErrOutput, sessionId, sessionHandler);
+    }
+  }
+
+  private static OSProcessHandler startProcessHandler(Process process, final StringBuilder stdErrOutput) {
+    final OSProcessHandler processHandler = new OSProcessHandler(process) {
+      @Override
+      protected boolean shouldDestroyProcessRecursively() {
+        return true;
+      }
+    };
+    processHandler.addProcessListener(new ProcessAdapter() {
+      @Override
+      public void onTextAvailable(ProcessEvent event, Key outputType) {
+        // re-translate builder's output to idea.log
+        final String text = event.getText();
+        if (!StringUtil.isEmptyOrSpaces(text)) {
+          LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
+          if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
+            stdErrOutput.append(text);
+          }
+        }
+      }
+    });
+    processHandler.startNotify();
+    return processHandler;
+  }
+
+  private static void reportAbnormalTermination(OSProcessHandler processHandler, StringBuilder stdErrOutput, UUID sessionId,
+                                                BuilderMessageHandler handler) {
+    final int exitValue = processHandler.getProcess().exitValue();
+    if (exitValue != 0) {
+      final StringBuilder msg = new StringBuilder();
+      msg.append("Abnormal build process termination: ");
+      if (stdErrOutput.length() > 0) {
+        msg.append("\n").append(stdErrOutput);
+      }
+      else {
+        msg.append("unknown error");
+      }
+      handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
+    }
+  }
+
+  private GeneralCommandLine createBuildProcessCommandLine(Project project, final int port, final UUID sessionId, boolean keepAlive)
+    throws ExecutionException {
     // choosing sdk with which the build process should be run
     Sdk projectJdk = null;
     JavaSdkVersion sdkVersion = null;
@@ -756,6 +831,9 @@ public class BuildManager implements ApplicationComponent{
       cmdLine.addParameter("-D"+ GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION +"=" + shouldGenerateIndex);
     }
     cmdLine.addParameter("-D"+ GlobalOptions.COMPILE_PARALLEL_OPTION +"=" + Boolean.toString(config.PARALLEL_COMPILATION));
+    if (keepAlive) {
+      cmdLine.addParameter("-D"+ GlobalOptions.KEEP_ALIVE_OPTION + "=true");
+    }
 
     final String additionalOptions = config.COMPILER_PROCESS_ADDITIONAL_VM_OPTIONS;
     if (!StringUtil.isEmpty(additionalOptions)) {
@@ -811,7 +889,7 @@ public class BuildManager implements ApplicationComponent{
 
     cmdLine.setWorkDirectory(workDirectory);
 
-    return cmdLine.createProcess();
+    return cmdLine;
   }
 
   public File getBuildSystemDirectory() {
@@ -918,7 +996,10 @@ public class BuildManager implements ApplicationComponent{
 
   @TestOnly
   public void stopWatchingProject(Project project) {
-    myProjectDataMap.remove(getProjectPath(project));
+    final ProjectData data = myProjectDataMap.remove(getProjectPath(project));
+    if (data != null) {
+      data.shutdownKeptAliveProcess();
+    }
   }
 
   private static String classpathToString(List<File> cp) {
@@ -934,6 +1015,8 @@ public class BuildManager implements ApplicationComponent{
 
   private static class BuilderMessageHandlerWrapper implements BuilderMessageHandler {
     private final DefaultMessageHandler myHandler;
+    private final CountDownLatch myTerminated = new CountDownLatch(1);
+    private volatile Channel myChannel;
 
     public BuilderMessageHandlerWrapper(DefaultMessageHandler handler) {
       myHandler = handler;
@@ -946,9 +1029,18 @@ public class BuildManager implements ApplicationComponent{
 
     @Override
     public void handleBuildMessage(Channel channel, UUID sessionId, CmdlineRemoteProto.Message.BuilderMessage msg) {
+      myChannel = channel;
       myHandler.handleBuildMessage(channel, sessionId, msg);
     }
 
+    /**
+     * @return the channel the messages of the session were received from, null if the session has sent no build messages
+     */
+    @Nullable
+    public Channel getChannel() {
+      return myChannel;
+    }
+
     @Override
     public void handleFailure(UUID sessionId, CmdlineRemoteProto.Message.Failure failure) {
       myHandler.handleFailure(sessionId, failure);
@@ -956,7 +1048,34 @@ public class BuildManager implements ApplicationComponent{
 
     @Override
     public void sessionTerminated(UUID sessionId) {
-      myHandler.sessionTerminated(sessionId);
+      try {
+        myHandler.sessionTerminated(sessionId);
+      }
+      finally {
+        myTerminated.countDown();
+      }
+    }
+
+    /**
+     * Waits until the session is terminated or the process running it is terminated, whichever happens first.
+     */
+    public void waitForTermination(ProcessHandler processHandler) throws InterruptedException {
+      final ProcessAdapter listener = new ProcessAdapter() {
+        @Override
+        public void processTerminated(ProcessEvent event) {
+          myTerminated.countDown();
+        }
+      };
+      // the kept alive process runs many sessions, so the listener is removed when the session is over
+      processHandler.addProcessListener(listener);
+      try {
+        if (!processHandler.isProcessTerminated()) {
+          myTerminated.await();
+        }
+      }
+      finally {
+        processHandler.removeProcessListener(listener);
+      }
     }
   }
 
@@ -1000,7 +1119,10 @@ public class BuildManager implements ApplicationComponent{
 
     @Override
     public void projectClosed(Project project) {
-      myProjectDataMap.remove(getProjectPath(project));
+      final ProjectData data = myProjectDataMap.remove(getProjectPath(project));
+      if (data != null) {
+        data.shutdownKeptAliveProcess();
+      }
       final MessageBusConnection conn = myConnections.remove(project);
       if (conn != null) {
         conn.disconnect();
@@ -1014,6 +1136,7 @@ public class BuildManager implements ApplicationComponent{
     private final Set<String> myDeleted = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
     private long myNextEventOrdinal = 0L;
     private boolean myNeedRescan = true;
+    @Nullable private KeptAliveProcess keptAliveProcess;
 
     private ProjectData(SequentialTaskExecutor taskQueue) {
       this.taskQueue = taskQueue;
@@ -1050,6 +1173,14 @@ public class BuildManager implements ApplicationComponent{
       return rescan;
     }
 
+    public void shutdownKeptAliveProcess() {
+      final KeptAliveProcess process = keptAliveProcess;
+      keptAliveProcess = null;
+      if (process != null) {
+        process.shutdown();
+      }
+    }
+
     public void dropChanges() {
       myNeedRescan = true;
       myNextEventOrdinal = 0L;
@@ -1058,4 +1189,27 @@ public class BuildManager implements ApplicationComponent{
     }
   }
 
+  private static class KeptAliveProcess {
+    final String signature;
+    final OSProcessHandler processHandler;
+    final StringBuilder stdErrOutput;
+    volatile Channel channel;
+
+    private KeptAliveProcess(String signature, OSProcessHandler processHandler, StringBuilder stdErrOutput) {
+      this.signature = signature;
+      this.processHandler = processHandler;
+      this.stdErrOutput = stdErrOutput;
+    }
+
+    public void shutdown() {
+      final Channel channel = this.channel;
+      if (channel != null && channel.isConnected()) {
+        // the process releases project data and exits when the connection is closed
+        channel.close();
+      }
+      else {
+        processHandler.destroyProcess();
+      }
+    }
+  }
 }
@@ -37,10 +37,15 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
   private final Map<UUID, SessionData> myMessageHandlers = new ConcurrentHashMap<UUID, SessionData>();
   private final Set<UUID> myCanceledSessions = new ConcurrentHashSet<UUID>();
 
+  /**
+   * @param keepAlive true if the session runs in a build process which is kept alive, i.e. the process won't close the connection
+   *                  when the session ends, so the session is terminated by its last message
+   */
   public void registerBuildMessageHandler(UUID sessionId,
                                           BuilderMessageHandler handler,
-                                          CmdlineRemoteProto.Message.ControllerMessage params) {
-    myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params));
+                                          CmdlineRemoteProto.Message.ControllerMessage params,
+                                          boolean keepAlive) {
+    myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params, keepAlive));
   }
 
   @Nullable
@@ -50,6 +55,29 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     return data != null? data.handler : null;
   }
 
+  /**
+   * Sends parameters of the registered session to the build process which has completed its previous session and keeps running.
+   * @return false if the process is disconnected
+   */
+  public boolean startSession(UUID sessionId, Channel channel) {
+    final SessionData data = myMessageHandlers.get(sessionId);
+    if (data == null || !channel.isConnected()) {
+      return false;
+    }
+    final CmdlineRemoteProto.Message.ControllerMessage params = data.params;
+    data.params = null;
+    data.channel = channel;
+    if (params == null) {
+      return false;
+    }
+    data.handler.buildStarted(sessionId);
+    Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, params));
+    if (myCanceledSessions.contains(sessionId)) {
+      Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createCancelCommand()));
+    }
+    return true;
+  }
+
   public void cancelSession(UUID sessionId) {
     if (myCanceledSessions.add(sessionId)) {
       final Channel channel = getConnectedChannel(sessionId);
@@ -77,11 +105,12 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     final CmdlineRemoteProto.Message message = (CmdlineRemoteProto.Message)e.getMessage();
 
     SessionData sessionData = (SessionData)ctx.getAttachment();
+    final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
 
     UUID sessionId;
-    if (sessionData == null) {
-      // this is the first message for this session, so fill session data with missing info
-      final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
+    if (sessionData == null || !isSameId(sessionData.sessionId, id)) {
+      // this is the first message for this session, so fill session data with missing info;
+      // a build process which is kept alive runs subsequent sessions over the same channel
       sessionId = new UUID(id.getMostSigBits(), id.getLeastSigBits());
 
       sessionData = myMessageHandlers.get(sessionId);
@@ -108,6 +137,9 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     switch (messageType) {
       case FAILURE:
         handler.handleFailure(sessionId, message.getFailure());
+        if (sessionData.keepAlive) {
+          terminateSession(sessionId);
+        }
         break;
 
       case BUILDER_MESSAGE:
@@ -126,6 +158,11 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
         }
         else {
           handler.handleBuildMessage(ctx.getChannel(), sessionId, builderMessage);
+          if (sessionData.keepAlive && msgType == CmdlineRemoteProto.Message.BuilderMessage.Type.BUILD_EVENT &&
+              builderMessage.getBuildEvent().getEventType() == CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.Type.BUILD_COMPLETED) {
+            // this is the last message of the session, the kept alive process doesn't close the channel after it
+            terminateSession(sessionId);
+          }
         }
         break;
 
@@ -135,6 +172,18 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     }
   }
 
+  private static boolean isSameId(UUID sessionId, CmdlineRemoteProto.Message.UUID id) {
+    return sessionId.getMostSignificantBits() == id.getMostSigBits() && sessionId.getLeastSignificantBits() == id.getLeastSigBits();
+  }
+
+  private void terminateSession(UUID sessionId) {
+    final BuilderMessageHandler handler = unregisterBuildMessageHandler(sessionId);
+    if (handler != null) {
+      // notify the handler only if it has not been notified yet
+      handler.sessionTerminated(sessionId);
+    }
+  }
+
   @Override
   public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
     try {
@@ -143,10 +192,12 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     finally {
       final SessionData sessionData = (SessionData)ctx.getAttachment();
       if (sessionData != null) {
-        final BuilderMessageHandler handler = unregisterBuildMessageHandler(sessionData.sessionId);
-        if (handler != null) {
-          // notify the handler only if it has not been notified yet
-          handler.sessionTerminated(sessionData.sessionId);
+        terminateSession(sessionData.sessionId);
+      }
+      // a session started in a kept alive process may have received no messages yet
+      for (SessionData data : myMessageHandlers.values()) {
+        if (data.channel == e.getChannel()) {
+          terminateSession(data.sessionId);
         }
       }
     }
@@ -184,12 +235,17 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     final UUID sessionId;
     final BuilderMessageHandler handler;
     volatile CmdlineRemoteProto.Message.ControllerMessage params;
+    final boolean keepAlive;
     volatile Channel channel;
 
-    private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params) {
+    private SessionData(UUID sessionId,
+                        BuilderMessageHandler handler,
+                        CmdlineRemoteProto.Message.ControllerMessage params,
+                        boolean keepAlive) {
       this.sessionId = sessionId;
       this.handler = handler;
       this.params = params;
+      this.keepAlive = keepAlive;
     }
   }
 }
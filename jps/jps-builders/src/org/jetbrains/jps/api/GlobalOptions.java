@@ -11,4 +11,15 @@ public interface GlobalOptions {
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String BUILD_CACHE_DIR_OPTION = "compile.build.cache.dir";
+  String DIGEST_STAMPS_OPTION = "compile.digest.stamps";
+  String OFF_HEAP_MAPPINGS_OPTION = "compile.offheap.mappings";
+  String INCREMENTAL_JARS_OPTION = "compile.incremental.jars";
+  /**
+   * Resource outputs become hard links to the resource files. The output and the resource share the content, so anything that
+   * modifies the output in place (e.g. a post-processing step or a running application) modifies the resource file as well.
+   */
+  String RESOURCES_HARD_LINKS_OPTION = "compile.resources.hardlinks";
+  String BUILD_TRACE_DIR_OPTION = "compile.trace.dir";
+  String KEEP_ALIVE_OPTION = "compile.process.keep.alive";
 }
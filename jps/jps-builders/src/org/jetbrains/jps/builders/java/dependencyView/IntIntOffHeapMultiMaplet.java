@@ -0,0 +1,248 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import gnu.trove.TIntFunction;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntObjectProcedure;
+import gnu.trove.TIntProcedure;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transient maplet keeping value sets in direct memory. Every set is an open addressing hash table of enumerated names,
+ * 0 is never returned by the enumerator and marks a free slot. Unlike {@link IntIntTransientMultiMaplet}, {@link #get(int)}
+ * returns a copy of the stored set.
+ */
+class IntIntOffHeapMultiMaplet extends IntIntMultiMaplet implements OffHeapRecords.Owner {
+  private static final int MIN_CAPACITY = 4;
+
+  private final TIntIntHashMap myOffsets = new TIntIntHashMap();
+  private final OffHeapRecords myRecords = new OffHeapRecords(this);
+
+  @Override
+  public boolean containsKey(final int key) {
+    return myOffsets.containsKey(key);
+  }
+
+  @Override
+  public TIntHashSet get(final int key) {
+    if (!myOffsets.containsKey(key)) {
+      return null;
+    }
+    final int offset = myOffsets.get(key);
+    final ByteBuffer buffer = myRecords.getBuffer();
+    final int capacity = getCapacity(offset);
+    final TIntHashSet result = new TIntHashSet(buffer.getInt(offset));
+    for (int i = 0; i < capacity; i++) {
+      final int value = buffer.getInt(slotOffset(offset, i));
+      if (value != 0) {
+        result.add(value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void put(final int key, final int value) {
+    assert value != 0;
+
+    if (!myOffsets.containsKey(key)) {
+      myOffsets.put(key, allocateSet(MIN_CAPACITY));
+    }
+    int offset = myOffsets.get(key);
+    int capacity = getCapacity(offset);
+    final int size = myRecords.getBuffer().getInt(offset);
+    if (contains(offset, capacity, value)) {
+      return;
+    }
+
+    if ((size + 1) * 2 > capacity) {
+      final TIntHashSet values = get(key);
+      remove(key);
+      capacity *= 2;
+      offset = allocateSet(capacity);
+      myOffsets.put(key, offset);
+      addAll(offset, capacity, values);
+    }
+
+    insert(offset, capacity, value);
+    myRecords.getBuffer().putInt(offset, size + 1);
+  }
+
+  @Override
+  public void put(final int key, final TIntHashSet value) {
+    if (!myOffsets.containsKey(key)) {
+      store(key, value);
+      return;
+    }
+    value.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        put(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replace(final int key, final TIntHashSet value) {
+    remove(key);
+    if (value != null && !value.isEmpty()) {
+      store(key, value);
+    }
+  }
+
+  @Override
+  public void putAll(final IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        put(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replaceAll(final IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        replace(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void remove(final int key) {
+    if (myOffsets.containsKey(key)) {
+      myRecords.free(myOffsets.remove(key));
+    }
+  }
+
+  @Override
+  public void removeFrom(final int key, final int value) {
+    final TIntHashSet collection = get(key);
+    if (collection != null && collection.remove(value)) {
+      replace(key, collection);
+    }
+  }
+
+  @Override
+  public void removeAll(final int key, final TIntHashSet values) {
+    final TIntHashSet collection = get(key);
+    if (collection != null && collection.removeAll(values.toArray())) {
+      replace(key, collection);
+    }
+  }
+
+  @Override
+  public void close() {
+    myOffsets.clear();
+    myRecords.dispose();
+  }
+
+  @Override
+  public void forEachEntry(final TIntObjectProcedure<TIntHashSet> procedure) {
+    for (int key : myOffsets.keys()) {
+      if (!procedure.execute(key, get(key))) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void flush(final boolean memoryCachesOnly) {
+  }
+
+  @Override
+  public void relocateRecords(final OffHeapRecords.Relocation relocation) {
+    myOffsets.transformValues(new TIntFunction() {
+      @Override
+      public int execute(int offset) {
+        return relocation.relocate(offset);
+      }
+    });
+  }
+
+  private void store(final int key, final TIntHashSet value) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < value.size() * 2) {
+      capacity <<= 1;
+    }
+    final int offset = allocateSet(capacity);
+    myOffsets.put(key, offset);
+    addAll(offset, capacity, value);
+    myRecords.getBuffer().putInt(offset, value.size());
+  }
+
+  private int allocateSet(final int capacity) {
+    final int offset = myRecords.allocate(4 * (capacity + 1));
+    final ByteBuffer buffer = myRecords.getBuffer();
+    for (int i = -1; i < capacity; i++) {
+      buffer.putInt(slotOffset(offset, i), 0);
+    }
+    return offset;
+  }
+
+  private int getCapacity(final int offset) {
+    return myRecords.getLength(offset) / 4 - 1;
+  }
+
+  private void addAll(final int offset, final int capacity, final TIntHashSet values) {
+    values.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        insert(offset, capacity, value);
+        return true;
+      }
+    });
+  }
+
+  private boolean contains(final int offset, final int capacity, final int value) {
+    final ByteBuffer buffer = myRecords.getBuffer();
+    for (int i = hash(value) & (capacity - 1); ; i = (i + 1) & (capacity - 1)) {
+      final int slot = buffer.getInt(slotOffset(offset, i));
+      if (slot == value) {
+        return true;
+      }
+      if (slot == 0) {
+        return false;
+      }
+    }
+  }
+
+  private void insert(final int offset, final int capacity, final int value) {
+    final ByteBuffer buffer = myRecords.getBuffer();
+    int i = hash(value) & (capacity - 1);
+    while (buffer.getInt(slotOffset(offset, i)) != 0) {
+      i = (i + 1) & (capacity - 1);
+    }
+    buffer.putInt(slotOffset(offset, i), value);
+  }
+
+  private static int slotOffset(final int offset, final int slot) {
+    return offset + 4 * (slot + 1);
+  }
+
+  private static int hash(final int value) {
+    final int h = value * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -4,20 +4,25 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.IntInlineKeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
 import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
 import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+import org.jetbrains.jps.service.SharedThreadPool;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.PrintStream;
+import java.io.*;
 import java.lang.annotation.RetentionPolicy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -32,9 +37,19 @@ public class Mappings {
   private final static String CLASS_TO_CLASS = "classToClass.tab";
   private final static String SOURCE_TO_CLASS = "sourceToClass.tab";
   private final static String CLASS_TO_SOURCE = "classToSource.tab";
+  private final static String SOURCE_TO_DIGEST = "sourceToDigest.tab";
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  private static final DataExternalizer<Long> LONG_EXTERNALIZER = new DataExternalizer<Long>() {
+    public void save(DataOutput out, Long value) throws IOException {
+      out.writeLong(value);
+    }
+
+    public Long read(DataInput in) throws IOException {
+      return in.readLong();
+    }
+  };
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -43,12 +58,17 @@ public class Mappings {
 
   private final boolean myIsDelta;
   private final boolean myDeltaIsTransient;
+  private final boolean myDeltaIsOffHeap;
   private boolean myIsDifferentiated = false;
   private boolean myIsRebuild = false;
+  private boolean myConcurrentIntegrate = true;
 
   private final TIntHashSet myChangedClasses;
   private final THashSet<File> myChangedFiles;
   private final Set<ClassRepr> myDeletedClasses;
+  private final TIntLongHashMap myClassDigests;
+  private final TIntLongHashMap myImportDigests;
+  private final Map<File, Long> mySourceDigests;
   private final Object myLock;
   private final File myRootDir;
 
@@ -68,6 +88,14 @@ public class Mappings {
   private ObjectObjectMultiMaplet<File, ClassRepr> mySourceFileToClasses;
   private IntObjectMaplet<File> myClassToSourceFile;
 
+  /**
+  key: the enumerated path of a source file;
+  value: digest of the classes compiled from the file, files with unchanged digest are skipped by differentiate;
+  the digests are kept only together with the off-heap delta, null otherwise
+  */
+  @Nullable
+  private IntObjectMaplet<Long> mySourceFileToDigest;
+
   private IntIntTransientMultiMaplet myRemovedSuperClasses;
   private IntIntTransientMultiMaplet myAddedSuperClasses;
 
@@ -80,7 +108,11 @@ public class Mappings {
     myChangedClasses = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myChangedFiles = new THashSet(FileUtil.FILE_HASHING_STRATEGY);
     myDeletedClasses = new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
+    myClassDigests = new TIntLongHashMap();
+    myImportDigests = new TIntLongHashMap();
+    mySourceDigests = new THashMap<File, Long>(FileUtil.FILE_HASHING_STRATEGY);
     myDeltaIsTransient = base.myDeltaIsTransient;
+    myDeltaIsOffHeap = base.myDeltaIsOffHeap;
     myRootDir = new File(FileUtil.toSystemIndependentName(base.myRootDir.getAbsolutePath()) + File.separatorChar + "myDelta");
     myContext = base.myContext;
     myInitName = myContext.get("<init>");
@@ -91,12 +123,24 @@ public class Mappings {
   }
 
   public Mappings(final File rootDir, final boolean transientDelta) throws IOException {
+    this(rootDir, transientDelta, false);
+  }
+
+  /**
+   * @param offHeapDelta if the delta is transient, keep its class sets and dependencies serialized in direct memory
+   *                     instead of java heap
+   */
+  public Mappings(final File rootDir, final boolean transientDelta, final boolean offHeapDelta) throws IOException {
     myLock = new Object();
     myIsDelta = false;
     myChangedClasses = null;
     myChangedFiles = null;
     myDeletedClasses = null;
+    myClassDigests = null;
+    myImportDigests = null;
+    mySourceDigests = null;
     myDeltaIsTransient = transientDelta;
+    myDeltaIsOffHeap = offHeapDelta;
     myRootDir = rootDir;
     createImplementation();
     myInitName = myContext.get("<init>");
@@ -113,7 +157,15 @@ public class Mappings {
     myRemovedSuperClasses = myIsDelta ? new IntIntTransientMultiMaplet() : null;
     myAddedSuperClasses = myIsDelta ? new IntIntTransientMultiMaplet() : null;
 
-    if (myIsDelta && myDeltaIsTransient) {
+    if (myIsDelta && myDeltaIsTransient && myDeltaIsOffHeap) {
+      myClassToSubclasses = new IntIntOffHeapMultiMaplet();
+      myClassToClassDependency = new IntIntOffHeapMultiMaplet();
+      mySourceFileToClasses = new ObjectObjectOffHeapMultiMaplet<File, ClassRepr>(
+        FileUtil.FILE_HASHING_STRATEGY, ClassRepr.externalizer(myContext), ourClassSetConstructor
+      );
+      myClassToSourceFile = new IntObjectTransientMaplet<File>();
+    }
+    else if (myIsDelta && myDeltaIsTransient) {
       myClassToSubclasses = new IntIntTransientMultiMaplet();
       myClassToClassDependency = new IntIntTransientMultiMaplet();
       mySourceFileToClasses = new ObjectObjectTransientMultiMaplet<File, ClassRepr>(FileUtil.FILE_HASHING_STRATEGY, ourClassSetConstructor);
@@ -131,6 +183,18 @@ public class Mappings {
       );
       myClassToSourceFile = new IntObjectPersistentMaplet<File>(DependencyContext.getTableFile(myRootDir, CLASS_TO_SOURCE), new FileKeyDescriptor());
     }
+
+    if (myIsDelta) {
+      mySourceFileToDigest = null;
+    }
+    else if (myDeltaIsOffHeap) {
+      mySourceFileToDigest = new IntObjectPersistentMaplet<Long>(DependencyContext.getTableFile(myRootDir, SOURCE_TO_DIGEST), LONG_EXTERNALIZER);
+    }
+    else {
+      // digests aren't updated without the option, so ones left by a build with it would make differentiate skip changed files later
+      PersistentHashMap.deleteFilesStartingWith(new File(myRootDir, SOURCE_TO_DIGEST));
+      mySourceFileToDigest = null;
+    }
   }
 
   public Mappings createDelta() {
@@ -173,6 +237,76 @@ public class Mappings {
     return null;
   }
 
+  private int getSourceKey(final File sourceFile) {
+    return myContext.get(FileUtil.toSystemIndependentName(sourceFile.getPath()));
+  }
+
+  /**
+   * @return digest of the given classes of this delta and their imports or null if some class was not reported by the callback
+   */
+  @Nullable
+  private Long getSourceDigest(@Nullable final Collection<ClassRepr> classes) {
+    if (classes == null || classes.isEmpty()) {
+      return null;
+    }
+    long digest = 0L;
+    for (final ClassRepr c : classes) {
+      if (!myClassDigests.containsKey(c.name)) {
+        return null;
+      }
+      digest += myClassDigests.get(c.name) + 31 * myImportDigests.get(c.name);
+    }
+    return digest;
+  }
+
+  private void updateSourceDigest(final File sourceFile, @Nullable final Long digest) {
+    if (mySourceFileToDigest == null) {
+      return;
+    }
+    if (digest != null) {
+      mySourceFileToDigest.put(getSourceKey(sourceFile), digest);
+    }
+    else {
+      mySourceFileToDigest.remove(getSourceKey(sourceFile));
+    }
+  }
+
+  private static long digest(final ClassRepr repr) {
+    final UnsyncByteArrayOutputStream bytes = new UnsyncByteArrayOutputStream();
+    repr.save(new DataOutputStream(bytes));
+    return digest(bytes.toByteArray());
+  }
+
+  private static long digest(final List<String> imports) {
+    final List<String> sorted = new ArrayList<String>(imports);
+    Collections.sort(sorted);
+    final UnsyncByteArrayOutputStream bytes = new UnsyncByteArrayOutputStream();
+    try {
+      final DataOutputStream out = new DataOutputStream(bytes);
+      for (String anImport : sorted) {
+        out.writeUTF(anImport);
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return digest(bytes.toByteArray());
+  }
+
+  private static long digest(final byte[] bytes) {
+    try {
+      final byte[] md5 = MessageDigest.getInstance("MD5").digest(bytes);
+      long result = 0L;
+      for (int i = 0; i < 8; i++) {
+        result = (result << 8) | (md5[i] & 0xFF);
+      }
+      return result;
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void clean() throws IOException {
     if (myRootDir != null) {
       synchronized (myLock) {
@@ -1872,6 +2006,17 @@ public class Mappings {
         for (final FileClasses compiledFile : newClasses) {
           final File fileName = compiledFile.myFileName;
           final Set<ClassRepr> classes = compiledFile.myFileClasses;
+
+          final Long digest = mySourceFileToDigest != null ? myDelta.getSourceDigest(classes) : null;
+          if (mySourceFileToDigest != null) {
+            myDelta.mySourceDigests.put(fileName, digest);
+          }
+          if (digest != null && digest.equals(mySourceFileToDigest.get(getSourceKey(fileName)))) {
+            // the file produced the same classes as before, no need to load and compare them
+            debug("Skipping unchanged classes of ", fileName);
+            continue;
+          }
+
           final Set<ClassRepr> pastClasses = (Set<ClassRepr>)mySourceFileToClasses.get(fileName);
           final DiffState state = new DiffState(Difference.make(pastClasses, classes));
 
@@ -1985,136 +2130,246 @@ public class Mappings {
               }
               mySourceFileToClasses.remove(fileName);
             }
+            updateSourceDigest(fileName, null);
           }
         }
 
+        // every update below works with its own set of maplets, so the updates are run concurrently
+        final List<Runnable> updates = new ArrayList<Runnable>();
+
         if (!delta.isRebuild()) {
           for (final ClassRepr repr : delta.getDeletedClasses()) {
             cleanupRemovedClass(delta, repr, repr.getUsages(), dependenciesTrashBin);
           }
 
-          final TIntHashSet superClasses = new TIntHashSet();
-          final IntIntTransientMultiMaplet addedSuperClasses = delta.getAddedSuperClasses();
-          final IntIntTransientMultiMaplet removedSuperClasses = delta.getRemovedSuperClasses();
+          updates.add(new Runnable() {
+            @Override
+            public void run() {
+              final TIntHashSet superClasses = new TIntHashSet();
+              final IntIntTransientMultiMaplet addedSuperClasses = delta.getAddedSuperClasses();
+              final IntIntTransientMultiMaplet removedSuperClasses = delta.getRemovedSuperClasses();
+
+              addAllKeys(superClasses, addedSuperClasses);
+              addAllKeys(superClasses, removedSuperClasses);
+
+              superClasses.forEach(new TIntProcedure() {
+                @Override
+                public boolean execute(final int superClass) {
+                  final TIntHashSet added = addedSuperClasses.get(superClass);
+                  final TIntHashSet removed = removedSuperClasses.get(superClass);
+
+                  final TIntHashSet old = myClassToSubclasses.get(superClass);
+
+                  if (old == null) {
+                    myClassToSubclasses.replace(superClass, added);
+                  }
+                  else {
+                    if (removed != null) {
+                      old.removeAll(removed.toArray());
+                    }
+
+                    if (added != null) {
+                      old.addAll(added.toArray());
+                    }
 
-          addAllKeys(superClasses, addedSuperClasses);
-          addAllKeys(superClasses, removedSuperClasses);
+                    myClassToSubclasses.replace(superClass, old);
+                  }
+
+                  return true;
+                }
+              });
+            }
+          });
 
-          superClasses.forEach(new TIntProcedure() {
+          updates.add(new Runnable() {
             @Override
-            public boolean execute(final int superClass) {
-              final TIntHashSet added = addedSuperClasses.get(superClass);
-              final TIntHashSet removed = removedSuperClasses.get(superClass);
+            public void run() {
+              delta.getChangedClasses().forEach(new TIntProcedure() {
+                @Override
+                public boolean execute(final int className) {
+                  final File sourceFile = delta.myClassToSourceFile.get(className);
+                  if (sourceFile != null) {
+                    myClassToSourceFile.put(className, sourceFile);
+                  }
+                  else {
+                    myClassToSourceFile.remove(className);
+                  }
 
-              final TIntHashSet old = myClassToSubclasses.get(superClass);
+                  cleanupBackDependency(className, null, dependenciesTrashBin);
 
-              if (old == null) {
-                myClassToSubclasses.replace(superClass, added);
-              }
-              else {
-                if (removed != null) {
-                  old.removeAll(removed.toArray());
+                  return true;
                 }
+              });
 
-                if (added != null) {
-                  old.addAll(added.toArray());
+              delta.getChangedFiles().forEach(new TObjectProcedure<File>() {
+                @Override
+                public boolean execute(final File fileName) {
+                  final Collection<ClassRepr> classes = delta.mySourceFileToClasses.get(fileName);
+                  mySourceFileToClasses.replace(fileName, classes);
+                  return true;
                 }
+              });
 
-                myClassToSubclasses.replace(superClass, old);
+              for (final Map.Entry<File, Long> entry : delta.mySourceDigests.entrySet()) {
+                updateSourceDigest(entry.getKey(), entry.getValue());
               }
 
-              return true;
+              // the trash bin is complete only after back dependencies of all changed classes are collected
+              integrateClassToClassDependencies(delta, dependenciesTrashBin);
             }
           });
-
-          delta.getChangedClasses().forEach(new TIntProcedure() {
+        }
+        else {
+          updates.add(new Runnable() {
             @Override
-            public boolean execute(final int className) {
-              final File sourceFile = delta.myClassToSourceFile.get(className);
-              if (sourceFile != null) {
-                myClassToSourceFile.put(className, sourceFile);
-              }
-              else {
-                myClassToSourceFile.remove(className);
-              }
-
-              cleanupBackDependency(className, null, dependenciesTrashBin);
-
-              return true;
+            public void run() {
+              myClassToSubclasses.putAll(delta.myClassToSubclasses);
             }
           });
-
-          delta.getChangedFiles().forEach(new TObjectProcedure<File>() {
+          updates.add(new Runnable() {
             @Override
-            public boolean execute(final File fileName) {
-              final Collection<ClassRepr> classes = delta.mySourceFileToClasses.get(fileName);
-              mySourceFileToClasses.replace(fileName, classes);
-              return true;
+            public void run() {
+              myClassToSourceFile.putAll(delta.myClassToSourceFile);
+            }
+          });
+          updates.add(new Runnable() {
+            @Override
+            public void run() {
+              delta.mySourceFileToClasses.forEachEntry(new TObjectObjectProcedure<File, Collection<ClassRepr>>() {
+                @Override
+                public boolean execute(File fileName, Collection<ClassRepr> classes) {
+                  mySourceFileToClasses.replace(fileName, classes);
+                  if (mySourceFileToDigest != null) {
+                    updateSourceDigest(fileName, delta.getSourceDigest(classes));
+                  }
+                  return true;
+                }
+              });
             }
           });
+          updates.add(new Runnable() {
+            @Override
+            public void run() {
+              integrateClassToClassDependencies(delta, dependenciesTrashBin);
+            }
+          });
+        }
+
+        if (myConcurrentIntegrate) {
+          runConcurrently(updates);
         }
         else {
-          myClassToSubclasses.putAll(delta.myClassToSubclasses);
-          myClassToSourceFile.putAll(delta.myClassToSourceFile);
-          mySourceFileToClasses.replaceAll(delta.mySourceFileToClasses);
+          for (Runnable update : updates) {
+            update.run();
+          }
         }
+      }
+      finally {
+        delta.close();
+      }
+    }
+  }
 
-        // updating classToClass dependencies
-
-        final TIntHashSet affectedClasses = new TIntHashSet();
+  private void integrateClassToClassDependencies(final Mappings delta, final IntIntMultiMaplet dependenciesTrashBin) {
+    final TIntHashSet affectedClasses = new TIntHashSet();
 
-        addAllKeys(affectedClasses, dependenciesTrashBin);
-        addAllKeys(affectedClasses, delta.myClassToClassDependency);
+    addAllKeys(affectedClasses, dependenciesTrashBin);
+    addAllKeys(affectedClasses, delta.myClassToClassDependency);
 
-        affectedClasses.forEach(new TIntProcedure() {
-          @Override
-          public boolean execute(int aClass) {
-            final TIntHashSet now = delta.myClassToClassDependency.get(aClass);
-            final TIntHashSet toRemove = dependenciesTrashBin.get(aClass);
-            final boolean hasDataToAdd = now != null && !now.isEmpty();
-
-            if (toRemove != null && !toRemove.isEmpty()) {
-              final TIntHashSet current = myClassToClassDependency.get(aClass);
-              if (current != null && !current.isEmpty()) {
-                final TIntHashSet before = new TIntHashSet();
-                addAll(before, current);
-
-                final boolean removed = current.removeAll(toRemove.toArray());
-                final boolean added = hasDataToAdd && current.addAll(now.toArray());
-
-                if ((removed && !added) || (!removed && added) || !before.equals(current)) {
-                  myClassToClassDependency.replace(aClass, current);
-                }
-              }
-              else {
-                if (hasDataToAdd) {
-                  myClassToClassDependency.put(aClass, now);
-                }
-              }
+    affectedClasses.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int aClass) {
+        final TIntHashSet now = delta.myClassToClassDependency.get(aClass);
+        final TIntHashSet toRemove = dependenciesTrashBin.get(aClass);
+        final boolean hasDataToAdd = now != null && !now.isEmpty();
+
+        if (toRemove != null && !toRemove.isEmpty()) {
+          final TIntHashSet current = myClassToClassDependency.get(aClass);
+          if (current != null && !current.isEmpty()) {
+            final TIntHashSet before = new TIntHashSet();
+            addAll(before, current);
+
+            final boolean removed = current.removeAll(toRemove.toArray());
+            final boolean added = hasDataToAdd && current.addAll(now.toArray());
+
+            if ((removed && !added) || (!removed && added) || !before.equals(current)) {
+              myClassToClassDependency.replace(aClass, current);
             }
-            else {
-              // nothing to remove for this class
-              if (hasDataToAdd) {
-                myClassToClassDependency.put(aClass, now);
-              }
+          }
+          else {
+            if (hasDataToAdd) {
+              myClassToClassDependency.put(aClass, now);
             }
-            return true;
           }
-        });
+        }
+        else {
+          // nothing to remove for this class
+          if (hasDataToAdd) {
+            myClassToClassDependency.put(aClass, now);
+          }
+        }
+        return true;
       }
-      finally {
-        delta.close();
+    });
+  }
+
+  @TestOnly
+  public void setConcurrentIntegrate(boolean concurrentIntegrate) {
+    myConcurrentIntegrate = concurrentIntegrate;
+  }
+
+  private static void runConcurrently(final List<Runnable> tasks) {
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 1; i < tasks.size(); i++) {
+      futures.add(SharedThreadPool.getInstance().executeOnPooledThread(tasks.get(i)));
+    }
+
+    Throwable error = null;
+    try {
+      if (!tasks.isEmpty()) {
+        tasks.get(0).run();
+      }
+    }
+    catch (Throwable e) {
+      error = e;
+    }
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (ExecutionException e) {
+        if (error == null) {
+          error = e.getCause();
+        }
+      }
+      catch (InterruptedException e) {
+        if (error == null) {
+          error = e;
+        }
       }
     }
+
+    if (error instanceof RuntimeException) {
+      throw (RuntimeException)error;
+    }
+    if (error instanceof Error) {
+      throw (Error)error;
+    }
+    if (error != null) {
+      throw new RuntimeException(error);
+    }
   }
 
   public Callbacks.Backend getCallback() {
     return new Callbacks.Backend() {
       public void associate(final String classFileName, final String sourceFileName, final ClassReader cr) {
+        // class files are analyzed concurrently, only registration of the results needs the lock
+        final int classFileNameS = myContext.get(classFileName);
+        final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
+        final ClassRepr repr = result.first;
+        final long classDigest = repr != null && myDeltaIsOffHeap ? digest(repr) : 0L;
         synchronized (myLock) {
-          final int classFileNameS = myContext.get(classFileName);
-          final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
-          final ClassRepr repr = result.first;
           if (repr != null) {
             final Set<UsageRepr.Usage> localUsages = result.second;
             final File sourceFile = new File(sourceFileName);
@@ -2122,6 +2377,9 @@ public class Mappings {
 
             myClassToSourceFile.put(className, sourceFile);
             mySourceFileToClasses.put(sourceFile, repr);
+            if (myDeltaIsOffHeap) {
+              myClassDigests.put(className, classDigest);
+            }
 
             for (final int s : repr.getSupers()) {
               myClassToSubclasses.put(s, className);
@@ -2156,9 +2414,16 @@ public class Mappings {
         }
 
         if (!allImports.isEmpty()) {
+          final int rootClassName = myContext.get(className.replace(".", "/"));
+          if (myDeltaIsOffHeap) {
+            final long importsDigest = digest(allImports);
+            synchronized (myLock) {
+              myImportDigests.put(rootClassName, importsDigest);
+            }
+          }
+
           myPostPasses.offer(new Runnable() {
             public void run() {
-              final int rootClassName = myContext.get(className.replace(".", "/"));
               final File fileName = myClassToSourceFile.get(rootClassName);
               final ClassRepr repr = fileName != null? getReprByName(rootClassName) : null;
 
@@ -2189,6 +2454,9 @@ public class Mappings {
       myClassToClassDependency.close();
       mySourceFileToClasses.close();
       myClassToSourceFile.close();
+      if (mySourceFileToDigest != null) {
+        mySourceFileToDigest.close();
+      }
 
       if (!myIsDelta) {
         // only close if you own the context
@@ -2212,6 +2480,9 @@ public class Mappings {
       myClassToClassDependency.flush(memoryCachesOnly);
       mySourceFileToClasses.flush(memoryCachesOnly);
       myClassToSourceFile.flush(memoryCachesOnly);
+      if (mySourceFileToDigest != null) {
+        mySourceFileToDigest.flush(memoryCachesOnly);
+      }
 
       if (!myIsDelta) {
         // flush if you own the context
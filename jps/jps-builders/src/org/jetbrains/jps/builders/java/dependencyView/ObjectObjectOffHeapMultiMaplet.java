@@ -0,0 +1,207 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import gnu.trove.TIntFunction;
+import gnu.trove.TObjectHashingStrategy;
+import gnu.trove.TObjectIntHashMap;
+import gnu.trove.TObjectObjectProcedure;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Transient maplet keeping value collections serialized in direct memory, so that only the collections being processed
+ * are materialized on the heap. {@link #get(Object)} returns a copy of the stored collection; {@link #put(Object, Streamable)}
+ * replaces an equal value, so an updated value is visible after it has been put again.
+ */
+class ObjectObjectOffHeapMultiMaplet<K, V extends Streamable> extends ObjectObjectMultiMaplet<K, V> implements OffHeapRecords.Owner {
+  private final TObjectIntHashMap<K> myOffsets;
+  private final OffHeapRecords myRecords = new OffHeapRecords(this);
+  private final DataExternalizer<V> myValueExternalizer;
+  private final CollectionFactory<V> myCollectionFactory;
+
+  public ObjectObjectOffHeapMultiMaplet(final TObjectHashingStrategy<K> hashingStrategy,
+                                        final DataExternalizer<V> valueExternalizer,
+                                        final CollectionFactory<V> collectionFactory) {
+    myOffsets = new TObjectIntHashMap<K>(hashingStrategy);
+    myValueExternalizer = valueExternalizer;
+    myCollectionFactory = collectionFactory;
+  }
+
+  @Override
+  public boolean containsKey(final K key) {
+    return myOffsets.containsKey(key);
+  }
+
+  @Override
+  public Collection<V> get(final K key) {
+    if (!myOffsets.containsKey(key)) {
+      return null;
+    }
+    final int offset = myOffsets.get(key);
+    final byte[] bytes = new byte[myRecords.getLength(offset)];
+    final ByteBuffer buffer = myRecords.getBuffer().duplicate();
+    buffer.position(offset);
+    buffer.get(bytes);
+
+    try {
+      final DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
+      final Collection<V> result = myCollectionFactory.create();
+      for (int count = in.readInt(); count > 0; count--) {
+        result.add(myValueExternalizer.read(in));
+      }
+      return result;
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void put(final K key, final V value) {
+    Collection<V> collection = get(key);
+    if (collection == null) {
+      collection = myCollectionFactory.create();
+    }
+    else {
+      collection.remove(value);
+    }
+    collection.add(value);
+    replace(key, collection);
+  }
+
+  @Override
+  public void put(final K key, final Collection<V> value) {
+    final Collection<V> collection = get(key);
+    if (collection == null) {
+      store(key, value);
+    }
+    else if (collection.addAll(value)) {
+      replace(key, collection);
+    }
+  }
+
+  @Override
+  public void replace(final K key, final Collection<V> value) {
+    remove(key);
+    if (value != null && !value.isEmpty()) {
+      store(key, value);
+    }
+  }
+
+  @Override
+  public void putAll(final ObjectObjectMultiMaplet<K, V> m) {
+    m.forEachEntry(new TObjectObjectProcedure<K, Collection<V>>() {
+      @Override
+      public boolean execute(K key, Collection<V> value) {
+        put(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replaceAll(final ObjectObjectMultiMaplet<K, V> m) {
+    m.forEachEntry(new TObjectObjectProcedure<K, Collection<V>>() {
+      @Override
+      public boolean execute(K key, Collection<V> value) {
+        replace(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void remove(final K key) {
+    if (myOffsets.containsKey(key)) {
+      myRecords.free(myOffsets.remove(key));
+    }
+  }
+
+  @Override
+  public void removeFrom(final K key, final V value) {
+    final Collection<V> collection = get(key);
+    if (collection != null && collection.remove(value)) {
+      replace(key, collection);
+    }
+  }
+
+  @Override
+  public void removeAll(final K key, final Collection<V> values) {
+    final Collection<V> collection = get(key);
+    if (collection != null && collection.removeAll(values)) {
+      replace(key, collection);
+    }
+  }
+
+  @Override
+  public void close() {
+    myOffsets.clear();
+    myRecords.dispose();
+  }
+
+  @Override
+  public void forEachEntry(final TObjectObjectProcedure<K, Collection<V>> procedure) {
+    for (Object key : myOffsets.keys()) {
+      if (!procedure.execute((K)key, get((K)key))) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void flush(final boolean memoryCachesOnly) {
+  }
+
+  @Override
+  public void relocateRecords(final OffHeapRecords.Relocation relocation) {
+    myOffsets.transformValues(new TIntFunction() {
+      @Override
+      public int execute(int offset) {
+        return relocation.relocate(offset);
+      }
+    });
+  }
+
+  private void store(final K key, final Collection<V> value) {
+    final UnsyncByteArrayOutputStream bytes = new UnsyncByteArrayOutputStream();
+    try {
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(value.size());
+      for (V v : value) {
+        myValueExternalizer.save(out, v);
+      }
+      out.close();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    final byte[] data = bytes.toByteArray();
+    final int offset = myRecords.allocate(data.length);
+    final ByteBuffer buffer = myRecords.getBuffer().duplicate();
+    buffer.position(offset);
+    buffer.put(data);
+    myOffsets.put(key, offset);
+  }
+}
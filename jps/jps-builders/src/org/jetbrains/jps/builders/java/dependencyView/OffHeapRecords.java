@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import sun.misc.Cleaner;
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length records stored in direct memory outside of java heap. A record is addressed by the offset of its data,
+ * freed records are reclaimed when the buffer is reallocated: live records are copied to the new buffer and their owner
+ * is asked to update the offsets.
+ *
+ * Not thread safe.
+ */
+class OffHeapRecords {
+  interface Owner {
+    /**
+     * Relocates all live records and stores the new offsets returned by the relocation.
+     */
+    void relocateRecords(Relocation relocation);
+  }
+
+  interface Relocation {
+    int relocate(int offset);
+  }
+
+  private static final int HEADER_SIZE = 4;
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  private final Owner myOwner;
+  private ByteBuffer myBuffer;
+  private int myEnd;
+  private int myLiveSize;
+
+  OffHeapRecords(Owner owner) {
+    myOwner = owner;
+  }
+
+  /**
+   * @return offset of the data of a new record, the data may be accessed via {@link #getBuffer()} until the next allocation
+   */
+  int allocate(int length) {
+    final int recordSize = HEADER_SIZE + length;
+    if (myBuffer == null || myBuffer.capacity() - myEnd < recordSize) {
+      reallocate(recordSize);
+    }
+    myBuffer.putInt(myEnd, length);
+    final int offset = myEnd + HEADER_SIZE;
+    myEnd += recordSize;
+    myLiveSize += recordSize;
+    return offset;
+  }
+
+  int getLength(int offset) {
+    return myBuffer.getInt(offset - HEADER_SIZE);
+  }
+
+  void free(int offset) {
+    myLiveSize -= HEADER_SIZE + getLength(offset);
+  }
+
+  ByteBuffer getBuffer() {
+    return myBuffer;
+  }
+
+  void dispose() {
+    if (myBuffer != null) {
+      release(myBuffer);
+      myBuffer = null;
+    }
+    myEnd = 0;
+    myLiveSize = 0;
+  }
+
+  private void reallocate(int requiredSize) {
+    final long capacity = Math.max(INITIAL_CAPACITY, 2L * (myLiveSize + requiredSize));
+    if (capacity > Integer.MAX_VALUE) {
+      throw new OutOfMemoryError("Off-heap mappings storage exceeds 2Gb");
+    }
+    final ByteBuffer oldBuffer = myBuffer;
+    final ByteBuffer newBuffer = ByteBuffer.allocateDirect((int)capacity);
+    myBuffer = newBuffer;
+    myEnd = 0;
+    myLiveSize = 0;
+    if (oldBuffer != null) {
+      myOwner.relocateRecords(new Relocation() {
+        @Override
+        public int relocate(int offset) {
+          final int length = oldBuffer.getInt(offset - HEADER_SIZE);
+          final int newOffset = allocate(length);
+          final ByteBuffer source = oldBuffer.duplicate();
+          source.limit(offset + length).position(offset);
+          final ByteBuffer target = newBuffer.duplicate();
+          target.position(newOffset);
+          target.put(source);
+          return newOffset;
+        }
+      });
+      release(oldBuffer);
+    }
+  }
+
+  /**
+   * Frees direct memory right away instead of waiting for the buffer to be collected.
+   */
+  private static void release(ByteBuffer buffer) {
+    final Cleaner cleaner = ((DirectBuffer)buffer).cleaner();
+    if (cleaner != null) {
+      cleaner.clean();
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.jetbrains.jps.cmdline;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
 import org.apache.log4j.Level;
 import org.apache.log4j.xml.DOMConfigurator;
 import org.jboss.netty.bootstrap.ClientBootstrap;
@@ -15,6 +16,7 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.CmdlineProtoUtil;
 import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.incremental.Utils;
 import org.jetbrains.jps.service.SharedThreadPool;
 
@@ -30,6 +32,9 @@ public class BuildMain {
   private static final String LOG_FILE_NAME = "log.xml";
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.BuildMain");
   private static NioClientSocketChannelFactory ourChannelFactory;
+  // if set, the process runs build sessions sent by the IDE one after another until the connection is closed
+  private static final boolean KEEP_ALIVE = Boolean.parseBoolean(System.getProperty(GlobalOptions.KEEP_ALIVE_OPTION, "false"));
+  @Nullable private static ProjectDescriptorCache ourProjectCache;
 
   public static void main(String[] args){
     System.out.println("Build process started. Classpath: " + System.getProperty("java.class.path"));
@@ -40,6 +45,9 @@ public class BuildMain {
     Utils.setSystemRoot(systemDir);
 
     initLoggers();
+    if (KEEP_ALIVE) {
+      ourProjectCache = new ProjectDescriptorCache();
+    }
 
     ourChannelFactory = new NioClientSocketChannelFactory(SharedThreadPool.getInstance(), SharedThreadPool.getInstance(), 1);
     final ClientBootstrap bootstrap = new ClientBootstrap(ourChannelFactory);
@@ -79,6 +87,7 @@ public class BuildMain {
   private static class MyMessageHandler extends SimpleChannelHandler {
     private final UUID mySessionId;
     private volatile BuildSession mySession;
+    private final SequentialTaskExecutor mySessionsQueue = new SequentialTaskExecutor(SharedThreadPool.getInstance());
 
     private MyMessageHandler(UUID sessionId) {
       mySessionId = sessionId;
@@ -95,9 +104,18 @@ public class BuildMain {
         switch (controllerMessage.getType()) {
 
           case BUILD_PARAMETERS: {
-            if (mySession == null) {
+            if (KEEP_ALIVE) {
+              // the previous session may still be finishing after it has sent its last message, so sessions are queued
+              final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
               final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
-              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta);
+              final BuildSession session = new BuildSession(new UUID(id.getMostSigBits(), id.getLeastSigBits()), channel,
+                                                            controllerMessage.getParamsMessage(), delta, ourProjectCache);
+              mySession = session;
+              mySessionsQueue.submit(session);
+            }
+            else if (mySession == null) {
+              final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
+              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta, null);
               mySession = session;
               SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
                 public void run() {
@@ -138,7 +156,7 @@ public class BuildMain {
             if (session != null) {
               session.cancel();
             }
-            else {
+            else if (!KEEP_ALIVE) {
               LOG.info("Cannot cancel build: no build session is running");
               channel.close();
             }
@@ -159,6 +177,9 @@ public class BuildMain {
         new Thread("Shutdown thread") {
           public void run() {
             try {
+              if (ourProjectCache != null) {
+                ourProjectCache.clear();
+              }
               ourChannelFactory.releaseExternalResources();
             }
             finally {
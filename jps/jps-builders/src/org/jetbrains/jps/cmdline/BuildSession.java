@@ -4,6 +4,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.concurrency.SequentialTaskExecutor;
 import com.intellij.util.io.DataOutputStream;
@@ -12,6 +13,7 @@ import org.jboss.netty.channel.Channels;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.*;
 import org.jetbrains.jps.builders.BuildRootDescriptor;
+import org.jetbrains.jps.builders.BuildTarget;
 import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
 import org.jetbrains.jps.incremental.MessageHandler;
@@ -20,6 +22,7 @@ import org.jetbrains.jps.incremental.Utils;
 import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.fs.FSState;
 import org.jetbrains.jps.incremental.messages.*;
+import org.jetbrains.jps.incremental.storage.TimestampStorage;
 import org.jetbrains.jps.incremental.storage.Timestamps;
 import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.service.SharedThreadPool;
@@ -55,13 +58,19 @@ final class BuildSession implements Runnable, CanceledStatus {
   private final ConstantSearch myConstantSearch = new ConstantSearch();
   private final BuildRunner myBuildRunner;
   private BuildType myBuildType;
+  @Nullable private final ProjectDescriptorCache myProjectCache;
+  private final String myGlobalOptionsPath;
+  private final String myProjectCacheKey;
+  private ConfigurationFilesState myConfigurationState;
 
   BuildSession(UUID sessionId,
                Channel channel,
                CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage params,
-               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta) {
+               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta,
+               @Nullable ProjectDescriptorCache projectCache) {
     mySessionId = sessionId;
     myChannel = channel;
+    myProjectCache = projectCache;
 
     // globals
     Map<String, String> pathVars = new HashMap<String, String>();
@@ -81,6 +90,8 @@ final class BuildSession implements Runnable, CanceledStatus {
       builderParams.put(pair.getKey(), pair.getValue());
     }
     myInitialFSDelta = delta;
+    myGlobalOptionsPath = globalOptionsPath;
+    myProjectCacheKey = myProjectPath + "\n" + globalOptionsPath + "\n" + new TreeMap<String, String>(pathVars);
     JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, globalOptionsPath, pathVars, null);
     myBuildRunner = new BuildRunner(loader, scopes, filePaths, builderParams);
   }
@@ -163,9 +174,36 @@ final class BuildSession implements Runnable, CanceledStatus {
       }
     }
 
-    final BuildFSState fsState = new BuildFSState(false);
+    ProjectDescriptor pd = null;
+    if (myProjectCache != null) {
+      // without the delta the IDE has to rescan the project, e.g. because the project model has been changed
+      final Pair<ProjectDescriptor, ConfigurationFilesState> cached =
+        myProjectCache.take(myProjectCacheKey, fsStateStream != null && myInitialFSDelta != null);
+      if (cached != null) {
+        pd = cached.first;
+        myConfigurationState = cached.second;
+      }
+    }
+    final BuildFSState fsState;
+    if (pd != null) {
+      LOG.info("Reusing project loaded by the previous build session");
+      fsState = pd.fsState;
+      fsState.clearAll();
+    }
+    else {
+      fsState = new BuildFSState(false);
+    }
+    boolean completed = false;
     try {
-      final ProjectDescriptor pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
+      if (pd == null) {
+        final ConfigurationFilesState state =
+          myProjectCache != null ? ConfigurationFilesState.create(myProjectPath, myGlobalOptionsPath, dataStorageRoot) : null;
+        pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
+        if (state != null) {
+          state.addModuleFiles(pd.getModel());
+          myConfigurationState = state;
+        }
+      }
       myProjectDescriptor = pd;
       if (fsStateStream != null) {
         try {
@@ -190,9 +228,10 @@ final class BuildSession implements Runnable, CanceledStatus {
       myEventsProcessor.startProcessing();
 
       myBuildRunner.runBuild(pd, cs, myConstantSearch, msgHandler, myBuildType);
+      completed = true;
     }
     finally {
-      saveData(fsState, dataStorageRoot);
+      saveData(fsState, dataStorageRoot, completed);
     }
   }
 
@@ -206,12 +245,16 @@ final class BuildSession implements Runnable, CanceledStatus {
     return true;
   }
 
-  private void saveData(final BuildFSState fsState, File dataStorageRoot) {
+  private void saveData(final BuildFSState fsState, File dataStorageRoot, boolean keepProject) {
     final boolean wasInterrupted = Thread.interrupted();
     try {
       saveFsState(dataStorageRoot, fsState);
       final ProjectDescriptor pd = myProjectDescriptor;
       if (pd != null) {
+        if (keepProject && myProjectCache != null && myConfigurationState != null) {
+          myConfigurationState.updateVersionStamp();
+          myProjectCache.put(myProjectCacheKey, pd, myConfigurationState);
+        }
         pd.release();
       }
     }
@@ -287,6 +330,12 @@ final class BuildSession implements Runnable, CanceledStatus {
         }
         for (BuildRootDescriptor descriptor : descriptors) {
           if (!descriptor.isGenerated()) { // ignore generates sources as they are processed at the time of generation
+            if (timestamps.isDigestBased() && isTouchedOnly(timestamps, file, descriptor.getTarget())) {
+              if (Utils.IS_TEST_MODE) {
+                LOG.info("Content is not changed, skipping dirty path: " + file.getPath());
+              }
+              continue;
+            }
             pd.fsState.markDirty(null, file, descriptor, timestamps, saveEventStamp);
           }
         }
@@ -297,6 +346,14 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
   }
 
+  /**
+   * @return true if the file has a new timestamp but the same content as when its stamp was saved
+   */
+  private static boolean isTouchedOnly(Timestamps timestamps, File file, BuildTarget<?> target) throws IOException {
+    final long currentStamp = FileSystemUtil.lastModified(file);
+    return timestamps.getStamp(file, target) != currentStamp && !timestamps.isChanged(file, target, currentStamp, TimestampStorage.NO_DIGEST);
+  }
+
   private void updateFsStateOnDisk(File dataStorageRoot, DataInputStream original, final long ordinal) {
     final File file = new File(dataStorageRoot, FS_STATE_FILE);
     try {
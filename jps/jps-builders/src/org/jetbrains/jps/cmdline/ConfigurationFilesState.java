@@ -0,0 +1,135 @@
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.model.JpsModel;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.JpsModelSerializationDataService;
+import org.jetbrains.jps.model.serialization.JpsModelSerializerExtension;
+import org.jetbrains.jps.model.serialization.JpsProjectExtensionSerializer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timestamps and lengths of the files a project model is loaded from: the project files, the module files and the global options
+ * (path variables, application libraries, SDK table and so on), and also of the version file of the build data. The IDE doesn't report
+ * changes of these files to the build process, so the loaded model is considered up to date only while the files are unchanged.
+ * <p/>
+ * Files which are read while loading the model are stamped before the load, so that a change made during the load isn't missed.
+ * Module files are known only after the load, they are stamped then. The version file is written by the build itself, so its stamp
+ * is updated when the model is kept after the build.
+ */
+final class ConfigurationFilesState {
+  private static final String[] PROJECT_SUBDIRECTORIES = {"libraries", "artifacts", "runConfigurations"};
+  private final String myProjectPath;
+  private final String myGlobalOptionsPath;
+  private final File myDataStorageRoot;
+  private final List<File> myModuleFiles = new ArrayList<File>();
+  private final Map<File, Pair<Long, Long>> myStamps;
+
+  private ConfigurationFilesState(String projectPath, String globalOptionsPath, File dataStorageRoot) {
+    myProjectPath = projectPath;
+    myGlobalOptionsPath = globalOptionsPath;
+    myDataStorageRoot = dataStorageRoot;
+    myStamps = collectStamps();
+  }
+
+  /**
+   * Should be called before the model is loaded.
+   */
+  @NotNull
+  static ConfigurationFilesState create(@NotNull String projectPath, @NotNull String globalOptionsPath, @NotNull File dataStorageRoot) {
+    return new ConfigurationFilesState(projectPath, globalOptionsPath, dataStorageRoot);
+  }
+
+  void addModuleFiles(@NotNull JpsModel model) {
+    final List<File> moduleFiles = new ArrayList<File>();
+    for (JpsModule module : model.getProject().getModules()) {
+      final File baseDirectory = JpsModelSerializationDataService.getBaseDirectory(module);
+      if (baseDirectory != null) {
+        moduleFiles.add(new File(baseDirectory, module.getName() + ".iml"));
+      }
+    }
+    addModuleFiles(moduleFiles);
+  }
+
+  void addModuleFiles(@NotNull List<File> moduleFiles) {
+    myModuleFiles.addAll(moduleFiles);
+    for (File moduleFile : moduleFiles) {
+      addStamp(myStamps, moduleFile);
+    }
+  }
+
+  /**
+   * Should be called after the build, which may have written the version file.
+   */
+  void updateVersionStamp() {
+    addStamp(myStamps, getVersionFile());
+  }
+
+  /**
+   * @return true if none of the files has been changed, created or deleted since the state was created
+   */
+  boolean isUpToDate() {
+    return myStamps.equals(collectStamps());
+  }
+
+  private Map<File, Pair<Long, Long>> collectStamps() {
+    final Map<File, Pair<Long, Long>> stamps = new THashMap<File, Pair<Long, Long>>(FileUtil.FILE_HASHING_STRATEGY);
+    final boolean readsWorkspace = hasRunConfigurationSerializers();
+    final File projectFile = new File(myProjectPath);
+    if (myProjectPath.endsWith(".ipr")) {
+      addStamp(stamps, projectFile);
+      if (readsWorkspace) {
+        addStamp(stamps, new File(projectFile.getParentFile(), FileUtil.getNameWithoutExtension(projectFile) + ".iws"));
+      }
+    }
+    else {
+      final File directory = projectFile.getName().equals(".idea") ? projectFile : new File(projectFile, ".idea");
+      addFileStamps(stamps, directory, readsWorkspace);
+      for (String name : PROJECT_SUBDIRECTORIES) {
+        addFileStamps(stamps, new File(directory, name), true);
+      }
+    }
+    for (File moduleFile : myModuleFiles) {
+      addStamp(stamps, moduleFile);
+    }
+    addFileStamps(stamps, new File(myGlobalOptionsPath), true);
+    addStamp(stamps, getVersionFile());
+    return stamps;
+  }
+
+  private File getVersionFile() {
+    return new File(myDataStorageRoot, "version.dat");
+  }
+
+  private static void addFileStamps(Map<File, Pair<Long, Long>> stamps, File directory, boolean includeWorkspace) {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isFile() && (includeWorkspace || !file.getName().equals(JpsProjectExtensionSerializer.WORKSPACE_FILE))) {
+          addStamp(stamps, file);
+        }
+      }
+    }
+  }
+
+  private static void addStamp(Map<File, Pair<Long, Long>> stamps, File file) {
+    // a missing file is recorded too, so that its creation is noticed
+    stamps.put(file, Pair.create(file.lastModified(), file.length()));
+  }
+
+  private static boolean hasRunConfigurationSerializers() {
+    for (JpsModelSerializerExtension extension : JpsModelSerializerExtension.getExtensions()) {
+      if (!extension.getRunConfigurationPropertiesSerializers().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
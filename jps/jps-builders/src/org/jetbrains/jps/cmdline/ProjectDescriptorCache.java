@@ -0,0 +1,75 @@
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the project descriptor of the finished build session, i.e. the loaded model, the indices and the open storages, while the build
+ * process waits for the next session. The descriptor is reused only if the next session is started for the same project and settings,
+ * the file system delta sent by the IDE continues the state saved by the previous session and none of the files the model has been
+ * loaded from is changed. Otherwise the project is loaded again, along with the checks of the build data performed on loading.
+ */
+final class ProjectDescriptorCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.ProjectDescriptorCache");
+  private String myKey;
+  private ProjectDescriptor myDescriptor;
+  private ConfigurationFilesState myConfigurationState;
+
+  /**
+   * @param key identifies the project and the settings the model is loaded with
+   * @param reusable false if the state of the previous session cannot be continued
+   * @return the descriptor which was kept for the given key along with the state of the configuration files it was loaded from, or null;
+   * in the latter case the kept descriptor is released
+   */
+  @Nullable
+  synchronized Pair<ProjectDescriptor, ConfigurationFilesState> take(@NotNull String key, boolean reusable) {
+    final ProjectDescriptor descriptor = myDescriptor;
+    final ConfigurationFilesState state = myConfigurationState;
+    if (descriptor == null) {
+      return null;
+    }
+    final boolean matches = reusable && key.equals(myKey) && state.isUpToDate();
+    myKey = null;
+    myDescriptor = null;
+    myConfigurationState = null;
+    if (matches) {
+      return Pair.create(descriptor, state);
+    }
+    LOG.info("Project descriptor of the previous session is outdated, reloading project");
+    descriptor.release();
+    return null;
+  }
+
+  /**
+   * Saves all the data of the descriptor to disk, so it may be released at any moment, and keeps it for the next session.
+   * @param state state of the configuration files taken when the descriptor was loaded
+   */
+  synchronized void put(@NotNull String key, @NotNull ProjectDescriptor descriptor, @NotNull ConfigurationFilesState state) {
+    clear();
+    try {
+      descriptor.getTargetsState().save();
+      descriptor.dataManager.flush(false);
+      descriptor.timestamps.getStorage().force();
+    }
+    catch (Throwable e) {
+      LOG.info("Cannot save project data, project descriptor won't be kept", e);
+      return;
+    }
+    descriptor.incUsageCounter();
+    myKey = key;
+    myDescriptor = descriptor;
+    myConfigurationState = state;
+  }
+
+  synchronized void clear() {
+    final ProjectDescriptor descriptor = myDescriptor;
+    myKey = null;
+    myDescriptor = null;
+    myConfigurationState = null;
+    if (descriptor != null) {
+      descriptor.release();
+    }
+  }
+}
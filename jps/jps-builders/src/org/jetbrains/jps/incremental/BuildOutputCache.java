@@ -0,0 +1,658 @@
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.containers.ConcurrentHashMap;
+import com.intellij.util.containers.SLRUMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassWriter;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildRootDescriptor;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.DirtyFilesHolder;
+import org.jetbrains.jps.builders.FileProcessor;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+import org.jetbrains.jps.builders.impl.DirtyFilesHolderBase;
+import org.jetbrains.jps.builders.java.JavaBuilderUtil;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.incremental.messages.CompilerMessage;
+import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.indices.IgnoredFileIndex;
+import org.jetbrains.jps.model.JpsDummyElement;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.java.JpsJavaSdkType;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerConfiguration;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerOptions;
+import org.jetbrains.jps.model.library.sdk.JpsSdk;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Cache of module target outputs located in a directory which may be shared between checkouts of the same project.
+ * An entry is keyed by SHA-1 of the target sources, its compilation classpath and compiler settings and contains the output files,
+ * their sources and the imports reported by javac, so both SourceToOutputMapping and Mappings are restored without compilation.
+ *
+ * Only targets which have no registered outputs and are going to be compiled completely are looked up, so restored data never has to be
+ * merged with results of previous builds. Targets with annotation processing enabled are not cached.
+ *
+ * @see GlobalOptions#BUILD_CACHE_DIR_OPTION
+ */
+public class BuildOutputCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.BuildOutputCache");
+
+  private static final int VERSION = 1;
+  private static final String MAPPING_ENTRY = "mapping";
+  private static final String IMPORTS_ENTRY = "imports";
+  private static final String OUTPUT_ENTRY_PREFIX = "out/";
+  private static final Key<List<ImportsRecord>> RECORDED_IMPORTS_KEY = Key.create("_build_cache_recorded_imports_");
+  private static final int JAR_DIGESTS_CACHE_SIZE = 1000;
+  // jar digests keyed by path, length and timestamp, survive between builds in the same process; guarded by itself
+  private static final SLRUMap<String, byte[]> ourJarDigests = new SLRUMap<String, byte[]>(JAR_DIGESTS_CACHE_SIZE, JAR_DIGESTS_CACHE_SIZE);
+
+  private final File myCacheDir;
+  // output directories of dependencies are not changed after they have been built
+  private final Map<File, byte[]> myDirectoryDigests = new ConcurrentHashMap<File, byte[]>();
+  private final AtomicInteger myLookupCount = new AtomicInteger();
+  private final AtomicInteger myHitCount = new AtomicInteger();
+  private final AtomicInteger myStoredCount = new AtomicInteger();
+  private final AtomicLong myRestoredBytes = new AtomicLong();
+
+  public BuildOutputCache(@NotNull File cacheDir) {
+    myCacheDir = cacheDir;
+  }
+
+  @Nullable
+  public static BuildOutputCache createFromOptions() {
+    final String path = System.getProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION);
+    return StringUtil.isEmpty(path) ? null : new BuildOutputCache(new File(path));
+  }
+
+  /**
+   * @return key of the chunk outputs or null if the chunk cannot be restored from the cache
+   */
+  @Nullable
+  public String computeKey(CompileContext context, BuildTargetChunk chunk) throws IOException {
+    final ModuleBuildTarget target = getCacheableTarget(context, chunk);
+    if (target == null) {
+      return null;
+    }
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final MessageDigest digest = createDigest();
+    update(digest, String.valueOf(VERSION));
+    update(digest, target.getTargetType().getTypeId());
+    updateWithCompilerSettings(digest, context, target);
+
+    final Map<BuildRootDescriptor, Set<File>> toRecompile = pd.fsState.getSourcesToRecompile(context, target);
+    boolean hasSources = false;
+    for (JavaSourceRootDescriptor rd : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      if (rd.isTemp) {
+        return null;
+      }
+      final Set<File> dirtyFiles = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+      //noinspection SynchronizationOnLocalVariableOrMethodParameter
+      synchronized (toRecompile) {
+        final Set<File> files = toRecompile.get(rd);
+        if (files != null) {
+          dirtyFiles.addAll(files);
+        }
+      }
+      update(digest, rd.getPackagePrefix());
+      final SortedMap<String, File> files = new TreeMap<String, File>();
+      collectFiles(rd.getRootFile(), "", rd, pd.getIgnoredFileIndex(), files);
+      for (Map.Entry<String, File> entry : files.entrySet()) {
+        final File file = entry.getValue();
+        if (!dirtyFiles.contains(file) || !context.getScope().isAffected(target, file)) {
+          return null;
+        }
+        update(digest, entry.getKey());
+        digest.update(digestFile(file));
+        hasSources = true;
+      }
+    }
+    if (!hasSources) {
+      return null;
+    }
+
+    final File outputDir = target.getOutputDir();
+    final ModuleChunk moduleChunk = new ModuleChunk(Collections.singleton(target));
+    for (File file : context.getProjectPaths().getPlatformCompilationClasspath(moduleChunk, false)) {
+      updateWithClasspathEntry(digest, file, outputDir);
+    }
+    for (File file : context.getProjectPaths().getCompilationClasspath(moduleChunk, false)) {
+      updateWithClasspathEntry(digest, file, outputDir);
+    }
+    return toHexString(digest.digest());
+  }
+
+  /**
+   * Starts collecting data which javac reports only during compilation and which must be stored along with the outputs
+   */
+  public static void startRecording(CompileContext context) {
+    RECORDED_IMPORTS_KEY.set(context, Collections.synchronizedList(new ArrayList<ImportsRecord>()));
+  }
+
+  public static void stopRecording(CompileContext context) {
+    RECORDED_IMPORTS_KEY.set(context, null);
+  }
+
+  public static void recordImports(CompileContext context, String className, Collection<String> imports, Collection<String> staticImports) {
+    final List<ImportsRecord> records = RECORDED_IMPORTS_KEY.get(context);
+    if (records != null) {
+      records.add(new ImportsRecord(className, new ArrayList<String>(imports), new ArrayList<String>(staticImports)));
+    }
+  }
+
+  /**
+   * Restores outputs of the chunk and its source-to-output and dependency mappings from the entry if it exists.
+   * @return true if the chunk was restored, false if it has to be compiled
+   */
+  public boolean restore(final CompileContext context, BuildTargetChunk chunk, String key) throws IOException {
+    myLookupCount.incrementAndGet();
+    final File entryFile = getEntryFile(key);
+    if (!entryFile.isFile()) {
+      return false;
+    }
+    final ModuleBuildTarget target = (ModuleBuildTarget)chunk.getTargets().iterator().next();
+    final File outputDir = target.getOutputDir();
+    final List<JavaSourceRootDescriptor> roots = context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context);
+    context.processMessage(new ProgressMessage("Restoring outputs of " + target.getPresentableName() + " from build cache"));
+
+    final Map<String, Collection<String>> outputToSources = new LinkedHashMap<String, Collection<String>>();
+    final List<ImportsRecord> imports = new ArrayList<ImportsRecord>();
+    final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+    final List<File> extracted = new ArrayList<File>();
+    long bytes = 0;
+    try {
+      final ZipFile zip = new ZipFile(entryFile);
+      try {
+        readMapping(zip, roots, outputDir, outputToSources);
+        readImports(zip, imports);
+        final Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          final ZipEntry entry = entries.nextElement();
+          if (entry.isDirectory() || !entry.getName().startsWith(OUTPUT_ENTRY_PREFIX)) {
+            continue;
+          }
+          final String outputPath = toOutputPath(outputDir, entry.getName().substring(OUTPUT_ENTRY_PREFIX.length()));
+          final byte[] content = loadEntry(zip, entry);
+          final File outputFile = new File(outputPath);
+          FileUtil.writeToFile(outputFile, content);
+          extracted.add(outputFile);
+          bytes += content.length;
+          if (outputPath.endsWith(".class")) {
+            classes.put(outputPath, content);
+          }
+        }
+      }
+      finally {
+        zip.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot restore " + target.getPresentableName() + " from " + entryFile.getPath(), e);
+      for (File file : extracted) {
+        FileUtil.delete(file);
+      }
+      return false;
+    }
+
+    final Mappings delta = context.getProjectDescriptor().dataManager.getMappings().createDelta();
+    final Callbacks.Backend callback = delta.getCallback();
+    final BuildOperations.ChunkBuildOutputConsumerImpl outputConsumer = new BuildOperations.ChunkBuildOutputConsumerImpl(context);
+    final Set<File> sources = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+    for (Map.Entry<String, Collection<String>> entry : outputToSources.entrySet()) {
+      final String outputPath = entry.getKey();
+      final Collection<String> outputSources = entry.getValue();
+      outputConsumer.registerOutputFile(target, outputPath, outputSources);
+      for (String source : outputSources) {
+        sources.add(new File(source));
+      }
+      final byte[] content = classes.get(outputPath);
+      if (content != null) {
+        callback.associate(outputPath, getPrimarySource(outputSources), new ClassReader(content));
+      }
+    }
+    for (ImportsRecord record : imports) {
+      callback.registerImports(record.myClassName, record.myImports, record.myStaticImports);
+    }
+
+    final DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> dirtyFilesHolder =
+      new DirtyFilesHolderBase<JavaSourceRootDescriptor, ModuleBuildTarget>(context) {
+        @Override
+        public void processDirtyFiles(@NotNull FileProcessor<JavaSourceRootDescriptor, ModuleBuildTarget> processor) throws IOException {
+          FSOperations.processFilesToRecompile(context, target, processor);
+        }
+      };
+    try {
+      JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, new ModuleChunk(Collections.singleton(target)), sources, sources);
+    }
+    finally {
+      JavaBuilderUtil.cleanupChunkResources(context);
+    }
+    outputConsumer.fireFileGeneratedEvents();
+
+    myHitCount.incrementAndGet();
+    myRestoredBytes.addAndGet(bytes);
+    return true;
+  }
+
+  /**
+   * Stores outputs of the successfully built chunk. Must be called after {@link #startRecording} and compilation of the chunk.
+   */
+  public void store(CompileContext context, BuildTargetChunk chunk, String key) {
+    final List<ImportsRecord> imports = RECORDED_IMPORTS_KEY.get(context);
+    stopRecording(context);
+    if (imports == null || Utils.errorsDetected(context) || context.getCancelStatus().isCanceled()) {
+      return;
+    }
+    final ModuleBuildTarget target = (ModuleBuildTarget)chunk.getTargets().iterator().next();
+    final File entryFile = getEntryFile(key);
+    if (entryFile.exists()) {
+      return; // stored by another build
+    }
+    File tempFile = null;
+    try {
+      final Map<String, String> outputs = new TreeMap<String, String>();
+      final byte[] mapping = writeMapping(context, target, outputs);
+      if (mapping == null) {
+        return;
+      }
+      FileUtil.createDirectory(entryFile.getParentFile());
+      tempFile = FileUtil.createTempFile(entryFile.getParentFile(), key, ".tmp", true);
+      final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        writeEntry(zip, MAPPING_ENTRY, mapping);
+        synchronized (imports) {
+          writeEntry(zip, IMPORTS_ENTRY, writeImports(imports));
+        }
+        for (Map.Entry<String, String> entry : outputs.entrySet()) {
+          writeEntry(zip, OUTPUT_ENTRY_PREFIX + entry.getKey(), FileUtil.loadFileBytes(new File(entry.getValue())));
+        }
+      }
+      finally {
+        zip.close();
+      }
+      if (tempFile.renameTo(entryFile) || entryFile.exists()) {
+        myStoredCount.incrementAndGet();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot store outputs of " + target.getPresentableName() + " to build cache", e);
+    }
+    finally {
+      if (tempFile != null) {
+        FileUtil.delete(tempFile);
+      }
+    }
+  }
+
+  public void reportStatistics(CompileContext context) {
+    final int lookups = myLookupCount.get();
+    if (lookups == 0) {
+      return;
+    }
+    final int hits = myHitCount.get();
+    context.processMessage(new CompilerMessage(
+      IncProjectBuilder.BUILD_NAME, BuildMessage.Kind.INFO,
+      "Build cache: " + hits + " of " + lookups + " targets restored (" + (hits * 100 / lookups) + "%), " +
+      myRestoredBytes.get() / 1024 + " KB restored, " + myStoredCount.get() + " targets stored"
+    ));
+  }
+
+  @Nullable
+  private static ModuleBuildTarget getCacheableTarget(CompileContext context, BuildTargetChunk chunk) throws IOException {
+    if (chunk.getTargets().size() != 1) {
+      return null;
+    }
+    final BuildTarget<?> buildTarget = chunk.getTargets().iterator().next();
+    if (!(buildTarget instanceof ModuleBuildTarget)) {
+      return null;
+    }
+    final ModuleBuildTarget target = (ModuleBuildTarget)buildTarget;
+    if (target.getOutputDir() == null || context.getAnnotationProcessingProfile(target.getModule()).isEnabled()) {
+      return null;
+    }
+    final SourceToOutputMapping mapping = context.getProjectDescriptor().dataManager.getSourceToOutputMap(target);
+    return mapping.getSourcesIterator().hasNext() ? null : target;
+  }
+
+  private static void updateWithCompilerSettings(MessageDigest digest, CompileContext context, ModuleBuildTarget target) {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final JpsModule module = target.getModule();
+    final JpsJavaExtensionService javaExtension = JpsJavaExtensionService.getInstance();
+    final JpsJavaCompilerConfiguration config = javaExtension.getOrCreateCompilerConfiguration(pd.getProject());
+    final JpsJavaCompilerOptions options = config.getCurrentCompilerOptions();
+    update(digest, config.getJavaCompilerId());
+    update(digest, options.DEBUGGING_INFO + " " + options.DEPRECATION + " " + options.GENERATE_NO_WARNINGS + " " + options.ADDITIONAL_OPTIONS_STRING);
+    update(digest, String.valueOf(config.isAddNotNullAssertions()));
+    update(digest, String.valueOf(javaExtension.getLanguageLevel(module)));
+    update(digest, String.valueOf(config.getByteCodeTargetLevel(module.getName())));
+    update(digest, String.valueOf(pd.getEncodingConfiguration().getPreferredModuleChunkEncoding(new ModuleChunk(Collections.singleton(target)))));
+    final JpsSdk<JpsDummyElement> sdk = module.getSdk(JpsJavaSdkType.INSTANCE);
+    update(digest, sdk != null ? sdk.getVersionString() : "");
+  }
+
+  /**
+   * Output directories, usually of the modules the target depends on, are keyed by the ABI of their classes, so changes in method bodies
+   * of a dependency don't change the keys of its dependents. Jars are keyed by their whole content.
+   */
+  private void updateWithClasspathEntry(MessageDigest digest, File file, File ownOutputDir) throws IOException {
+    if (FileUtil.filesEqual(file, ownOutputDir)) {
+      return;
+    }
+    if (file.isDirectory()) {
+      byte[] dirDigest = myDirectoryDigests.get(file);
+      if (dirDigest == null) {
+        final MessageDigest classesDigest = createDigest();
+        final SortedMap<String, File> classes = new TreeMap<String, File>();
+        collectClasses(file, "", classes);
+        for (Map.Entry<String, File> entry : classes.entrySet()) {
+          update(classesDigest, entry.getKey());
+          classesDigest.update(digestClassAbi(entry.getValue()));
+        }
+        dirDigest = classesDigest.digest();
+        myDirectoryDigests.put(file, dirDigest);
+      }
+      digest.update(dirDigest);
+    }
+    else if (file.isFile()) {
+      final String stamp = file.getPath() + ":" + file.length() + ":" + file.lastModified();
+      byte[] jarDigest;
+      synchronized (ourJarDigests) {
+        jarDigest = ourJarDigests.get(stamp);
+      }
+      if (jarDigest == null) {
+        jarDigest = digestFile(file);
+        synchronized (ourJarDigests) {
+          ourJarDigests.put(stamp, jarDigest);
+        }
+      }
+      digest.update(jarDigest);
+    }
+    // missing classpath entries don't affect compilation
+  }
+
+  /**
+   * @return digest of the class without method bodies and debug information, i.e. of what javac reads when it compiles dependent classes
+   */
+  private static byte[] digestClassAbi(File classFile) throws IOException {
+    byte[] content = FileUtil.loadFileBytes(classFile);
+    try {
+      final ClassWriter writer = new ClassWriter(0);
+      new ClassReader(content).accept(writer, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      content = writer.toByteArray();
+    }
+    catch (RuntimeException e) {
+      LOG.info("Cannot read " + classFile.getPath() + ", its whole content is digested", e);
+    }
+    final MessageDigest digest = createDigest();
+    digest.update(content);
+    return digest.digest();
+  }
+
+
+  private static void collectFiles(File file, String relativePath, JavaSourceRootDescriptor rd, IgnoredFileIndex ignoredFileIndex,
+                                   Map<String, File> result) {
+    if (ignoredFileIndex.isIgnored(file.getName())) {
+      return;
+    }
+    final File[] children = file.listFiles();
+    if (children != null) {
+      if (!rd.getExcludedRoots().contains(file)) {
+        for (File child : children) {
+          collectFiles(child, relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName(), rd, ignoredFileIndex, result);
+        }
+      }
+    }
+    else {
+      result.put(relativePath, file);
+    }
+  }
+
+  private static void collectClasses(File file, String relativePath, Map<String, File> result) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        collectClasses(child, relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName(), result);
+      }
+    }
+    else if (relativePath.endsWith(".class")) {
+      result.put(relativePath, file);
+    }
+  }
+
+  /**
+   * Sources are written relative to their roots, outputs relative to the output directory
+   * @return serialized mapping or null if the target has outputs outside of its output directory
+   */
+  @Nullable
+  private static byte[] writeMapping(CompileContext context, ModuleBuildTarget target, Map<String, String> outputs) throws IOException {
+    final File outputDir = target.getOutputDir();
+    final List<JavaSourceRootDescriptor> roots = context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context);
+    final SourceToOutputMapping mapping = context.getProjectDescriptor().dataManager.getSourceToOutputMap(target);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final Iterator<String> sources = mapping.getSourcesIterator();
+    while (sources.hasNext()) {
+      final String source = sources.next();
+      final Collection<String> sourceOutputs = mapping.getOutputs(source);
+      if (sourceOutputs == null || sourceOutputs.isEmpty()) {
+        continue;
+      }
+      int rootIndex = -1;
+      String sourceRelativePath = null;
+      for (int i = 0; i < roots.size(); i++) {
+        sourceRelativePath = getRelativePath(roots.get(i).getRootFile(), new File(source));
+        if (sourceRelativePath != null) {
+          rootIndex = i;
+          break;
+        }
+      }
+      if (rootIndex < 0) {
+        return null;
+      }
+      out.writeBoolean(true);
+      out.writeInt(rootIndex);
+      out.writeUTF(sourceRelativePath);
+      out.writeInt(sourceOutputs.size());
+      for (String output : sourceOutputs) {
+        final String outputRelativePath = getRelativePath(outputDir, new File(output));
+        if (outputRelativePath == null || !new File(output).isFile()) {
+          return null;
+        }
+        out.writeUTF(outputRelativePath);
+        outputs.put(outputRelativePath, output);
+      }
+    }
+    out.writeBoolean(false);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static void readMapping(ZipFile zip, List<JavaSourceRootDescriptor> roots, File outputDir,
+                                  Map<String, Collection<String>> outputToSources) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(loadEntry(zip, getEntry(zip, MAPPING_ENTRY))));
+    while (in.readBoolean()) {
+      final int rootIndex = in.readInt();
+      if (rootIndex < 0 || rootIndex >= roots.size()) {
+        throw new IOException("Source roots don't match");
+      }
+      final String source = FileUtil.toSystemIndependentName(new File(roots.get(rootIndex).getRootFile(), in.readUTF()).getPath());
+      for (int count = in.readInt(); count > 0; count--) {
+        final String output = toOutputPath(outputDir, in.readUTF());
+        Collection<String> sources = outputToSources.get(output);
+        if (sources == null) {
+          sources = new ArrayList<String>(1);
+          outputToSources.put(output, sources);
+        }
+        sources.add(source);
+      }
+    }
+  }
+
+  private static byte[] writeImports(List<ImportsRecord> imports) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(imports.size());
+    for (ImportsRecord record : imports) {
+      out.writeUTF(record.myClassName);
+      writeStrings(out, record.myImports);
+      writeStrings(out, record.myStaticImports);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static void readImports(ZipFile zip, List<ImportsRecord> imports) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(loadEntry(zip, getEntry(zip, IMPORTS_ENTRY))));
+    for (int count = in.readInt(); count > 0; count--) {
+      final String className = in.readUTF();
+      imports.add(new ImportsRecord(className, readStrings(in), readStrings(in)));
+    }
+  }
+
+  private static void writeStrings(DataOutput out, Collection<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static List<String> readStrings(DataInput in) throws IOException {
+    final int size = in.readInt();
+    final List<String> result = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(in.readUTF());
+    }
+    return result;
+  }
+
+  private static void writeEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+    zip.putNextEntry(new ZipEntry(name));
+    zip.write(content);
+    zip.closeEntry();
+  }
+
+  @NotNull
+  private static ZipEntry getEntry(ZipFile zip, String name) throws IOException {
+    final ZipEntry entry = zip.getEntry(name);
+    if (entry == null) {
+      throw new IOException("Entry " + name + " not found in " + zip.getName());
+    }
+    return entry;
+  }
+
+  private static byte[] loadEntry(ZipFile zip, ZipEntry entry) throws IOException {
+    final InputStream input = zip.getInputStream(entry);
+    try {
+      return FileUtil.loadBytes(input);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private static String toOutputPath(File outputDir, String relativePath) throws IOException {
+    if (relativePath.startsWith("/") || relativePath.startsWith("../") || relativePath.contains("/../")) {
+      throw new IOException("Invalid output path: " + relativePath);
+    }
+    return FileUtil.toSystemIndependentName(new File(outputDir, relativePath).getPath());
+  }
+
+  @Nullable
+  private static String getRelativePath(File root, File file) {
+    if (!FileUtil.isAncestor(root, file, true)) {
+      return null;
+    }
+    final String relativePath = FileUtil.getRelativePath(root, file);
+    return relativePath != null ? FileUtil.toSystemIndependentName(relativePath) : null;
+  }
+
+  private static String getPrimarySource(Collection<String> sources) {
+    for (String source : sources) {
+      if (source.endsWith(".java")) {
+        return source;
+      }
+    }
+    return sources.iterator().next();
+  }
+
+  private File getEntryFile(String key) {
+    return new File(new File(myCacheDir, key.substring(0, 2)), key + ".zip");
+  }
+
+  private static byte[] digestFile(File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    final byte[] buffer = new byte[8192];
+    final InputStream input = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    finally {
+      input.close();
+    }
+    return digest.digest();
+  }
+
+  private static void update(MessageDigest digest, String s) {
+    try {
+      digest.update(s.getBytes("UTF-8"));
+      digest.update((byte)0);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHexString(byte[] bytes) {
+    final StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  private static class ImportsRecord {
+    private final String myClassName;
+    private final Collection<String> myImports;
+    private final Collection<String> myStaticImports;
+
+    private ImportsRecord(String className, Collection<String> imports, Collection<String> staticImports) {
+      myClassName = className;
+      myImports = imports;
+      myStaticImports = staticImports;
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.BuildTargetIndex;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Records time spent by the build in its phases, chunks and builder invocations and saves it as a trace file in Chrome trace event
+ * format (chrome://tracing), one file per build. The summary estimates how well the build is parallelized: the critical path is the
+ * longest chain of dependent chunks plus sequential phases, no number of threads can make the build faster than that.
+ *
+ * @see GlobalOptions#BUILD_TRACE_DIR_OPTION
+ */
+public class BuildTimeline {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.BuildTimeline");
+
+  public static final String PHASE_CATEGORY = "phase";
+  public static final String CHUNK_CATEGORY = "chunk";
+  public static final String BUILDER_CATEGORY = "builder";
+  /**
+   * Parts of chunk processing which aren't builder invocations, and parts of builder invocations: source scanning, compilation,
+   * class file analysis, instrumentation
+   */
+  public static final String STEP_CATEGORY = "step";
+  public static final Key<BuildTimeline> KEY = Key.create("_build_timeline_");
+
+  private final File myTraceDir;
+  private final long myStartTime = System.nanoTime();
+  private long myEndTime;
+  private final List<Span> mySpans = new ArrayList<Span>();
+  private final Map<BuildTargetChunk, Span> myChunkSpans = new HashMap<BuildTargetChunk, Span>();
+
+  public BuildTimeline(@NotNull File traceDir) {
+    myTraceDir = traceDir;
+  }
+
+  @Nullable
+  public static BuildTimeline createFromOptions() {
+    final String path = System.getProperty(GlobalOptions.BUILD_TRACE_DIR_OPTION);
+    return StringUtil.isEmpty(path) ? null : new BuildTimeline(new File(path));
+  }
+
+  public class Span {
+    private final String myCategory;
+    private final String myName;
+    @Nullable private final String myTarget;
+    private final Thread myThread = Thread.currentThread();
+    private final long myStart = System.nanoTime();
+    private long myEnd = -1;
+    private int myFileCount = -1;
+
+    private Span(String category, String name, @Nullable String target) {
+      myCategory = category;
+      myName = name;
+      myTarget = target;
+    }
+
+    public void setFileCount(int fileCount) {
+      myFileCount = fileCount;
+    }
+
+    public void finish() {
+      synchronized (mySpans) {
+        myEnd = System.nanoTime();
+      }
+    }
+
+    private long getDuration() {
+      return myEnd >= 0 ? myEnd - myStart : 0;
+    }
+  }
+
+  public Span start(@NotNull String category, @NotNull String name, @Nullable String target) {
+    final Span span = new Span(category, name, target);
+    synchronized (mySpans) {
+      mySpans.add(span);
+    }
+    return span;
+  }
+
+  /**
+   * @return started span or null if the timeline isn't recorded in the current build
+   */
+  @Nullable
+  public static Span startSpan(@NotNull CompileContext context, @NotNull String category, @NotNull String name, @Nullable String target) {
+    final BuildTimeline timeline = KEY.get(context);
+    return timeline != null ? timeline.start(category, name, target) : null;
+  }
+
+  public static void finishSpan(@Nullable Span span) {
+    if (span != null) {
+      span.finish();
+    }
+  }
+
+  public Span startChunk(@NotNull BuildTargetChunk chunk) {
+    final Span span = start(CHUNK_CATEGORY, chunk.toString(), null);
+    synchronized (mySpans) {
+      myChunkSpans.put(chunk, span);
+    }
+    return span;
+  }
+
+  public void buildFinished() {
+    synchronized (mySpans) {
+      myEndTime = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return the saved trace file or null if the trace cannot be saved
+   */
+  @Nullable
+  public File saveTrace() {
+    final List<Span> spans;
+    synchronized (mySpans) {
+      spans = new ArrayList<Span>(mySpans);
+    }
+    try {
+      FileUtil.createDirectory(myTraceDir);
+      final File file = FileUtil.findSequentNonexistentFile(myTraceDir, "build-" + System.currentTimeMillis(), "json");
+      final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+        writeTrace(writer, spans);
+      }
+      finally {
+        writer.close();
+      }
+      return file;
+    }
+    catch (IOException e) {
+      LOG.info("Cannot save build trace to " + myTraceDir, e);
+      return null;
+    }
+  }
+
+  private void writeTrace(Writer writer, List<Span> spans) throws IOException {
+    writer.write("{\"traceEvents\":[");
+    final Map<Long, String> threadNames = new LinkedHashMap<Long, String>();
+    boolean first = true;
+    for (Span span : spans) {
+      if (span.myEnd < 0) {
+        continue;
+      }
+      threadNames.put(span.myThread.getId(), span.myThread.getName());
+      if (!first) {
+        writer.write(",");
+      }
+      first = false;
+      writer.write("\n{\"name\":" + quote(span.myName) + ",\"cat\":" + quote(span.myCategory) + ",\"ph\":\"X\",\"pid\":1" +
+                   ",\"tid\":" + span.myThread.getId() +
+                   ",\"ts\":" + toMicros(span.myStart - myStartTime) + ",\"dur\":" + toMicros(span.getDuration()) + ",\"args\":{");
+      boolean hasArgs = false;
+      if (span.myTarget != null) {
+        writer.write("\"target\":" + quote(span.myTarget));
+        hasArgs = true;
+      }
+      if (span.myFileCount >= 0) {
+        writer.write((hasArgs ? "," : "") + "\"files\":" + span.myFileCount);
+      }
+      writer.write("}}");
+    }
+    for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+      if (!first) {
+        writer.write(",");
+      }
+      first = false;
+      writer.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + entry.getKey() +
+                   ",\"args\":{\"name\":" + quote(entry.getValue()) + "}}");
+    }
+    writer.write("\n]}\n");
+  }
+
+  /**
+   * @param threadCount maximum number of threads which may build chunks simultaneously
+   */
+  public String getSummary(BuildTargetIndex index, int threadCount) {
+    final long wallTime;
+    long busyTime = 0;
+    long sequentialTime = 0;
+    final Map<BuildTargetChunk, Span> chunkSpans;
+    synchronized (mySpans) {
+      wallTime = (myEndTime > 0 ? myEndTime : System.nanoTime()) - myStartTime;
+      for (Span span : mySpans) {
+        if (PHASE_CATEGORY.equals(span.myCategory)) {
+          sequentialTime += span.getDuration();
+        }
+      }
+      chunkSpans = new HashMap<BuildTargetChunk, Span>(myChunkSpans);
+    }
+    busyTime += sequentialTime;
+
+    // chunks are sorted so that dependencies precede dependents
+    final List<BuildTargetChunk> chunks = index.getSortedTargetChunks();
+    final Map<BuildTarget<?>, BuildTargetChunk> targetToChunk = new HashMap<BuildTarget<?>, BuildTargetChunk>();
+    for (BuildTargetChunk chunk : chunks) {
+      for (BuildTarget<?> target : chunk.getTargets()) {
+        targetToChunk.put(target, chunk);
+      }
+    }
+    final Map<BuildTargetChunk, Long> pathTime = new HashMap<BuildTargetChunk, Long>();
+    long criticalPath = 0;
+    for (BuildTargetChunk chunk : chunks) {
+      final Span span = chunkSpans.get(chunk);
+      final long duration = span != null ? span.getDuration() : 0;
+      busyTime += duration;
+      long dependenciesTime = 0;
+      for (BuildTarget<?> target : chunk.getTargets()) {
+        for (BuildTarget<?> dependency : index.getDependencies(target)) {
+          final BuildTargetChunk dependencyChunk = targetToChunk.get(dependency);
+          final Long time = dependencyChunk != null && dependencyChunk != chunk ? pathTime.get(dependencyChunk) : null;
+          if (time != null) {
+            dependenciesTime = Math.max(dependenciesTime, time);
+          }
+        }
+      }
+      pathTime.put(chunk, dependenciesTime + duration);
+      criticalPath = Math.max(criticalPath, dependenciesTime + duration);
+    }
+    criticalPath += sequentialTime;
+
+    final double parallelism = wallTime > 0 ? (double)busyTime / wallTime : 0;
+    return "Build timeline: " + formatTime(wallTime) + " elapsed, " + formatTime(busyTime) + " busy, critical path " +
+           formatTime(criticalPath) + ", average parallelism " + String.format("%.2f", parallelism) + ", utilization of " +
+           threadCount + " threads " + Math.round(100 * parallelism / Math.max(1, threadCount)) + "%";
+  }
+
+  private static String formatTime(long nanos) {
+    return String.format("%.2fs", nanos / 1e9);
+  }
+
+  private static long toMicros(long nanos) {
+    return nanos / 1000;
+  }
+
+  private static String quote(String s) {
+    final StringBuilder builder = new StringBuilder(s.length() + 2).append('"');
+    StringUtil.escapeStringCharacters(s.length(), s, "\"", builder);
+    return builder.append('"').toString();
+  }
+}
@@ -27,7 +27,7 @@ import java.util.*;
  *         Date: 9/17/11
  */
 public class CompileContextImpl extends UserDataHolderBase implements CompileContext {
-  private static final String CANCELED_MESSAGE = "The build has been canceled";
+  static final String CANCELED_MESSAGE = "The build has been canceled";
   private final CompileScope myScope;
   private final boolean myIsMake;
   private final boolean myIsProjectRebuild;
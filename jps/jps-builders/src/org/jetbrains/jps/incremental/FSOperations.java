@@ -12,21 +12,29 @@ import org.jetbrains.jps.builders.FileProcessor;
 import org.jetbrains.jps.builders.impl.BuildTargetChunk;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
 import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.storage.TimestampStorage;
 import org.jetbrains.jps.incremental.storage.Timestamps;
 import org.jetbrains.jps.model.java.JpsJavaClasspathKind;
 import org.jetbrains.jps.model.java.JpsJavaExtensionService;
 import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 7/8/12
  */
 public class FSOperations {
+  private static final int DIGEST_BATCH_SIZE = 64;
+
   public static void markDirty(CompileContext context, final File file) throws IOException {
     final JavaSourceRootDescriptor rd = context.getProjectDescriptor().getBuildRootIndex().findJavaRootDescriptor(context, file);
     if (rd != null) {
@@ -118,6 +126,8 @@ public class FSOperations {
   }
 
   static void markDirtyFiles(CompileContext context, BuildTarget<?> target, Timestamps timestamps, boolean forceMarkDirty, @Nullable THashSet<File> currentFiles) throws IOException {
+    // with digest based timestamps, files with changed timestamps are collected to compute their digests in parallel
+    final List<TouchedFile> touchedFiles = !forceMarkDirty && timestamps.isDigestBased() ? new ArrayList<TouchedFile>() : null;
     for (BuildRootDescriptor rd : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
       if (!rd.getRootFile().exists() ||
           //temp roots are managed by compilers themselves
@@ -125,7 +135,10 @@ public class FSOperations {
         continue;
       }
       context.getProjectDescriptor().fsState.clearRecompile(rd);
-      traverseRecursively(context, rd, rd.getRootFile(), timestamps, forceMarkDirty, currentFiles);
+      traverseRecursively(context, rd, rd.getRootFile(), timestamps, forceMarkDirty, currentFiles, touchedFiles);
+    }
+    if (touchedFiles != null && !touchedFiles.isEmpty()) {
+      markDirtyIfContentChanged(context, touchedFiles, timestamps);
     }
   }
 
@@ -134,7 +147,8 @@ public class FSOperations {
                                           final File file,
                                           @NotNull final Timestamps tsStorage,
                                           final boolean forceDirty,
-                                          @Nullable Set<File> currentFiles) throws IOException {
+                                          @Nullable Set<File> currentFiles,
+                                          @Nullable List<TouchedFile> touchedFiles) throws IOException {
     if (context.getProjectDescriptor().getIgnoredFileIndex().isIgnored(file.getName())) {
       return;
     }
@@ -142,14 +156,23 @@ public class FSOperations {
     if (children != null) { // is directory
       if (children.length > 0 && !rd.getExcludedRoots().contains(file)) {
         for (File child : children) {
-          traverseRecursively(context, rd, child, tsStorage, forceDirty, currentFiles);
+          traverseRecursively(context, rd, child, tsStorage, forceDirty, currentFiles, touchedFiles);
         }
       }
     }
     else { // is file
       boolean markDirty = forceDirty;
       if (!markDirty) {
-        markDirty = tsStorage.getStamp(file, rd.getTarget()) != FileSystemUtil.lastModified(file);
+        final long savedStamp = tsStorage.getStamp(file, rd.getTarget());
+        final long currentStamp = FileSystemUtil.lastModified(file);
+        if (savedStamp != currentStamp) {
+          if (touchedFiles != null && savedStamp != -1L) {
+            touchedFiles.add(new TouchedFile(file, rd, currentStamp));
+          }
+          else {
+            markDirty = true;
+          }
+        }
       }
       if (markDirty) {
         // if it is full project rebuild, all storages are already completely cleared;
@@ -163,6 +186,57 @@ public class FSOperations {
     }
   }
 
+  private static void markDirtyIfContentChanged(CompileContext context, final List<TouchedFile> files, Timestamps tsStorage) throws IOException {
+    final long[] digests = new long[files.size()];
+    final int taskCount = Math.min(Runtime.getRuntime().availableProcessors(), (files.size() + DIGEST_BATCH_SIZE - 1) / DIGEST_BATCH_SIZE);
+    if (taskCount > 1) {
+      final List<Future<?>> futures = new ArrayList<Future<?>>(taskCount);
+      for (int task = 0; task < taskCount; task++) {
+        final int first = task;
+        futures.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
+          @Override
+          public void run() {
+            for (int i = first; i < digests.length; i += taskCount) {
+              digests[i] = TimestampStorage.computeDigest(files.get(i).file);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+    // with a single task digests are computed on demand by the storage
+
+    final Timestamps marker = context.isProjectRebuild() ? null : tsStorage;
+    for (int i = 0; i < digests.length; i++) {
+      final TouchedFile touched = files.get(i);
+      if (tsStorage.isChanged(touched.file, touched.root.getTarget(), touched.stamp, digests[i])) {
+        context.getProjectDescriptor().fsState.markDirty(context, touched.file, touched.root, marker, false);
+      }
+    }
+  }
+
+  private static class TouchedFile {
+    private final File file;
+    private final BuildRootDescriptor root;
+    private final long stamp;
+
+    private TouchedFile(File file, BuildRootDescriptor root, long stamp) {
+      this.file = file;
+      this.root = root;
+      this.stamp = stamp;
+    }
+  }
+
   public static void pruneEmptyDirs(@Nullable final THashSet<File> dirsToDelete) {
     THashSet<File> additionalDirs = null;
     THashSet<File> toDelete = dirsToDelete;
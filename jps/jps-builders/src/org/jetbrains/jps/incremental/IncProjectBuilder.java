@@ -6,7 +6,6 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ConcurrentHashSet;
-import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.containers.MultiMapBasedOnSet;
 import com.intellij.util.io.MappingFailedException;
@@ -14,6 +13,7 @@ import com.intellij.util.io.PersistentEnumerator;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.jps.ModuleChunk;
 import org.jetbrains.jps.api.CanceledStatus;
 import org.jetbrains.jps.api.GlobalOptions;
@@ -47,7 +47,6 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -71,13 +70,16 @@ public class IncProjectBuilder {
     }
     MAX_BUILDER_THREADS = maxThreads;
   }
-  private final BoundedTaskExecutor myParallelBuildExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors())));
+  private static final int PARALLEL_BUILDER_THREADS = Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+  private final BoundedTaskExecutor myParallelBuildExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), PARALLEL_BUILDER_THREADS);
 
   private final ProjectDescriptor myProjectDescriptor;
   private final BuilderRegistry myBuilderRegistry;
   private final Map<String, String> myBuilderParams;
   private final CanceledStatus myCancelStatus;
   @Nullable private final Callbacks.ConstantAffectionResolver myConstantSearch;
+  @Nullable private final BuildOutputCache myBuildOutputCache;
+  @Nullable private BuildTimeline myTimeline;
   private final List<MessageHandler> myMessageHandlers = new ArrayList<MessageHandler>();
   private final MessageHandler myMessageDispatcher = new MessageHandler() {
     public void processMessage(BuildMessage msg) {
@@ -91,6 +93,7 @@ public class IncProjectBuilder {
   private final float myTotalTargetsWork;
   private final int myTotalModuleLevelBuilderCount;
   private final List<Future> myAsyncTasks = new ArrayList<Future>();
+  private boolean myParallelBuild = BuildRunner.PARALLEL_BUILD_ENABLED;
 
   public IncProjectBuilder(ProjectDescriptor pd, BuilderRegistry builderRegistry, Map<String, String> builderParams, CanceledStatus cs,
                            @Nullable Callbacks.ConstantAffectionResolver constantSearch) {
@@ -99,6 +102,7 @@ public class IncProjectBuilder {
     myBuilderParams = builderParams;
     myCancelStatus = cs;
     myConstantSearch = constantSearch;
+    myBuildOutputCache = BuildOutputCache.createFromOptions();
     myTotalTargetsWork = pd.getBuildTargetIndex().getAllTargets().size();
     myTotalModuleLevelBuilderCount = builderRegistry.getModuleLevelBuilderCount();
   }
@@ -107,6 +111,11 @@ public class IncProjectBuilder {
     myMessageHandlers.add(handler);
   }
 
+  @TestOnly
+  public void setParallelBuild(boolean parallelBuild) {
+    myParallelBuild = parallelBuild;
+  }
+
   public void checkUpToDate(CompileScope scope) {
     CompileContextImpl context = null;
     try {
@@ -155,6 +164,7 @@ public class IncProjectBuilder {
       }
     });
     CompileContextImpl context = null;
+    myTimeline = BuildTimeline.createFromOptions();
     try {
       context = createContext(scope, isMake, isProjectRebuild);
       runBuild(context, forceCleanCaches);
@@ -196,9 +206,33 @@ public class IncProjectBuilder {
           LOG.info(th);
         }
       }
+      if (myTimeline != null) {
+        reportTimeline(myTimeline);
+        myTimeline = null;
+      }
     }
   }
 
+  private void reportTimeline(BuildTimeline timeline) {
+    timeline.buildFinished();
+    final int threadCount = myParallelBuild ? PARALLEL_BUILDER_THREADS : 1;
+    final File traceFile = timeline.saveTrace();
+    final String summary = timeline.getSummary(myProjectDescriptor.getBuildTargetIndex(), threadCount) +
+                           (traceFile != null ? "; trace saved to " + traceFile.getPath() : "");
+    LOG.info(summary);
+    myMessageDispatcher.processMessage(new CompilerMessage(BUILD_NAME, BuildMessage.Kind.INFO, summary));
+  }
+
+  @Nullable
+  private BuildTimeline.Span startSpan(String category, String name, @Nullable String target) {
+    final BuildTimeline timeline = myTimeline;
+    return timeline != null ? timeline.start(category, name, target) : null;
+  }
+
+  private static void finishSpan(@Nullable BuildTimeline.Span span) {
+    BuildTimeline.finishSpan(span);
+  }
+
   private static void flushContext(CompileContext context) {
     if (context != null) {
       final ProjectDescriptor pd = context.getProjectDescriptor();
@@ -244,7 +278,7 @@ public class IncProjectBuilder {
              "; isMake:" +
              context.isMake() +
              " parallel compilation:" +
-             BuildRunner.PARALLEL_BUILD_ENABLED);
+             myParallelBuild);
 
     for (TargetBuilder builder : myBuilderRegistry.getTargetBuilders()) {
       builder.buildStarted(context);
@@ -255,17 +289,26 @@ public class IncProjectBuilder {
 
     try {
       if (context.isProjectRebuild() || forceCleanCaches) {
-        cleanOutputRoots(context);
+        final BuildTimeline.Span span = startSpan(BuildTimeline.PHASE_CATEGORY, "Clean output roots", null);
+        try {
+          cleanOutputRoots(context);
+        }
+        finally {
+          finishSpan(span);
+        }
       }
 
       context.processMessage(new ProgressMessage("Running 'before' tasks"));
-      runTasks(context, myBuilderRegistry.getBeforeTasks());
+      runTasks(context, myBuilderRegistry.getBeforeTasks(), "'before' tasks");
 
       context.processMessage(new ProgressMessage("Checking sources"));
       buildChunks(context);
+      if (myBuildOutputCache != null) {
+        myBuildOutputCache.reportStatistics(context);
+      }
 
       context.processMessage(new ProgressMessage("Running 'after' tasks"));
-      runTasks(context, myBuilderRegistry.getAfterTasks());
+      runTasks(context, myBuilderRegistry.getAfterTasks(), "'after' tasks");
 
       // cleanup output roots layout, commented for efficiency
       //final ModuleOutputRootsLayout outputRootsLayout = context.getDataManager().getOutputRootsLayout();
@@ -301,6 +344,7 @@ public class IncProjectBuilder {
                                                               myBuilderParams, myCancelStatus
     );
     JavaBuilderUtil.CONSTANT_SEARCH_SERVICE.set(context, myConstantSearch);
+    BuildTimeline.KEY.set(context, myTimeline);
     return context;
   }
 
@@ -429,9 +473,15 @@ public class IncProjectBuilder {
     );
   }
 
-  private static void runTasks(CompileContext context, final List<BuildTask> tasks) throws ProjectBuildException {
-    for (BuildTask task : tasks) {
-      task.build(context);
+  private void runTasks(CompileContext context, final List<BuildTask> tasks, String name) throws ProjectBuildException {
+    final BuildTimeline.Span span = startSpan(BuildTimeline.PHASE_CATEGORY, name, null);
+    try {
+      for (BuildTask task : tasks) {
+        task.build(context);
+      }
+    }
+    finally {
+      finishSpan(span);
     }
   }
 
@@ -440,77 +490,8 @@ public class IncProjectBuilder {
     final ProjectDescriptor pd = context.getProjectDescriptor();
     BuildTargetIndex targetIndex = pd.getBuildTargetIndex();
     try {
-      if (BuildRunner.PARALLEL_BUILD_ENABLED) {
-        final List<ChunkGroup> chunkGroups = buildChunkGroups(targetIndex);
-        for (ChunkGroup group : chunkGroups) {
-          final List<BuildTargetChunk> groupChunks = group.getChunks();
-          final int chunkCount = groupChunks.size();
-          if (chunkCount == 0) {
-            continue;
-          }
-          try {
-            if (chunkCount == 1) {
-              buildChunkIfAffected(createContextWrapper(context), scope, groupChunks.iterator().next());
-            }
-            else {
-              final CountDownLatch latch = new CountDownLatch(chunkCount);
-              final Ref<Throwable> exRef = new Ref<Throwable>(null);
-
-              if (LOG.isDebugEnabled()) {
-                final StringBuilder logBuilder = new StringBuilder("Building chunks in parallel: ");
-                for (BuildTargetChunk chunk : groupChunks) {
-                  logBuilder.append(chunk.toString()).append("; ");
-                }
-                LOG.debug(logBuilder.toString());
-              }
-
-              for (final BuildTargetChunk chunk : groupChunks) {
-                final CompileContext chunkLocalContext = createContextWrapper(context);
-                myParallelBuildExecutor.execute(new Runnable() {
-                  @Override
-                  public void run() {
-                    try {
-                      buildChunkIfAffected(chunkLocalContext, scope, chunk);
-                    }
-                    catch (Throwable e) {
-                      synchronized (exRef) {
-                        if (exRef.isNull()) {
-                          exRef.set(e);
-                        }
-                      }
-                      LOG.info(e);
-                    }
-                    finally {
-                      latch.countDown();
-                    }
-                  }
-                });
-              }
-
-              try {
-                latch.await();
-              }
-              catch (InterruptedException e) {
-                LOG.info(e);
-              }
-
-              final Throwable exception = exRef.get();
-              if (exception != null) {
-                if (exception instanceof ProjectBuildException) {
-                  throw (ProjectBuildException)exception;
-                }
-                else {
-                  throw new ProjectBuildException(exception);
-                }
-              }
-            }
-          }
-          finally {
-            context.updateCompilationStartStamp();
-            pd.dataManager.closeSourceToOutputStorages(groupChunks);
-            pd.dataManager.flush(true);
-          }
-        }
+      if (myParallelBuild) {
+        new ParallelChunksBuilder(context, createChunkTasks(targetIndex)).build();
       }
       else {
         // non-parallel build
@@ -575,12 +556,47 @@ public class IncProjectBuilder {
 
     final List<TargetBuilder<?, ?>> builders = BuilderRegistry.getInstance().getTargetBuilders();
     for (TargetBuilder<?, ?> builder : builders) {
-      BuildOperations.buildTarget(target, context, builder);
+      BuildTimeline.Span span = null;
+      if (myTimeline != null && builder.getTargetTypes().contains(target.getTargetType())) {
+        span = startSpan(BuildTimeline.BUILDER_CATEGORY, builder.getPresentableName(), target.getPresentableName());
+        span.setFileCount(countFilesToRecompile(context, target));
+      }
+      try {
+        BuildOperations.buildTarget(target, context, builder);
+      }
+      finally {
+        finishSpan(span);
+      }
       updateDoneFraction(context, 1.0f / builders.size());
     }
     return true;
   }
 
+  private static <R extends BuildRootDescriptor, T extends BuildTarget<R>> int countFilesToRecompile(CompileContext context, T target)
+    throws IOException {
+    final int[] count = {0};
+    context.getProjectDescriptor().fsState.processFilesToRecompile(context, target, new FileProcessor<R, T>() {
+      @Override
+      public boolean apply(T target, File file, R root) throws IOException {
+        count[0]++;
+        return true;
+      }
+    });
+    return count[0];
+  }
+
+  private static int countDirtyFiles(DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> holder) throws IOException {
+    final int[] count = {0};
+    holder.processDirtyFiles(new FileProcessor<JavaSourceRootDescriptor, ModuleBuildTarget>() {
+      @Override
+      public boolean apply(ModuleBuildTarget target, File file, JavaSourceRootDescriptor root) throws IOException {
+        count[0]++;
+        return true;
+      }
+    });
+    return count[0];
+  }
+
   private void updateDoneFraction(CompileContext context, final float delta) {
     myTargetsProcessed += delta;
     float processed = myTargetsProcessed;
@@ -590,19 +606,59 @@ public class IncProjectBuilder {
   private void buildTargetsChunk(CompileContext context, final BuildTargetChunk chunk) throws ProjectBuildException {
 
     boolean doneSomething = false;
+    final BuildTimeline timeline = myTimeline;
+    final BuildTimeline.Span chunkSpan = timeline != null ? timeline.startChunk(chunk) : null;
     try {
       Utils.ERRORS_DETECTED_KEY.set(context, Boolean.FALSE);
-      BuildOperations.ensureFSStateInitialized(context, chunk);
+      BuildTimeline.Span span = startSpan(BuildTimeline.STEP_CATEGORY, "Scan sources", chunk.toString());
+      try {
+        BuildOperations.ensureFSStateInitialized(context, chunk);
+      }
+      finally {
+        finishSpan(span);
+      }
+      final boolean upToDate = isModuleChunkUpToDate(context, chunk);
       if (context.isMake()) {
-        doneSomething |= processDeletedPaths(context, chunk.getTargets());
+        span = startSpan(BuildTimeline.STEP_CATEGORY, "Delete outputs of removed sources", chunk.toString());
+        try {
+          doneSomething |= processDeletedPaths(context, chunk.getTargets());
+        }
+        finally {
+          finishSpan(span);
+        }
       }
 
       myProjectDescriptor.fsState.beforeChunkBuildStart(context, chunk);
 
-      doneSomething = runBuildersForChunk(context, chunk);
+      final String cacheKey = myBuildOutputCache != null && !upToDate ? myBuildOutputCache.computeKey(context, chunk) : null;
+      span = cacheKey != null ? startSpan(BuildTimeline.STEP_CATEGORY, "Restore from build cache", chunk.toString()) : null;
+      final boolean restored;
+      try {
+        restored = cacheKey != null && myBuildOutputCache.restore(context, chunk, cacheKey);
+      }
+      finally {
+        finishSpan(span);
+      }
+      if (restored) {
+        doneSomething = true;
+      }
+      else if (upToDate) {
+        LOG.debug("Skipping up-to-date chunk " + chunk);
+        updateDoneFraction(context, chunk.getTargets().size());
+      }
+      else {
+        if (cacheKey != null) {
+          BuildOutputCache.startRecording(context);
+        }
+        doneSomething = runBuildersForChunk(context, chunk);
+      }
 
       onChunkBuildComplete(context, chunk);
 
+      if (cacheKey != null && !restored) {
+        myBuildOutputCache.store(context, chunk, cacheKey);
+      }
+
       if (doneSomething && GENERATE_CLASSPATH_INDEX) {
         myAsyncTasks.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
           @Override
@@ -619,6 +675,8 @@ public class IncProjectBuilder {
       throw new ProjectBuildException(e);
     }
     finally {
+      finishSpan(chunkSpan);
+      BuildOutputCache.stopRecording(context);
       for (BuildRootDescriptor rd : context.getProjectDescriptor().getBuildRootIndex().clearTempRoots(context)) {
         context.getProjectDescriptor().fsState.clearRecompile(rd);
       }
@@ -812,7 +870,18 @@ public class IncProjectBuilder {
             if (context.isMake()) {
               processDeletedPaths(context, chunk.getTargets());
             }
-            final ModuleLevelBuilder.ExitCode buildResult = builder.build(context, chunk, dirtyFilesHolder, outputConsumer);
+            BuildTimeline.Span span = null;
+            if (myTimeline != null) {
+              span = startSpan(BuildTimeline.BUILDER_CATEGORY, builder.getPresentableName(), chunk.getName());
+              span.setFileCount(countDirtyFiles(dirtyFilesHolder));
+            }
+            final ModuleLevelBuilder.ExitCode buildResult;
+            try {
+              buildResult = builder.build(context, chunk, dirtyFilesHolder, outputConsumer);
+            }
+            finally {
+              finishSpan(span);
+            }
 
             doneSomething |= (buildResult != ModuleLevelBuilder.ExitCode.NOTHING_DONE);
 
@@ -872,39 +941,51 @@ public class IncProjectBuilder {
     return doneSomething;
   }
 
-  private static List<ChunkGroup> buildChunkGroups(BuildTargetIndex index) {
-    final List<BuildTargetChunk> allChunks = index.getSortedTargetChunks();
-
-    // building aux dependencies map
-    final Map<BuildTarget<?>, Set<BuildTarget<?>>> depsMap = new HashMap<BuildTarget<?>, Set<BuildTarget<?>>>();
-    for (BuildTarget target : index.getAllTargets()) {
-      depsMap.put(target, index.getDependenciesRecursively(target));
+  private static List<BuildChunkTask> createChunkTasks(BuildTargetIndex index) {
+    final List<BuildTargetChunk> chunks = index.getSortedTargetChunks();
+    final List<BuildChunkTask> tasks = new ArrayList<BuildChunkTask>(chunks.size());
+    final Map<BuildTarget<?>, BuildChunkTask> targetToTask = new HashMap<BuildTarget<?>, BuildChunkTask>();
+    for (BuildTargetChunk chunk : chunks) {
+      final BuildChunkTask task = new BuildChunkTask(chunk);
+      tasks.add(task);
+      for (BuildTarget<?> target : chunk.getTargets()) {
+        targetToTask.put(target, task);
+      }
     }
 
-    final List<ChunkGroup> groups = new ArrayList<ChunkGroup>();
-    ChunkGroup currentGroup = new ChunkGroup();
-    groups.add(currentGroup);
-    for (BuildTargetChunk chunk : allChunks) {
-      if (dependsOnGroup(chunk, currentGroup, depsMap)) {
-        currentGroup = new ChunkGroup();
-        groups.add(currentGroup);
+    for (BuildChunkTask task : tasks) {
+      final Set<BuildChunkTask> dependencies = new HashSet<BuildChunkTask>();
+      for (BuildTarget<?> target : task.myChunk.getTargets()) {
+        for (BuildTarget<?> dependency : index.getDependencies(target)) {
+          final BuildChunkTask dependencyTask = targetToTask.get(dependency);
+          if (dependencyTask != null && dependencyTask != task) {
+            dependencies.add(dependencyTask);
+          }
+        }
+      }
+      task.myNotBuiltDependencies = dependencies.size();
+      for (BuildChunkTask dependency : dependencies) {
+        dependency.myDependents.add(task);
       }
-      currentGroup.addChunk(chunk);
     }
-    return groups;
+    return tasks;
   }
 
-
-  private static boolean dependsOnGroup(BuildTargetChunk chunk, ChunkGroup group, Map<BuildTarget<?>, Set<BuildTarget<?>>> depsMap) {
-    for (BuildTargetChunk groupChunk : group.getChunks()) {
-      final Set<? extends BuildTarget<?>> groupChunkTargets = groupChunk.getTargets();
-      for (BuildTarget<?> target : chunk.getTargets()) {
-        if (ContainerUtil.intersects(depsMap.get(target), groupChunkTargets)) {
-          return true;
-        }
+  /**
+   * A module chunk without dirty or deleted sources needs no compilation. Since Mappings.differentiate marks dirty only the sources
+   * affected by changes in dependencies, dependents of a chunk whose recompilation didn't change its API are skipped entirely.
+   */
+  private static boolean isModuleChunkUpToDate(CompileContext context, BuildTargetChunk chunk) {
+    if (context.isProjectRebuild()) {
+      return false;
+    }
+    final BuildFSState fsState = context.getProjectDescriptor().fsState;
+    for (BuildTarget<?> target : chunk.getTargets()) {
+      if (!(target instanceof ModuleBuildTarget) || context.getScope().isRecompilationForced(target) || fsState.hasWorkToDo(target)) {
+        return false;
       }
     }
-    return false;
+    return true;
   }
 
   private static void onChunkBuildComplete(CompileContext context, @NotNull BuildTargetChunk chunk) throws IOException {
@@ -916,15 +997,123 @@ public class IncProjectBuilder {
     BuildOperations.markTargetsUpToDate(context, chunk);
   }
 
-  private static class ChunkGroup {
-    private final List<BuildTargetChunk> myChunks = new ArrayList<BuildTargetChunk>();
+  private static class BuildChunkTask {
+    private final BuildTargetChunk myChunk;
+    private final List<BuildChunkTask> myDependents = new ArrayList<BuildChunkTask>();
+    private int myNotBuiltDependencies;
+
+    private BuildChunkTask(BuildTargetChunk chunk) {
+      myChunk = chunk;
+    }
+  }
+
+  /**
+   * Builds chunks in parallel starting every chunk as soon as all chunks it depends on are built.
+   * As in the sequential build, source-to-output storages of a chunk are closed and build data is flushed as soon as the chunk is built;
+   * the storages are synchronized, so this doesn't need to wait for the chunks which are still running.
+   */
+  private class ParallelChunksBuilder {
+    private final CompileContextImpl myContext;
+    private final List<BuildChunkTask> myTasks;
+    private final Object myLock = new Object();
+    private int myRunningCount;
+    private boolean myInterrupted;
+    private Throwable myException;
+
+    private ParallelChunksBuilder(CompileContextImpl context, List<BuildChunkTask> tasks) {
+      myContext = context;
+      myTasks = tasks;
+    }
+
+    public void build() throws ProjectBuildException {
+      synchronized (myLock) {
+        for (BuildChunkTask task : myTasks) {
+          if (task.myNotBuiltDependencies == 0) {
+            submit(task);
+          }
+        }
+        // dependents are submitted before a task is finished, so nothing is left to build when no tasks are running
+        while (myRunningCount > 0) {
+          try {
+            myLock.wait();
+          }
+          catch (InterruptedException e) {
+            // no more chunks are started, the running ones are waited for as they use the build data
+            myInterrupted = true;
+          }
+        }
+      }
+
+      if (myInterrupted) {
+        Thread.currentThread().interrupt();
+        throw new ProjectBuildException(CompileContextImpl.CANCELED_MESSAGE);
+      }
+      final Throwable exception = myException;
+      if (exception != null) {
+        if (exception instanceof ProjectBuildException) {
+          throw (ProjectBuildException)exception;
+        }
+        throw new ProjectBuildException(exception);
+      }
+    }
+
+    private void submit(final BuildChunkTask task) {
+      myRunningCount++;
+      final CompileContext chunkLocalContext = createContextWrapper(myContext);
+      myParallelBuildExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Building chunk " + task.myChunk + " in parallel");
+            }
+            // files modified after this moment are detected as modified during compilation of this chunk
+            chunkLocalContext.updateCompilationStartStamp();
+            buildChunkIfAffected(chunkLocalContext, myContext.getScope(), task.myChunk);
+          }
+          catch (Throwable e) {
+            onException(e);
+          }
+          finally {
+            flushChunkData(task.myChunk);
+            onFinished(task);
+          }
+        }
+      });
+    }
+
+    private void onException(Throwable e) {
+      LOG.info(e);
+      synchronized (myLock) {
+        if (myException == null) {
+          myException = e;
+        }
+      }
+    }
 
-    public void addChunk(BuildTargetChunk chunk) {
-      myChunks.add(chunk);
+    private void flushChunkData(BuildTargetChunk chunk) {
+      final ProjectDescriptor pd = myContext.getProjectDescriptor();
+      try {
+        pd.dataManager.closeSourceToOutputStorages(Collections.singleton(chunk));
+        pd.dataManager.flush(true);
+      }
+      catch (Throwable e) {
+        onException(e);
+      }
     }
 
-    public List<BuildTargetChunk> getChunks() {
-      return myChunks;
+    private void onFinished(BuildChunkTask task) {
+      synchronized (myLock) {
+        myRunningCount--;
+        if (myException == null && !myInterrupted && !myContext.getCancelStatus().isCanceled()) {
+          for (BuildChunkTask dependent : task.myDependents) {
+            if (--dependent.myNotBuiltDependencies == 0) {
+              submit(dependent);
+            }
+          }
+        }
+        myLock.notifyAll();
+      }
     }
   }
 
@@ -934,9 +1123,13 @@ public class IncProjectBuilder {
     GLOBAL_CONTEXT_KEYS.add(ExternalJavacDescriptor.KEY);
   }
 
+  /**
+   * @return context having its own user data and compilation start stamp
+   */
   private static CompileContext createContextWrapper(final CompileContext delegate) {
     final ClassLoader loader = delegate.getClass().getClassLoader();
     final UserDataHolderBase localDataHolder = new UserDataHolderBase();
+    final long[] compilationStartStamp = {delegate.getCompilationStartStamp()};
     final Set deletedKeysSet = new ConcurrentHashSet();
     final Class<UserDataHolder> dataHolderinterface = UserDataHolder.class;
     final Class<MessageHandler> messageHandlerinterface = MessageHandler.class;
@@ -968,6 +1161,13 @@ public class IncProjectBuilder {
             }
           }
         }
+        else if ("getCompilationStartStamp".equals(method.getName())) {
+          return compilationStartStamp[0];
+        }
+        else if ("updateCompilationStartStamp".equals(method.getName())) {
+          compilationStartStamp[0] = System.currentTimeMillis();
+          return null;
+        }
         else if (messageHandlerinterface.equals(declaringClass)) {
           final BuildMessage msg = (BuildMessage)args[0];
           if (msg.getKind() == BuildMessage.Kind.ERROR) {
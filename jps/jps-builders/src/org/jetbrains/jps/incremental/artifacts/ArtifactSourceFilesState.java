@@ -105,7 +105,8 @@ public class ArtifactSourceFilesState extends CompositeStorageOwner {
       if (currentPaths != null) {
         currentPaths.add(file);
       }
-      if (forceMarkDirty || myProjectDescriptor.timestamps.getStorage().getStamp(file, myTarget) != FileSystemUtil.lastModified(file)) {
+      final TimestampStorage timestamps = myProjectDescriptor.timestamps.getStorage();
+      if (forceMarkDirty || timestamps.isChanged(file, myTarget, FileSystemUtil.lastModified(file), TimestampStorage.NO_DIGEST)) {
         myProjectDescriptor.fsState.markDirty(null, file, descriptor, myProjectDescriptor.timestamps.getStorage(), false);
       }
     }
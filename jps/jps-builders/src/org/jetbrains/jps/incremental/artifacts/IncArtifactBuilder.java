@@ -7,6 +7,7 @@ import com.intellij.util.containers.MultiMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.BuildRootDescriptor;
 import org.jetbrains.jps.builders.BuildRootIndex;
@@ -125,7 +126,17 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
         outSrcMapping.remove(outputPath);
       }
 
-      deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
+      final boolean updateJarsInPlace = Boolean.parseBoolean(System.getProperty(GlobalOptions.INCREMENTAL_JARS_OPTION, "false"));
+      final Set<String> archivesToKeep = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+      if (updateJarsInPlace) {
+        for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+          DestinationInfo destination = descriptor.getDestinationInfo();
+          if (destination instanceof JarDestinationInfo) {
+            archivesToKeep.add(destination.getOutputFilePath());
+          }
+        }
+      }
+      final Set<String> keptArchives = deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping, archivesToKeep);
       context.checkCanceled();
 
       final Set<JarInfo> changedJars = new THashSet<JarInfo>();
@@ -152,8 +163,13 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
       }
       context.checkCanceled();
 
-      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping);
+      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping, updateJarsInPlace);
       builder.buildJars();
+      for (String path : keptArchives) {
+        if (outSrcMapping.getState(path) == null) {
+          FileUtil.delete(new File(FileUtil.toSystemDependentName(path)));
+        }
+      }
       runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
     }
     catch (IOException e) {
@@ -186,10 +202,16 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     paths.add(path);
   }
 
-  private static void deleteOutdatedFiles(MultiMap<String, String> filesToDelete, CompileContext context,
-                                          SourceToOutputMapping srcOutMapping,
-                                          ArtifactOutputToSourceMapping outSrcMapping) throws IOException {
-    if (filesToDelete.isEmpty()) return;
+  /**
+   * @param archivesToKeep outdated archives which are not deleted from disk because they will be updated in place
+   * @return paths of outdated archives which were kept
+   */
+  private static Set<String> deleteOutdatedFiles(MultiMap<String, String> filesToDelete, CompileContext context,
+                                                 SourceToOutputMapping srcOutMapping,
+                                                 ArtifactOutputToSourceMapping outSrcMapping,
+                                                 Set<String> archivesToKeep) throws IOException {
+    final THashSet<String> keptArchives = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+    if (filesToDelete.isEmpty()) return keptArchives;
 
     context.processMessage(new ProgressMessage("Deleting outdated files..."));
     int notDeletedFilesCount = 0;
@@ -201,14 +223,20 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
         continue;
       }
 
-      boolean deleted = deletedPaths.contains(filePath);
+      boolean deleted = deletedPaths.contains(filePath) || keptArchives.contains(filePath);
       if (!deleted) {
-        deleted = FileUtil.delete(new File(FileUtil.toSystemDependentName(filePath)));
+        if (archivesToKeep.contains(filePath)) {
+          keptArchives.add(filePath);
+          deleted = true;
+        }
+        else if (FileUtil.delete(new File(FileUtil.toSystemDependentName(filePath)))) {
+          deletedPaths.add(filePath);
+          deleted = true;
+        }
       }
 
       if (deleted) {
         outSrcMapping.remove(filePath);
-        deletedPaths.add(filePath);
         for (String sourcePath : filesToDelete.get(filePath)) {
           srcOutMapping.removeOutput(sourcePath, filePath);
         }
@@ -226,6 +254,7 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     if (logger.isEnabled()) {
       logger.logDeletedFiles(deletedPaths);
     }
+    return keptArchives;
   }
 
   @Override
@@ -27,6 +27,8 @@ import com.intellij.util.graph.CachingSemiGraph;
 import com.intellij.util.graph.DFSTBuilder;
 import com.intellij.util.graph.GraphGenerator;
 import com.intellij.util.io.ZipUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -47,8 +49,8 @@ import java.util.*;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * @author nik
@@ -60,11 +62,23 @@ public class JarsBuilder {
   private Map<JarInfo, File> myBuiltJars;
   private final BuildOutputConsumer myOutputConsumer;
   private final ArtifactOutputToSourceMapping myOutSrcMapping;
+  private final boolean myUpdateInPlace;
 
   public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
                      ArtifactOutputToSourceMapping outSrcMapping) {
+    this(jarsToBuild, context, outputConsumer, outSrcMapping, false);
+  }
+
+  /**
+   * @param updateInPlace if <code>true</code> a copy of an existing top-level archive is updated instead of packing it from scratch:
+   *                      entries which content isn't changed are kept as is, changed entries are appended and entries from other
+   *                      archives are copied without recompression. The archive is replaced by the updated copy when it's complete
+   */
+  public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
+                     ArtifactOutputToSourceMapping outSrcMapping, boolean updateInPlace) {
     myOutputConsumer = outputConsumer;
     myOutSrcMapping = outSrcMapping;
+    myUpdateInPlace = updateInPlace;
     DependentJarsEvaluator evaluator = new DependentJarsEvaluator();
     for (JarInfo jarInfo : jarsToBuild) {
       evaluator.addJarWithDependencies(jarInfo);
@@ -135,9 +149,13 @@ public class JarsBuilder {
   }
 
   private void buildJar(final JarInfo jar) throws IOException {
+    final boolean inPlace = myUpdateInPlace && jar.getDestination() instanceof ExplodedDestinationInfo;
     if (jar.getContent().isEmpty()) {
       final String message = "Archive '" + jar.getPresentableDestination() + "' has no files so it won't be created";
       myContext.processMessage(new CompilerMessage(IncArtifactBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, message));
+      if (inPlace) {
+        FileUtil.delete(new File(FileUtil.toSystemDependentName(jar.getDestination().getOutputFilePath())));
+      }
       return;
     }
 
@@ -149,8 +167,11 @@ public class JarsBuilder {
     final String targetJarPath = jar.getDestination().getOutputFilePath();
     List<String> packedFilePaths = new ArrayList<String>();
     Manifest manifest = loadManifest(jar, packedFilePaths);
-    final JarOutputStream jarOutputStream = createJarOutputStream(jarFile, manifest);
+    final JarOutput jarOutput = inPlace
+                                ? new InPlaceJarOutput(new File(FileUtil.toSystemDependentName(targetJarPath)), jarFile, manifest)
+                                : new StreamJarOutput(jarFile, manifest);
 
+    boolean completed = false;
     try {
       final THashSet<String> writtenPaths = new THashSet<String>();
       if (manifest != null) {
@@ -163,7 +184,7 @@ public class JarsBuilder {
           final ArtifactRootDescriptor descriptor = (ArtifactRootDescriptor)pair.getSecond();
           final int rootIndex = descriptor.getRootIndex();
           if (descriptor instanceof FileBasedArtifactRootDescriptor) {
-            addFileToJar(jarOutputStream, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
+            addFileToJar(jarOutput, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, rootIndex);
           }
           else {
@@ -171,14 +192,14 @@ public class JarsBuilder {
             packedFilePaths.add(filePath);
             myOutSrcMapping.appendData(targetJarPath, Collections
               .singletonList(new ArtifactOutputToSourceMapping.SourcePathAndRootIndex(filePath, rootIndex)));
-            extractFileAndAddToJar(jarOutputStream, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
+            jarOutput.extractEntries((JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
           }
         }
         else {
           JarInfo nestedJar = (JarInfo)pair.getSecond();
           File nestedJarFile = myBuiltJars.get(nestedJar);
           if (nestedJarFile != null) {
-            addFileToJar(jarOutputStream, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
+            addFileToJar(jarOutput, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, -1);
           }
           else {
@@ -193,19 +214,11 @@ public class JarsBuilder {
         logger.logCompiledPaths(packedFilePaths, IncArtifactBuilder.BUILDER_NAME, "Packing files:");
       }
       myOutputConsumer.registerOutputFile(targetJarPath, packedFilePaths);
-
+      completed = true;
     }
     finally {
-      jarOutputStream.close();
-    }
-  }
-
-  private static JarOutputStream createJarOutputStream(File jarFile, @Nullable Manifest manifest) throws IOException {
-    final BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(jarFile));
-    if (manifest != null) {
-      return new JarOutputStream(outputStream, manifest);
+      jarOutput.close(completed);
     }
-    return new JarOutputStream(outputStream);
   }
 
   @Nullable
@@ -264,43 +277,18 @@ public class JarsBuilder {
     }
   }
 
-  private static void extractFileAndAddToJar(final JarOutputStream jarOutputStream, final JarBasedArtifactRootDescriptor root,
-                                             final String relativeOutputPath, final Set<String> writtenPaths)
-    throws IOException {
-    final long timestamp = FileSystemUtil.lastModified(root.getRootFile());
-    root.processEntries(new JarBasedArtifactRootDescriptor.EntryProcessor() {
-      @Override
-      public void process(@Nullable InputStream inputStream, @NotNull String relativePath) throws IOException {
-        String pathInJar = addParentDirectories(jarOutputStream, writtenPaths, JpsArtifactPathUtil
-          .appendToPath(relativeOutputPath, relativePath));
-
-        if (inputStream == null) {
-          addDirectoryEntry(jarOutputStream, pathInJar + "/", writtenPaths);
-        }
-        else if (writtenPaths.add(pathInJar)) {
-          ZipEntry entry = new ZipEntry(pathInJar);
-          entry.setTime(timestamp);
-          jarOutputStream.putNextEntry(entry);
-          FileUtil.copy(inputStream, jarOutputStream);
-          jarOutputStream.closeEntry();
-        }
-      }
-    });
-
-  }
-
-  private void addFileToJar(final @NotNull JarOutputStream jarOutputStream, final @NotNull File jarFile, @NotNull File file,
+  private void addFileToJar(final @NotNull JarOutput jarOutput, final @NotNull File jarFile, @NotNull File file,
                             SourceFileFilter filter, @NotNull String relativePath, String targetJarPath,
                             final @NotNull Set<String> writtenPaths, List<String> packedFilePaths, final int rootIndex) throws IOException {
     if (!file.exists() || FileUtil.isAncestor(file, jarFile, false)) {
       return;
     }
 
-    relativePath = addParentDirectories(jarOutputStream, writtenPaths, relativePath);
-    addFileOrDirRecursively(jarOutputStream, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
+    relativePath = addParentDirectories(jarOutput, writtenPaths, relativePath);
+    addFileOrDirRecursively(jarOutput, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
   }
 
-  private void addFileOrDirRecursively(@NotNull ZipOutputStream jarOutputStream,
+  private void addFileOrDirRecursively(@NotNull JarOutput jarOutput,
                                        @NotNull File file,
                                        SourceFileFilter filter,
                                        @NotNull String relativePath,
@@ -316,19 +304,22 @@ public class JarsBuilder {
     if (file.isDirectory()) {
       final String directoryPath = relativePath.length() == 0 ? "" : relativePath + "/";
       if (!directoryPath.isEmpty()) {
-        addDirectoryEntry(jarOutputStream, directoryPath, writtenItemRelativePaths);
+        addDirectoryEntry(jarOutput, directoryPath, writtenItemRelativePaths);
       }
       final File[] children = file.listFiles();
       if (children != null) {
         for (File child : children) {
-          addFileOrDirRecursively(jarOutputStream, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
+          addFileOrDirRecursively(jarOutput, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
                                   packedFilePaths, rootIndex);
         }
       }
       return;
     }
 
-    final boolean added = ZipUtil.addFileToZip(jarOutputStream, file, relativePath, writtenItemRelativePaths, null);
+    final boolean added = writtenItemRelativePaths.add(relativePath);
+    if (added) {
+      jarOutput.addFile(file, relativePath);
+    }
     if (rootIndex != -1) {
       myOutSrcMapping.appendData(targetJarPath, Collections.singletonList(new ArtifactOutputToSourceMapping.SourcePathAndRootIndex(filePath, rootIndex)));
       if (added) {
@@ -338,7 +329,7 @@ public class JarsBuilder {
   }
 
 
-  private static String addParentDirectories(JarOutputStream jarOutputStream, Set<String> writtenPaths, String relativePath) throws IOException {
+  private static String addParentDirectories(JarOutput jarOutput, Set<String> writtenPaths, String relativePath) throws IOException {
     while (StringUtil.startsWithChar(relativePath, '/')) {
       relativePath = relativePath.substring(1);
     }
@@ -346,22 +337,254 @@ public class JarsBuilder {
     while (i != -1) {
       String prefix = relativePath.substring(0, i+1);
       if (prefix.length() > 1) {
-        addDirectoryEntry(jarOutputStream, prefix, writtenPaths);
+        addDirectoryEntry(jarOutput, prefix, writtenPaths);
       }
       i = relativePath.indexOf('/', i + 1);
     }
     return relativePath;
   }
 
-  private static void addDirectoryEntry(final ZipOutputStream output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
+  private static void addDirectoryEntry(final JarOutput output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
     if (!writtenPaths.add(relativePath)) return;
 
-    ZipEntry e = new ZipEntry(relativePath);
-    e.setMethod(ZipEntry.STORED);
-    e.setSize(0);
-    e.setCrc(0);
-    output.putNextEntry(e);
-    output.closeEntry();
+    output.addDirectory(relativePath);
+  }
+
+  private interface JarOutput {
+    void addDirectory(String relativePath) throws IOException;
+
+    void addFile(File file, String relativePath) throws IOException;
+
+    void extractEntries(JarBasedArtifactRootDescriptor root, String relativeOutputPath, Set<String> writtenPaths) throws IOException;
+
+    void close(boolean completed) throws IOException;
+  }
+
+  private static class StreamJarOutput implements JarOutput {
+    private final JarOutputStream myStream;
+
+    private StreamJarOutput(File jarFile, @Nullable Manifest manifest) throws IOException {
+      final BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(jarFile));
+      myStream = manifest != null ? new JarOutputStream(outputStream, manifest) : new JarOutputStream(outputStream);
+    }
+
+    @Override
+    public void addDirectory(String relativePath) throws IOException {
+      ZipEntry e = new ZipEntry(relativePath);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(0);
+      myStream.putNextEntry(e);
+      myStream.closeEntry();
+    }
+
+    @Override
+    public void addFile(File file, String relativePath) throws IOException {
+      ZipUtil.addFileToZip(myStream, file, relativePath, null, null);
+    }
+
+    @Override
+    public void extractEntries(JarBasedArtifactRootDescriptor root, final String relativeOutputPath, final Set<String> writtenPaths)
+      throws IOException {
+      final long timestamp = FileSystemUtil.lastModified(root.getRootFile());
+      root.processEntries(new JarBasedArtifactRootDescriptor.EntryProcessor() {
+        @Override
+        public void process(@Nullable InputStream inputStream, @NotNull String relativePath) throws IOException {
+          String pathInJar = addParentDirectories(StreamJarOutput.this, writtenPaths, JpsArtifactPathUtil
+            .appendToPath(relativeOutputPath, relativePath));
+
+          if (inputStream == null) {
+            addDirectoryEntry(StreamJarOutput.this, pathInJar + "/", writtenPaths);
+          }
+          else if (writtenPaths.add(pathInJar)) {
+            ZipEntry entry = new ZipEntry(pathInJar);
+            entry.setTime(timestamp);
+            myStream.putNextEntry(entry);
+            FileUtil.copy(inputStream, myStream);
+            myStream.closeEntry();
+          }
+        }
+      });
+    }
+
+    @Override
+    public void close(boolean completed) throws IOException {
+      myStream.close();
+    }
+  }
+
+  /**
+   * Updates a copy of an existing archive: entries are rewritten only if their content is changed, entries which weren't written are
+   * erased on close. Replaced entries are appended to the archive, so it's compacted when more than half of it is occupied by garbage.
+   * JBZipFile overwrites the central directory of the archive it updates, so the archive itself is never opened for writing: it's
+   * replaced by the copy only after the copy is complete, and an interrupted build leaves it intact.
+   */
+  private static class InPlaceJarOutput implements JarOutput {
+    private final File myJarFile;
+    private JBZipFile myZipFile;
+    private final Set<String> myWrittenEntries = new THashSet<String>();
+
+    /**
+     * @param outputFile the archive to update
+     * @param jarFile    temporary file to write the updated archive to
+     */
+    private InPlaceJarOutput(File outputFile, File jarFile, @Nullable Manifest manifest) throws IOException {
+      myJarFile = jarFile;
+      if (outputFile.isFile()) {
+        FileUtil.copy(outputFile, jarFile);
+      }
+      else {
+        FileUtil.delete(jarFile);
+      }
+      myZipFile = openArchive(jarFile);
+
+      byte[] manifestContent = null;
+      if (manifest != null) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        manifest.write(output);
+        manifestContent = output.toByteArray();
+      }
+      // readers like JarInputStream expect the manifest at the beginning of an archive, so it cannot be appended
+      final List<JBZipEntry> entries = myZipFile.getEntries();
+      final JBZipEntry oldManifest = myZipFile.getEntry(JarFile.MANIFEST_NAME);
+      final boolean manifestUpToDate = manifestContent == null ? oldManifest == null :
+                                       oldManifest != null && oldManifest == entries.get(0) && isUpToDate(oldManifest, manifestContent);
+      if (!manifestUpToDate) {
+        myZipFile.close();
+        FileUtil.delete(jarFile);
+        myZipFile = openArchive(jarFile);
+      }
+      if (manifestContent != null) {
+        addEntry(JarFile.MANIFEST_NAME, manifestContent, System.currentTimeMillis());
+      }
+    }
+
+    private static JBZipFile openArchive(File jarFile) throws IOException {
+      try {
+        return new JBZipFile(jarFile);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot update " + jarFile.getPath() + ", it will be recreated: " + e.getMessage());
+        FileUtil.delete(jarFile);
+        return new JBZipFile(jarFile);
+      }
+    }
+
+    @Override
+    public void addDirectory(String relativePath) throws IOException {
+      myWrittenEntries.add(relativePath);
+      if (myZipFile.getEntry(relativePath) == null) {
+        final JBZipEntry entry = myZipFile.getOrCreateEntry(relativePath);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setData(ArrayUtil.EMPTY_BYTE_ARRAY, System.currentTimeMillis());
+      }
+    }
+
+    @Override
+    public void addFile(File file, String relativePath) throws IOException {
+      myWrittenEntries.add(relativePath);
+      final JBZipEntry oldEntry = myZipFile.getEntry(relativePath);
+      if (oldEntry != null && oldEntry.getSize() == file.length() && oldEntry.getCrc() == computeCrc(file)) {
+        return;
+      }
+      addEntry(relativePath, FileUtil.loadFileBytes(file), file.lastModified());
+    }
+
+    private void addEntry(String relativePath, byte[] content, long timestamp) throws IOException {
+      myWrittenEntries.add(relativePath);
+      final JBZipEntry oldEntry = myZipFile.getEntry(relativePath);
+      if (oldEntry != null && isUpToDate(oldEntry, content)) {
+        return;
+      }
+      final JBZipEntry entry = myZipFile.getOrCreateEntry(relativePath);
+      entry.setMethod(content.length == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED);
+      entry.setData(content, timestamp);
+    }
+
+    @Override
+    public void extractEntries(JarBasedArtifactRootDescriptor root, final String relativeOutputPath, final Set<String> writtenPaths)
+      throws IOException {
+      root.processRawEntries(new JarBasedArtifactRootDescriptor.RawEntryProcessor() {
+        @Override
+        public void process(@Nullable JBZipEntry entry, @NotNull String relativePath) throws IOException {
+          String pathInJar = addParentDirectories(InPlaceJarOutput.this, writtenPaths, JpsArtifactPathUtil
+            .appendToPath(relativeOutputPath, relativePath));
+
+          if (entry == null) {
+            addDirectoryEntry(InPlaceJarOutput.this, pathInJar + "/", writtenPaths);
+          }
+          else if (writtenPaths.add(pathInJar)) {
+            myWrittenEntries.add(pathInJar);
+            final JBZipEntry oldEntry = myZipFile.getEntry(pathInJar);
+            if (oldEntry == null || oldEntry.getSize() != entry.getSize() || oldEntry.getCrc() != entry.getCrc()) {
+              myZipFile.getOrCreateEntry(pathInJar).setRawDataFrom(entry);
+            }
+          }
+        }
+      });
+    }
+
+    @Override
+    public void close(boolean completed) throws IOException {
+      if (!completed) {
+        myZipFile.close();
+        return;
+      }
+
+      for (JBZipEntry entry : new ArrayList<JBZipEntry>(myZipFile.getEntries())) {
+        if (!myWrittenEntries.contains(entry.getName())) {
+          entry.erase();
+        }
+      }
+      final long garbageSize = myZipFile.getGarbageSize();
+      myZipFile.close();
+      if (garbageSize > myJarFile.length() / 2) {
+        compact();
+      }
+    }
+
+    private void compact() throws IOException {
+      final File compacted = FileUtil.createTempFile("artifactCompiler", "tmp");
+      final JBZipFile source = new JBZipFile(myJarFile, "UTF-8", true);
+      try {
+        final JBZipFile target = new JBZipFile(compacted);
+        try {
+          for (JBZipEntry entry : source.getEntries()) {
+            target.getOrCreateEntry(entry.getName()).setRawDataFrom(entry);
+          }
+        }
+        finally {
+          target.close();
+        }
+      }
+      finally {
+        source.close();
+      }
+      FileUtil.delete(myJarFile);
+      FileUtil.rename(compacted, myJarFile);
+    }
+
+    private static boolean isUpToDate(JBZipEntry entry, byte[] content) {
+      final CRC32 crc = new CRC32();
+      crc.update(content);
+      return entry.getSize() == content.length && entry.getCrc() == crc.getValue();
+    }
+
+    private static long computeCrc(File file) throws IOException {
+      final CRC32 crc = new CRC32();
+      final InputStream input = new FileInputStream(file);
+      try {
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+          crc.update(buffer, 0, read);
+        }
+      }
+      finally {
+        input.close();
+      }
+      return crc.getValue();
+    }
   }
 
   private class JarsGraph implements GraphGenerator.SemiGraph<JarInfo> {
@@ -2,6 +2,8 @@ package org.jetbrains.jps.incremental.artifacts.instructions;
 
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
@@ -35,12 +37,7 @@ public class JarBasedArtifactRootDescriptor extends ArtifactRootDescriptor {
   }
 
   public void processEntries(EntryProcessor processor) throws IOException {
-    String prefix = StringUtil.trimStart(myPathInJar, "/");
-    if (!StringUtil.endsWithChar(prefix, '/')) prefix += "/";
-    if (prefix.equals("/")) {
-      prefix = "";
-    }
-
+    String prefix = getEntriesPrefix();
     ZipFile zipFile = new ZipFile(myRoot);
     try {
       final Enumeration<? extends ZipEntry> entries = zipFile.entries();
@@ -59,6 +56,34 @@ public class JarBasedArtifactRootDescriptor extends ArtifactRootDescriptor {
     }
   }
 
+  /**
+   * Provides entries of the jar without inflating their content, so it may be copied to another archive as is.
+   */
+  public void processRawEntries(RawEntryProcessor processor) throws IOException {
+    String prefix = getEntriesPrefix();
+    JBZipFile zipFile = new JBZipFile(myRoot, "UTF-8", true);
+    try {
+      for (JBZipEntry entry : zipFile.getEntries()) {
+        final String name = entry.getName();
+        if (name.startsWith(prefix)) {
+          processor.process(entry.isDirectory() ? null : entry, name.substring(prefix.length()));
+        }
+      }
+    }
+    finally {
+      zipFile.close();
+    }
+  }
+
+  private String getEntriesPrefix() {
+    String prefix = StringUtil.trimStart(myPathInJar, "/");
+    if (!StringUtil.endsWithChar(prefix, '/')) prefix += "/";
+    if (prefix.equals("/")) {
+      prefix = "";
+    }
+    return prefix;
+  }
+
   @Override
   protected String getFullPath() {
     return myRoot.getPath() + JarPathUtil.JAR_SEPARATOR + myPathInJar;
@@ -105,4 +130,8 @@ public class JarBasedArtifactRootDescriptor extends ArtifactRootDescriptor {
   public interface EntryProcessor {
     void process(@Nullable InputStream inputStream, @NotNull String relativePath) throws IOException;
   }
+
+  public interface RawEntryProcessor {
+    void process(@Nullable JBZipEntry entry, @NotNull String relativePath) throws IOException;
+  }
 }
@@ -4,6 +4,8 @@ import org.jetbrains.jps.incremental.CompileContext;
 import org.jetbrains.jps.javac.OutputFileObject;
 
 /**
+* Processes classes produced by javac. Different classes are processed concurrently, so implementations must be thread-safe.
+*
 * @author Eugene Zhuravlev
 *         Date: 1/21/12
 */
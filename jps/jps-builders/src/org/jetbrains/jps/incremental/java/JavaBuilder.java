@@ -16,7 +16,7 @@ import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.lw.CompiledClassPropertiesProvider;
 import com.intellij.uiDesigner.lw.LwRootContainer;
 import com.intellij.util.SystemProperties;
-import com.intellij.util.concurrency.SequentialTaskExecutor;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -144,7 +144,14 @@ public class JavaBuilder extends ModuleLevelBuilder {
             final Callbacks.Backend callback = DELTA_MAPPINGS_CALLBACK_KEY.get(context);
             if (callback != null) {
               final ClassReader reader = new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
-              callback.associate(outputPath, sourcePath, reader);
+              final BuildTimeline.Span span =
+                BuildTimeline.startSpan(context, BuildTimeline.STEP_CATEGORY, "Analyze class file", outputPath);
+              try {
+                callback.associate(outputPath, sourcePath, reader);
+              }
+              finally {
+                BuildTimeline.finishSpan(span);
+              }
             }
           }
         }
@@ -182,7 +189,8 @@ public class JavaBuilder extends ModuleLevelBuilder {
 
   public JavaBuilder(Executor tasksExecutor) {
     super(BuilderCategory.TRANSLATOR);
-    myTaskRunner = new SequentialTaskExecutor(tasksExecutor);
+    // class post processors are thread-safe, so produced classes are analyzed in parallel
+    myTaskRunner = new BoundedTaskExecutor(tasksExecutor, Math.max(1, Runtime.getRuntime().availableProcessors()));
     //add here class processors in the sequence they should be executed
   }
 
@@ -384,7 +392,13 @@ public class JavaBuilder extends ModuleLevelBuilder {
               LOG.debug("  " + file.getAbsolutePath());
             }
           }
-          compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          final BuildTimeline.Span span = BuildTimeline.startSpan(context, BuildTimeline.STEP_CATEGORY, "Compile java", chunkName);
+          try {
+            compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          }
+          finally {
+            BuildTimeline.finishSpan(span);
+          }
         }
 
         context.checkCanceled();
@@ -395,11 +409,13 @@ public class JavaBuilder extends ModuleLevelBuilder {
 
           try {
             if (OPTION_ENABLE_FORMS_INSTRUMENTATION && !forms.isEmpty()) {
+              final BuildTimeline.Span span = BuildTimeline.startSpan(context, BuildTimeline.STEP_CATEGORY, "Instrument forms", chunkName);
               try {
                 context.processMessage(new ProgressMessage("Instrumenting forms [" + chunkName + "]"));
                 instrumentForms(context, chunk, chunkSourcePath, finder, forms, outputSink);
               }
               finally {
+                BuildTimeline.finishSpan(span);
                 context.processMessage(new ProgressMessage("Finished instrumenting forms [" + chunkName + "]"));
               }
             }
@@ -407,11 +423,14 @@ public class JavaBuilder extends ModuleLevelBuilder {
             context.checkCanceled();
 
             if (addNotNullAssertions) {
+              final BuildTimeline.Span span =
+                BuildTimeline.startSpan(context, BuildTimeline.STEP_CATEGORY, "Add NotNull assertions", chunkName);
               try {
                 context.processMessage(new ProgressMessage("Adding NotNull assertions [" + chunkName + "]"));
                 instrumentNotNull(context, outputSink, finder);
               }
               finally {
+                BuildTimeline.finishSpan(span);
                 context.processMessage(new ProgressMessage("Finished adding NotNull assertions [" + chunkName + "]"));
               }
             }
@@ -442,8 +461,14 @@ public class JavaBuilder extends ModuleLevelBuilder {
       final Set<File> successfullyCompiled = outputSink.getSuccessfullyCompiled();
       DELTA_MAPPINGS_CALLBACK_KEY.set(context, null);
 
-      if (JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, chunk, files, successfullyCompiled)) {
-        exitCode = ExitCode.ADDITIONAL_PASS_REQUIRED;
+      final BuildTimeline.Span span = BuildTimeline.startSpan(context, BuildTimeline.STEP_CATEGORY, "Update dependencies", chunk.getName());
+      try {
+        if (JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, chunk, files, successfullyCompiled)) {
+          exitCode = ExitCode.ADDITIONAL_PASS_REQUIRED;
+        }
+      }
+      finally {
+        BuildTimeline.finishSpan(span);
       }
     }
 
@@ -1129,6 +1154,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     }
 
     public void registerImports(final String className, final Collection<String> imports, final Collection<String> staticImports) {
+      BuildOutputCache.recordImports(myContext, className, imports, staticImports);
       submitAsyncTask(myContext, new Runnable() {
         public void run() {
           final Callbacks.Backend callback = DELTA_MAPPINGS_CALLBACK_KEY.get(myContext);
@@ -0,0 +1,197 @@
+package org.jetbrains.jps.incremental.resources;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ProjectBuildException;
+import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.incremental.storage.TimestampStorage;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Copies resource files to the output on the shared thread pool. A target which already has the content of its source is left
+ * untouched; if hard links are enabled, the target is linked to the source where the file system allows it.
+ */
+class ResourceCopier {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.resources.ResourceCopier");
+  private static final int BATCH_SIZE = 64;
+
+  // the build process may still run on JDK 6, so java.nio.file API is looked up reflectively and links aren't created without it
+  private static final Method ourToPath;
+  private static final Method ourCreateLink;
+  static {
+    Method toPath = null;
+    Method createLink = null;
+    try {
+      final Class<?> pathClass = Class.forName("java.nio.file.Path");
+      toPath = File.class.getMethod("toPath");
+      createLink = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+    }
+    catch (Exception ignored) {
+      // running on JDK 6, hard links are not supported
+    }
+    ourToPath = toPath;
+    ourCreateLink = createLink;
+  }
+
+  private final boolean myUseHardLinks;
+
+  ResourceCopier(boolean useHardLinks) {
+    myUseHardLinks = useHardLinks && ourCreateLink != null;
+  }
+
+  static class Task {
+    final File source;
+    final String outputPath;
+    @Nullable IOException error;
+
+    Task(File source, String outputPath) {
+      this.source = source;
+      this.outputPath = outputPath;
+    }
+  }
+
+  /**
+   * Performs all the tasks and stores errors in them, returns after all the files are processed or throws if the build is canceled.
+   */
+  void copy(final CompileContext context, final List<Task> tasks) throws ProjectBuildException {
+    final int taskCount = Math.min(Runtime.getRuntime().availableProcessors(), (tasks.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+    if (taskCount <= 1) {
+      for (Task task : tasks) {
+        context.checkCanceled();
+        perform(context, task);
+      }
+      return;
+    }
+
+    final List<Future<?>> futures = new ArrayList<Future<?>>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      final int first = i;
+      futures.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = first; j < tasks.size() && !context.getCancelStatus().isCanceled(); j += taskCount) {
+            perform(context, tasks.get(j));
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (InterruptedException e) {
+        throw new ProjectBuildException(e);
+      }
+      catch (ExecutionException e) {
+        throw new ProjectBuildException(e.getCause());
+      }
+    }
+    context.checkCanceled();
+  }
+
+  private void perform(CompileContext context, Task task) {
+    try {
+      final File target = new File(task.outputPath);
+      if (hasSameContent(task.source, target)) {
+        return;
+      }
+      context.processMessage(new ProgressMessage("Copying " + task.source.getPath()));
+      if (!myUseHardLinks || !createHardLink(task.source, target)) {
+        copyContent(task.source, target);
+      }
+    }
+    catch (IOException e) {
+      task.error = e;
+    }
+  }
+
+  private static boolean hasSameContent(File source, File target) {
+    if (!target.isFile() || target.length() != source.length()) {
+      return false;
+    }
+    final long digest = TimestampStorage.computeDigest(target);
+    return digest != TimestampStorage.NO_DIGEST && digest == TimestampStorage.computeDigest(source);
+  }
+
+  private static boolean createHardLink(File source, File target) {
+    try {
+      FileUtil.delete(target);
+      FileUtil.createParentDirs(target);
+      ourCreateLink.invoke(null, ourToPath.invoke(target), ourToPath.invoke(source));
+      return true;
+    }
+    catch (Exception e) {
+      // e.g. the output is located on another volume or the file system doesn't support links
+      LOG.debug("Cannot link " + target + " to " + source, e);
+      return false;
+    }
+  }
+
+  private static void copyContent(File source, File target) throws IOException {
+    // the target may be a hard link to another resource file created by an earlier build, writing to it would change that file
+    FileUtil.delete(target);
+    final FileOutputStream output;
+    try {
+      output = openOutputStream(target);
+    }
+    catch (IOException e) {
+      // let FileUtil apply its workarounds, e.g. for files protected by UAC
+      FileUtil.copyContent(source, target);
+      return;
+    }
+
+    try {
+      final FileInputStream input = new FileInputStream(source);
+      try {
+        final FileChannel from = input.getChannel();
+        final FileChannel to = output.getChannel();
+        final long size = from.size();
+        long position = 0;
+        while (position < size) {
+          final long transferred = from.transferTo(position, size - position, to);
+          if (transferred <= 0) {
+            break; // the file has been truncated meanwhile
+          }
+          position += transferred;
+        }
+      }
+      finally {
+        input.close();
+      }
+    }
+    finally {
+      output.close();
+    }
+
+    if (SystemInfo.isUnix && source.canExecute()) {
+      final int oldPermissions = FileSystemUtil.getPermissions(source);
+      final int newPermissions = FileSystemUtil.getPermissions(target);
+      if (oldPermissions != -1 && newPermissions != -1) {
+        FileSystemUtil.setPermissions(target, oldPermissions | newPermissions);
+      }
+    }
+  }
+
+  private static FileOutputStream openOutputStream(File file) throws IOException {
+    try {
+      return new FileOutputStream(file);
+    }
+    catch (FileNotFoundException e) {
+      // the directory may be created concurrently by another task, so the result of mkdirs is not checked
+      FileUtil.createParentDirs(file);
+      return new FileOutputStream(file);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.DirtyFilesHolder;
 import org.jetbrains.jps.builders.FileProcessor;
@@ -13,7 +14,6 @@ import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
 import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
-import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.model.module.JpsModule;
 
 import java.io.File;
@@ -69,28 +69,18 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
     assert patterns != null;
 
     try {
+      final List<ResourceCopier.Task> tasks = new ArrayList<ResourceCopier.Task>();
       holder.processDirtyFiles(new FileProcessor<ResourceRootDescriptor, ResourcesTarget>() {
         public boolean apply(ResourcesTarget target, final File file, final ResourceRootDescriptor sourceRoot) throws IOException {
           if (patterns.isResourceFile(file, sourceRoot.getRootFile())) {
-            try {
-              context.processMessage(new ProgressMessage("Copying " + file.getPath()));
-              copyResource(context, sourceRoot, file, outputConsumer);
+            final String outputPath = getOutputPath(sourceRoot, file);
+            if (outputPath != null) {
+              tasks.add(new ResourceCopier.Task(file, outputPath));
             }
-            catch (IOException e) {
-              LOG.info(e);
-              context.processMessage(
-                new CompilerMessage(
-                  "Resource Compiler", BuildMessage.Kind.ERROR, e.getMessage(), FileUtil.toSystemIndependentName(file.getPath())
-                )
-              );
-              return false;
-            }
-            finally {
-              if (cleanedSources != null) {
-                final Set<File> files = cleanedSources.get(target);
-                if (files != null) {
-                  files.remove(file);
-                }
+            if (cleanedSources != null) {
+              final Set<File> files = cleanedSources.get(target);
+              if (files != null) {
+                files.remove(file);
               }
             }
           }
@@ -98,6 +88,27 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
         }
       });
 
+      final boolean useHardLinks = Boolean.parseBoolean(System.getProperty(GlobalOptions.RESOURCES_HARD_LINKS_OPTION, "false"));
+      new ResourceCopier(useHardLinks).copy(context, tasks);
+      for (ResourceCopier.Task task : tasks) {
+        final String sourcePath = task.source.getPath();
+        if (task.error != null) {
+          LOG.info(task.error);
+          context.processMessage(
+            new CompilerMessage(
+              "Resource Compiler", BuildMessage.Kind.ERROR, task.error.getMessage(), FileUtil.toSystemIndependentName(sourcePath)
+            )
+          );
+          continue;
+        }
+        try {
+          outputConsumer.registerOutputFile(task.outputPath, Collections.singletonList(sourcePath));
+        }
+        catch (Exception e) {
+          context.processMessage(new CompilerMessage(BUILDER_NAME, e));
+        }
+      }
+
       if (cleanedSources != null) {
         // cleanup mapping for the files that were copied before but not copied now
         for (Map.Entry<ResourcesTarget, Set<File>> entry : cleanedSources.entrySet()) {
@@ -126,10 +137,11 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
     return true;
   }
 
-  private static void copyResource(CompileContext context, ResourceRootDescriptor rd, File file, BuildOutputConsumer outputConsumer) throws IOException {
+  @Nullable
+  private static String getOutputPath(ResourceRootDescriptor rd, File file) {
     final File outputRoot = rd.getTarget().getOutputDir();
     if (outputRoot == null) {
-      return;
+      return null;
     }
     final String sourceRootPath = FileUtil.toSystemIndependentName(rd.getRootFile().getAbsolutePath());
     final String relativePath = FileUtil.getRelativePath(sourceRootPath, FileUtil.toSystemIndependentName(file.getPath()), '/');
@@ -141,15 +153,7 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
       targetPath.append('/').append(prefix.replace('.', '/'));
     }
     targetPath.append('/').append(relativePath);
-
-    final String outputPath = targetPath.toString();
-    FileUtil.copyContent(file, new File(outputPath));
-    try {
-      outputConsumer.registerOutputFile(outputPath, Collections.singletonList(file.getPath()));
-    }
-    catch (Exception e) {
-      context.processMessage(new CompilerMessage(BUILDER_NAME, e));
-    }
+    return targetPath.toString();
   }
 
   @NotNull
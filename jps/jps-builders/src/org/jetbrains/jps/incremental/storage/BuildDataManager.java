@@ -3,6 +3,7 @@ package org.jetbrains.jps.incremental.storage;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildTarget;
 import org.jetbrains.jps.builders.impl.BuildTargetChunk;
 import org.jetbrains.jps.builders.java.dependencyView.Mappings;
@@ -39,7 +40,8 @@ public class BuildDataManager implements StorageOwner {
     myDataPaths = dataPaths;
     myTargetsState = targetsState;
     mySrcToFormMap = new OneToManyPathsMapping(new File(getSourceToFormsRoot(), "data"));
-    myMappings = new Mappings(getMappingsRoot(), useMemoryTempCaches);
+    myMappings = new Mappings(getMappingsRoot(), useMemoryTempCaches,
+                              Boolean.parseBoolean(System.getProperty(GlobalOptions.OFF_HEAP_MAPPINGS_OPTION, "false")));
     myArtifactsBuildData = new ArtifactsBuildData();
     myVersionFile = new File(myDataPaths.getDataStorageRoot(), "version.dat");
   }
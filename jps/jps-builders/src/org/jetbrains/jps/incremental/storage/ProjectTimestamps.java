@@ -2,6 +2,7 @@ package org.jetbrains.jps.incremental.storage;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.api.GlobalOptions;
 
 import java.io.File;
 import java.io.IOException;
@@ -18,7 +19,9 @@ public class ProjectTimestamps {
 
   public ProjectTimestamps(final File dataStorageRoot, BuildTargetsState targetsState) throws IOException {
     myTimestampsRoot = new File(dataStorageRoot, TIMESTAMP_STORAGE);
-    myTimestamps = new TimestampStorage(new File(myTimestampsRoot, "data"), targetsState);
+    final boolean digestBased = Boolean.parseBoolean(System.getProperty(GlobalOptions.DIGEST_STAMPS_OPTION, "false"));
+    // timestamps with digests have a different format, switching the option makes all files dirty once
+    myTimestamps = new TimestampStorage(new File(myTimestampsRoot, digestBased ? "digests" : "data"), targetsState, digestBased);
   }
 
   public TimestampStorage getStorage() {
@@ -1,25 +1,38 @@
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildTarget;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  public static final long NO_DIGEST = 0L;
   private final BuildTargetsState myTargetsState;
+  private final boolean myDigestBased;
 
   public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
-    super(storePath, new FileKeyDescriptor(), new StateExternalizer());
+    this(storePath, targetsState, false);
+  }
+
+  /**
+   * @param digestBased if true, content digests of files are saved along with their timestamps, and a file whose timestamp has changed
+   *                    is not considered changed while its content has the saved digest (e.g. after switching VCS branches back and forth).
+   *                    Digests change the format of the storage, so such storages should be kept in separate files.
+   */
+  public TimestampStorage(File storePath, BuildTargetsState targetsState, boolean digestBased) throws IOException {
+    super(storePath, new FileKeyDescriptor(), new StateExternalizer(digestBased));
     myTargetsState = targetsState;
+    myDigestBased = digestBased;
   }
 
   @Override
@@ -34,27 +47,100 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
+    final TimestampPerTarget stamp = findStamp(getState(file), myTargetsState.getBuildTargetId(target));
+    return stamp != null ? stamp.timestamp : -1L;
+  }
+
+  @Override
+  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
+    int targetId = myTargetsState.getBuildTargetId(buildTarget);
+    long digest = NO_DIGEST;
+    if (myDigestBased) {
+      digest = computeDigest(file);
+      if (FileSystemUtil.lastModified(file) != timestamp) {
+        digest = NO_DIGEST; // the file is being modified, its content may not correspond to the timestamp
+      }
+    }
+    update(file, updateTimestamp(getState(file), targetId, timestamp, digest));
+  }
+
+  @Override
+  public boolean isDigestBased() {
+    return myDigestBased;
+  }
+
+  @Override
+  public boolean isChanged(File file, BuildTarget<?> target, long currentStamp, long digest) throws IOException {
     final TimestampPerTarget[] state = getState(file);
+    final int targetId = myTargetsState.getBuildTargetId(target);
+    final TimestampPerTarget stamp = findStamp(state, targetId);
+    if (stamp == null) {
+      return true;
+    }
+    if (stamp.timestamp == currentStamp) {
+      return false;
+    }
+    if (!myDigestBased || stamp.digest == NO_DIGEST) {
+      return true;
+    }
+    if (digest == NO_DIGEST) {
+      digest = computeDigest(file);
+    }
+    if (digest != stamp.digest) {
+      return true;
+    }
+    // the file was touched but its content is the same, remember the new timestamp to avoid computing digest next time
+    update(file, updateTimestamp(state, targetId, currentStamp, digest));
+    return false;
+  }
+
+  /**
+   * @return 64-bit digest of the file content or {@link #NO_DIGEST} if the file cannot be read
+   */
+  public static long computeDigest(File file) {
+    try {
+      final MessageDigest md5 = MessageDigest.getInstance("MD5");
+      final byte[] buffer = new byte[8192];
+      final InputStream input = new FileInputStream(file);
+      try {
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+          md5.update(buffer, 0, read);
+        }
+      }
+      finally {
+        input.close();
+      }
+      final byte[] bytes = md5.digest();
+      long digest = 0;
+      for (int i = 0; i < 8; i++) {
+        digest = (digest << 8) | (bytes[i] & 0xFF);
+      }
+      return digest == NO_DIGEST ? 1 : digest;
+    }
+    catch (IOException e) {
+      return NO_DIGEST;
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Nullable
+  private static TimestampPerTarget findStamp(@Nullable TimestampPerTarget[] state, int targetId) {
     if (state != null) {
-      int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
-          return timestampPerTarget.timestamp;
+          return timestampPerTarget;
         }
       }
     }
-    return -1L;
-  }
-
-  @Override
-  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
-    int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+    return null;
   }
 
   @NotNull
-  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp) {
-    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp);
+  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp, long digest) {
+    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp, digest);
     if (oldState == null) {
       return new TimestampPerTarget[]{newItem};
     }
@@ -90,19 +176,30 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   public static class TimestampPerTarget {
     public final int targetId;
     public final long timestamp;
+    public final long digest;
 
-    public TimestampPerTarget(int targetId, long timestamp) {
+    public TimestampPerTarget(int targetId, long timestamp, long digest) {
       this.targetId = targetId;
       this.timestamp = timestamp;
+      this.digest = digest;
     }
   }
 
   private static class StateExternalizer implements DataExternalizer<TimestampPerTarget[]> {
+    private final boolean myWithDigests;
+
+    private StateExternalizer(boolean withDigests) {
+      myWithDigests = withDigests;
+    }
+
     public void save(DataOutput out, TimestampPerTarget[] value) throws IOException {
       out.writeInt(value.length);
       for (TimestampPerTarget target : value) {
         out.writeInt(target.targetId);
         out.writeLong(target.timestamp);
+        if (myWithDigests) {
+          out.writeLong(target.digest);
+        }
       }
     }
 
@@ -112,7 +209,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (int i = 0; i < size; i++) {
         int id = in.readInt();
         long timestamp = in.readLong();
-        targets[i] = new TimestampPerTarget(id, timestamp);
+        long digest = myWithDigests ? in.readLong() : NO_DIGEST;
+        targets[i] = new TimestampPerTarget(id, timestamp, digest);
       }
       return targets;
     }
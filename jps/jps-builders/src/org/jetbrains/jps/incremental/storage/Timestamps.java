@@ -19,4 +19,13 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  boolean isDigestBased();
+
+  /**
+   * @param currentStamp current timestamp of the file
+   * @param digest content digest of the file computed in advance or {@link TimestampStorage#NO_DIGEST} to compute it on demand
+   * @return false if the file has the saved timestamp or, for digest based storage, the content with the saved digest
+   */
+  boolean isChanged(File file, BuildTarget<?> target, long currentStamp, long digest) throws IOException;
 }
@@ -0,0 +1,127 @@
+package org.jetbrains.jps.javac;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Set of directories containing files in a classpath archive. Indices are shared by all file managers created in the process and
+ * are rebuilt when the size or the timestamp of the archive changes, so in the javac server and in the build process they are kept
+ * between compile rounds and builds. Only indices of {@link #MAX_CACHED_ARCHIVES} recently used archives are kept, so the cache doesn't
+ * grow in a long-living process which builds different projects. File managers use indices to avoid opening archives which don't
+ * contain the package being listed.
+ *
+ * Note that javac may read the content of some archives from the symbol file (ct.sym), which lists a subset of the archive entries,
+ * so the index may only be used to tell that a package is definitely absent.
+ */
+class ArchivePackagesIndex {
+  static final int MAX_CACHED_ARCHIVES = 1000;
+  private static final Map<File, ArchivePackagesIndex> ourIndices = new LinkedHashMap<File, ArchivePackagesIndex>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, ArchivePackagesIndex> eldest) {
+      return size() > MAX_CACHED_ARCHIVES;
+    }
+  };
+
+  private final long myLength;
+  private final long myTimestamp;
+  private final Set<String> myDirectories;
+
+  private ArchivePackagesIndex(long length, long timestamp, Set<String> directories) {
+    myLength = length;
+    myTimestamp = timestamp;
+    myDirectories = directories;
+  }
+
+  /**
+   * @return index of the archive or null if the archive cannot be read
+   */
+  static ArchivePackagesIndex getIndex(File archive) {
+    final long length = archive.length();
+    final long timestamp = archive.lastModified();
+    synchronized (ourIndices) {
+      final ArchivePackagesIndex index = ourIndices.get(archive);
+      if (index != null && index.myLength == length && index.myTimestamp == timestamp) {
+        return index;
+      }
+    }
+
+    ArchivePackagesIndex index;
+    try {
+      index = new ArchivePackagesIndex(length, timestamp, readDirectories(archive));
+    }
+    catch (IOException e) {
+      index = null;
+    }
+    synchronized (ourIndices) {
+      if (index != null) {
+        ourIndices.put(archive, index);
+      }
+      else {
+        ourIndices.remove(archive);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @param directory '/'-separated path of the package directory, empty for the default package
+   */
+  boolean containsPackage(String directory, boolean recurse) {
+    directory = trimSlashes(directory);
+    if (myDirectories.contains(directory)) {
+      return true;
+    }
+    if (recurse) {
+      final String prefix = directory.length() == 0 ? "" : directory + "/";
+      for (String dir : myDirectories) {
+        if (dir.startsWith(prefix)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param path '/'-separated path of a file in the archive
+   */
+  boolean mayContainFile(String path) {
+    final int slash = path.lastIndexOf('/');
+    return myDirectories.contains(slash < 0 ? "" : trimSlashes(path.substring(0, slash)));
+  }
+
+  private static Set<String> readDirectories(File archive) throws IOException {
+    final Set<String> directories = new HashSet<String>();
+    final ZipFile zip = new ZipFile(archive);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (!entry.isDirectory()) {
+          final String name = entry.getName();
+          final int slash = name.lastIndexOf('/');
+          directories.add(slash < 0 ? "" : trimSlashes(name.substring(0, slash)));
+        }
+      }
+    }
+    finally {
+      zip.close();
+    }
+    return directories;
+  }
+
+  private static String trimSlashes(String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') start++;
+    while (end > start && path.charAt(end - 1) == '/') end--;
+    return path.substring(start, end);
+  }
+}
@@ -30,6 +30,7 @@ class OptimizedFileManager extends DefaultFileManager {
   private final Map<File, Boolean> myIsFile = new HashMap<File, Boolean>();
   private final Map<InputFileObject, SoftReference<CharBuffer>> myContentCache = new HashMap<InputFileObject, SoftReference<CharBuffer>>();
   private final Map<File, File[]> myDirectoryCache = new HashMap<File, File[]>();
+  private final Map<File, ArchivePackagesIndex> myArchiveIndices = new HashMap<File, ArchivePackagesIndex>();
   public static final File[] NULL_FILE_ARRAY = new File[0];
 
   public OptimizedFileManager() throws Throwable {
@@ -95,6 +96,9 @@ class OptimizedFileManager extends DefaultFileManager {
         isFile = isFile(root);
       }
       if (isFile) {
+        if (archive == null && !mayContainPackage(root, relativePath.replace(File.separatorChar, '/'), recurse)) {
+          continue;
+        }
         collectFromArchive(root, archive, relativePath, kinds, recurse, results);
       }
       else {
@@ -111,6 +115,20 @@ class OptimizedFileManager extends DefaultFileManager {
     return results.toList();
   }
 
+  private boolean mayContainPackage(File archive, String directory, boolean recurse) {
+    final ArchivePackagesIndex index = getArchiveIndex(archive);
+    return index == null || index.containsPackage(directory, recurse);
+  }
+
+  private ArchivePackagesIndex getArchiveIndex(File archive) {
+    if (myArchiveIndices.containsKey(archive)) {
+      return myArchiveIndices.get(archive);
+    }
+    final ArchivePackagesIndex index = ArchivePackagesIndex.getIndex(archive);
+    myArchiveIndices.put(archive, index);
+    return index;
+  }
+
   private boolean isFile(File root) {
     Boolean cachedIsFile = myIsFile.get(root);
     if (cachedIsFile == null) {
@@ -234,6 +252,10 @@ class OptimizedFileManager extends DefaultFileManager {
       }
       if (isFile) {
         if (archive == null) {
+          final ArchivePackagesIndex index = getArchiveIndex(root);
+          if (index != null && !index.mayContainFile(name)) {
+            continue;
+          }
           try {
             archive = openArchive(root);
           }
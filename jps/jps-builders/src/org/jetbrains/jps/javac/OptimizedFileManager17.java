@@ -29,6 +29,7 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
   private final Map<File, Archive> myArchives;
   private final Map<File, Boolean> myIsFile = new HashMap<File, Boolean>();
   private final Map<File, File[]> myDirectoryCache = new HashMap<File, File[]>();
+  private final Map<File, ArchivePackagesIndex> myArchiveIndices = new HashMap<File, ArchivePackagesIndex>();
   public static final File[] NULL_FILE_ARRAY = new File[0];
 
   public OptimizedFileManager17() throws Throwable {
@@ -76,6 +77,9 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
       }
       
       if (isFile) {
+        if (archive == null && !mayContainPackage(root, subdirectory.getPath(), recurse)) {
+          continue;
+        }
         // Not a directory; either a file or non-existant, create the archive
         try {
           if (archive == null) {
@@ -177,6 +181,18 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
     return cached == NULL_FILE_ARRAY ? null : cached;
   }
 
+  private boolean mayContainPackage(File archive, String directory, boolean recurse) {
+    ArchivePackagesIndex index;
+    if (myArchiveIndices.containsKey(archive)) {
+      index = myArchiveIndices.get(archive);
+    }
+    else {
+      index = ArchivePackagesIndex.getIndex(archive);
+      myArchiveIndices.put(archive, index);
+    }
+    return index == null || index.containsPackage(directory, recurse);
+  }
+
   private boolean isFile(File root) {
     Boolean cachedIsFile = myIsFile.get(root);
     if (cachedIsFile == null) {
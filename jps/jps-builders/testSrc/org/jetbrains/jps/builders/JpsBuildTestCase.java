@@ -43,7 +43,9 @@ import org.jetbrains.jps.util.JpsPathUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.jetbrains.jps.builders.CompileScopeTestBuilder.make;
@@ -58,6 +60,8 @@ public abstract class JpsBuildTestCase extends UsefulTestCase {
   private JpsSdk<JpsDummyElement> myJdk;
   private File myDataStorageRoot;
   private TestProjectBuilderLogger myLogger;
+  private final Map<String, String> myOldBuildOptions = new HashMap<String, String>(); // values to restore in tearDown
+  private final List<File> myOptionDirectories = new ArrayList<File>();
 
   @Override
   protected void setUp() throws Exception {
@@ -70,8 +74,48 @@ public abstract class JpsBuildTestCase extends UsefulTestCase {
 
   @Override
   protected void tearDown() throws Exception {
-    myProjectDir = null;
-    super.tearDown();
+    try {
+      for (Map.Entry<String, String> entry : myOldBuildOptions.entrySet()) {
+        setSystemProperty(entry.getKey(), entry.getValue());
+      }
+      for (File directory : myOptionDirectories) {
+        FileUtil.delete(directory);
+      }
+      myProjectDir = null;
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  /**
+   * Sets a build option passed via a system property, the previous value is restored in {@link #tearDown()}.
+   * @param value the value or null to clear the option
+   */
+  protected void setBuildOption(String name, @Nullable String value) {
+    if (!myOldBuildOptions.containsKey(name)) {
+      myOldBuildOptions.put(name, System.getProperty(name));
+    }
+    setSystemProperty(name, value);
+  }
+
+  /**
+   * Creates a temporary directory which is deleted in {@link #tearDown()} and sets the option to its path.
+   */
+  protected File createBuildOptionDirectory(String name) throws IOException {
+    File directory = FileUtil.createTempDirectory("build-option", null);
+    myOptionDirectories.add(directory);
+    setBuildOption(name, directory.getAbsolutePath());
+    return directory;
+  }
+
+  private static void setSystemProperty(String name, @Nullable String value) {
+    if (value != null) {
+      System.setProperty(name, value);
+    }
+    else {
+      System.clearProperty(name);
+    }
   }
 
   protected static void assertOutput(final String outputPath, TestFileSystemBuilder expected) {
@@ -229,6 +273,7 @@ public abstract class JpsBuildTestCase extends UsefulTestCase {
 
   protected BuildResult doBuild(final ProjectDescriptor descriptor, CompileScopeTestBuilder scopeBuilder) {
     IncProjectBuilder builder = new IncProjectBuilder(descriptor, BuilderRegistry.getInstance(), Collections.<String, String>emptyMap(), CanceledStatus.NULL, null);
+    configureBuilder(builder);
     BuildResult result = new BuildResult();
     builder.addMessageHandler(result);
     try {
@@ -240,6 +285,9 @@ public abstract class JpsBuildTestCase extends UsefulTestCase {
     return result;
   }
 
+  protected void configureBuilder(IncProjectBuilder builder) {
+  }
+
   protected String createFile(String relativePath) {
     return createFile(relativePath, "");
   }
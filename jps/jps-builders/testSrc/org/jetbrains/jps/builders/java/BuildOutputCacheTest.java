@@ -0,0 +1,66 @@
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.CompileScopeTestBuilder;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import static com.intellij.util.io.TestFileSystemBuilder.fs;
+
+public class BuildOutputCacheTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    createBuildOptionDirectory(GlobalOptions.BUILD_CACHE_DIR_OPTION);
+  }
+
+  public void testRestoreOutputsOfIdenticalModule() {
+    String a1 = createFile("src1/A.java", "public class A { Object b = new B(); }");
+    createFile("src1/B.java", "class B {}");
+    String a2 = createFile("src2/A.java", "public class A { Object b = new B(); }");
+    String b2 = createFile("src2/B.java", "class B {}");
+    JpsModule m1 = addModule("m1", PathUtil.getParentPath(a1));
+    JpsModule m2 = addModule("m2", PathUtil.getParentPath(a2));
+    doBuild(CompileScopeTestBuilder.make().module(m1)).assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src1/A.java", "src1/B.java");
+
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+    assertOutput(m2, fs().file("A.class").file("B.class"));
+
+    // dependencies are restored as well
+    change(b2, "class B { B(int i) {} }");
+    makeAll().assertFailed();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src2/A.java", "src2/B.java");
+  }
+
+  public void testRestoreDependentIfOnlyImplementationOfDependencyDiffers() {
+    String a1 = createFile("src1/A.java", "public class A { public void foo() {} }");
+    String c2 = createFile("src2/C.java", "public class C { { new A().foo(); } }");
+    String a3 = createFile("src3/A.java", "public class A { public void foo() { System.out.println(); } }");
+    String c4 = createFile("src4/C.java", "public class C { { new A().foo(); } }");
+    JpsModule m1 = addModule("m1", PathUtil.getParentPath(a1));
+    JpsModule m2 = addModule("m2", PathUtil.getParentPath(c2));
+    JpsModule m3 = addModule("m3", PathUtil.getParentPath(a3));
+    JpsModule m4 = addModule("m4", PathUtil.getParentPath(c4));
+    m2.getDependenciesList().addModuleDependency(m1);
+    m4.getDependenciesList().addModuleDependency(m3);
+    doBuild(CompileScopeTestBuilder.make().module(m1).module(m2)).assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src1/A.java", "src2/C.java");
+
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src3/A.java");
+    assertOutput(m4, fs().file("C.class"));
+  }
+
+  public void testCompileDifferentSources() {
+    String a1 = createFile("src1/A.java", "public class A {}");
+    String a2 = createFile("src2/A.java", "public class A { int i; }");
+    addModule("m1", PathUtil.getParentPath(a1));
+    addModule("m2", PathUtil.getParentPath(a2));
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src1/A.java", "src2/A.java");
+  }
+}
@@ -0,0 +1,51 @@
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+import java.io.IOException;
+
+public class BuildTimelineTest extends JpsBuildTestCase {
+  private File myTraceDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTraceDir = createBuildOptionDirectory(GlobalOptions.BUILD_TRACE_DIR_OPTION);
+  }
+
+  public void testTraceFileIsSavedForEachBuild() throws IOException {
+    String a = createFile("src1/A.java", "public class A {}");
+    String b = createFile("src2/B.java", "public class B extends A {}");
+    createFile("src2/C.java", "public class C {}");
+    JpsModule m1 = addModule("m1", PathUtil.getParentPath(a));
+    JpsModule m2 = addModule("m2", PathUtil.getParentPath(b));
+    m2.getDependenciesList().addModuleDependency(m1);
+    makeAll().assertSuccessful();
+
+    File[] traces = myTraceDir.listFiles();
+    assertNotNull(traces);
+    assertEquals(1, traces.length);
+    String trace = FileUtil.loadFile(traces[0]);
+    assertTrue(trace, trace.startsWith("{\"traceEvents\":["));
+    assertTrue(trace, trace.contains("\"name\":\"" + JavaBuilder.BUILDER_NAME + "\",\"cat\":\"builder\""));
+    assertTrue(trace, trace.contains("\"target\":\"m2\",\"files\":2"));
+    assertTrue(trace, trace.contains("\"cat\":\"chunk\""));
+    assertTrue(trace, trace.contains("\"name\":\"Scan sources\",\"cat\":\"step\""));
+    assertTrue(trace, trace.contains("\"name\":\"Compile java\",\"cat\":\"step\""));
+    assertTrue(trace, trace.contains("\"name\":\"Analyze class file\",\"cat\":\"step\""));
+    assertTrue(trace, trace.contains("\"name\":\"Add NotNull assertions\",\"cat\":\"step\""));
+    assertTrue(trace, trace.contains("\"ph\":\"M\""));
+
+    change(a, "public class A { int i; }");
+    makeAll().assertSuccessful();
+    traces = myTraceDir.listFiles();
+    assertNotNull(traces);
+    assertEquals(2, traces.length);
+  }
+}
@@ -0,0 +1,62 @@
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class DependentModulesTest extends JpsBuildTestCase {
+  private File myTraceDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTraceDir = createBuildOptionDirectory(GlobalOptions.BUILD_TRACE_DIR_OPTION);
+  }
+
+  public void testDoNotRecompileDependentIfApiNotChanged() throws IOException {
+    String a = createFile("src/A.java", "class A { { new B().foo(); } }");
+    String b = createFile("depSrc/B.java", "public class B { public void foo() {} }");
+    createFile("dep2Src/C.java", "public class C {}");
+    JpsModule main = addModule("main", PathUtil.getParentPath(a));
+    JpsModule dep = addModule("dep", PathUtil.getParentPath(b));
+    JpsModule dep2 = addModule("dep2", getAbsolutePath("dep2Src"));
+    main.getDependenciesList().addModuleDependency(dep);
+    main.getDependenciesList().addModuleDependency(dep2);
+    rebuildAll();
+
+    change(b, "public class B { public void foo() { System.out.println(); } }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "depSrc/B.java");
+    assertTrue(hasBuilderSpan("dep"));
+    assertFalse(hasBuilderSpan("main"));
+
+    change(b, "public class B { public void foo(int i) {} }");
+    makeAll().assertFailed();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "depSrc/B.java", "src/A.java");
+    assertTrue(hasBuilderSpan("main"));
+  }
+
+  /**
+   * @return true if builders were run for the target in the last build
+   */
+  private boolean hasBuilderSpan(String target) throws IOException {
+    File[] traces = myTraceDir.listFiles();
+    assertNotNull(traces);
+    Arrays.sort(traces);
+    String trace = FileUtil.loadFile(traces[traces.length - 1]);
+    for (String line : StringUtil.splitByLines(trace)) {
+      if (line.contains("\"cat\":\"builder\"") && line.contains("\"target\":\"" + target + "\"")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
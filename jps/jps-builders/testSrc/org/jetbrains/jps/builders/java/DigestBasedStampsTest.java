@@ -0,0 +1,55 @@
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+
+public class DigestBasedStampsTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    setBuildOption(GlobalOptions.DIGEST_STAMPS_OPTION, "true");
+  }
+
+  public void testDoNotRecompileTouchedFile() {
+    String a = createFile("src/A.java", "class A {}");
+    String b = createFile("src/B.java", "class B {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    change(a);
+    change(b, "class B { int i; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/B.java");
+    makeAll().assertUpToDate();
+  }
+
+  public void testSwitchingOptionOff() {
+    String a = createFile("src/A.java", "class A {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    // timestamps without digests are kept separately, so the sources are compiled once after the switch
+    setBuildOption(GlobalOptions.DIGEST_STAMPS_OPTION, null);
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A.java");
+    makeAll().assertUpToDate();
+  }
+
+  public void testManyTouchedFiles() {
+    String[] files = new String[200];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = createFile("src/A" + i + ".java", "class A" + i + " {}");
+    }
+    addModule("m", PathUtil.getParentPath(files[0]));
+    rebuildAll();
+
+    for (String file : files) {
+      change(file);
+    }
+    change(files[10], "class A10 { int i; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A10.java");
+  }
+}
@@ -0,0 +1,13 @@
+package org.jetbrains.jps.builders.java;
+
+import org.jetbrains.jps.incremental.IncProjectBuilder;
+
+/**
+ * Runs the same scenarios with chunks scheduled by {@link IncProjectBuilder}'s parallel builder.
+ */
+public class ParallelDependentModulesTest extends DependentModulesTest {
+  @Override
+  protected void configureBuilder(IncProjectBuilder builder) {
+    builder.setParallelBuild(true);
+  }
+}
@@ -0,0 +1,230 @@
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassWriter;
+import org.jetbrains.asm4.MethodVisitor;
+import org.jetbrains.asm4.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a delta of generated classes the same way JavaBuilder reports classes produced by javac.
+ */
+public class MappingsIntegrationTest extends TestCase {
+  private File myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory("mappings", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+    super.tearDown();
+  }
+
+  public void testParallelAnalysisProducesSameMappings() throws Exception {
+    final List<byte[]> classes = generateClasses(500);
+    assertEquals(dump(replay(classes, 1, false)), dump(replay(classes, 4, false)));
+  }
+
+  public void testOffHeapDeltaProducesSameMappings() throws Exception {
+    final List<byte[]> classes = generateClasses(2000);
+    assertEquals(dump(replay(classes, 1, false)), dump(replay(classes, 1, true)));
+  }
+
+  public void testSequentialReplayPerformance() {
+    assertReplayTiming(1, 5000);
+  }
+
+  public void testParallelReplayPerformance() {
+    assertReplayTiming(Runtime.getRuntime().availableProcessors(), 2500);
+  }
+
+  private void assertReplayTiming(final int threads, int expectedMs) {
+    final List<byte[]> classes = generateClasses(20000);
+    PlatformTestUtil.TestInfo test =
+      PlatformTestUtil.startPerformanceTest("replay of " + classes.size() + " classes using " + threads + " threads", expectedMs,
+                                            new ThrowableRunnable() {
+                                              @Override
+                                              public void run() throws Exception {
+                                                replay(classes, threads, false).close();
+                                              }
+                                            }).cpuBound();
+    if (threads > 1) {
+      test = test.usesAllCPUCores();
+    }
+    test.assertTiming();
+  }
+
+  public void testOffHeapDeltaFindsSameAffectedFilesOnMake() throws Exception {
+    final List<byte[]> classes = generateClasses(500);
+    final List<byte[]> changed = generateClasses(500, 100);
+    final File heapRoot = FileUtil.createTempDirectory(myRoot, "heap", null);
+    final File offHeapRoot = FileUtil.createTempDirectory(myRoot, "offHeap", null);
+    make(heapRoot, false, classes, range(0, 500));
+    make(offHeapRoot, true, classes, range(0, 500));
+
+    // unchanged files are skipped by digest with the option only
+    assertEquals(make(heapRoot, false, classes, range(0, 50)), make(offHeapRoot, true, classes, range(0, 50)));
+    assertEquals(make(heapRoot, false, changed, range(50, 150)), make(offHeapRoot, true, changed, range(50, 150)));
+    assertEquals(make(heapRoot, false, classes, range(50, 150)), make(offHeapRoot, true, classes, range(50, 150)));
+  }
+
+  public void testDigestsAreDroppedWithoutOffHeapOption() throws Exception {
+    final List<byte[]> classes = generateClasses(500);
+    final List<byte[]> changed = generateClasses(500, 100);
+    final File expectedRoot = FileUtil.createTempDirectory(myRoot, "expected", null);
+    final File root = FileUtil.createTempDirectory(myRoot, "switched", null);
+    make(expectedRoot, false, classes, range(0, 500));
+    make(root, true, classes, range(0, 500));
+
+    // digests stored by the first build must not hide changes made while the option was off
+    assertEquals(make(expectedRoot, false, changed, range(50, 150)), make(root, false, changed, range(50, 150)));
+    final List<String> affected = make(root, true, classes, range(50, 150));
+    assertFalse(affected.isEmpty());
+    assertEquals(make(expectedRoot, false, classes, range(50, 150)), affected);
+  }
+
+  /**
+   * Compiles the given classes the way an incremental make does.
+   * @return sorted affected files
+   */
+  private List<String> make(final File dataRoot, boolean offHeap, final List<byte[]> classes, List<Integer> indices) throws Exception {
+    final Mappings mappings = new Mappings(dataRoot, true, offHeap);
+    try {
+      final Mappings delta = mappings.createDelta();
+      final Callbacks.Backend callback = delta.getCallback();
+      final List<File> compiled = new ArrayList<File>();
+      for (int index : indices) {
+        callback.associate("out/p/C" + index + ".class", "src/p/C" + index + ".java", new ClassReader(classes.get(index)));
+        compiled.add(new File("src/p/C" + index + ".java"));
+      }
+
+      final Set<File> affected = new HashSet<File>();
+      mappings.differentiateOnIncrementalMake(delta, Collections.<String>emptyList(), compiled, compiled, affected,
+                                              Mappings.DependentFilesFilter.ALL_FILES, null);
+      mappings.integrate(delta);
+
+      final List<String> result = new ArrayList<String>();
+      for (File file : affected) {
+        result.add(FileUtil.toSystemIndependentName(file.getPath()));
+      }
+      Collections.sort(result);
+      return result;
+    }
+    finally {
+      mappings.close();
+    }
+  }
+
+  private static List<Integer> range(int from, int to) {
+    final List<Integer> result = new ArrayList<Integer>();
+    for (int i = from; i < to; i++) {
+      result.add(i);
+    }
+    return result;
+  }
+
+  /**
+   * Analyzes the classes on the given number of threads and integrates them concurrently if there is more than one thread.
+   */
+  private Mappings replay(final List<byte[]> classes, int threads, boolean offHeap) throws Exception {
+    final Mappings mappings = new Mappings(FileUtil.createTempDirectory(myRoot, "data", null), true, offHeap);
+    mappings.setConcurrentIntegrate(threads > 1);
+    final Mappings delta = mappings.createDelta();
+    final Callbacks.Backend callback = delta.getCallback();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < classes.size(); i++) {
+      final int index = i;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          callback.associate("out/p/C" + index + ".class", "src/p/C" + index + ".java", new ClassReader(classes.get(index)));
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.MINUTES));
+
+    mappings.differentiateOnRebuild(delta);
+    mappings.integrate(delta);
+    return mappings;
+  }
+
+  private static String dump(Mappings mappings) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final PrintStream stream = new PrintStream(out);
+    mappings.toStream(stream);
+    stream.close();
+    mappings.close();
+    // enumerated names may get different ids, so the order of elements may differ too
+    final String[] lines = out.toString().split("\n");
+    Arrays.sort(lines);
+    return Arrays.toString(lines);
+  }
+
+  private static List<byte[]> generateClasses(int count) {
+    return generateClasses(count, -1);
+  }
+
+  /**
+   * @param changed classes with index less than this one get an additional public method
+   */
+  private static List<byte[]> generateClasses(int count, int changed) {
+    final List<byte[]> classes = new ArrayList<byte[]>(count);
+    for (int i = 0; i < count; i++) {
+      final String superName = i == 0 ? "java/lang/Object" : "p/C" + i / 2;
+      final int used = (i * 7 + 1) % count;
+      final String usedName = "p/C" + used;
+      final ClassWriter writer = new ClassWriter(0);
+      writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "p/C" + i, null, superName, new String[]{"java/io/Serializable"});
+      writer.visitField(Opcodes.ACC_PRIVATE, "myUsed", "L" + usedName + ";", null, null).visitEnd();
+      writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "ID", "I", null, i).visitEnd();
+
+      MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+      method.visitCode();
+      method.visitVarInsn(Opcodes.ALOAD, 0);
+      method.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V");
+      method.visitInsn(Opcodes.RETURN);
+      method.visitMaxs(1, 1);
+      method.visitEnd();
+
+      method = writer.visitMethod(Opcodes.ACC_PUBLIC, "foo" + i % 10, "(L" + usedName + ";)I", null, null);
+      method.visitCode();
+      method.visitVarInsn(Opcodes.ALOAD, 1);
+      method.visitFieldInsn(Opcodes.GETFIELD, usedName, "myUsed", "Lp/C" + (used * 7 + 1) % count + ";");
+      method.visitInsn(Opcodes.POP);
+      method.visitFieldInsn(Opcodes.GETSTATIC, usedName, "ID", "I");
+      method.visitInsn(Opcodes.IRETURN);
+      method.visitMaxs(1, 2);
+      method.visitEnd();
+
+      if (i < changed) {
+        method = writer.visitMethod(Opcodes.ACC_PUBLIC, "bar", "()V", null, null);
+        method.visitCode();
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 1);
+        method.visitEnd();
+      }
+
+      writer.visitEnd();
+      classes.add(writer.toByteArray());
+    }
+    return classes;
+  }
+}
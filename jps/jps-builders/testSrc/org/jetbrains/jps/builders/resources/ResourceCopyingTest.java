@@ -1,6 +1,8 @@
 package org.jetbrains.jps.builders.resources;
 
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.PathUtil;
+import com.intellij.util.io.TestFileSystemBuilder;
 import org.jetbrains.jps.builders.JpsBuildTestCase;
 import org.jetbrains.jps.model.JpsSimpleElement;
 import org.jetbrains.jps.model.java.JavaSourceRootProperties;
@@ -9,6 +11,10 @@ import org.jetbrains.jps.model.java.JpsJavaExtensionService;
 import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.model.module.JpsModuleSourceRoot;
 import org.jetbrains.jps.model.module.JpsTypedModuleSourceRoot;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import java.io.File;
+import java.io.IOException;
 
 import static com.intellij.util.io.TestFileSystemItem.fs;
 
@@ -38,4 +44,55 @@ public class ResourceCopyingTest extends JpsBuildTestCase {
     rebuildAll();
     assertOutput(m, fs().dir("xxx").file("a.xml"));
   }
+
+  public void testManyFiles() {
+    String file = null;
+    TestFileSystemBuilder expected = fs();
+    for (int i = 0; i < 10; i++) {
+      TestFileSystemBuilder dir = expected.dir("d" + i);
+      for (int j = 0; j < 50; j++) {
+        file = createFile("src/d" + i + "/" + j + ".xml", i + "." + j);
+        dir.file(j + ".xml", i + "." + j);
+      }
+    }
+    JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(file)));
+    rebuildAll();
+    assertOutput(m, expected);
+
+    change(file, "changed");
+    makeAll().assertSuccessful();
+    assertEquals("changed", loadOutputFile(m, "d9/49.xml"));
+  }
+
+  public void testOutputWithSameContentIsNotRewritten() throws IOException {
+    String file = createFile("src/a.xml", "content");
+    JpsModule m = addModule("m", PathUtil.getParentPath(file));
+    File output = new File(getOutputDir(m), "a.xml");
+    FileUtil.writeToFile(output, "content");
+    long timestamp = output.lastModified() - 10000;
+    assertTrue(output.setLastModified(timestamp));
+
+    makeAll().assertSuccessful();
+    assertEquals(timestamp, output.lastModified());
+    assertOutput(m, fs().file("a.xml", "content"));
+
+    change(file, "changed");
+    makeAll().assertSuccessful();
+    assertEquals("changed", loadOutputFile(m, "a.xml"));
+  }
+
+  private static File getOutputDir(JpsModule m) {
+    String outputUrl = JpsJavaExtensionService.getInstance().getOutputUrl(m, false);
+    assertNotNull(outputUrl);
+    return new File(JpsPathUtil.urlToPath(outputUrl));
+  }
+
+  private static String loadOutputFile(JpsModule m, String relativePath) {
+    try {
+      return FileUtil.loadFile(new File(getOutputDir(m), relativePath));
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
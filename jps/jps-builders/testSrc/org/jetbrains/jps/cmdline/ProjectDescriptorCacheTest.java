@@ -0,0 +1,178 @@
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.incremental.MessageHandler;
+import org.jetbrains.jps.incremental.fs.BuildFSState;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.model.JpsElementFactory;
+import org.jetbrains.jps.model.JpsModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+public class ProjectDescriptorCacheTest extends TestCase {
+  private static final String KEY = "project";
+  private final ProjectDescriptorCache myCache = new ProjectDescriptorCache();
+  private File myDir;
+  private File myProjectDir;
+  private File myOptionsDir;
+  private File myDataStorageRoot;
+  private File myModuleFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("project-cache", null);
+    myProjectDir = new File(myDir, "project");
+    myOptionsDir = new File(myDir, "options");
+    myDataStorageRoot = new File(myDir, "data");
+    myModuleFile = new File(myProjectDir, "module.iml");
+    createFile(new File(myProjectDir, ".idea/misc.xml"));
+    createFile(new File(myProjectDir, ".idea/modules.xml"));
+    createFile(myModuleFile);
+    createFile(new File(myOptionsDir, "other.xml"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myCache.clear();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testDescriptorIsReused() throws IOException {
+    final ProjectDescriptor descriptor = keepDescriptor();
+    final Pair<ProjectDescriptor, ConfigurationFilesState> cached = myCache.take(KEY, true);
+    assertNotNull(cached);
+    assertSame(descriptor, cached.first);
+    assertTrue(cached.second.isUpToDate());
+    // the descriptor is handed out once
+    assertNull(myCache.take(KEY, true));
+    descriptor.release();
+  }
+
+  public void testDescriptorIsNotReusedForAnotherProject() throws IOException {
+    keepDescriptor();
+    assertNull(myCache.take("another project", true));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testDescriptorIsNotReusedIfStateCannotBeContinued() throws IOException {
+    keepDescriptor();
+    assertNull(myCache.take(KEY, false));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testChangedProjectFileInvalidatesDescriptor() throws IOException {
+    keepDescriptor();
+    touch(new File(myProjectDir, ".idea/misc.xml"));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testCreatedProjectLibraryInvalidatesDescriptor() throws IOException {
+    keepDescriptor();
+    createFile(new File(myProjectDir, ".idea/libraries/lib.xml"));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testChangedModuleFileInvalidatesDescriptor() throws IOException {
+    keepDescriptor();
+    touch(myModuleFile);
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testCreatedSdkTableInvalidatesDescriptor() throws IOException {
+    keepDescriptor();
+    createFile(new File(myOptionsDir, "jdk.table.xml"));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testChangedPathMacrosInvalidateDescriptor() throws IOException {
+    createFile(new File(myOptionsDir, "path.macros.xml"));
+    keepDescriptor();
+    touch(new File(myOptionsDir, "path.macros.xml"));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testChangedDataVersionInvalidatesDescriptor() throws IOException {
+    keepDescriptor();
+    touch(new File(myDataStorageRoot, "version.dat"));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testProjectFileChangedWhileLoadingInvalidatesDescriptor() throws IOException {
+    keepDescriptor(new File(myProjectDir, ".idea/misc.xml"));
+    assertNull(myCache.take(KEY, true));
+  }
+
+  public void testUnrelatedFileDoesNotInvalidateDescriptor() throws IOException {
+    final ProjectDescriptor descriptor = keepDescriptor();
+    createFile(new File(myProjectDir, "src/A.java"));
+    touch(new File(myProjectDir, ".idea/workspace.xml"));
+    final Pair<ProjectDescriptor, ConfigurationFilesState> cached = myCache.take(KEY, true);
+    assertNotNull(cached);
+    assertSame(descriptor, cached.first);
+    descriptor.release();
+  }
+
+  private ProjectDescriptor keepDescriptor() throws IOException {
+    return keepDescriptor(null);
+  }
+
+  /**
+   * Emulates a session which has loaded the project and completed the build.
+   * @param changedWhileLoading a file which is changed after the project files are read
+   */
+  private ProjectDescriptor keepDescriptor(@Nullable final File changedWhileLoading) throws IOException {
+    final JpsModel model = JpsElementFactory.getInstance().createModel();
+    final List<CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage.TargetTypeBuildScope> scopes = Collections.emptyList();
+    final BuildRunner runner = new BuildRunner(new JpsModelLoader() {
+      @Override
+      public JpsModel loadModel() {
+        if (changedWhileLoading != null) {
+          try {
+            touch(changedWhileLoading);
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return model;
+      }
+    }, scopes, Collections.<String>emptyList(), Collections.<String, String>emptyMap());
+    final ConfigurationFilesState state = ConfigurationFilesState.create(myProjectDir.getPath(), myOptionsDir.getPath(), myDataStorageRoot);
+    final ProjectDescriptor descriptor = runner.load(new MessageHandler() {
+      @Override
+      public void processMessage(BuildMessage msg) {
+      }
+    }, myDataStorageRoot, new BuildFSState(false));
+    state.addModuleFiles(Collections.singletonList(myModuleFile));
+    descriptor.dataManager.saveVersion();
+    state.updateVersionStamp();
+    myCache.put(KEY, descriptor, state);
+    descriptor.release();
+    return descriptor;
+  }
+
+  private static void createFile(File file) throws IOException {
+    FileUtil.writeToFile(file, "<component/>");
+  }
+
+  private static void touch(File file) throws IOException {
+    final long stamp = file.exists() ? file.lastModified() : System.currentTimeMillis();
+    if (!file.exists()) {
+      createFile(file);
+    }
+    assertTrue(file.setLastModified(stamp + 10000));
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.model.artifact.JpsArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.archive;
+import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.root;
+
+public class IncrementalJarsTest extends ArtifactBuilderTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    setBuildOption(GlobalOptions.INCREMENTAL_JARS_OPTION, "true");
+  }
+
+  public void testPackChangedFile() {
+    String file1 = createFile("dir/a.txt", "aaa");
+    createFile("dir/b.txt", "bbb");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "aaa").file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+
+    change(file1, "xxx");
+    buildAll();
+    assertCopied("dir/a.txt", "dir/b.txt");
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "xxx").file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testRemoveDeletedFileFromArchive() {
+    String file1 = createFile("dir/a.txt");
+    createFile("dir/b.txt");
+    final JpsArtifact a = addArtifact("a", root().archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt").file("b.txt"));
+
+    delete(file1);
+    buildAll();
+    // outputs of deleted sources are removed before the artifact builder is run
+    assertDeletedAndCopied("out/artifacts/a/a.jar", "dir/b.txt");
+    assertOutput(a, fs().archive("a.jar").file("b.txt"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testAddFileToArchive() {
+    String file = createFile("dir/a.txt");
+    JpsArtifact a = addArtifact("a", archive("a.jar").parentDirCopy(file));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt"));
+
+    createFile("dir/b.txt");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt").file("b.txt"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testRepeatedChangesOfLargeFile() {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      content.append(i).append('\n');
+    }
+    String file1 = createFile("dir/a.txt", content.toString());
+    createFile("dir/b.txt", "bbb");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+
+    File jar = new File(a.getOutputPath(), "a.jar");
+    long initialLength = jar.length();
+    for (int i = 0; i < 10; i++) {
+      change(file1, content.toString() + i);
+      buildAll();
+      assertOutput(a, fs().archive("a.jar").file("a.txt", content.toString() + i).file("b.txt", "bbb"));
+    }
+    // replaced entries are appended to the archive, garbage must be dropped from time to time
+    assertTrue(jar.length() < 3 * initialLength);
+  }
+
+  public void testChangeFileInNestedArchive() {
+    String file1 = createFile("dir/a.txt", "aaa");
+    createFile("dir/b.txt", "bbb");
+    String file2 = createFile("c.txt", "ccc");
+    final JpsArtifact a = addArtifact(archive("a.jar").fileCopy(file2).archive("b.jar").parentDirCopy(file1));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("c.txt", "ccc").archive("b.jar").file("a.txt", "aaa").file("b.txt", "bbb"));
+
+    change(file1, "xxx");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("c.txt", "ccc").archive("b.jar").file("a.txt", "xxx").file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testPackExtractedDirectory() {
+    String file = createFile("dir/a.txt", "aaa");
+    final JpsArtifact a = addArtifact("a", root().archive("a.jar")
+      .extractedDir(getJUnitJarPath(), "/junit/textui/")
+      .parentDirCopy(file));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar")
+                           .file("ResultPrinter.class")
+                           .file("TestRunner.class")
+                           .file("a.txt", "aaa"));
+
+    change(file, "xxx");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar")
+                           .file("ResultPrinter.class")
+                           .file("TestRunner.class")
+                           .file("a.txt", "xxx"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testManifestFileIsFirstEntryAfterChange() throws IOException {
+    final String firstFile = createFile("src/A.txt");
+    final String manifestFile = createFile("src/MANIFEST.MF");
+    final String lastFile = createFile("src/Z.txt");
+    final JpsArtifact a = addArtifact(archive("a.jar").dir("META-INF")
+                                       .fileCopy(firstFile).fileCopy(manifestFile).fileCopy(lastFile));
+    buildArtifacts(a);
+    change(manifestFile, "Manifest-Version: 1.0\n");
+    buildArtifacts(a);
+
+    JarFile jarFile = new JarFile(new File(FileUtil.toSystemDependentName(a.getOutputPath() + "/a.jar")));
+    try {
+      final Enumeration<JarEntry> entries = jarFile.entries();
+      assertTrue(entries.hasMoreElements());
+      assertEquals(JarFile.MANIFEST_NAME, entries.nextElement().getName());
+    }
+    finally {
+      jarFile.close();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.jetbrains.jps.javac;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ArchivePackagesIndexTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("archive-index", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testPackages() throws IOException {
+    File jar = createJar("a.jar", "A.class", "p/B.class", "p/q/C.class", "r/");
+    ArchivePackagesIndex index = ArchivePackagesIndex.getIndex(jar);
+    assertNotNull(index);
+    assertTrue(index.containsPackage("", false));
+    assertTrue(index.containsPackage("p", false));
+    assertTrue(index.containsPackage("p/q/", false));
+    assertFalse(index.containsPackage("p/r", false));
+    assertFalse(index.containsPackage("r", false));
+    assertFalse(index.containsPackage("q", true));
+
+    assertTrue(index.mayContainFile("p/q/C.class"));
+    assertTrue(index.mayContainFile("A.java"));
+    assertFalse(index.mayContainFile("r/D.class"));
+  }
+
+  public void testRecursive() throws IOException {
+    ArchivePackagesIndex index = ArchivePackagesIndex.getIndex(createJar("a.jar", "p/q/C.class"));
+    assertNotNull(index);
+    assertFalse(index.containsPackage("p", false));
+    assertTrue(index.containsPackage("p", true));
+    assertTrue(index.containsPackage("", true));
+    assertFalse(index.containsPackage("pq", true));
+  }
+
+  public void testIndexIsRebuiltWhenArchiveChanges() throws IOException {
+    File jar = createJar("a.jar", "p/A.class");
+    ArchivePackagesIndex index = ArchivePackagesIndex.getIndex(jar);
+    assertSame(index, ArchivePackagesIndex.getIndex(jar));
+
+    createJar("a.jar", "p/A.class", "q/B.class");
+    ArchivePackagesIndex newIndex = ArchivePackagesIndex.getIndex(jar);
+    assertNotSame(index, newIndex);
+    assertTrue(newIndex.containsPackage("q", false));
+  }
+
+  public void testLeastRecentlyUsedIndicesAreEvicted() throws IOException {
+    File first = createJar("first.jar", "p/A.class");
+    File recent = createJar("recent.jar", "p/A.class");
+    ArchivePackagesIndex firstIndex = ArchivePackagesIndex.getIndex(first);
+    ArchivePackagesIndex recentIndex = ArchivePackagesIndex.getIndex(recent);
+    for (int i = 0; i < ArchivePackagesIndex.MAX_CACHED_ARCHIVES - 1; i++) {
+      ArchivePackagesIndex.getIndex(createJar(i + ".jar", "p/A.class"));
+      if (i % 100 == 0) {
+        assertSame(recentIndex, ArchivePackagesIndex.getIndex(recent));
+      }
+    }
+    assertSame(recentIndex, ArchivePackagesIndex.getIndex(recent));
+    assertNotSame(firstIndex, ArchivePackagesIndex.getIndex(first));
+  }
+
+  public void testInvalidArchive() throws IOException {
+    File file = new File(myDir, "invalid.jar");
+    FileUtil.writeToFile(file, "not a zip");
+    assertNull(ArchivePackagesIndex.getIndex(file));
+    assertNull(ArchivePackagesIndex.getIndex(new File(myDir, "missing.jar")));
+  }
+
+  private File createJar(String name, String... entries) throws IOException {
+    File jar = new File(myDir, name);
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entry : entries) {
+        output.putNextEntry(new ZipEntry(entry));
+        output.closeEntry();
+      }
+    }
+    finally {
+      output.close();
+    }
+    return jar;
+  }
+}
@@ -24,9 +24,11 @@ import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.CharSequenceBackedByArray;
+import com.intellij.util.text.ImmutableText;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
@@ -67,6 +69,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private volatile int myDeferredShift;
   private volatile boolean myDeferredChangeMode;
   private volatile boolean myHasDeferredChanges;
+  // immutable copy of the text which is kept up to date once it has been requested, see getImmutableCharSequence();
+  // it's dropped when it isn't requested during that many changes, so documents which aren't read in background anymore don't pay for it
+  private static final int MAX_CHANGES_WITHOUT_IMMUTABLE_TEXT_REQUEST = 1000;
+  private volatile ImmutableText myImmutableText;
+  private volatile int myChangesSinceImmutableTextRequest;
   // this lock is for mutual exclusion during read action access
   // (some fields are changed in read action too)
   private final Lock lock = new ReentrantLock();
@@ -174,6 +181,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assert myStart == 0; // can't change substring
     myDeferredChangesStorage.clear();
     myHasDeferredChanges = false;
+    myImmutableText = null;
     trimToSize();
 
     if (myDebug) {
@@ -246,9 +254,14 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
                       boolean wholeTextReplaced) {
     final DocumentEvent event = startChange(startOffset, toDelete, newString, wholeTextReplaced);
 
+    ImmutableText immutableText = getImmutableTextToUpdate();
+    if (immutableText != null) {
+      immutableText = immutableText.replace(startOffset, endOffset, newString);
+    }
     startOffset += myStart;
     endOffset += myStart;
     doReplace(startOffset, endOffset, newString);
+    myImmutableText = immutableText;
     afterChangedUpdate(event, newModificationStamp);
     assertConsistency();
   }
@@ -278,11 +291,28 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
   }
 
+  /**
+   * @return the immutable copy of the text if it should be updated on a change, or null if it should be dropped
+   */
+  @Nullable
+  private ImmutableText getImmutableTextToUpdate() {
+    ImmutableText immutableText = myImmutableText;
+    if (immutableText != null && ++myChangesSinceImmutableTextRequest > MAX_CHANGES_WITHOUT_IMMUTABLE_TEXT_REQUEST) {
+      return null;
+    }
+    return immutableText;
+  }
+
   public void remove(int startIndex, int endIndex, @NotNull CharSequence toDelete) {
     DocumentEvent event = startChange(startIndex, toDelete, null, false);
+    ImmutableText immutableText = getImmutableTextToUpdate();
+    if (immutableText != null) {
+      immutableText = immutableText.delete(startIndex, endIndex);
+    }
     startIndex += myStart;
     endIndex += myStart;
     doRemove(startIndex, endIndex);
+    myImmutableText = immutableText;
     afterChangedUpdate(event, LocalTimeCounter.currentTime());
     assertConsistency();
   }
@@ -310,8 +340,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   public void insert(@NotNull CharSequence s, int startIndex) {
     DocumentEvent event = startChange(startIndex, null, s, false);
+    ImmutableText immutableText = getImmutableTextToUpdate();
+    if (immutableText != null) {
+      immutableText = immutableText.insert(startIndex, s);
+    }
     startIndex += myStart;
     doInsert(s, startIndex);
+    myImmutableText = immutableText;
 
     afterChangedUpdate(event, LocalTimeCounter.currentTime());
     trimToSize();
@@ -385,6 +420,53 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     return originalSequence == null ? this : originalSequence;
   }
 
+  /**
+   * Returns immutable copy of the current text. The copy is created on the first call and then is updated on every change
+   * at O(log n) cost, so subsequent calls don't copy the text and the returned snapshots may be read from any thread.
+   * The copy is dropped if it isn't requested during {@link #MAX_CHANGES_WITHOUT_IMMUTABLE_TEXT_REQUEST} changes.
+   * <p/>
+   * Should be called in a read action: changes are made in a write action without taking {@link #lock}, so only the read action
+   * guarantees that the text isn't changed while it's being copied. {@link #lock} just prevents concurrent readers from copying
+   * the text twice.
+   */
+  @NotNull
+  public ImmutableText getImmutableCharSequence() {
+    assertReadAccess();
+    myChangesSinceImmutableTextRequest = 0;
+    ImmutableText text = myImmutableText;
+    if (text == null) {
+      lock.lock();
+      try {
+        text = myImmutableText;
+        if (text == null) {
+          CharSequence originalSequence = myOriginalSequence;
+          if (originalSequence != null) {
+            text = ImmutableText.valueOf(originalSequence);
+          }
+          else if (myHasDeferredChanges) {
+            text = ImmutableText.valueOf(doSubString(0, length()));
+          }
+          else {
+            text = ImmutableText.valueOf(myArray, myStart, myStart + myCount);
+          }
+          myImmutableText = text;
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    if (myDebug) {
+      checkStrings("getImmutableCharSequence()", toString(), text);
+    }
+    return text;
+  }
+
+  @TestOnly
+  boolean hasImmutableText() {
+    return myImmutableText != null;
+  }
+
   public String toString() {
     assertConsistency();
     String str = myStringRef == null ? null : myStringRef.get();
@@ -644,6 +644,25 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * Unlike {@link #getCharsSequence()}, returns the text which is never changed, so it may be kept and read from background
+   * threads without a read action. The snapshot itself should be obtained in a read action. The first call copies the text,
+   * after that the snapshot is maintained at O(log n) cost per change and obtaining it is free.
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    return myText.getImmutableCharSequence();
+  }
+
+  /**
+   * @return the immutable snapshot of the document text if the document supports it, otherwise its current text.
+   * Should be called in a read action.
+   */
+  @NotNull
+  public static CharSequence getImmutableCharSequence(@NotNull Document document) {
+    return document instanceof DocumentImpl ? ((DocumentImpl)document).getImmutableCharSequence() : document.getCharsSequence();
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
@@ -24,12 +24,16 @@ import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
 import com.intellij.util.WalkingState;
 import com.intellij.util.concurrency.AtomicFieldUpdater;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TLongHashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -48,6 +52,15 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<T>();
   private int deadReferenceCount;
 
+  // trees at least that large are copied into a snapshot for lock-free reads, once they are read at least
+  // size / SNAPSHOT_KEYS_PER_READ times without changes: the copy then costs about as much as the reads already served under the lock,
+  // so trees which are modified between every few reads (e.g. by highlighting passes adding highlighters) are never copied
+  private static final int SNAPSHOT_MIN_SIZE = 1000;
+  private static final int SNAPSHOT_KEYS_PER_READ = 32;
+  private volatile IntervalTreeSnapshot<T> mySnapshot; // reset under write lock before any modification
+  private volatile int myReadsSinceModification;
+  private Boolean mySnapshotsForced; // null - snapshots are taken as described above, true - always, false - never
+
   protected static class IntervalNode<E extends MutableInterval> extends RedBlackTree.Node<E> implements MutableInterval {
     private volatile int myStart;
     private volatile int myEnd;
@@ -393,8 +406,79 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     return (IntervalNode<T>)root;
   }
 
+  // called under write lock before the tree is modified
+  void invalidateSnapshot() {
+    mySnapshot = null;
+    myReadsSinceModification = 0;
+  }
+
+  /**
+   * Returns the copy of the tree which can be queried without the lock, or null if the tree is small or changes too often
+   * to be worth copying. The snapshot reflects the tree as it was at the moment of the call even if it's modified later.
+   */
+  @Nullable
+  private IntervalTreeSnapshot<T> getSnapshot() {
+    IntervalTreeSnapshot<T> snapshot = mySnapshot;
+    Boolean forced = mySnapshotsForced;
+    if (forced == Boolean.FALSE) return null;
+    if (snapshot != null) return snapshot;
+    if (forced == null) {
+      int size = size();
+      // unsynchronized increment may lose updates, which only delays the snapshot creation
+      if (size < SNAPSHOT_MIN_SIZE || ++myReadsSinceModification < size / SNAPSHOT_KEYS_PER_READ) return null;
+    }
+    // the tree may be in the middle of a modification
+    if (((ReentrantReadWriteLock)l).isWriteLockedByCurrentThread()) return null;
+
+    l.readLock().lock();
+    try {
+      snapshot = mySnapshot;
+      if (snapshot == null) {
+        TIntArrayList starts = new TIntArrayList(size());
+        TIntArrayList ends = new TIntArrayList(size());
+        List<Getter<T>> getters = new ArrayList<Getter<T>>(size());
+        collectSnapshot(getRoot(), 0, starts, ends, getters);
+        snapshot = new IntervalTreeSnapshot<T>(starts, ends, getters);
+        mySnapshot = snapshot; // published before the lock is released, so writers will reset it
+      }
+      return snapshot;
+    }
+    finally {
+      l.readLock().unlock();
+    }
+  }
+
+  @TestOnly
+  void setSnapshotsForced(@Nullable Boolean forced) {
+    mySnapshotsForced = forced;
+  }
+
+  private void collectSnapshot(IntervalNode<T> root,
+                               int deltaUpToRootExclusive,
+                               @NotNull TIntArrayList starts,
+                               @NotNull TIntArrayList ends,
+                               @NotNull List<Getter<T>> getters) {
+    if (root == null) return;
+    assert root.isValid();
+    int delta = deltaUpToRootExclusive + root.delta;
+    collectSnapshot(root.getLeft(), delta, starts, ends, getters);
+    int start = root.intervalStart() + delta;
+    int end = root.intervalEnd() + delta;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0; i < root.intervals.size(); i++) {
+      Getter<T> getter = root.intervals.get(i);
+      if (getter.get() == null) continue;
+      starts.add(start);
+      ends.add(end);
+      getters.add(getter);
+    }
+    collectSnapshot(root.getRight(), delta, starts, ends, getters);
+  }
+
   @Override
   public boolean process(@NotNull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.process(processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -421,6 +505,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processOverlappingWith(start, end, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -464,6 +550,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   }
 
   public boolean processOverlappingWithOutside(int start, int end, @NotNull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processOverlappingWithOutside(start, end, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -505,6 +593,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processContaining(int offset, @NotNull Processor<? super T> processor) {
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.processContaining(offset, processor);
     try {
       l.readLock().lock();
       checkMax(true);
@@ -549,6 +639,9 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   DisposableIterator<T> overlappingIterator(final int startOffset, final int endOffset) {
     ProperTextRange.assertProperRange(startOffset, endOffset, "");
 
+    IntervalTreeSnapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) return snapshot.overlappingIterator(startOffset, endOffset);
+
     l.readLock().lock();
 
     try {
@@ -729,6 +822,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     if (collectedAway.isEmpty()) return;
     try {
       l.writeLock().lock();
+      invalidateSnapshot();
       for (IntervalNode<T> node : collectedAway) {
         removeNode(node);
       }
@@ -741,6 +835,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   public IntervalTreeImpl.IntervalNode<T> addInterval(@NotNull T interval, int start, int end, boolean greedyToLeft, boolean greedyToRight, int layer) {
     try {
       l.writeLock().lock();
+      invalidateSnapshot();
       checkMax(true);
       processReferenceQueue();
       modCount++;
@@ -901,6 +996,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     if (!interval.isValid()) return false;
     try {
       l.writeLock().lock();
+      invalidateSnapshot();
       modCount++;
       if (!interval.isValid()) return false;
       checkBelongsToTheTree(interval, true);
@@ -1181,6 +1277,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   public void changeData(T interval, int start, int end, boolean greedyToLeft, boolean greedyToRight, int layer) {
     try {
       l.writeLock().lock();
+      invalidateSnapshot();
 
       IntervalNode<T> node = lookupNode(interval);
       if (node == null) return;
@@ -1236,6 +1333,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     });
     l.writeLock().lock();
     try {
+      invalidateSnapshot();
       super.clear();
       keySize = 0;
     }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.DisposableIterator;
+import com.intellij.openapi.util.Getter;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.Processor;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable copy of the intervals stored in {@link IntervalTreeImpl} which can be queried without taking the tree lock.
+ * <p/>
+ * Intervals are stored in the tree order, i.e. sorted by start offset. {@link #myMaxEnds} turns the arrays into an implicit
+ * balanced interval tree: the node for the index range [lo, hi) is its middle element, and its entry holds the maximal end offset
+ * within the range.
+ * <p/>
+ * Keys are referenced through the same getters the tree uses, so weakly referenced markers may still be collected;
+ * keys which were collected or became invalid after the snapshot was taken are skipped.
+ */
+class IntervalTreeSnapshot<T extends MutableInterval> {
+  private final int[] myStarts;
+  private final int[] myEnds;
+  private final int[] myMaxEnds;
+  private final Getter<T>[] myGetters;
+
+  IntervalTreeSnapshot(@NotNull TIntArrayList starts, @NotNull TIntArrayList ends, @NotNull List<Getter<T>> getters) {
+    myStarts = starts.toNativeArray();
+    myEnds = ends.toNativeArray();
+    //noinspection unchecked
+    myGetters = getters.toArray(new Getter[getters.size()]);
+    myMaxEnds = new int[myStarts.length];
+    computeMaxEnds(0, myStarts.length);
+  }
+
+  private int computeMaxEnds(int lo, int hi) {
+    if (lo >= hi) return Integer.MIN_VALUE;
+    int mid = (lo + hi) >>> 1;
+    int maxEnd = Math.max(myEnds[mid], Math.max(computeMaxEnds(lo, mid), computeMaxEnds(mid + 1, hi)));
+    myMaxEnds[mid] = maxEnd;
+    return maxEnd;
+  }
+
+  boolean process(@NotNull Processor<? super T> processor) {
+    for (int i = 0; i < myGetters.length; i++) {
+      if (!process(i, processor)) return false;
+    }
+    return true;
+  }
+
+  boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+    return processOverlappingWith(0, myGetters.length, start, end, processor);
+  }
+
+  private boolean processOverlappingWith(int lo, int hi, int start, int end, @NotNull Processor<? super T> processor) {
+    if (lo >= hi) return true;
+    int mid = (lo + hi) >>> 1;
+    if (start > myMaxEnds[mid]) return true; // right of the rightmost interval in the range
+
+    if (!processOverlappingWith(lo, mid, start, end, processor)) return false;
+    if (end < myStarts[mid]) return true; // intervals to the right start even later
+
+    boolean overlaps = Math.max(myStarts[mid], start) <= Math.min(myEnds[mid], end);
+    if (overlaps && !process(mid, processor)) return false;
+    return processOverlappingWith(mid + 1, hi, start, end, processor);
+  }
+
+  boolean processOverlappingWithOutside(int start, int end, @NotNull Processor<? super T> processor) {
+    return processOverlappingWithOutside(0, myGetters.length, start, end, processor);
+  }
+
+  private boolean processOverlappingWithOutside(int lo, int hi, int start, int end, @NotNull Processor<? super T> processor) {
+    if (lo >= hi) return true;
+    int mid = (lo + hi) >>> 1;
+    if (myStarts[lo] >= start && myMaxEnds[mid] <= end) return true; // all intervals in the range are inside
+
+    if (!processOverlappingWithOutside(lo, mid, start, end, processor)) return false;
+    boolean toProcess = myStarts[mid] < start || myEnds[mid] > end;
+    if (toProcess && !process(mid, processor)) return false;
+    return processOverlappingWithOutside(mid + 1, hi, start, end, processor);
+  }
+
+  boolean processContaining(int offset, @NotNull Processor<? super T> processor) {
+    return processContaining(0, myGetters.length, offset, processor);
+  }
+
+  private boolean processContaining(int lo, int hi, int offset, @NotNull Processor<? super T> processor) {
+    if (lo >= hi) return true;
+    int mid = (lo + hi) >>> 1;
+    if (offset >= myMaxEnds[mid]) return true; // no interval in the range ends after the offset
+
+    if (!processContaining(lo, mid, offset, processor)) return false;
+    if (offset < myStarts[mid]) return true; // intervals to the right start even later
+
+    boolean contains = offset < myEnds[mid];
+    if (contains && !process(mid, processor)) return false;
+    return processContaining(mid + 1, hi, offset, processor);
+  }
+
+  @NotNull
+  DisposableIterator<T> overlappingIterator(int startOffset, int endOffset) {
+    final List<T> overlapping = new ArrayList<T>();
+    processOverlappingWith(startOffset, endOffset, new CommonProcessors.CollectProcessor<T>(overlapping));
+    if (overlapping.isEmpty()) {
+      //noinspection unchecked
+      return DisposableIterator.EMPTY;
+    }
+    return new DisposableIterator<T>() {
+      private int myIndex;
+
+      @Override
+      public boolean hasNext() {
+        return myIndex < overlapping.size();
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return overlapping.get(myIndex++);
+      }
+
+      @Override
+      public void remove() {
+        throw new IncorrectOperationException();
+      }
+
+      @Override
+      public void dispose() {
+      }
+    };
+  }
+
+  private boolean process(int index, @NotNull Processor<? super T> processor) {
+    T key = myGetters[index].get();
+    return key == null || !key.isValid() || processor.process(key);
+  }
+}
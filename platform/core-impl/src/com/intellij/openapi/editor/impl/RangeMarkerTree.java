@@ -182,6 +182,7 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
   private void updateMarkersOnChange(@NotNull DocumentEvent e) {
     try {
       l.writeLock().lock();
+      invalidateSnapshot();
       if (size() == 0) return;
       checkMax(true);
 
@@ -366,6 +367,7 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
   private void reTarget(int start, int end, int newBase) {
     l.writeLock().lock();
     try {
+      invalidateSnapshot();
       //updateMarkersOnChange(new DocumentEventImpl(myDocument, ));
 
       List<IntervalNode<T>> affected = new ArrayList<IntervalNode<T>>();
@@ -28,6 +28,7 @@ import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.ex.EditorEx;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.editor.markup.CustomHighlighterRenderer;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.MarkupModel;
@@ -293,7 +294,7 @@ public class IndentsPass extends TextEditorHighlightingPass implements DumbAware
 
     lines.push(0);
     indents.push(0);
-    final CharSequence chars = myDocument.getCharsSequence();
+    final CharSequence chars = DocumentImpl.getImmutableCharSequence(myDocument);
     for (int line = 1; line < lineIndents.length; line++) {
       ProgressManager.checkCanceled();
       int curIndent = lineIndents[line];
@@ -341,7 +342,7 @@ public class IndentsPass extends TextEditorHighlightingPass implements DumbAware
 
   private int[] calcIndents() {
     final Document doc = myDocument;
-    CharSequence chars = doc.getCharsSequence();
+    CharSequence chars = DocumentImpl.getImmutableCharSequence(doc);
     int[] lineIndents = new int[doc.getLineCount()];
     boolean[] indentStartedInComment = new boolean[lineIndents.length];
     TokenSet comments = LanguageParserDefinitions.INSTANCE.forLanguage(myFile.getLanguage()).getCommentTokens();
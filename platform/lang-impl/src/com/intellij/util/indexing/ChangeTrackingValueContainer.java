@@ -35,6 +35,10 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
   private volatile ValueContainerImpl<Value> myMerged;
   private final Initializer<Value> myInitializer;
 
+  /**
+   * If {@link #compute()} returns a {@link ValueContainerImpl}, it should be a new instance not referenced by anybody else:
+   * it becomes the merged data of the container and is modified in place.
+   */
   public interface Initializer<T> extends Computable<ValueContainer<T>> {
     Object getLock();
   }
@@ -118,7 +122,7 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
       final ValueContainerImpl<Value> newMerged;
 
       if (fromDisk instanceof ValueContainerImpl) {
-        newMerged = ((ValueContainerImpl<Value>)fromDisk).copy();
+        newMerged = (ValueContainerImpl<Value>)fromDisk;
       } else {
         newMerged = ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData().copy();
       }
@@ -82,6 +82,7 @@ import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -94,6 +95,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.FileBasedIndexImpl");
   @NonNls
   private static final String CORRUPTION_MARKER_NAME = "corruption.marker";
+  private static final boolean ourPerKeyIndexUpdates = SystemProperties.getBooleanProperty("idea.indices.per.key.updates", false);
   private final Map<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>> myIndices = new THashMap<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>>();
   private final Map<ID<?, ?>, Semaphore> myUnsavedDataIndexingSemaphores = new THashMap<ID<?,?>, Semaphore>();
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
@@ -481,7 +483,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       index = (MapReduceIndex<K,V, FileContent>)custom;
     }
     else {
-      index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage);
+      index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage, ourPerKeyIndexUpdates);
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
@@ -962,8 +964,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
-    return set != null && processVirtualFiles(set, filter, processor);
+    final TIntArrayList ids = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
+    return ids != null && processVirtualFiles(ids, filter, processor);
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
@@ -1060,23 +1062,26 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return null; // ok, no filtering
   }
 
+  /**
+   * @return sorted ids of the files, or null if the index is not available
+   */
   @Nullable 
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+  private <K, V> TIntArrayList collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+                                                               @NotNull final Collection<K> dataKeys,
+                                                               @NotNull final GlobalSearchScope filter,
+                                                               @Nullable final Condition<V> valueChecker,
+                                                               @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntArrayList, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntArrayList, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
+        public TIntArrayList convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          TIntArrayList mainIntersection = null; // sorted
 
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
             final ValueContainer<V> container = index.getData(dataKey);
+            final TIntArrayList ids = new TIntArrayList();
 
             for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
               final V value = valueIt.next();
@@ -1086,34 +1091,42 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
               ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
 
-              if (mainIntersection == null || iterator.size() < mainIntersection.size()) {
+              if (mainIntersection == null) {
+                while (iterator.hasNext()) {
+                  final int id = iterator.next();
+                  if (projectFilesFilter == null || projectFilesFilter.contains(id)) {
+                    ids.add(id);
+                  }
+                }
+              }
+              else if (iterator.size() < mainIntersection.size()) {
                 while (iterator.hasNext()) {
                   final int id = iterator.next();
-                  if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
-                      mainIntersection != null && mainIntersection.contains(id)
-                     ) {
-                    copy.add(id);
+                  if (mainIntersection.binarySearch(id) >= 0) {
+                    ids.add(id);
                   }
                 }
-              } else {
-                mainIntersection.forEach(new TIntProcedure() {
-                  final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
-                  @Override
-                  public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
-                    return true;
+              }
+              else {
+                // ids of a value are kept sorted too, so the larger side is probed with binary searches
+                final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
+                for (int i = 0; i < mainIntersection.size(); i++) {
+                  final int id = mainIntersection.getQuick(i);
+                  if (predicate.contains(id)) {
+                    ids.add(id);
                   }
-                });
+                }
               }
             }
 
-            mainIntersection = copy;
-            if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+            if (ids.isEmpty()) {
+              return ids; // no need to read the rest of the containers
             }
+            ids.sort(); // a file has one value per key, so ids of different values don't repeat
+            mainIntersection = ids;
           }
 
-          return mainIntersection;
+          return mainIntersection != null ? mainIntersection : new TIntArrayList();
         }
       };
 
@@ -1121,7 +1134,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  private static boolean processVirtualFiles(@NotNull TIntArrayList ids,
                                              @NotNull final GlobalSearchScope filter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
@@ -1619,6 +1632,19 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     });
   }
 
+  /**
+   * @return total time spent by indexing threads waiting for index write locks, in milliseconds
+   */
+  public long getIndexWriteLockWaitTime() {
+    long result = 0;
+    for (Pair<UpdatableIndex<?, ?, FileContent>, InputFilter> pair : myIndices.values()) {
+      if (pair.getFirst() instanceof MapReduceIndex) {
+        result += ((MapReduceIndex)pair.getFirst()).getWriteLockWaitTime(TimeUnit.MILLISECONDS);
+      }
+    }
+    return result;
+  }
+
   public void processRefreshedFile(@NotNull Project project, @NotNull final com.intellij.ide.caches.FileContent fileContent) {
     myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
     myChangedFilesCollector.processFileImpl(project, fileContent, false);
@@ -239,6 +239,9 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
 
   @Override
   public void addValue(final Key key, final int inputId, final Value value) throws StorageException {
+    // containers are changed under the lock too: otherwise a container of another key dropped from the cache by a concurrent reader
+    // may be written while it is being changed
+    l.lock();
     try {
       myMap.markDirty();
       if (!myHighKeySelectivity) {
@@ -259,10 +262,14 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     catch (IOException e) {
       throw new StorageException(e);
     }
+    finally {
+      l.unlock();
+    }
   }
 
   @Override
   public void removeAllValues(Key key, int inputId) throws StorageException {
+    l.lock();
     try {
       myMap.markDirty();
       // important: assuming the key exists in the index
@@ -271,6 +278,9 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     catch (IOException e) {
       throw new StorageException(e);
     }
+    finally {
+      l.unlock();
+    }
   }
 
 }
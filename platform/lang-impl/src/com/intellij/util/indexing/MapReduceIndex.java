@@ -24,6 +24,7 @@ import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.THashMap;
+import gnu.trove.THashSet;
 import gnu.trove.TObjectObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -32,7 +33,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -46,15 +50,49 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   @NotNull protected final IndexStorage<Key, Value> myStorage;
   @Nullable private PersistentHashMap<Integer, Collection<Key>> myInputsIndex;
 
+  private static final int KEY_LOCK_COUNT = 64;
+
   private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
-  
+  private final AtomicLong myWriteLockWaitNanos = new AtomicLong();
+  // non-null in the per-key update mode: serializes updaters
+  @Nullable private final Lock myUpdateLock;
+  // non-null in the per-key update mode: a key is changed under the write lock of its stripe and read under its read lock
+  @Nullable private final ReentrantReadWriteLock[] myKeyLocks;
+
   private Factory<PersistentHashMap<Integer, Collection<Key>>> myInputsIndexFactory;
 
 
   public MapReduceIndex(@Nullable final ID<Key, Value> indexId, DataIndexer<Key, Value, Input> indexer, @NotNull IndexStorage<Key, Value> storage) {
+    this(indexId, indexer, storage, false);
+  }
+
+  /**
+   * @param perKeyUpdates if true, {@link #update(int, Object)} holds the read lock instead of the write lock, and every key is changed
+   *                      under the write lock of a stripe the key belongs to. A reader then waits only for an update of a key from
+   *                      the same stripe, and {@link #getData(Object)} returns a copy of the values made under the stripe lock.
+   *                      Every key is still updated atomically, but a reader may see an input partially reindexed across different
+   *                      keys. {@link #flush()}, {@link #clear()} and changes made under the write lock still wait for the whole
+   *                      update. The storage must allow operations on different keys to run concurrently. Must not be used by
+   *                      indices whose clients take the write lock themselves around updates.
+   */
+  public MapReduceIndex(@Nullable final ID<Key, Value> indexId,
+                        DataIndexer<Key, Value, Input> indexer,
+                        @NotNull IndexStorage<Key, Value> storage,
+                        boolean perKeyUpdates) {
     myIndexId = indexId;
     myIndexer = indexer;
     myStorage = storage;
+    if (perKeyUpdates) {
+      myUpdateLock = new ReentrantLock();
+      myKeyLocks = new ReentrantReadWriteLock[KEY_LOCK_COUNT];
+      for (int i = 0; i < myKeyLocks.length; i++) {
+        myKeyLocks[i] = new ReentrantReadWriteLock();
+      }
+    }
+    else {
+      myUpdateLock = null;
+      myKeyLocks = null;
+    }
   }
 
   @NotNull
@@ -64,8 +102,9 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
   @Override
   public void clear() throws StorageException {
+    final Lock lock = getWriteLock();
     try {
-      getWriteLock().lock();
+      lock.lock();
       myStorage.clear();
       if (myInputsIndex != null) {
         final File baseFile = myInputsIndex.getBaseFile();
@@ -85,12 +124,13 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
       LOG.error(e);
     }
     finally {
-      getWriteLock().unlock();
+      lock.unlock();
     }
   }
 
   @Override
   public void flush() throws StorageException{
+    if (myUpdateLock != null) myUpdateLock.lock(); // don't save an input partially updated in the per-key mode
     try {
       getReadLock().lock();
       final PersistentHashMap<Integer, Collection<Key>> inputsIndex = myInputsIndex;
@@ -113,6 +153,7 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     }
     finally {
       getReadLock().unlock();
+      if (myUpdateLock != null) myUpdateLock.unlock();
     }
   }
 
@@ -153,6 +194,13 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     return myLock.writeLock();
   }
 
+  /**
+   * @return total time {@link #update(int, Object)} callers spent waiting for the write lock
+   */
+  public long getWriteLockWaitTime(@NotNull TimeUnit unit) {
+    return unit.convert(myWriteLockWaitNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
   @NotNull
   @Override
   public Collection<Key> getAllKeys() throws StorageException {
@@ -179,13 +227,42 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     final Lock lock = getReadLock();
     try {
       lock.lock();
-      return myStorage.read(key);
+      if (myKeyLocks == null) {
+        return myStorage.read(key);
+      }
+      final Lock keyLock = getKeyLock(key).readLock();
+      keyLock.lock();
+      try {
+        return copyOf(myStorage.read(key));
+      }
+      finally {
+        keyLock.unlock();
+      }
     }
     finally {
       lock.unlock();
     }
   }
 
+  @NotNull
+  private static <Value> ValueContainer<Value> copyOf(@NotNull ValueContainer<Value> container) {
+    final ValueContainerImpl<Value> copy = new ValueContainerImpl<Value>();
+    container.forEach(new ValueContainer.ContainerAction<Value>() {
+      @Override
+      public boolean perform(int id, Value value) {
+        copy.addValue(id, value);
+        return true;
+      }
+    });
+    return copy;
+  }
+
+  @NotNull
+  private ReentrantReadWriteLock getKeyLock(Key key) {
+    assert myKeyLocks != null;
+    return myKeyLocks[(key.hashCode() & Integer.MAX_VALUE) % myKeyLocks.length];
+  }
+
   public void setInputIdToDataKeysIndex(Factory<PersistentHashMap<Integer, Collection<Key>>> factory) throws IOException {
     myInputsIndexFactory = factory;
     myInputsIndex = createInputsIndex();
@@ -224,7 +301,11 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   }
 
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
-    getWriteLock().lock();
+    if (myUpdateLock != null) {
+      updateWithMapPerKey(inputId, newData, oldKeysGetter);
+      return;
+    }
+    lockForWrite();
     try {
       try {
         for (Key key : oldKeysGetter.call()) {
@@ -257,23 +338,99 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
           myStorage.addValue(entry.getKey(), inputId, entry.getValue());
         }
       }
-      if (myInputsIndex != null) {
+      updateInputsIndex(inputId, newData);
+    }
+    finally {
+      getWriteLock().unlock();
+    }
+  }
+
+  private void updateWithMapPerKey(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter)
+    throws StorageException {
+    assert myUpdateLock != null;
+    myUpdateLock.lock();
+    try {
+      // excludes clear(), dispose() and other changes made under the write lock, but not readers
+      getReadLock().lock();
+      try {
+        final Collection<Key> oldKeys;
         try {
-          final Set<Key> newKeys = newData.keySet();
-          if (newKeys.size() > 0) {
-            myInputsIndex.put(inputId, newKeys);
+          oldKeys = oldKeysGetter.call();
+        }
+        catch (Exception e) {
+          throw new StorageException(e);
+        }
+
+        for (Key key : oldKeys) {
+          final Lock keyLock = lockKeyForWrite(key);
+          try {
+            myStorage.removeAllValues(key, inputId);
+            if (newData.containsKey(key)) {
+              myStorage.addValue(key, inputId, newData.get(key));
+            }
           }
-          else {
-            myInputsIndex.remove(inputId);
+          finally {
+            keyLock.unlock();
           }
         }
-        catch (IOException e) {
-          throw new StorageException(e);
+
+        final Set<Key> oldKeySet = oldKeys instanceof Set ? (Set<Key>)oldKeys : new THashSet<Key>(oldKeys);
+        for (Map.Entry<Key, Value> entry : newData.entrySet()) {
+          final Key key = entry.getKey();
+          if (oldKeySet.contains(key)) continue;
+          final Lock keyLock = lockKeyForWrite(key);
+          try {
+            myStorage.addValue(key, inputId, entry.getValue());
+          }
+          finally {
+            keyLock.unlock();
+          }
         }
+
+        updateInputsIndex(inputId, newData);
+      }
+      finally {
+        getReadLock().unlock();
       }
     }
     finally {
-      getWriteLock().unlock();
+      myUpdateLock.unlock();
+    }
+  }
+
+  private void lockForWrite() {
+    lockForWrite(getWriteLock());
+  }
+
+  @NotNull
+  private Lock lockKeyForWrite(Key key) {
+    final Lock keyLock = getKeyLock(key).writeLock();
+    lockForWrite(keyLock);
+    return keyLock;
+  }
+
+  private void lockForWrite(@NotNull Lock writeLock) {
+    if (!writeLock.tryLock()) {
+      final long started = System.nanoTime();
+      writeLock.lock();
+      myWriteLockWaitNanos.addAndGet(System.nanoTime() - started);
+    }
+  }
+
+  private void updateInputsIndex(int inputId, @NotNull Map<Key, Value> newData) throws StorageException {
+    if (myInputsIndex != null) {
+      try {
+        final Set<Key> newKeys = newData.keySet();
+        if (newKeys.size() > 0) {
+          myInputsIndex.put(inputId, newKeys);
+        }
+        else {
+          myInputsIndex.remove(inputId);
+        }
+      }
+      catch (IOException e) {
+        throw new StorageException(e);
+      }
     }
   }
 
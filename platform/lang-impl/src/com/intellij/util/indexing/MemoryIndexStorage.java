@@ -32,7 +32,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *         Date: Dec 10, 2007
  */
 public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value> {
-  private final Map<Key, ChangeTrackingValueContainer<Value>> myMap = new HashMap<Key,ChangeTrackingValueContainer<Value>>();
+  // concurrent: keys may be updated and read concurrently in the per-key update mode of MapReduceIndex
+  private final Map<Key, ChangeTrackingValueContainer<Value>> myMap = ContainerUtil.newConcurrentMap();
   private final IndexStorage<Key, Value> myBackendStorage;
   private final List<BufferingStateListener> myListeners = ContainerUtil.createEmptyCOWList();
   private final AtomicBoolean myBufferingEnabled = new AtomicBoolean(false);
@@ -114,7 +115,7 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
         if (stopList.contains(key)) return true;
 
         final UpdatableValueContainer<Value> container = myMap.get(key);
-        if (container != null && container.size() == 0) {
+        if (container != null && isEmpty(container)) {
           return true;
         }
         return processor.process(key);
@@ -130,10 +131,19 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
     return myBackendStorage.processKeys(decoratingProcessor);
   }
 
+  private static boolean isEmpty(@NotNull UpdatableValueContainer<?> container) {
+    synchronized (container) {
+      return container.size() == 0;
+    }
+  }
+
   @Override
   public void addValue(final Key key, final int inputId, final Value value) throws StorageException {
     if (myBufferingEnabled.get()) {
-      getMemValueContainer(key).addValue(inputId, value);
+      final UpdatableValueContainer<Value> container = getMemValueContainer(key);
+      synchronized (container) {
+        container.addValue(inputId, value);
+      }
       return;
     }
     final ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
@@ -147,7 +157,10 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
   @Override
   public void removeAllValues(Key key, int inputId) throws StorageException {
     if (myBufferingEnabled.get()) {
-      getMemValueContainer(key).removeAssociatedValue(inputId);
+      final UpdatableValueContainer<Value> container = getMemValueContainer(key);
+      synchronized (container) {
+        container.removeAssociatedValue(inputId);
+      }
       return;
     }
     final ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.ArrayUtil;
+
+import java.util.Arrays;
+
+/**
+ * Set of input ids stored as a sorted int array (4 bytes per id, no hashing overhead).
+ * Random additions and removals are collected in small sorted buffers which are merged into the array when they grow,
+ * ids added in increasing order (e.g. when a container is read from disk) are appended to the array directly.
+ *
+ * Like {@link ValueContainerImpl} the set is modified under write lock and read under read lock, so read methods never
+ * change the state: iteration and lookups take pending changes into account without merging them.
+ */
+final class SortedIdSet implements Cloneable {
+  private static final int MIN_BUFFER_SIZE = 8;
+  private static final int MAX_BUFFER_SIZE = 1024;
+
+  private int[] myIds;
+  private int mySize;
+  private int[] myAdded = ArrayUtil.EMPTY_INT_ARRAY;   // sorted, none of them is in myIds
+  private int myAddedSize;
+  private int[] myRemoved = ArrayUtil.EMPTY_INT_ARRAY; // sorted, all of them are in myIds
+  private int myRemovedSize;
+
+  SortedIdSet(int initialCapacity) {
+    myIds = new int[initialCapacity];
+  }
+
+  public int size() {
+    return mySize + myAddedSize - myRemovedSize;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public boolean contains(int id) {
+    if (Arrays.binarySearch(myIds, 0, mySize, id) >= 0) {
+      return myRemovedSize == 0 || Arrays.binarySearch(myRemoved, 0, myRemovedSize, id) < 0;
+    }
+    return myAddedSize > 0 && Arrays.binarySearch(myAdded, 0, myAddedSize, id) >= 0;
+  }
+
+  public boolean add(int id) {
+    if (myAddedSize == 0 && myRemovedSize == 0 && (mySize == 0 || myIds[mySize - 1] < id)) {
+      if (mySize == myIds.length) {
+        myIds = ArrayUtil.realloc(myIds, Math.max(4, mySize * 3 / 2));
+      }
+      myIds[mySize++] = id;
+      return true;
+    }
+
+    if (Arrays.binarySearch(myIds, 0, mySize, id) >= 0) {
+      final int removedIndex = Arrays.binarySearch(myRemoved, 0, myRemovedSize, id);
+      if (removedIndex < 0) return false;
+      System.arraycopy(myRemoved, removedIndex + 1, myRemoved, removedIndex, myRemovedSize - removedIndex - 1);
+      myRemovedSize--;
+      return true;
+    }
+
+    final int addedIndex = Arrays.binarySearch(myAdded, 0, myAddedSize, id);
+    if (addedIndex >= 0) return false;
+    myAdded = insert(myAdded, myAddedSize++, -addedIndex - 1, id);
+    if (myAddedSize >= getBufferLimit()) {
+      mergeChanges();
+    }
+    return true;
+  }
+
+  public boolean remove(int id) {
+    final int addedIndex = Arrays.binarySearch(myAdded, 0, myAddedSize, id);
+    if (addedIndex >= 0) {
+      System.arraycopy(myAdded, addedIndex + 1, myAdded, addedIndex, myAddedSize - addedIndex - 1);
+      myAddedSize--;
+      return true;
+    }
+
+    final int index = Arrays.binarySearch(myIds, 0, mySize, id);
+    if (index < 0) return false;
+    if (index == mySize - 1 && myRemovedSize == 0) {
+      mySize--;
+      return true;
+    }
+
+    final int removedIndex = Arrays.binarySearch(myRemoved, 0, myRemovedSize, id);
+    if (removedIndex >= 0) return false;
+    myRemoved = insert(myRemoved, myRemovedSize++, -removedIndex - 1, id);
+    if (myRemovedSize >= getBufferLimit()) {
+      mergeChanges();
+    }
+    return true;
+  }
+
+  /**
+   * Releases unused capacity if there is much of it.
+   */
+  public void compact() {
+    final int size = size();
+    if (myIds.length - size > Math.max(4, size / 2)) {
+      mergeChanges();
+      myIds = ArrayUtil.realloc(myIds, mySize);
+      if (myAdded.length > MIN_BUFFER_SIZE) myAdded = ArrayUtil.EMPTY_INT_ARRAY;
+      if (myRemoved.length > MIN_BUFFER_SIZE) myRemoved = ArrayUtil.EMPTY_INT_ARRAY;
+    }
+  }
+
+  public ValueContainer.IntIterator iterator() {
+    return new ValueContainer.IntIterator() {
+      private final int mySetSize = SortedIdSet.this.size();
+      private int myIdIndex = 0;
+      private int myAddedIndex = 0;
+      private int myRemovedIndex = 0;
+
+      @Override
+      public boolean hasNext() {
+        skipRemoved();
+        return myIdIndex < mySize || myAddedIndex < myAddedSize;
+      }
+
+      @Override
+      public int next() {
+        skipRemoved();
+        if (myAddedIndex < myAddedSize && (myIdIndex == mySize || myAdded[myAddedIndex] < myIds[myIdIndex])) {
+          return myAdded[myAddedIndex++];
+        }
+        return myIds[myIdIndex++];
+      }
+
+      @Override
+      public int size() {
+        return mySetSize;
+      }
+
+      private void skipRemoved() {
+        while (myRemovedIndex < myRemovedSize && myIdIndex < mySize && myRemoved[myRemovedIndex] == myIds[myIdIndex]) {
+          myRemovedIndex++;
+          myIdIndex++;
+        }
+      }
+    };
+  }
+
+  @Override
+  public SortedIdSet clone() {
+    try {
+      final SortedIdSet clone = (SortedIdSet)super.clone();
+      clone.myIds = myIds.clone();
+      clone.myAdded = myAddedSize > 0 ? myAdded.clone() : ArrayUtil.EMPTY_INT_ARRAY;
+      clone.myRemoved = myRemovedSize > 0 ? myRemoved.clone() : ArrayUtil.EMPTY_INT_ARRAY;
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int getBufferLimit() {
+    return Math.min(MAX_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, mySize >> 4));
+  }
+
+  private void mergeChanges() {
+    if (myAddedSize == 0 && myRemovedSize == 0) return;
+
+    final int newSize = size();
+    final int[] result = newSize <= myIds.length && myAddedSize == 0 ? myIds : new int[newSize];
+    int resultIndex = 0;
+    int idIndex = 0;
+    int addedIndex = 0;
+    int removedIndex = 0;
+    while (idIndex < mySize || addedIndex < myAddedSize) {
+      if (addedIndex < myAddedSize && (idIndex == mySize || myAdded[addedIndex] < myIds[idIndex])) {
+        result[resultIndex++] = myAdded[addedIndex++];
+        continue;
+      }
+      final int id = myIds[idIndex++];
+      if (removedIndex < myRemovedSize && myRemoved[removedIndex] == id) {
+        removedIndex++;
+        continue;
+      }
+      result[resultIndex++] = id;
+    }
+
+    myIds = result;
+    mySize = newSize;
+    myAddedSize = 0;
+    myRemovedSize = 0;
+  }
+
+  private static int[] insert(int[] array, int size, int index, int value) {
+    if (size == array.length) {
+      array = ArrayUtil.realloc(array, Math.max(MIN_BUFFER_SIZE, size * 2));
+    }
+    System.arraycopy(array, index, array, index + 1, size - index);
+    array[index] = value;
+    return array;
+  }
+}
@@ -38,6 +38,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   private final Project myProject;
   private final AtomicBoolean myFinishedUpdate = new AtomicBoolean();
   private long myStarted;
+  private long myLockWaitTimeAtStart;
 
   public UnindexedFilesUpdater(final Project project, FileBasedIndexImpl index) {
     myIndex = index;
@@ -60,6 +61,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
     LOG.info("Unindexed files update started: " + files.size() + " files to update");
     myFinishedUpdate.set(false);
     myStarted = System.currentTimeMillis();
+    myLockWaitTimeAtStart = myIndex.getIndexWriteLockWaitTime();
     return VfsUtilCore.toVirtualFileArray(files);
   }
 
@@ -73,7 +75,8 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   public void updatingDone() {
     if (myFinishedUpdate.compareAndSet(false, true)) {
       myIndex.filesUpdateFinished();
-      LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
+      LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms, " +
+               (myIndex.getIndexWriteLockWaitTime() - myLockWaitTimeAtStart) + " ms spent waiting for index write locks");
     }
   }
 
@@ -7,6 +7,7 @@ import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -63,10 +64,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
     }
   }
 
-  private static final class ValueContainerExternalizer<T> implements DataExternalizer<ValueContainer<T>> {
+  static final class ValueContainerExternalizer<T> implements DataExternalizer<ValueContainer<T>> {
     @NotNull private final DataExternalizer<T> myExternalizer;
 
-    private ValueContainerExternalizer(@NotNull DataExternalizer<T> externalizer) {
+    ValueContainerExternalizer(@NotNull DataExternalizer<T> externalizer) {
       myExternalizer = externalizer;
     }
 
@@ -86,12 +87,12 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
-          DataInputOutputUtil.writeSINT(out, ids.size());
-          while (ids.hasNext()) {
-            final int id = ids.next();
-            DataInputOutputUtil.writeSINT(out, id);
-          }
+        if (ids != null && ids.size() > 1) {
+          saveSortedIds(out, ids);
+        }
+        else if (ids != null && ids.hasNext()) {
+          DataInputOutputUtil.writeSINT(out, 1);
+          DataInputOutputUtil.writeSINT(out, ids.next());
         }
         else {
           DataInputOutputUtil.writeSINT(out, 0);
@@ -99,6 +100,26 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
     }
 
+    /**
+     * Several ids are written as negated count followed by differences between subsequent sorted ids,
+     * which usually take one or two bytes each instead of three or four for absolute file ids
+     */
+    private static void saveSortedIds(final DataOutput out, @NotNull final ValueContainer.IntIterator ids) throws IOException {
+      final int[] sorted = new int[ids.size()];
+      int count = 0;
+      while (ids.hasNext()) {
+        sorted[count++] = ids.next();
+      }
+      Arrays.sort(sorted, 0, count);
+
+      DataInputOutputUtil.writeSINT(out, -count);
+      int prev = 0;
+      for (int i = 0; i < count; i++) {
+        DataInputOutputUtil.writeINT(out, sorted[i] - prev);
+        prev = sorted[i];
+      }
+    }
+
     @NotNull
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
@@ -115,9 +136,18 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
-              valueContainer.addValue(id, value);
+            if (idCount < 0) {
+              int id = 0;
+              for (int i = 0; i < -idCount; i++) {
+                id += DataInputOutputUtil.readINT(in);
+                valueContainer.addValue(id, value);
+              }
+            }
+            else {
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
@@ -16,6 +16,7 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
@@ -28,23 +29,34 @@ import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterClient;
 import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ui.UIUtil;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
+  private static final int MIN_PARALLEL_LEXING_CHUNK = 512 * 1024;
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<IElementType, TextAttributes>();
@@ -303,21 +315,36 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    long started = System.currentTimeMillis();
     final TokenProcessor processor = createTokenProcessor(0);
-    myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
-    int i = 0;
-    while (true) {
-      final IElementType tokenType = myLexer.getTokenType();
-      if (tokenType == null) break;
-
-      int data = packData(tokenType, myLexer.getState());
-      processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
-      i++;
-      myLexer.advance();
+    TIntArrayList chunkStarts = new TIntArrayList();
+    AtomicBoolean canceled = new AtomicBoolean();
+    List<Future<LexedChunk>> chunks = startParallelLexing(text, chunkStarts, canceled);
+    int tokenCount;
+    if (chunks == null) {
+      tokenCount = lexSequentially(text, 0, processor, 0);
+    }
+    else {
+      try {
+        LexedChunk firstChunk = lexChunk(myLexer, text, 0, chunkStarts.get(1), null);
+        tokenCount = mergeChunks(text, firstChunk, chunks, chunkStarts, processor);
+      }
+      finally {
+        // chunks which aren't needed anymore are abandoned, they lex a copy of the text and stop soon
+        canceled.set(true);
+        for (Future<LexedChunk> future : chunks) {
+          future.cancel(false);
+        }
+      }
     }
     processor.finish();
 
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(myLexer.getClass().getName() + ": " + text.length() + " chars lexed into " + tokenCount + " tokens in " +
+                (System.currentTimeMillis() - started) + "ms" + (chunks == null ? "" : " using " + chunkStarts.size() + " chunks"));
+    }
+
     if(myEditor != null && !ApplicationManager.getApplication().isHeadlessEnvironment()) {
       UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
         @Override
@@ -332,6 +359,214 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     return new TokenProcessor();
   }
 
+  private int lexSequentially(@NotNull CharSequence text, int startOffset, @NotNull TokenProcessor processor, int index) {
+    myLexer.start(text, startOffset, text.length(), myInitialState);
+    while (true) {
+      final IElementType tokenType = myLexer.getTokenType();
+      if (tokenType == null) break;
+
+      int data = packData(tokenType, myLexer.getState());
+      processor.addToken(index, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
+      index++;
+      myLexer.advance();
+    }
+    return index;
+  }
+
+  /**
+   * @return the maximum number of chunks a text may be split into to be lexed in parallel
+   */
+  int getParallelLexingChunkCount() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Large texts are split into chunks at line starts, and each chunk except the first one is lexed on a pooled thread
+   * by its own lexer, as if the lexer was in the initial state at the chunk start. The guess is verified while merging.
+   * The pooled threads lex an immutable snapshot of the text, since the text may be changed as soon as the chunks are abandoned.
+   *
+   * @return lexing tasks for all chunks but the first one, or null if the text should be lexed sequentially
+   */
+  @Nullable
+  private List<Future<LexedChunk>> startParallelLexing(@NotNull CharSequence text,
+                                                       @NotNull TIntArrayList chunkStarts,
+                                                       @NotNull final AtomicBoolean canceled) {
+    Application application = ApplicationManager.getApplication();
+    int chunkCount = Math.min(getParallelLexingChunkCount(), text.length() / MIN_PARALLEL_LEXING_CHUNK);
+    if (chunkCount < 2 || application == null || !Registry.is("editor.highlighter.parallel.lexing")) return null;
+
+    chunkStarts.add(0);
+    for (int i = 1; i < chunkCount; i++) {
+      int lineStart = StringUtil.indexOf(text, '\n', (int)((long)text.length() * i / chunkCount)) + 1;
+      if (lineStart > chunkStarts.get(chunkStarts.size() - 1) && lineStart < text.length()) {
+        chunkStarts.add(lineStart);
+      }
+    }
+    if (chunkStarts.size() < 2) return null;
+
+    List<Lexer> lexers = new ArrayList<Lexer>();
+    for (int i = 1; i < chunkStarts.size(); i++) {
+      Lexer lexer = myHighlighter.getHighlightingLexer();
+      if (lexer == myLexer || lexers.contains(lexer)) return null; // the highlighter shares its lexer
+      lexer.start(ArrayUtil.EMPTY_CHAR_SEQUENCE);
+      if (lexer.getState() != myInitialState) return null;
+      lexers.add(lexer);
+    }
+
+    final CharSequence textCopy = getImmutableText(text);
+    List<Future<LexedChunk>> chunks = new ArrayList<Future<LexedChunk>>();
+    for (int i = 1; i < chunkStarts.size(); i++) {
+      final Lexer lexer = lexers.get(i - 1);
+      final int startOffset = chunkStarts.get(i);
+      final int nextChunkStart = i + 1 < chunkStarts.size() ? chunkStarts.get(i + 1) : text.length();
+      chunks.add(application.executeOnPooledThread(new Callable<LexedChunk>() {
+        @Override
+        public LexedChunk call() {
+          return lexChunk(lexer, textCopy, startOffset, nextChunkStart, canceled);
+        }
+      }));
+    }
+    return chunks;
+  }
+
+  // the document snapshot is shared with other background readers, so only texts which aren't the document text are copied
+  @NotNull
+  private CharSequence getImmutableText(@NotNull CharSequence text) {
+    Document document = getDocument();
+    if (document instanceof DocumentImpl && text == document.getCharsSequence() &&
+        ApplicationManager.getApplication().isReadAccessAllowed()) {
+      return DocumentImpl.getImmutableCharSequence(document);
+    }
+    return text.toString();
+  }
+
+  // lexes from startOffset until the first token in the initial state at or after nextChunkStart, or until canceled
+  @NotNull
+  private LexedChunk lexChunk(@NotNull Lexer lexer, @NotNull CharSequence text, int startOffset, int nextChunkStart,
+                              @Nullable AtomicBoolean canceled) {
+    LexedChunk chunk = new LexedChunk();
+    lexer.start(text, startOffset, text.length(), myInitialState);
+    while (canceled == null || !canceled.get()) {
+      IElementType tokenType = lexer.getTokenType();
+      if (tokenType == null) {
+        chunk.myEndOffset = text.length();
+        return chunk;
+      }
+      int tokenStart = lexer.getTokenStart();
+      int state = lexer.getState();
+      if (tokenStart >= nextChunkStart && state == myInitialState) {
+        chunk.myEndOffset = tokenStart;
+        return chunk;
+      }
+      chunk.add(tokenStart, lexer.getTokenEnd(), packData(tokenType, state));
+      lexer.advance();
+    }
+    return chunk;
+  }
+
+  /**
+   * Passes tokens of all chunks to the processor. Lexing of a chunk is only correct from the point where the real lexer
+   * comes to one of its tokens in the initial state, so the text between the end of the previous chunk and that point is lexed again.
+   * That's usually the first token, since chunks start at line boundaries.
+   * <p/>
+   * Under a write action the pooled threads aren't waited for, since a lexer may need a read action: a chunk which isn't lexed yet
+   * is lexed on the calling thread instead.
+   */
+  private int mergeChunks(@NotNull CharSequence text,
+                          @NotNull LexedChunk firstChunk,
+                          @NotNull List<Future<LexedChunk>> chunks,
+                          @NotNull TIntArrayList chunkStarts,
+                          @NotNull TokenProcessor processor) {
+    final boolean mayWait = !ApplicationManager.getApplication().isWriteAccessAllowed();
+    int index = firstChunk.addTokens(0, processor, 0);
+    int resumeOffset = firstChunk.myEndOffset; // all tokens before are passed to the processor, the lexer is in the initial state here
+    for (int i = 0; i < chunks.size(); i++) {
+      if (resumeOffset == text.length()) break;
+      LexedChunk chunk = getLexedChunk(chunks.get(i), mayWait);
+      if (chunk == null) {
+        int nextChunkStart = i + 2 < chunkStarts.size() ? chunkStarts.get(i + 2) : text.length();
+        if (resumeOffset < nextChunkStart) {
+          LexedChunk ownChunk = lexChunk(myLexer, text, resumeOffset, nextChunkStart, null);
+          index = ownChunk.addTokens(0, processor, index);
+          resumeOffset = ownChunk.myEndOffset;
+        }
+        continue;
+      }
+      if (resumeOffset >= chunk.myEndOffset) continue;
+
+      myLexer.start(text, resumeOffset, text.length(), myInitialState);
+      int firstMatching = -1;
+      while (true) {
+        IElementType tokenType = myLexer.getTokenType();
+        if (tokenType == null) return index;
+        int tokenStart = myLexer.getTokenStart();
+        int state = myLexer.getState();
+        int data = packData(tokenType, state);
+        if (state == myInitialState) {
+          firstMatching = chunk.findToken(tokenStart, data);
+          if (firstMatching >= 0) break;
+          if (tokenStart >= chunk.myEndOffset) {
+            resumeOffset = tokenStart; // missed the chunk completely
+            break;
+          }
+        }
+        processor.addToken(index++, tokenStart, myLexer.getTokenEnd(), data, tokenType);
+        myLexer.advance();
+      }
+
+      if (firstMatching >= 0) {
+        index = chunk.addTokens(firstMatching, processor, index);
+        resumeOffset = chunk.myEndOffset;
+      }
+    }
+    return resumeOffset < text.length() ? lexSequentially(text, resumeOffset, processor, index) : index;
+  }
+
+  /**
+   * @return the lexed chunk, or null if lexing has failed or hasn't completed yet and may not be waited for
+   */
+  @Nullable
+  private static LexedChunk getLexedChunk(@NotNull Future<LexedChunk> future, boolean mayWait) {
+    if (!mayWait && !future.isDone()) return null;
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (ExecutionException e) {
+      LOG.debug(e);
+      return null; // lexing the chunk on the calling thread will report the problem if it's not a concurrency issue
+    }
+  }
+
+  private static class LexedChunk {
+    private final TIntArrayList myStarts = new TIntArrayList();
+    private final TIntArrayList myEnds = new TIntArrayList();
+    private final TIntArrayList myData = new TIntArrayList();
+    private int myEndOffset; // start of the first token after the chunk, it's lexed in the initial state
+
+    private void add(int start, int end, int data) {
+      myStarts.add(start);
+      myEnds.add(end);
+      myData.add(data);
+    }
+
+    private int findToken(int start, int data) {
+      int i = myStarts.binarySearch(start);
+      return i >= 0 && myData.get(i) == data ? i : -1;
+    }
+
+    private int addTokens(int from, @NotNull TokenProcessor processor, int index) {
+      for (int i = from; i < myStarts.size(); i++) {
+        int data = myData.get(i);
+        processor.addToken(index++, myStarts.get(i), myEnds.get(i), data, unpackToken(data));
+      }
+      return index;
+    }
+  }
+
   private TextAttributes getAttributes(IElementType tokenType) {
     TextAttributes attrs = myAttributesMap.get(tokenType);
     if (attrs == null) {
@@ -286,6 +286,25 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   private final EditorSizeAdjustmentStrategy mySizeAdjustmentStrategy = new EditorSizeAdjustmentStrategy();
   private final Disposable myDisposable = Disposer.newDisposable();
 
+  private final long myCreationTime = System.currentTimeMillis();
+  private boolean myPainted;
+  // file type name -> {editors painted, total and max first paint latency in ms}, painting happens in EDT only
+  private static final Map<String, long[]> ourFirstPaintStatistics = new TreeMap<String, long[]>();
+
+  private final LineLayoutCache myLineLayoutCache = new LineLayoutCache();
+  @Nullable private char[] myPaintedText; // document text which is being painted, its fragment layouts are cached
+  // the painted line which contained the last fragment, fragments of a line are usually painted one after another
+  private int myPaintedLine = -1;
+  private int myPaintedLineStart;
+  private int myPaintedLineEnd;
+
+  // time spent in paint() per frame
+  private static final long SLOW_PAINT_NANOS = 16 * 1000 * 1000;
+  private int myPaintCount;
+  private long myTotalPaintNanos;
+  private long myMaxPaintNanos;
+  private long myLastPaintNanos;
+
   static {
     ourCaretBlinkingCommand = new RepaintCursorCommand();
     ourCaretBlinkingCommand.start();
@@ -628,6 +647,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     myLineHeight = -1;
     myDescent = -1;
     myPlainFontMetrics = null;
+    myLineLayoutCache.clear();
 
     boolean softWrapsUsedBefore = mySoftWrapModel.isSoftWrappingEnabled();
 
@@ -1552,9 +1572,12 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private void bulkUpdateStarted() {
+    // line numbers of the changes made in bulk mode aren't tracked
+    myLineLayoutCache.clear();
   }
 
   private void bulkUpdateFinished() {
+    myLineLayoutCache.clear();
     if (myScrollPane == null) {
       return;
     }
@@ -1590,7 +1613,10 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private void changedUpdate(DocumentEvent e) {
-    if (myScrollPane == null || myDocument.isInBulkUpdate()) return;
+    if (myDocument.isInBulkUpdate()) return;
+    myLineLayoutCache.linesChanged(myDocument.getLineNumber(e.getOffset()), countLineFeeds(e.getOldFragment()),
+                                   countLineFeeds(e.getNewFragment()));
+    if (myScrollPane == null) return;
 
     stopOptimizedScrolling();
     mySelectionModel.removeBlockSelection();
@@ -1784,6 +1810,33 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
   
   void paint(@NotNull Graphics2D g) {
+    long started = System.nanoTime();
+    try {
+      doPaint(g);
+    }
+    finally {
+      recordPaintTime(System.nanoTime() - started);
+    }
+  }
+
+  private void recordPaintTime(long nanos) {
+    myPaintCount++;
+    myTotalPaintNanos += nanos;
+    myMaxPaintNanos = Math.max(myMaxPaintNanos, nanos);
+    myLastPaintNanos = nanos;
+    if (nanos > SLOW_PAINT_NANOS && LOG.isDebugEnabled()) {
+      LOG.debug("Slow editor paint: " + nanos / 1000000 + "ms; " + getPaintStatistics());
+    }
+  }
+
+  @NotNull
+  public String getPaintStatistics() {
+    long averageNanos = myPaintCount == 0 ? 0 : myTotalPaintNanos / myPaintCount;
+    return "frames painted: " + myPaintCount + ", last: " + myLastPaintNanos / 1000 + "us, average: " + averageNanos / 1000 +
+           "us, max: " + myMaxPaintNanos / 1000 + "us, layout cache: " + myLineLayoutCache.getStatistics();
+  }
+
+  private void doPaint(@NotNull Graphics2D g) {
     Rectangle clip = g.getClipBounds();
 
     if (clip == null) {
@@ -1841,6 +1894,44 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     paintCaretCursor(g);
     
     paintComposedTextDecoration(g);
+
+    if (!myPainted) {
+      myPainted = true;
+      reportFirstPaint();
+    }
+  }
+
+  private void reportFirstPaint() {
+    long latency = System.currentTimeMillis() - myCreationTime;
+    String fileType = myVirtualFile == null ? "no file" : myVirtualFile.getFileType().getName();
+    long[] stats = ourFirstPaintStatistics.get(fileType);
+    if (stats == null) {
+      stats = new long[3];
+      ourFirstPaintStatistics.put(fileType, stats);
+    }
+    stats[0]++;
+    stats[1] += latency;
+    stats[2] = Math.max(stats[2], latency);
+    if (LOG.isDebugEnabled()) {
+      String file = myVirtualFile == null ? "editor without file" : fileType + " file " + myVirtualFile.getName();
+      LOG.debug("First paint of " + file + " (" + myDocument.getTextLength() + " chars) finished in " + latency +
+                "ms after the editor creation");
+    }
+  }
+
+  /**
+   * @return time from the editor creation till the end of its first paint per file type: number of editors, average and max in ms
+   */
+  @NotNull
+  public static String getFirstPaintStatistics() {
+    StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, long[]> entry : ourFirstPaintStatistics.entrySet()) {
+      long[] stats = entry.getValue();
+      if (result.length() > 0) result.append("; ");
+      result.append(entry.getKey()).append(": editors: ").append(stats[0]).append(", average: ").append(stats[1] / stats[0])
+        .append("ms, max: ").append(stats[2]).append("ms");
+    }
+    return result.toString();
   }
 
   private void paintCustomRenderers(@NotNull final Graphics2D g, final int clipStartOffset, final int clipEndOffset) {
@@ -2530,6 +2621,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   {
     myCurrentFontType = null;
     myLastCache = null;
+    myLineLayoutCache.checkFont(myScheme.getEditorFontName(), myScheme.getEditorFontSize(),
+                                UISettings.getInstance().ANTIALIASING_IN_EDITOR);
     final int plainSpaceWidth = EditorUtil.getSpaceWidth(Font.PLAIN, this);
     final int boldSpaceWidth = EditorUtil.getSpaceWidth(Font.BOLD, this);
     final int italicSpaceWidth = EditorUtil.getSpaceWidth(Font.ITALIC, this);
@@ -2582,6 +2675,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       g.setColor(currentColor);
 
       final char[] chars = myDocument.getRawChars();
+      myPaintedText = chars;
+      myPaintedLine = -1;
 
       while (!iterationState.atEnd() && !lIterator.atEnd()) {
         int hEnd = iterationState.getEndOffset();
@@ -2658,6 +2753,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       }
     }
     finally {
+      myPaintedText = null;
       iterationState.dispose();
     }
 
@@ -2704,7 +2800,9 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
            + ", soft wraps: " + (mySoftWrapModel.isSoftWrappingEnabled() ? "on" : "off")
            +  ", soft wraps data: " + getSoftWrapModel().dumpState()
            + "\n\nfolding data: " + getFoldingModel().dumpState()
-           + "\n\ndocument info: " + myDocument.dumpState();
+           + "\n\ndocument info: " + myDocument.dumpState()
+           + "\n\npaint statistics: " + getPaintStatistics()
+           + "\n\nfirst paint statistics: " + getFirstPaintStatistics();
   }
   
   private class CachedFontContent {
@@ -3107,10 +3205,12 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                 @NotNull final Rectangle clip) {
     int endX = x;
     if (start < end) {
-      FontInfo font = EditorUtil.fontForChar(text[start], fontType, this);
+      int layoutStart = start;
+      LineLayoutCache.FragmentLayout layout = getFragmentLayout(text, start, end, fontType);
+      FontInfo font = layout != null ? layout.getFont(0) : EditorUtil.fontForChar(text[start], fontType, this);
       for (int j = start; j < end; j++) {
         final char c = text[j];
-        FontInfo newFont = EditorUtil.fontForChar(c, fontType, this);
+        FontInfo newFont = layout != null ? layout.getFont(j - layoutStart) : EditorUtil.fontForChar(c, fontType, this);
         if (font != newFont || endX > clip.x + clip.width) {
           if (!(x < clip.x && endX < clip.x || x > clip.x + clip.width && endX > clip.x + clip.width)) {
             drawCharsCached(g, text, start, j, x, y, fontType, fontColor);
@@ -3135,7 +3235,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
         //   * the fonts mentioned above have different space width;
         // So, the problem was when white space followed russian word - the white space width was calculated using the english font
         // but drawn using the russian font, so, there was a visual inconsistency at the editor.
-        final int charWidth = font.charWidth(c);
+        final int charWidth = layout != null ? layout.getWidth(j - layoutStart) : font.charWidth(c);
         if (c == ' '
             && myCommonSpaceWidth > 0
             && myLastCache != null
@@ -3160,6 +3260,32 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     return endX;
   }
 
+  @Nullable
+  private LineLayoutCache.FragmentLayout getFragmentLayout(char[] text, int start, int end, @JdkConstants.FontStyle int fontType) {
+    if (text != myPaintedText || end - start > LineLayoutCache.MAX_FRAGMENT_LENGTH) return null;
+
+    if (myPaintedLine < 0 || start < myPaintedLineStart || end > myPaintedLineEnd) {
+      myPaintedLine = myDocument.getLineNumber(start);
+      myPaintedLineStart = myDocument.getLineStartOffset(myPaintedLine);
+      myPaintedLineEnd = myDocument.getLineEndOffset(myPaintedLine);
+    }
+    int line = myPaintedLine;
+    int lineStart = myPaintedLineStart;
+    LineLayoutCache.FragmentLayout layout = myLineLayoutCache.get(line, start - lineStart, end - lineStart, fontType);
+    if (layout == null) {
+      FontInfo[] fonts = new FontInfo[end - start];
+      int[] widths = new int[end - start];
+      for (int i = start; i < end; i++) {
+        FontInfo font = EditorUtil.fontForChar(text[i], fontType, this);
+        fonts[i - start] = font;
+        widths[i - start] = font.charWidth(text[i]);
+      }
+      layout = new LineLayoutCache.FragmentLayout(start - lineStart, end - lineStart, fontType, fonts, widths);
+      myLineLayoutCache.put(line, layout);
+    }
+    return layout;
+  }
+
   private void drawTabPlacer(Graphics g, int y, int start, int stop) {
     if (mySettings.isWhitespacesShown()) {
       myTabPainter.paint(g, y, start, stop);
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers fonts and widths of the characters of document text fragments painted by {@link EditorImpl}, so that repainting
+ * a line doesn't look for a font able to display every character in {@link ComplementaryFontsRegistry} and measure it again.
+ * <p/>
+ * A fragment is identified by its logical line, its offsets within the line and its font style, so highlighters changing
+ * the fragmentation or the style of a line simply produce new entries. Entries of a line are dropped when the line is changed,
+ * all entries are dropped when the editor font, its size or the antialiasing setting changes. The number of cached lines and the total length of cached fragments are
+ * bounded; the least recently painted lines are evicted first. A fragment keeps a single font and a single width instead of arrays
+ * when all its characters share them, which is the usual case. Fragments of a line are usually requested in the order they were
+ * put, so a lookup starts right after the fragment found last time.
+ * <p/>
+ * Not thread-safe, is expected to be used from the EDT only.
+ */
+class LineLayoutCache {
+  static final int MAX_FRAGMENT_LENGTH = 1024;
+  private static final int MAX_LINES = 1000;
+  private static final int MAX_FRAGMENTS_PER_LINE = 32;
+  private static final int MAX_CHARS = 128 * 1024;
+
+  private Map<Integer, LineLayout> myLines = createLinesMap();
+  private int myCharCount; // total length of the cached fragments
+  private String myFontName;
+  private int myFontSize;
+  private boolean myAntialiasing;
+  private long myHits;
+  private long myMisses;
+
+  @NotNull
+  private static Map<Integer, LineLayout> createLinesMap() {
+    return new LinkedHashMap<Integer, LineLayout>(16, 0.75f, true);
+  }
+
+  /**
+   * Clears the cache if any of the settings the fonts and widths of characters depend on differs from the previous call.
+   */
+  void checkFont(@NotNull String fontName, int fontSize, boolean antialiasing) {
+    if (fontSize != myFontSize || antialiasing != myAntialiasing || !fontName.equals(myFontName)) {
+      clear();
+      myFontName = fontName;
+      myFontSize = fontSize;
+      myAntialiasing = antialiasing;
+    }
+  }
+
+  @Nullable
+  FragmentLayout get(int line, int startInLine, int endInLine, int fontType) {
+    LineLayout lineLayout = myLines.get(line);
+    FragmentLayout fragment = lineLayout == null ? null : lineLayout.find(startInLine, endInLine, fontType);
+    if (fragment == null) {
+      myMisses++;
+    }
+    else {
+      myHits++;
+    }
+    return fragment;
+  }
+
+  void put(int line, @NotNull FragmentLayout fragment) {
+    LineLayout lineLayout = myLines.get(line);
+    if (lineLayout == null) {
+      lineLayout = new LineLayout();
+      myLines.put(line, lineLayout);
+    }
+    myCharCount += lineLayout.add(fragment);
+
+    Iterator<LineLayout> eldest = myLines.values().iterator();
+    while ((myLines.size() > MAX_LINES || myCharCount > MAX_CHARS) && myLines.size() > 1) {
+      myCharCount -= eldest.next().getLength();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Drops lines from {@code startLine} to {@code startLine + oldLineFeeds} inclusive and shifts the lines below,
+   * so that they match the document after the change.
+   */
+  void linesChanged(int startLine, int oldLineFeeds, int newLineFeeds) {
+    int oldEndLine = startLine + oldLineFeeds;
+    int shift = newLineFeeds - oldLineFeeds;
+    if (shift == 0) {
+      for (int line = startLine; line <= oldEndLine; line++) {
+        LineLayout lineLayout = myLines.remove(line);
+        if (lineLayout != null) {
+          myCharCount -= lineLayout.getLength();
+        }
+      }
+      return;
+    }
+
+    Map<Integer, LineLayout> lines = createLinesMap();
+    for (Map.Entry<Integer, LineLayout> entry : myLines.entrySet()) {
+      int line = entry.getKey();
+      if (line < startLine) {
+        lines.put(line, entry.getValue());
+      }
+      else if (line > oldEndLine) {
+        lines.put(line + shift, entry.getValue());
+      }
+      else {
+        myCharCount -= entry.getValue().getLength();
+      }
+    }
+    myLines = lines;
+  }
+
+  void clear() {
+    myLines.clear();
+    myCharCount = 0;
+  }
+
+  int getLineCount() {
+    return myLines.size();
+  }
+
+  int getCharCount() {
+    return myCharCount;
+  }
+
+  @NotNull
+  String getStatistics() {
+    return "lines: " + myLines.size() + ", chars: " + myCharCount + ", hits: " + myHits + ", misses: " + myMisses;
+  }
+
+  private static class LineLayout {
+    private final List<FragmentLayout> myFragments = new ArrayList<FragmentLayout>(2);
+    private int myNextIndex; // where the next lookup starts
+    private int myLength;
+
+    @Nullable
+    FragmentLayout find(int startInLine, int endInLine, int fontType) {
+      int size = myFragments.size();
+      for (int i = 0; i < size; i++) {
+        int index = (myNextIndex + i) % size;
+        FragmentLayout fragment = myFragments.get(index);
+        if (fragment.myStart == startInLine && fragment.myEnd == endInLine && fragment.myFontType == fontType) {
+          myNextIndex = index + 1;
+          return fragment;
+        }
+      }
+      return null;
+    }
+
+    // returns the change of the length
+    int add(@NotNull FragmentLayout fragment) {
+      int removedLength = 0;
+      if (myFragments.size() >= MAX_FRAGMENTS_PER_LINE) {
+        removedLength = myFragments.remove(0).getLength();
+        myNextIndex = 0;
+      }
+      myFragments.add(fragment);
+      myLength += fragment.getLength() - removedLength;
+      return fragment.getLength() - removedLength;
+    }
+
+    int getLength() {
+      return myLength;
+    }
+  }
+
+  static class FragmentLayout {
+    private final int myStart;
+    private final int myEnd;
+    private final int myFontType;
+    private final FontInfo myFont; // font of all the characters or null if they use different fonts
+    @Nullable private final FontInfo[] myFonts;
+    private final int myWidth; // width of all the characters or -1 if they differ
+    @Nullable private final int[] myWidths;
+
+    FragmentLayout(int startInLine, int endInLine, int fontType, @NotNull FontInfo[] fonts, @NotNull int[] widths) {
+      myStart = startInLine;
+      myEnd = endInLine;
+      myFontType = fontType;
+      boolean sameFont = true;
+      boolean sameWidth = true;
+      for (int i = 1; i < fonts.length; i++) {
+        sameFont &= fonts[i] == fonts[0];
+        sameWidth &= widths[i] == widths[0];
+      }
+      myFont = sameFont && fonts.length > 0 ? fonts[0] : null;
+      myFonts = sameFont ? null : fonts;
+      myWidth = sameWidth && widths.length > 0 ? widths[0] : -1;
+      myWidths = sameWidth ? null : widths;
+    }
+
+    @NotNull
+    FontInfo getFont(int index) {
+      return myFonts != null ? myFonts[index] : myFont;
+    }
+
+    int getWidth(int index) {
+      return myWidths != null ? myWidths[index] : myWidth;
+    }
+
+    int getLength() {
+      return myEnd - myStart;
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.ByteBufferWrapper;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only access to the text of a file which is too large to be loaded into a document. The file is memory-mapped in chunks
+ * on demand and only the requested ranges are decoded. Line starts are indexed sparsely (every {@link #LINES_PER_CHECKPOINT}th
+ * line), so the index of a multi-gigabyte file takes a few megabytes; positions of other lines are found by scanning from the
+ * nearest indexed line.
+ * <p/>
+ * Only charsets which encode ASCII characters as single bytes never used in encodings of other characters are supported,
+ * see {@link #isSupported(Charset)}. Offsets used by this class are byte offsets in the file.
+ * <p/>
+ * The index may be built in a background thread while other methods are called from the event dispatch thread. Chunks which are
+ * evicted, remapped or dropped on truncation are unmapped as soon as no thread uses mapped chunks. {@link #dispose()} must be called
+ * when the index isn't being built anymore.
+ */
+public class LargeFileContent {
+  static final int CHUNK_SIZE = 64 * 1024 * 1024;
+  static final int LINES_PER_CHECKPOINT = 1024;
+  private static final int MAX_MAPPED_CHUNKS = 4;
+  private static final int INDEX_BLOCK_SIZE = 64 * 1024;
+  private static final String ASCII_SAMPLE = "\n\r\t azAZ09.,:;-_()[]{}<>=+*/\\'\"";
+
+  private final File myFile;
+  private final Charset myCharset;
+  private final boolean myUtf8;
+  private final int myChunkSize;
+  private final int myLinesPerCheckpoint;
+  private volatile long myLength;
+
+  private final Map<Integer, ByteBufferWrapper> myChunks = new LinkedHashMap<Integer, ByteBufferWrapper>(MAX_MAPPED_CHUNKS, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
+      if (size() > MAX_MAPPED_CHUNKS) {
+        myReleasedChunks.add(eldest.getValue());
+        return true;
+      }
+      return false;
+    }
+  };
+  // chunks removed from myChunks may still be in use by another thread, they are unmapped when there are no chunk users
+  private final List<ByteBufferWrapper> myReleasedChunks = new ArrayList<ByteBufferWrapper>(); // guarded by myChunks
+  private int myChunkUsers; // guarded by myChunks
+
+  private final Object myIndexLock = new Object();
+  private final TLongArrayList myCheckpoints = new TLongArrayList(); // start offsets of lines 0, N, 2N, ...
+  private long myIndexedOffset;
+  private int myIndexedLines; // number of line separators before myIndexedOffset
+
+  public LargeFileContent(@NotNull File file, @NotNull Charset charset) {
+    this(file, charset, CHUNK_SIZE, LINES_PER_CHECKPOINT);
+  }
+
+  LargeFileContent(@NotNull File file, @NotNull Charset charset, int chunkSize, int linesPerCheckpoint) {
+    myFile = file;
+    myCharset = charset;
+    myUtf8 = "UTF-8".equals(charset.name());
+    myChunkSize = chunkSize;
+    myLinesPerCheckpoint = linesPerCheckpoint;
+    myLength = file.length();
+    myCheckpoints.add(0);
+  }
+
+  public static boolean isSupported(@NotNull Charset charset) {
+    return charset.canEncode() && Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(Charset.forName("US-ASCII")));
+  }
+
+  @NotNull
+  public File getFile() {
+    return myFile;
+  }
+
+  public long getLength() {
+    return myLength;
+  }
+
+  /**
+   * Checks whether the file has been changed on disk. If it has been truncated, e.g. replaced on log rotation, the index is reset.
+   *
+   * @return true if the length of the file has changed
+   */
+  public boolean refresh() {
+    final long length = myFile.length();
+    if (length == myLength) {
+      return false;
+    }
+    if (length < myLength) {
+      synchronized (myIndexLock) {
+        myCheckpoints.resetQuick();
+        myCheckpoints.add(0);
+        myIndexedOffset = 0;
+        myIndexedLines = 0;
+      }
+      synchronized (myChunks) {
+        myReleasedChunks.addAll(myChunks.values());
+        myChunks.clear();
+      }
+      unmapReleasedChunks();
+    }
+    myLength = length;
+    return true;
+  }
+
+  /**
+   * Indexes line starts up to the current end of the file.
+   *
+   * @throws com.intellij.openapi.progress.ProcessCanceledException if the indicator is canceled
+   */
+  public void buildIndex(@Nullable ProgressIndicator indicator) throws IOException {
+    outer:
+    while (true) {
+      lockChunks();
+      try {
+        final long offset;
+        synchronized (myIndexLock) {
+          offset = myIndexedOffset;
+        }
+        final long end = myLength;
+        if (offset >= end) {
+          return;
+        }
+        final int chunkIndex = (int)(offset / myChunkSize);
+        final long chunkStart = (long)chunkIndex * myChunkSize;
+        final ByteBuffer chunk = getChunk(chunkIndex);
+        final int to = (int)Math.min(chunk.capacity(), end - chunkStart);
+        for (int blockStart = (int)(offset - chunkStart); blockStart < to; blockStart += INDEX_BLOCK_SIZE) {
+          if (indicator != null) {
+            indicator.checkCanceled();
+            indicator.setFraction((double)(chunkStart + blockStart) / end);
+          }
+          final int blockEnd = Math.min(to, blockStart + INDEX_BLOCK_SIZE);
+          synchronized (myIndexLock) {
+            if (myIndexedOffset != chunkStart + blockStart) {
+              continue outer; // the index has been reset
+            }
+            for (int i = blockStart; i < blockEnd; i++) {
+              if (chunk.get(i) == '\n') {
+                myIndexedLines++;
+                if (myIndexedLines % myLinesPerCheckpoint == 0) {
+                  myCheckpoints.add(chunkStart + i + 1);
+                }
+              }
+            }
+            myIndexedOffset = chunkStart + blockEnd;
+          }
+        }
+      }
+      finally {
+        unlockChunks();
+      }
+    }
+  }
+
+  public boolean isIndexComplete() {
+    synchronized (myIndexLock) {
+      return myIndexedOffset >= myLength;
+    }
+  }
+
+  public long getIndexedLength() {
+    synchronized (myIndexLock) {
+      return myIndexedOffset;
+    }
+  }
+
+  /**
+   * @return number of lines in the indexed part of the file; it is the number of lines in the file if the index is complete
+   */
+  public int getIndexedLineCount() {
+    synchronized (myIndexLock) {
+      return myIndexedLines + 1;
+    }
+  }
+
+  /**
+   * @param line 0-based line number
+   * @return offset of the start of the line or -1 if the line isn't indexed yet
+   */
+  public long getLineStartOffset(int line) throws IOException {
+    long offset;
+    int remaining;
+    synchronized (myIndexLock) {
+      if (line < 0 || line > myIndexedLines) {
+        return -1;
+      }
+      offset = myCheckpoints.get(line / myLinesPerCheckpoint);
+      remaining = line % myLinesPerCheckpoint;
+    }
+    lockChunks();
+    try {
+      for (; remaining > 0; remaining--) {
+        offset = indexOf((byte)'\n', offset, myLength) + 1;
+      }
+      return offset;
+    }
+    finally {
+      unlockChunks();
+    }
+  }
+
+  /**
+   * @return 0-based number of the line which contains the given offset or -1 if this part of the file isn't indexed yet
+   */
+  public int getLineNumber(long offset) throws IOException {
+    final int checkpoint;
+    final long checkpointOffset;
+    synchronized (myIndexLock) {
+      if (offset < 0 || offset > myIndexedOffset) {
+        return -1;
+      }
+      int index = myCheckpoints.binarySearch(offset);
+      if (index < 0) {
+        index = -index - 2;
+      }
+      checkpoint = index;
+      checkpointOffset = myCheckpoints.get(index);
+    }
+    int line = checkpoint * myLinesPerCheckpoint;
+    lockChunks();
+    try {
+      for (long pos = indexOf((byte)'\n', checkpointOffset, offset); pos >= 0; pos = indexOf((byte)'\n', pos + 1, offset)) {
+        line++;
+      }
+      return line;
+    }
+    finally {
+      unlockChunks();
+    }
+  }
+
+  /**
+   * @return start of the line which contains the given offset, or the nearest character start if the line starts more than
+   * <code>maxBytes</code> before the offset
+   */
+  public long findLineStart(long offset, int maxBytes) throws IOException {
+    offset = Math.max(0, Math.min(offset, myLength));
+    final long limit = Math.max(0, offset - maxBytes);
+    lockChunks();
+    try {
+      for (long pos = offset - 1; pos >= limit; pos--) {
+        if (getByte(pos) == '\n') {
+          return pos + 1;
+        }
+      }
+      return limit == 0 ? 0 : alignToCharStart(offset);
+    }
+    finally {
+      unlockChunks();
+    }
+  }
+
+  /**
+   * @return end of the line which contains the given offset (after the line separator), or the nearest character start if the line
+   * ends more than <code>maxBytes</code> after the offset
+   */
+  public long findLineEnd(long offset, int maxBytes) throws IOException {
+    final long length = myLength;
+    offset = Math.max(0, Math.min(offset, length));
+    final long limit = Math.min(length, offset + maxBytes);
+    lockChunks();
+    try {
+      final long separator = indexOf((byte)'\n', offset, limit);
+      if (separator >= 0) {
+        return separator + 1;
+      }
+      return limit == length ? length : alignToCharStart(limit);
+    }
+    finally {
+      unlockChunks();
+    }
+  }
+
+  private long alignToCharStart(long offset) throws IOException {
+    if (myUtf8) {
+      while (offset < myLength && (getByte(offset) & 0xC0) == 0x80) {
+        offset++;
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Decodes the given range of the file. Line separators are preserved.
+   */
+  @NotNull
+  public String getText(long start, long end) throws IOException {
+    final byte[] bytes = new byte[(int)(end - start)];
+    int copied = 0;
+    lockChunks();
+    try {
+      while (copied < bytes.length) {
+        final long offset = start + copied;
+        final int chunkIndex = (int)(offset / myChunkSize);
+        final ByteBuffer chunk = getChunk(chunkIndex).duplicate();
+        chunk.position((int)(offset - (long)chunkIndex * myChunkSize));
+        final int count = Math.min(chunk.remaining(), bytes.length - copied);
+        chunk.get(bytes, copied, count);
+        copied += count;
+      }
+    }
+    finally {
+      unlockChunks();
+    }
+    return new String(bytes, myCharset);
+  }
+
+  /**
+   * Searches for the text. Case-insensitive search ignores case of ASCII letters only.
+   *
+   * @param from offset to start search from; when searching backward, occurrences which start before this offset are found
+   * @return offset of the found occurrence or -1
+   * @throws com.intellij.openapi.progress.ProcessCanceledException if the indicator is canceled
+   */
+  public long find(@NotNull String text, boolean caseSensitive, long from, boolean forward, @Nullable ProgressIndicator indicator)
+    throws IOException {
+    final byte[] pattern = text.getBytes(myCharset);
+    if (pattern.length == 0) {
+      return -1;
+    }
+    if (!caseSensitive) {
+      for (int i = 0; i < pattern.length; i++) {
+        pattern[i] = toLowerCase(pattern[i]);
+      }
+    }
+    final long last = myLength - pattern.length;
+    long pos = forward ? Math.max(0, from) : Math.min(from - 1, last);
+    lockChunks();
+    try {
+      while (forward ? pos <= last : pos >= 0) {
+        final int chunkIndex = (int)(pos / myChunkSize);
+        final long chunkStart = (long)chunkIndex * myChunkSize;
+        final ByteBuffer chunk = getChunk(chunkIndex);
+        final int start = (int)(pos - chunkStart);
+        final int end = forward ? (int)Math.min(chunk.capacity() - 1, last - chunkStart) : 0;
+        final int step = forward ? 1 : -1;
+        for (int i = start; forward ? i <= end : i >= end; i += step) {
+          if (indicator != null && (i & 0xFFFF) == 0) {
+            indicator.checkCanceled();
+          }
+          if (matches(chunk.get(i), pattern[0], caseSensitive) && matchesAt(chunk, chunkStart, i, pattern, caseSensitive)) {
+            return chunkStart + i;
+          }
+        }
+        pos = forward ? chunkStart + end + 1 : chunkStart - 1;
+      }
+    }
+    finally {
+      unlockChunks();
+    }
+    return -1;
+  }
+
+  private boolean matchesAt(@NotNull ByteBuffer chunk, long chunkStart, int index, @NotNull byte[] pattern, boolean caseSensitive)
+    throws IOException {
+    final boolean inChunk = index + pattern.length <= chunk.capacity();
+    for (int j = 1; j < pattern.length; j++) {
+      final byte b = inChunk ? chunk.get(index + j) : getByte(chunkStart + index + j);
+      if (!matches(b, pattern[j], caseSensitive)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matches(byte b, byte patternByte, boolean caseSensitive) {
+    return (caseSensitive ? b : toLowerCase(b)) == patternByte;
+  }
+
+  private static byte toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte)(b + ('a' - 'A')) : b;
+  }
+
+  /**
+   * @return offset of the first occurrence of the byte in [from, to) or -1
+   */
+  private long indexOf(byte b, long from, long to) throws IOException {
+    long pos = from;
+    while (pos < to) {
+      final int chunkIndex = (int)(pos / myChunkSize);
+      final long chunkStart = (long)chunkIndex * myChunkSize;
+      final ByteBuffer chunk = getChunk(chunkIndex);
+      final int end = (int)Math.min(chunk.capacity(), to - chunkStart);
+      for (int i = (int)(pos - chunkStart); i < end; i++) {
+        if (chunk.get(i) == b) {
+          return chunkStart + i;
+        }
+      }
+      pos = chunkStart + end;
+    }
+    return -1;
+  }
+
+  private byte getByte(long offset) throws IOException {
+    final int chunkIndex = (int)(offset / myChunkSize);
+    return getChunk(chunkIndex).get((int)(offset - (long)chunkIndex * myChunkSize));
+  }
+
+  /**
+   * Must be called before {@link #getChunk(int)}; chunks may be used until the matching {@link #unlockChunks()} call.
+   */
+  private void lockChunks() {
+    synchronized (myChunks) {
+      myChunkUsers++;
+    }
+  }
+
+  private void unlockChunks() {
+    synchronized (myChunks) {
+      myChunkUsers--;
+    }
+    unmapReleasedChunks();
+  }
+
+  private void unmapReleasedChunks() {
+    final List<ByteBufferWrapper> wrappers;
+    synchronized (myChunks) {
+      if (myChunkUsers > 0 || myReleasedChunks.isEmpty()) {
+        return;
+      }
+      wrappers = new ArrayList<ByteBufferWrapper>(myReleasedChunks);
+      myReleasedChunks.clear();
+    }
+    for (ByteBufferWrapper wrapper : wrappers) {
+      wrapper.unmap();
+    }
+  }
+
+  @NotNull
+  private ByteBuffer getChunk(int index) throws IOException {
+    final long start = (long)index * myChunkSize;
+    final long length = Math.min(myChunkSize, myLength - start);
+    synchronized (myChunks) {
+      final ByteBufferWrapper wrapper = myChunks.get(index);
+      if (wrapper != null) {
+        final ByteBuffer buffer = wrapper.getBuffer();
+        if (buffer.capacity() >= length) {
+          return buffer;
+        }
+      }
+      // the file has grown since the last chunk was mapped
+      final ByteBufferWrapper newWrapper = ByteBufferWrapper.readOnly(myFile, start, length);
+      final ByteBufferWrapper oldWrapper = myChunks.put(index, newWrapper);
+      if (oldWrapper != null) {
+        myReleasedChunks.add(oldWrapper);
+      }
+      return newWrapper.getBuffer();
+    }
+  }
+
+  @TestOnly
+  int getMappedChunkCount() {
+    synchronized (myChunks) {
+      return myChunks.size() + myReleasedChunks.size();
+    }
+  }
+
+  /**
+   * Unmaps the file. The content must not be used after this call.
+   */
+  public void dispose() {
+    final List<ByteBufferWrapper> wrappers;
+    synchronized (myChunks) {
+      wrappers = new ArrayList<ByteBufferWrapper>(myChunks.values());
+      wrappers.addAll(myReleasedChunks);
+      myChunks.clear();
+      myReleasedChunks.clear();
+    }
+    for (ByteBufferWrapper wrapper : wrappers) {
+      wrapper.unmap();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return myFile.getPath() + " (" + StringUtil.formatFileSize(myLength) + ")";
+  }
+}
@@ -23,6 +23,7 @@ import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.UserDataHolderBase;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.SingleRootFileViewProvider;
 import org.jdom.Element;
@@ -45,7 +46,7 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
 
   @NotNull
   public FileEditor createEditor(@NotNull Project project, @NotNull final VirtualFile file) {
-    return new LargeFileEditor(file);
+    return new LargeFileEditor(project, file);
   }
 
   public void disposeEditor(@NotNull FileEditor editor) {
@@ -72,14 +73,25 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
 
   private static class LargeFileEditor extends UserDataHolderBase implements FileEditor {
     private final VirtualFile myFile;
+    private final LargeFileViewer myViewer;
 
-    public LargeFileEditor(VirtualFile file) {
+    public LargeFileEditor(@NotNull Project project, @NotNull VirtualFile file) {
       myFile = file;
+      if (file.isInLocalFileSystem() && LargeFileContent.isSupported(file.getCharset())) {
+        myViewer = new LargeFileViewer(project, new LargeFileContent(VfsUtilCore.virtualToIoFile(file), file.getCharset()));
+        Disposer.register(this, myViewer);
+      }
+      else {
+        myViewer = null;
+      }
     }
 
     @NotNull
     @Override
     public JComponent getComponent() {
+      if (myViewer != null) {
+        return myViewer;
+      }
       JLabel label = new JLabel(
         "File " + myFile.getPath() + " is too large for " + ApplicationNamesInfo.getInstance().getFullProductName() + " editor");
       label.setHorizontalAlignment(SwingConstants.CENTER);
@@ -88,7 +100,7 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
 
     @Override
     public JComponent getPreferredFocusedComponent() {
-      return null;
+      return myViewer != null ? myViewer.getPreferredFocusedComponent() : null;
     }
 
     @NotNull
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.undo.UndoConstants;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.ScrollType;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.Alarm;
+import com.intellij.util.containers.Convertor;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Read-only view of a file which is too large to be loaded into a document. The file is shown page by page in a viewer editor,
+ * only the current page is decoded. Lines are indexed in background, go to line and search work on the whole file; when
+ * 'Follow tail' is on, the last page is shown and updated while the file grows.
+ */
+class LargeFileViewer extends JPanel implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.LargeFileViewer");
+  private static final int PAGE_SIZE = 512 * 1024;
+  private static final int MAX_LINE_LENGTH = 64 * 1024; // longer lines are split between pages
+  private static final int UPDATE_DELAY = 1000;
+
+  private final Project myProject;
+  private final LargeFileContent myContent;
+  private final Document myDocument;
+  private final EditorEx myEditor;
+  private EmptyProgressIndicator myIndexingIndicator;
+  private final Alarm myUpdateAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+  private Future<?> myIndexing;
+
+  private long myPageStart;
+  private long myPageEnd;
+  private int myPageFirstLine = -1;
+  private long mySearchOffset = -1;
+
+  private final JLabel myStatusLabel = new JLabel();
+  private final JTextField myGotoLineField = new JTextField(8);
+  private final JTextField mySearchField = new JTextField(20);
+  private final JCheckBox myMatchCaseCheckBox = new JCheckBox("Match case");
+  private final JCheckBox myFollowTailCheckBox = new JCheckBox("Follow tail");
+
+  LargeFileViewer(@NotNull Project project, @NotNull LargeFileContent content) {
+    super(new BorderLayout());
+    myProject = project;
+    myContent = content;
+    myDocument = EditorFactory.getInstance().createDocument("");
+    myDocument.putUserData(UndoConstants.DONT_RECORD_UNDO, Boolean.TRUE);
+    myDocument.setReadOnly(true);
+    myEditor = (EditorEx)EditorFactory.getInstance().createViewer(myDocument, project);
+    myEditor.getGutterComponentEx().setLineNumberConvertor(new Convertor<Integer, Integer>() {
+      @Override
+      public Integer convert(Integer line) {
+        return myPageFirstLine + line;
+      }
+    });
+
+    add(createToolbar(), BorderLayout.NORTH);
+    add(myEditor.getComponent(), BorderLayout.CENTER);
+
+    startIndexing();
+    showPage(0);
+    scheduleUpdate();
+  }
+
+  @NotNull
+  JComponent getPreferredFocusedComponent() {
+    return myEditor.getContentComponent();
+  }
+
+  @NotNull
+  private JComponent createToolbar() {
+    final JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    panel.add(createButton("Previous Page", new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        showPage(Math.max(0, myPageStart - PAGE_SIZE));
+      }
+    }));
+    panel.add(createButton("Next Page", new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        if (myPageEnd < myContent.getLength()) {
+          showPage(myPageEnd);
+        }
+      }
+    }));
+
+    panel.add(new JLabel("Go to line:"));
+    myGotoLineField.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        gotoLine();
+      }
+    });
+    panel.add(myGotoLineField);
+
+    panel.add(new JLabel("Find:"));
+    mySearchField.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        find(true);
+      }
+    });
+    panel.add(mySearchField);
+    panel.add(createButton("Previous", new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        find(false);
+      }
+    }));
+    panel.add(createButton("Next", new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        find(true);
+      }
+    }));
+    panel.add(myMatchCaseCheckBox);
+
+    myFollowTailCheckBox.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        if (myFollowTailCheckBox.isSelected()) {
+          showTail();
+        }
+      }
+    });
+    panel.add(myFollowTailCheckBox);
+    panel.add(myStatusLabel);
+    return panel;
+  }
+
+  @NotNull
+  private static JButton createButton(@NotNull String text, @NotNull ActionListener listener) {
+    final JButton button = new JButton(text);
+    button.addActionListener(listener);
+    return button;
+  }
+
+  private void startIndexing() {
+    final EmptyProgressIndicator indicator = new EmptyProgressIndicator();
+    myIndexingIndicator = indicator;
+    myIndexing = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myContent.buildIndex(indicator);
+        }
+        catch (ProcessCanceledException ignored) {
+        }
+        catch (IOException e) {
+          LOG.info("Cannot index " + myContent, e);
+        }
+        catch (InternalError e) {
+          // a mapped chunk is accessed after the file has been truncated by another process
+          LOG.info("Cannot index " + myContent, e);
+        }
+      }
+    });
+  }
+
+  private void stopIndexing() {
+    myIndexingIndicator.cancel();
+    try {
+      myIndexing.get();
+    }
+    catch (Exception ignored) {
+    }
+  }
+
+  private void scheduleUpdate() {
+    myUpdateAlarm.addRequest(new Runnable() {
+      @Override
+      public void run() {
+        update();
+        scheduleUpdate();
+      }
+    }, UPDATE_DELAY);
+  }
+
+  private void update() {
+    if (myContent.getFile().length() < myContent.getLength()) {
+      // the file has been truncated, the index is reset and the mapped chunks are dropped when the indexer doesn't use them
+      stopIndexing();
+    }
+    if (myContent.refresh()) {
+      if (myFollowTailCheckBox.isSelected()) {
+        showTail();
+      }
+      else if (myPageEnd > myContent.getLength()) {
+        // the file has been truncated
+        showPage(0);
+      }
+    }
+    if (myIndexing.isDone() && !myContent.isIndexComplete()) {
+      startIndexing();
+    }
+    if (myPageFirstLine < 0) {
+      updatePageFirstLine();
+    }
+    updateStatus();
+  }
+
+  private void showTail() {
+    showPage(Math.max(0, myContent.getLength() - PAGE_SIZE));
+    myEditor.getCaretModel().moveToOffset(myDocument.getTextLength());
+    myEditor.getScrollingModel().scrollToCaret(ScrollType.MAKE_VISIBLE);
+  }
+
+  private void showPage(long offset) {
+    try {
+      final long start = myContent.findLineStart(offset, MAX_LINE_LENGTH);
+      final long end = myContent.findLineEnd(Math.min(start + PAGE_SIZE, myContent.getLength()), MAX_LINE_LENGTH);
+      final String text = StringUtil.convertLineSeparators(myContent.getText(start, end));
+      myPageStart = start;
+      myPageEnd = end;
+      mySearchOffset = -1;
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          myDocument.setReadOnly(false);
+          myDocument.replaceString(0, myDocument.getTextLength(), text);
+          myDocument.setReadOnly(true);
+        }
+      });
+      myEditor.getCaretModel().moveToOffset(0);
+      myEditor.getScrollingModel().scrollToCaret(ScrollType.MAKE_VISIBLE);
+      myPageFirstLine = -1;
+      updatePageFirstLine();
+    }
+    catch (IOException e) {
+      showError(e);
+    }
+    updateStatus();
+  }
+
+  private void updatePageFirstLine() {
+    try {
+      myPageFirstLine = myContent.getLineNumber(myPageStart);
+    }
+    catch (IOException e) {
+      showError(e);
+    }
+    // line numbers are known only when the page has been indexed
+    myEditor.getSettings().setLineNumbersShown(myPageFirstLine >= 0);
+    myEditor.getGutterComponentEx().repaint();
+  }
+
+  private void gotoLine() {
+    final int line;
+    try {
+      line = Integer.parseInt(myGotoLineField.getText().trim()) - 1;
+    }
+    catch (NumberFormatException e) {
+      return;
+    }
+    try {
+      final long offset = myContent.getLineStartOffset(line);
+      if (offset < 0) {
+        myStatusLabel.setText(myContent.isIndexComplete() ? "No line " + (line + 1) : "Line " + (line + 1) + " is not indexed yet");
+        return;
+      }
+      showOffset(offset, 0);
+    }
+    catch (IOException e) {
+      showError(e);
+    }
+  }
+
+  private void find(final boolean forward) {
+    final String text = mySearchField.getText();
+    if (text.isEmpty()) {
+      return;
+    }
+    final boolean caseSensitive = myMatchCaseCheckBox.isSelected();
+    final long from = mySearchOffset >= 0 ? (forward ? mySearchOffset + 1 : mySearchOffset) : (forward ? myPageStart : myPageEnd);
+    final Ref<Long> result = new Ref<Long>(-1L);
+    final Ref<IOException> error = new Ref<IOException>();
+    final boolean completed = ProgressManager.getInstance().runProcessWithProgressSynchronously(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result.set(myContent.find(text, caseSensitive, from, forward, ProgressManager.getInstance().getProgressIndicator()));
+        }
+        catch (IOException e) {
+          error.set(e);
+        }
+      }
+    }, "Searching " + myContent.getFile().getName(), true, myProject);
+    if (!error.isNull()) {
+      showError(error.get());
+      return;
+    }
+    if (!completed) {
+      return;
+    }
+    final long offset = result.get();
+    if (offset < 0) {
+      myStatusLabel.setText("'" + text + "' not found");
+      return;
+    }
+    try {
+      showOffset(offset, text.length());
+      mySearchOffset = offset;
+    }
+    catch (IOException e) {
+      showError(e);
+    }
+  }
+
+  /**
+   * Shows the page which contains the given offset and selects given number of characters starting from it.
+   */
+  private void showOffset(long offset, int length) throws IOException {
+    if (offset < myPageStart || offset >= myPageEnd) {
+      showPage(Math.max(0, offset - PAGE_SIZE / 4));
+    }
+    final int start = getDocumentOffset(offset);
+    final int end = Math.min(myDocument.getTextLength(), start + length);
+    myEditor.getCaretModel().moveToOffset(start);
+    myEditor.getSelectionModel().setSelection(start, end);
+    myEditor.getScrollingModel().scrollToCaret(ScrollType.CENTER);
+  }
+
+  private int getDocumentOffset(long offset) throws IOException {
+    final long pageOffset = Math.max(myPageStart, Math.min(offset, myPageEnd));
+    return Math.min(myDocument.getTextLength(), StringUtil.convertLineSeparators(myContent.getText(myPageStart, pageOffset)).length());
+  }
+
+  private void updateStatus() {
+    final String lines;
+    if (myContent.isIndexComplete()) {
+      lines = myContent.getIndexedLineCount() + " lines";
+    }
+    else {
+      final long length = Math.max(1, myContent.getLength());
+      lines = "indexing lines: " + (int)(100 * myContent.getIndexedLength() / length) + "%";
+    }
+    myStatusLabel.setText(StringUtil.formatFileSize(myContent.getLength()) + ", " + lines);
+  }
+
+  private void showError(@NotNull IOException e) {
+    LOG.info(e);
+    myStatusLabel.setText("Cannot read file: " + e.getMessage());
+  }
+
+  @Override
+  public void dispose() {
+    stopIndexing();
+    myContent.dispose();
+    EditorFactory.getInstance().releaseEditor(myEditor);
+  }
+}
@@ -35,6 +35,8 @@ import gnu.trove.THashSet;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 class CacheUpdateRunner {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.project.CacheUpdateRunner");
@@ -42,6 +44,7 @@ class CacheUpdateRunner {
   private final Project myProject;
   private final Collection<CacheUpdater> myUpdaters;
   private CacheUpdateSession mySession;
+  private final AtomicLong myProcessingNanos = new AtomicLong();
 
   CacheUpdateRunner(Project project, Collection<CacheUpdater> updaters) {
     myProject = project;
@@ -69,6 +72,7 @@ class CacheUpdateRunner {
       final FileContentQueue queue = new FileContentQueue();
       Collection<VirtualFile> files = mySession.getFilesToUpdate();
       final double total = files.size();
+      final long started = System.currentTimeMillis();
       queue.queue(files, indicator);
 
       Consumer<VirtualFile> progressUpdater = new Consumer<VirtualFile>() {
@@ -103,6 +107,7 @@ class CacheUpdateRunner {
         indicator.cancel();
         indicator.checkCanceled();
       }
+      logStatistics(queue, System.currentTimeMillis() - started);
     }
     catch (ProcessCanceledException e) {
       mySession.canceled();
@@ -110,6 +115,17 @@ class CacheUpdateRunner {
     }
   }
 
+  private void logStatistics(FileContentQueue queue, long elapsedMs) {
+    final long files = queue.getLoadedFilesCount();
+    final long bytes = queue.getLoadedBytes();
+    final long elapsed = Math.max(elapsedMs, 1);
+    LOG.info("Processed " + files + " files (" + bytes / 1024 + " KB) in " + elapsedMs + " ms by " + getThreadsCount() + " threads: " +
+             files * 1000 / elapsed + " files/s, " + bytes * 1000 / 1024 / elapsed + " KB/s; " +
+             "loading waited " + queue.getLoaderWaitTime(TimeUnit.MILLISECONDS) + " ms for memory, " +
+             "workers waited " + queue.getConsumerWaitTime(TimeUnit.MILLISECONDS) + " ms for content, " +
+             "processing took " + TimeUnit.NANOSECONDS.toMillis(myProcessingNanos.get()) + " ms total");
+  }
+
   public void updatingDone() {
     try {
       mySession.updatingDone();
@@ -140,10 +156,7 @@ class CacheUpdateRunner {
 
     final Ref<Boolean> isFinished = new Ref<Boolean>(Boolean.FALSE);
     try {
-      int threadsCount = Registry.intValue("caches.indexerThreadsCount");
-      if (threadsCount <= 0) {
-        threadsCount = Math.min(PROC_COUNT, 4);
-      }
+      final int threadsCount = getThreadsCount();
       if (threadsCount == 1) {
         Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, application);
         ProgressManager.getInstance().runProcess(process, innerIndicator);
@@ -167,6 +180,19 @@ class CacheUpdateRunner {
     return isFinished.get();
   }
 
+  private static int getThreadsCount() {
+    final int threadsCount = Registry.intValue("caches.indexerThreadsCount");
+    return threadsCount > 0 ? threadsCount : getDefaultThreadsCount(PROC_COUNT, Registry.intValue("caches.indexerMaxThreadsCount"));
+  }
+
+  /**
+   * One core is left for the content loading thread, but at least two workers run, so that one of them maps content while another
+   * one waits for an index write lock. Above the cap workers mostly contend for the write locks and the memory of the content queue.
+   */
+  static int getDefaultThreadsCount(int processorCount, int maxThreadsCount) {
+    return Math.max(2, Math.min(processorCount - 1, maxThreadsCount));
+  }
+
   private static boolean waitForAll(Ref[] finishedRefs, Future<?>[] futures) {
     try {
       for (Future<?> future : futures) {
@@ -228,7 +254,13 @@ class CacheUpdateRunner {
               if (!myProject.isDisposed()) {
                 final VirtualFile file = fileContent.getVirtualFile();
                 myProgressUpdater.consume(file);
-                mySession.processFile(fileContent);
+                final long started = System.nanoTime();
+                try {
+                  mySession.processFile(fileContent);
+                }
+                finally {
+                  myProcessingNanos.addAndGet(System.nanoTime() - started);
+                }
               }
             }
           };
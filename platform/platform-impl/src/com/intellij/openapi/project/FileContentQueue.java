@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -50,6 +51,12 @@ public class FileContentQueue {
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  // statistics, reported by CacheUpdateRunner.logStatistics()
+  private final AtomicLong myLoadedFilesCount = new AtomicLong();
+  private final AtomicLong myLoadedBytes = new AtomicLong();
+  private final AtomicLong myLoaderWaitNanos = new AtomicLong();   // loading thread waits for consumers to free memory
+  private final AtomicLong myConsumerWaitNanos = new AtomicLong(); // consumers wait for loaded content
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
@@ -105,15 +112,21 @@ public class FileContentQueue {
     boolean counterUpdated = false;
     try {
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
-          indicator.checkCanceled();
-          wait(300L);
+        if (myTotalSize > SIZE_THRESHOLD) {
+          final long started = System.nanoTime();
+          while (myTotalSize > SIZE_THRESHOLD) {
+            indicator.checkCanceled();
+            wait(300L);
+          }
+          myLoaderWaitNanos.addAndGet(System.nanoTime() - started);
         }
         myTotalSize += contentLength;
         counterUpdated = true;
       }
 
       content.getBytes(); // Reads the content bytes and caches them.
+      myLoadedFilesCount.incrementAndGet();
+      myLoadedBytes.addAndGet(contentLength);
 
       return true;
     }
@@ -187,6 +200,7 @@ public class FileContentQueue {
       }
     }
 
+    final long started = System.nanoTime();
     try {
       while (result == null) {
         result = myQueue.poll(300L, TimeUnit.MILLISECONDS);
@@ -198,6 +212,9 @@ public class FileContentQueue {
     catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
+    finally {
+      myConsumerWaitNanos.addAndGet(System.nanoTime() - started);
+    }
 
     final VirtualFile file = result.getVirtualFile();
     if (file == null) {
@@ -229,4 +246,26 @@ public class FileContentQueue {
   public synchronized void pushback(@NotNull FileContent content) {
     myPushbackBuffer.add(content);
   }
+
+  public long getLoadedFilesCount() {
+    return myLoadedFilesCount.get();
+  }
+
+  public long getLoadedBytes() {
+    return myLoadedBytes.get();
+  }
+
+  /**
+   * @return total time the content loading thread was blocked because consumers had not yet released enough loaded content
+   */
+  public long getLoaderWaitTime(@NotNull TimeUnit unit) {
+    return unit.convert(myLoaderWaitNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return total time consumer threads spent in {@link #take(ProgressIndicator)} waiting for content to be loaded
+   */
+  public long getConsumerWaitTime(@NotNull TimeUnit unit) {
+    return unit.convert(myConsumerWaitNanos.get(), TimeUnit.NANOSECONDS);
+  }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.util.io.*;
+import com.intellij.util.io.storage.RefCountingStorage;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Maps SHA-1 of contents stored in a {@link RefCountingStorage} to their records, so that identical contents share a record.
+ * <p/>
+ * A record becomes reachable by hash only after its bytes are written and stops being reachable when it's released for the last time.
+ * Records reachable by hash must never be rewritten in place: a new content always gets a new record. Thus a found record keeps
+ * the bytes it was compared with for as long as it's acquired, and the comparison itself runs outside of the lock.
+ * <p/>
+ * The lock passed to the constructor must guard all acquiring and releasing of the content records. {@link #acquireNewRecord(byte[])}
+ * and {@link #releaseRecord(int)} should be called under it, other methods take it by themselves.
+ */
+class ContentHashes {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.ContentHashes");
+  private static final int HASH_SIZE = 20; // SHA-1
+
+  private final RefCountingStorage myContents;
+  private final Lock myLock;
+  private final PersistentHashMap<byte[], Integer> myHashToRecord;
+  private final ResizeableMappedFile myRecordToHash; // hashes of records by record id, to remove the entry of a released record
+  private final TIntObjectHashMap<byte[]> myRecordsBeingWritten = new TIntObjectHashMap<byte[]>(); // guarded by myLock
+
+  /**
+   * Hashes only help to find existing copies of content being written, so the files are simply recreated if they cannot be read.
+   *
+   * @param storageLockContext lock context of the other VFS storages, so that record hashes count against the same page cache limit
+   */
+  ContentHashes(@NotNull File file, @NotNull RefCountingStorage contents, @NotNull Lock lock,
+                @NotNull PagedFileStorage.StorageLockContext storageLockContext) throws IOException {
+    myContents = contents;
+    myLock = lock;
+
+    final File recordsFile = new File(file.getPath() + ".records");
+    PersistentHashMap<byte[], Integer> hashToRecord;
+    try {
+      hashToRecord = new PersistentHashMap<byte[], Integer>(file, new HashDescriptor(), EnumeratorIntegerDescriptor.INSTANCE);
+    }
+    catch (IOException e) {
+      LOG.info("Recreating content hashes: " + e.getMessage());
+      PersistentHashMap.deleteFilesStartingWith(file); // record hashes too
+      hashToRecord = new PersistentHashMap<byte[], Integer>(file, new HashDescriptor(), EnumeratorIntegerDescriptor.INSTANCE);
+    }
+    myHashToRecord = hashToRecord;
+    myRecordToHash = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext, -1, false);
+  }
+
+  @NotNull
+  static byte[] calculateHash(@NotNull ByteSequence content) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(content.getBytes(), content.getOffset(), content.getLength());
+      return digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return record storing the same content, acquired for the caller, or 0 if there is none
+   */
+  int acquireRecord(@NotNull byte[] hash, @NotNull ByteSequence content) throws IOException {
+    final int record;
+    myLock.lock();
+    try {
+      final Integer found = myHashToRecord.get(hash);
+      if (found == null) return 0;
+      record = found;
+      if (myRecordsBeingWritten.containsKey(record)) return 0;
+      if (myContents.getRefCount(record) <= 0) {
+        removeHash(hash, record); // left by a crash, released records are unmapped otherwise
+        return 0;
+      }
+      // the found record can't be released and reused while it's compared
+      myContents.acquireRecord(record);
+    }
+    finally {
+      myLock.unlock();
+    }
+
+    boolean same = false;
+    try {
+      same = contentEquals(record, content);
+    }
+    finally {
+      if (!same) {
+        myLock.lock();
+        try {
+          removeHash(hash, record);
+          releaseRecord(record);
+        }
+        finally {
+          myLock.unlock();
+        }
+      }
+    }
+    return same ? record : 0;
+  }
+
+  /**
+   * Acquires a record to write a new content with the given hash to. Should be called under the lock,
+   * the record should be {@link #publish published} after its bytes are written.
+   */
+  int acquireNewRecord(@NotNull byte[] hash) throws IOException {
+    final int record = myContents.acquireNewRecord();
+    myRecordsBeingWritten.put(record, hash);
+    return record;
+  }
+
+  /**
+   * Makes the record acquired by {@link #acquireNewRecord(byte[])} reachable by its hash, unless it's been released meanwhile.
+   */
+  void publish(@NotNull byte[] hash, int record) throws IOException {
+    myLock.lock();
+    try {
+      if (myRecordsBeingWritten.get(record) != hash) return;
+      myRecordsBeingWritten.remove(record);
+      final Integer previous = myHashToRecord.get(hash);
+      if (previous != null && previous != record) {
+        removeHash(hash, previous);
+      }
+      myHashToRecord.put(hash, record);
+      setRecordHash(record, hash);
+    }
+    finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Releases a content record, the released record isn't found by its hash anymore. Should be called under the lock.
+   */
+  void releaseRecord(int record) throws IOException {
+    if (myContents.getRefCount(record) == 1) {
+      myRecordsBeingWritten.remove(record);
+      final byte[] hash = getRecordHash(record);
+      if (hash != null) {
+        removeHash(hash, record);
+      }
+    }
+    myContents.releaseRecord(record);
+  }
+
+  boolean isDirty() {
+    return myHashToRecord.isDirty() || myRecordToHash.isDirty();
+  }
+
+  void force() {
+    myHashToRecord.force();
+    myRecordToHash.force();
+  }
+
+  void close() throws IOException {
+    myHashToRecord.close();
+    myRecordToHash.close();
+  }
+
+  private boolean contentEquals(int record, @NotNull ByteSequence content) throws IOException {
+    final DataInputStream stream = myContents.readStream(record);
+    try {
+      if (stream.available() != content.getLength()) return false;
+      final byte[] bytes = content.getBytes();
+      for (int i = content.getOffset(); i < content.getOffset() + content.getLength(); i++) {
+        if (stream.readByte() != bytes[i]) return false;
+      }
+      return true;
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private void removeHash(@NotNull byte[] hash, int record) throws IOException {
+    final Integer mapped = myHashToRecord.get(hash);
+    if (mapped != null && mapped == record) {
+      myHashToRecord.remove(hash);
+    }
+    if (Arrays.equals(hash, getRecordHash(record))) {
+      setRecordHash(record, null);
+    }
+  }
+
+  @Nullable
+  private byte[] getRecordHash(int record) {
+    final int offset = record * HASH_SIZE;
+    if (offset + HASH_SIZE > myRecordToHash.length()) return null;
+    final byte[] hash = new byte[HASH_SIZE];
+    myRecordToHash.get(offset, hash, 0, HASH_SIZE);
+    for (byte b : hash) {
+      if (b != 0) return hash;
+    }
+    return null;
+  }
+
+  private void setRecordHash(int record, @Nullable byte[] hash) {
+    final int offset = record * HASH_SIZE;
+    if (hash == null && offset + HASH_SIZE > myRecordToHash.length()) return;
+    myRecordToHash.put(offset, hash != null ? hash : new byte[HASH_SIZE], 0, HASH_SIZE);
+  }
+
+  private static class HashDescriptor implements KeyDescriptor<byte[]> {
+    @Override
+    public int getHashCode(byte[] value) {
+      return (value[0] & 0xFF) << 24 | (value[1] & 0xFF) << 16 | (value[2] & 0xFF) << 8 | value[3] & 0xFF;
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] hash = new byte[HASH_SIZE];
+      in.readFully(hash);
+      return hash;
+    }
+  }
+}
@@ -30,12 +30,12 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.storage.*;
-import gnu.trove.TIntArrayList;
-import gnu.trove.TObjectIntHashMap;
+import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -85,8 +85,18 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
-  private static final ReentrantReadWriteLock.ReadLock r;
-  private static final ReentrantReadWriteLock.WriteLock w;
+  private static final boolean ourContentDeduplication = SystemProperties.getBooleanProperty("idea.vfs.content.deduplication", false);
+
+  // fixed size record fields are read optimistically, without r lock
+  private static final OptimisticReadWriteLock ourLock = new OptimisticReadWriteLock();
+  private static final ReentrantReadWriteLock.ReadLock r = ourLock.readLock();
+  private static final ReentrantReadWriteLock.WriteLock w = ourLock.writeLock();
+
+  // attribute content is read and written under a lock striped by file and attribute
+  private static final int ATTRIBUTE_LOCK_STRIPES = 64;
+  private static final Object[] ourAttributeLocks = new Object[ATTRIBUTE_LOCK_STRIPES];
+
+  private static Batch ourBatch; // guarded by w
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -98,9 +108,63 @@ public class FSRecords implements Forceable {
     //noinspection ConstantConditions
     assert HEADER_SIZE <= RECORD_SIZE;
 
-    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    r = lock.readLock();
-    w = lock.writeLock();
+    for (int i = 0; i < ourAttributeLocks.length; i++) {
+      ourAttributeLocks[i] = new Object();
+    }
+  }
+
+  private static int readRecordInt(int id, int offset) {
+    final int stripe = ourLock.startOptimisticRead();
+    if (stripe >= 0) {
+      try {
+        return getRecordInt(id, offset);
+      }
+      finally {
+        ourLock.finishOptimisticRead(stripe);
+      }
+    }
+
+    r.lock();
+    try {
+      return getRecordInt(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    final int stripe = ourLock.startOptimisticRead();
+    if (stripe >= 0) {
+      try {
+        return getRecords().getLong(getOffset(id, offset));
+      }
+      finally {
+        ourLock.finishOptimisticRead(stripe);
+      }
+    }
+
+    r.lock();
+    try {
+      return getRecords().getLong(getOffset(id, offset));
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static Object getAttributeLock(int fileId, @NotNull String attId) {
+    return ourAttributeLocks[(fileId * 31 + attId.hashCode()) & (ATTRIBUTE_LOCK_STRIPES - 1)];
+  }
+
+  /**
+   * Modifications deferred till the end of a batch: children lists, each of them is rewritten once, and records whose modification
+   * counts should be updated, each parent chain is walked once.
+   */
+  private static class Batch {
+    private int myDepth;
+    private final TIntObjectHashMap<TIntArrayList> myChildren = new TIntObjectHashMap<TIntArrayList>();
+    private final TIntHashSet myModifiedIds = new TIntHashSet();
   }
 
   static class DbConnection {
@@ -110,6 +174,7 @@ public class FSRecords implements Forceable {
     private static PersistentStringEnumerator myNames;
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
+    private static ContentHashes myContentHashes; // null if content deduplication is off
     private static ResizeableMappedFile myRecords;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
@@ -193,6 +258,7 @@ public class FSRecords implements Forceable {
       final File namesFile = new File(basePath, "names.dat");
       final File attributesFile = new File(basePath, "attrib.dat");
       final File contentsFile = new File(basePath, "content.dat");
+      final File contentHashesFile = new File(basePath, "contentHashes.dat");
       final File recordsFile = new File(basePath, "records.dat");
 
       if (!namesFile.exists()) {
@@ -205,10 +271,13 @@ public class FSRecords implements Forceable {
           throw new IOException("Corruption marker file found");
         }
 
-        PagedFileStorage.StorageLockContext storageLockContext = new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext;
+        PagedFileStorage.StorageLockContext storageLockContext = new PagedFileStorage.StorageLock(false, PagedFileStorage.getPageCacheSizeLimit("vfs")).myDefaultStorageLockContext;
         myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
         myAttributes = new Storage(attributesFile.getCanonicalPath(), REASONABLY_SMALL);
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
+        if (ourContentDeduplication) {
+          myContentHashes = new ContentHashes(contentHashesFile, myContents, w, storageLockContext);
+        }
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
         assert aligned; // for performance
         myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext,
@@ -239,6 +308,7 @@ public class FSRecords implements Forceable {
           deleted &= deleteWithSubordinates(namesFile);
           deleted &= AbstractStorage.deleteFiles(attributesFile.getCanonicalPath());
           deleted &= AbstractStorage.deleteFiles(contentsFile.getCanonicalPath());
+          deleted &= deleteWithSubordinates(contentHashesFile);
           deleted &= deleteWithSubordinates(recordsFile);
 
           if (!deleted) {
@@ -355,6 +425,9 @@ public class FSRecords implements Forceable {
           myNames.force();
           myAttributes.force();
           myContents.force();
+          if (myContentHashes != null) {
+            myContentHashes.force();
+          }
           myRecords.force();
         }
       }
@@ -375,6 +448,9 @@ public class FSRecords implements Forceable {
 
         final boolean attribsFlushed = myAttributes.flushSome();
         final boolean contentsFlushed = myContents.flushSome();
+        if (myContentHashes != null && myContentHashes.isDirty()) {
+          myContentHashes.force();
+        }
         if (attribsFlushed && contentsFlushed) {
           markClean();
           myRecords.force();
@@ -442,6 +518,11 @@ public class FSRecords implements Forceable {
         myContents = null;
       }
 
+      if (myContentHashes != null) {
+        myContentHashes.close();
+        myContentHashes = null;
+      }
+
       if (myRecords != null) {
         markClean();
         myRecords.close();
@@ -520,6 +601,11 @@ public class FSRecords implements Forceable {
     return DbConnection.myContents;
   }
 
+  @Nullable
+  private static ContentHashes getContentHashes() {
+    return DbConnection.myContentHashes;
+  }
+
   private static Storage getAttributesStorage() {
     return DbConnection.myAttributes;
   }
@@ -528,6 +614,57 @@ public class FSRecords implements Forceable {
     return DbConnection.getNames();
   }
 
+  /**
+   * Starts a batch of modifications made by the current thread. The w lock is held till the matching {@link #finishBatch()}, so
+   * other threads observe the whole batch at once, while all modifications inside it take the lock reentrantly.
+   * Don't call code which may wait for other threads accessing the records (e.g. holding locks of virtual files) inside a batch.
+   */
+  public static void startBatch() {
+    w.lock();
+    if (ourBatch == null) {
+      ourBatch = new Batch();
+    }
+    ourBatch.myDepth++;
+  }
+
+  public static void finishBatch() {
+    try {
+      if (ourBatch.myDepth == 1) {
+        applyBatch(ourBatch);
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      if (--ourBatch.myDepth == 0) {
+        ourBatch = null;
+      }
+      w.unlock();
+    }
+  }
+
+  private static void applyBatch(@NotNull Batch batch) throws IOException {
+    // modification counts of the parents are collected into the batch as well
+    final TIntObjectIterator<TIntArrayList> children = batch.myChildren.iterator();
+    while (children.hasNext()) {
+      children.advance();
+      writeChildren(children.key(), children.value().toNativeArray());
+    }
+    batch.myChildren.clear();
+
+    if (batch.myModifiedIds.isEmpty()) return;
+    final int count = getModCount() + 1;
+    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    final TIntIterator ids = batch.myModifiedIds.iterator();
+    while (ids.hasNext()) {
+      final int id = ids.next();
+      if ((getRecordInt(id, FLAGS_OFFSET) & FREE_RECORD_FLAG) == 0) {
+        setModCountUpwards(id, count);
+      }
+    }
+  }
+
   public static int createRecord() {
     try {
       w.lock();
@@ -581,6 +718,9 @@ public class FSRecords implements Forceable {
     try {
       w.lock();
       DbConnection.markDirty();
+      if (ourBatch != null) {
+        ourBatch.myChildren.remove(id);
+      }
       deleteContentAndAttributes(id);
 
       DbConnection.cleanRecord(id);
@@ -597,7 +737,7 @@ public class FSRecords implements Forceable {
   private static void deleteContentAndAttributes(int id) throws IOException {
     int content_page = getContentRecordId(id);
     if (content_page != 0) {
-      getContentStorage().releaseRecord(content_page);
+      releaseContentRecord(content_page);
     }
 
     int att_page = getAttributeRecordId(id);
@@ -771,6 +911,9 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
+        final TIntArrayList pending = ourBatch != null ? ourBatch.myChildren.get(id) : null;
+        if (pending != null) return pending.toNativeArray();
+
         final DataInputStream input = readAttribute(id, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
@@ -797,6 +940,16 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
+        final TIntArrayList pending = ourBatch != null ? ourBatch.myChildren.get(parentId) : null;
+        if (pending != null) {
+          final int[] ids = pending.toNativeArray();
+          final String[] names = ArrayUtil.newStringArray(ids.length);
+          for (int i = 0; i < ids.length; i++) {
+            names[i] = getName(ids[i]);
+          }
+          return Pair.create(names, ids);
+        }
+
         final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
         if (input == null) return Pair.create(ArrayUtil.EMPTY_STRING_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
 
@@ -825,6 +978,7 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
+        if (ourBatch != null && ourBatch.myChildren.containsKey(id)) return true;
         return findAttributePage(id, CHILDREN_ATT, false) != 0;
       } finally {
         r.unlock();
@@ -838,19 +992,12 @@ public class FSRecords implements Forceable {
   public static void updateList(int id, @NotNull int[] children) {
     try {
       w.lock();
-      DbConnection.markDirty();
-      final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
-      DataInputOutputUtil.writeINT(record, children.length);
-      for (int child : children) {
-        if (child == id) {
-          LOG.error("Cyclic parent child relations");
-        }
-        else {
-          child = child > id ? child - id : -child;
-          DataInputOutputUtil.writeINT(record, child);
-        }
+      if (ourBatch != null) {
+        ourBatch.myChildren.put(id, new TIntArrayList(children));
+      }
+      else {
+        writeChildren(id, children);
       }
-      record.close();
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -860,15 +1007,90 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * Adds the child to the children list of the parent. Inside a batch the list is rewritten when the batch finishes.
+   */
+  public static void addChild(int parentId, int childId) {
+    startBatch();
+    try {
+      getBatchChildren(parentId).add(childId);
+    }
+    finally {
+      finishBatch();
+    }
+  }
+
+  /**
+   * @return false if the parent has no such child
+   */
+  public static boolean removeChild(int parentId, int childId) {
+    startBatch();
+    try {
+      final TIntArrayList children = getBatchChildren(parentId);
+      final int index = children.indexOf(childId);
+      if (index == -1) return false;
+      children.remove(index);
+      return true;
+    }
+    finally {
+      finishBatch();
+    }
+  }
+
+  // should be called inside a batch
+  private static TIntArrayList getBatchChildren(int parentId) {
+    TIntArrayList children = ourBatch.myChildren.get(parentId);
+    if (children == null) {
+      children = new TIntArrayList(list(parentId));
+      ourBatch.myChildren.put(parentId, children);
+    }
+    return children;
+  }
+
+  // should be called under w lock
+  private static void writeChildren(int id, @NotNull int[] children) throws IOException {
+    DbConnection.markDirty();
+    final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
+    DataInputOutputUtil.writeINT(record, children.length);
+    for (int child : children) {
+      if (child == id) {
+        LOG.error("Cyclic parent child relations");
+      }
+      else {
+        child = child > id ? child - id : -child;
+        DataInputOutputUtil.writeINT(record, child);
+      }
+    }
+    record.close();
+  }
+
   private static void incModCount(int id) {
     DbConnection.markDirty();
     ourLocalModificationCount++;
+    if (ourBatch != null) {
+      // the parent is remembered too since the record may be moved or deleted before the batch is finished
+      ourBatch.myModifiedIds.add(id);
+      final int parent = getRecordInt(id, PARENT_OFFSET);
+      if (parent != 0) {
+        ourBatch.myModifiedIds.add(parent);
+      }
+      return;
+    }
+
     final int count = getModCount() + 1;
     getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    setModCountUpwards(id, count);
+  }
 
+  /**
+   * Sets the new global modification count to the record and all its parents. The walk stops at a record which already has it,
+   * since all its parents have been updated as well.
+   */
+  private static void setModCountUpwards(int id, int count) {
     int parent = id;
     int depth = 10000;
     while (parent != 0) {
+      if (getRecordInt(parent, MOD_COUNT_OFFSET) == count) return;
       setModCount(parent, count);
       parent = getParent(parent);
       if (depth -- == 0) {
@@ -883,30 +1105,18 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
-    try {
-      r.lock();
-      return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(0, HEADER_GLOBAL_MOD_COUNT_OFFSET);
   }
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = readRecordInt(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -934,14 +1144,8 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
-      r.lock();
-      try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
-      }
-      finally {
-        r.unlock();
-      }
+      final int nameId = readRecordInt(id, NAME_OFFSET);
+      return nameId != 0 ? getNames().valueOf(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -963,13 +1167,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
@@ -989,13 +1187,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
@@ -1013,13 +1205,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
@@ -1036,16 +1222,40 @@ public class FSRecords implements Forceable {
     }
   }
 
-  public static int getModCount(int id) {
+  /**
+   * Sets all attributes of a new or changed record at once, with a single update of modification counts.
+   */
+  public static void fillRecord(int id, int parent, @NotNull String name, int flags, long timestamp, long length) {
+    if (id == parent) {
+      LOG.error("Cyclic parent/child relations");
+      return;
+    }
+
     try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
+      w.lock();
+      final int oldParent = getRecordInt(id, PARENT_OFFSET);
+      if (oldParent != 0 && oldParent != parent) {
+        incModCount(id);
+      }
+      putRecordInt(id, PARENT_OFFSET, parent);
+      putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
+      putRecordInt(id, FLAGS_OFFSET, flags);
+      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), timestamp);
+      getRecords().putLong(getOffset(id, LENGTH_OFFSET), length);
+      incModCount(id);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
     }
     finally {
-      r.unlock();
+      w.unlock();
     }
   }
 
+  public static int getModCount(int id) {
+    return readRecordInt(id, MOD_COUNT_OFFSET);
+  }
+
   private static void setModCount(int id, int value) {
     putRecordInt(id, MOD_COUNT_OFFSET, value);
   }
@@ -1110,7 +1320,7 @@ public class FSRecords implements Forceable {
   @Nullable
   static DataInputStream readAttributeWithLock(int fileId, String attId) {
     try {
-      synchronized (attId) {
+      synchronized (getAttributeLock(fileId, attId)) {
         try {
           r.lock();
           return readAttribute(fileId, attId);
@@ -1216,22 +1426,20 @@ public class FSRecords implements Forceable {
 
   public static void releaseContent(int contentId) {
     try {
-      getContentStorage().releaseRecord(contentId);
+      w.lock(); // content records are acquired and released under w lock, see ContentHashes
+      releaseContentRecord(contentId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
+    finally {
+      w.unlock();
+    }
   }
 
   public static int getContentId(int fileId) {
     try {
-      r.lock();
-      try {
-        return getContentRecordId(fileId);
-      }
-      finally {
-        r.unlock();
-      }
+      return readRecordInt(fileId, CONTENT_OFFSET);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1249,10 +1457,26 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
-      int recordId = getContentStorage().acquireNewRecord();
+      final ContentHashes hashes = getContentHashes();
+      final ByteSequence content = new ByteSequence(bytes);
+      final byte[] hash = hashes != null ? ContentHashes.calculateHash(content) : null;
+      int recordId = hash != null ? hashes.acquireRecord(hash, content) : 0;
+      if (recordId != 0) return recordId;
+
+      try {
+        w.lock();
+        recordId = hash != null ? hashes.acquireNewRecord(hash) : getContentStorage().acquireNewRecord();
+      }
+      finally {
+        w.unlock();
+      }
+
       AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true);
       output.write(bytes);
       output.close();
+      if (hash != null) {
+        hashes.publish(hash, recordId);
+      }
       return recordId;
     }
     catch (IOException e) {
@@ -1260,6 +1484,17 @@ public class FSRecords implements Forceable {
     }
   }
 
+  // should be called under w lock
+  private static void releaseContentRecord(int recordId) throws IOException {
+    final ContentHashes hashes = getContentHashes();
+    if (hashes != null) {
+      hashes.releaseRecord(recordId);
+    }
+    else {
+      getContentStorage().releaseRecord(recordId);
+    }
+  }
+
   @NotNull
   public static DataOutputStream writeAttribute(final int fileId, final String attId, boolean fixedSize) {
     return new AttributeOutputStream(fileId, attId, fixedSize);
@@ -1275,6 +1510,50 @@ public class FSRecords implements Forceable {
       return findContentPage(myFileId, true);
     }
 
+    /**
+     * If the same content is already stored, the file starts sharing its record instead of storing one more copy.
+     * Otherwise the content is written to a new record, since the current one may be found by its hash meanwhile.
+     */
+    @Override
+    public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
+      final ContentHashes hashes = getContentHashes();
+      if (hashes == null) {
+        super.writeBytes(bytes, fileId);
+        return;
+      }
+
+      final byte[] hash = ContentHashes.calculateHash(bytes);
+      int page = hashes.acquireRecord(hash, bytes);
+      final boolean shared = page != 0;
+      boolean linked = false;
+      try {
+        w.lock();
+        incModCount(fileId);
+        checkFileIsValid(fileId);
+
+        if (!shared) {
+          page = hashes.acquireNewRecord(hash);
+        }
+        final int current = getContentRecordId(fileId);
+        setContentRecordId(fileId, page);
+        linked = true;
+        if (current != 0) {
+          releaseContentRecord(current);
+        }
+      }
+      finally {
+        if (!linked && page != 0) {
+          releaseContentRecord(page);
+        }
+        w.unlock();
+      }
+
+      if (!shared) {
+        getStorage().writeBytes(page, bytes, myFixedSize);
+        hashes.publish(hash, page);
+      }
+    }
+
     @Override
     protected AbstractStorage getStorage() {
       return getContentStorage();
@@ -1291,7 +1570,7 @@ public class FSRecords implements Forceable {
 
     @Override
     protected void doFlush() throws IOException {
-      synchronized (myAttributeId) {
+      synchronized (getAttributeLock(myFileId, myAttributeId)) {
         super.doFlush();
       }
     }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-write lock whose write lock also excludes optimistic readers. Such readers don't update the shared state of the read lock:
+ * a reader increments the counter of its stripe and reads if no writer is active, otherwise it backs off to the read lock.
+ * The writer marks itself active and waits for counters of all stripes to drop to zero, so it never changes the data under
+ * an optimistic reader.
+ * <p/>
+ * Usage:
+ * <pre>
+ *   int stripe = lock.startOptimisticRead();
+ *   if (stripe >= 0) {
+ *     try { return read(); } finally { lock.finishOptimisticRead(stripe); }
+ *   }
+ *   lock.readLock().lock();
+ *   try { return read(); } finally { lock.readLock().unlock(); }
+ * </pre>
+ */
+class OptimisticReadWriteLock {
+  private static final int STRIPES = 64;
+  private static final int PADDING = 16; // keeps counters of different stripes in different cache lines
+
+  private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+  private final WriteLock myWriteLock = new WriteLock();
+  private final AtomicIntegerArray myOptimisticReaders = new AtomicIntegerArray(STRIPES * PADDING);
+  private volatile boolean myWriterActive;
+
+  @NotNull
+  ReentrantReadWriteLock.ReadLock readLock() {
+    return myLock.readLock();
+  }
+
+  @NotNull
+  ReentrantReadWriteLock.WriteLock writeLock() {
+    return myWriteLock;
+  }
+
+  /**
+   * @return stripe to pass to {@link #finishOptimisticRead(int)} or -1 if a writer is active and the read lock should be taken instead
+   */
+  int startOptimisticRead() {
+    final int stripe = ((int)Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    myOptimisticReaders.incrementAndGet(stripe);
+    if (myWriterActive) {
+      myOptimisticReaders.decrementAndGet(stripe);
+      return -1;
+    }
+    return stripe;
+  }
+
+  void finishOptimisticRead(int stripe) {
+    myOptimisticReaders.decrementAndGet(stripe);
+  }
+
+  private class WriteLock extends ReentrantReadWriteLock.WriteLock {
+    private WriteLock() {
+      super(myLock);
+    }
+
+    @Override
+    public void lock() {
+      super.lock();
+      if (getHoldCount() == 1) {
+        myWriterActive = true;
+        for (int i = 0; i < STRIPES; i++) {
+          while (myOptimisticReaders.get(i * PADDING) != 0) {
+            Thread.yield();
+          }
+        }
+      }
+    }
+
+    @Override
+    public void unlock() {
+      if (getHoldCount() == 1) {
+        myWriterActive = false;
+      }
+      super.unlock();
+    }
+  }
+}
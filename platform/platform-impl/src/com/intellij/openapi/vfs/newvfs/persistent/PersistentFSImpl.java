@@ -36,6 +36,7 @@ import com.intellij.util.containers.StripedLockIntObjectConcurrentHashMap;
 import com.intellij.util.io.ReplicatorInputStream;
 import com.intellij.util.messages.MessageBus;
 import gnu.trove.THashMap;
+import gnu.trove.THashSet;
 import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntObjectHashMap;
@@ -299,16 +300,13 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
       if (areChildrenLoaded(id)) return false; // TODO: hack
     }
 
-    FSRecords.setParent(id, parentId);
-    FSRecords.setName(id, name);
-
-    FSRecords.setTimestamp(id, attributes.lastModified);
-    FSRecords.setLength(id, attributes.isDirectory() ? -1L : attributes.length);
-
-    FSRecords.setFlags(id, (attributes.isDirectory() ? IS_DIRECTORY_FLAG : 0) |
-                           (attributes.isWritable() ? 0 : IS_READ_ONLY) |
-                           (attributes.isSymLink() ? IS_SYMLINK : 0) |
-                           (attributes.isSpecial() ? IS_SPECIAL : 0), true);
+    FSRecords.fillRecord(id, parentId, name,
+                         (attributes.isDirectory() ? IS_DIRECTORY_FLAG : 0) |
+                         (attributes.isWritable() ? 0 : IS_READ_ONLY) |
+                         (attributes.isSymLink() ? IS_SYMLINK : 0) |
+                         (attributes.isSpecial() ? IS_SPECIAL : 0),
+                         attributes.lastModified,
+                         attributes.isDirectory() ? -1L : attributes.length);
 
     return true;
   }
@@ -732,8 +730,16 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
 
     BulkFileListener publisher = myEventsBus.syncPublisher(VirtualFileManager.VFS_CHANGES);
     publisher.before(events);
-    for (VFileEvent event : events) {
-      applyEvent(event);
+    for (int i = 0; i < events.size(); ) {
+      int end = i;
+      while (end < events.size() && isChildrenEvent(events.get(end))) end++;
+      if (end > i) {
+        applyChildrenEvents(events.subList(i, end));
+        i = end;
+      }
+      else {
+        applyEvent(events.get(i++));
+      }
     }
     publisher.after(events);
   }
@@ -952,24 +958,140 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     return VfsUtilCore.toVirtualFileArray(roots);
   }
 
-  private void applyEvent(@NotNull VFileEvent event) {
+  private static boolean isChildrenEvent(@NotNull VFileEvent event) {
+    return event instanceof VFileCreateEvent ||
+           event instanceof VFileCopyEvent ||
+           event instanceof VFileDeleteEvent && ((VFileDeleteEvent)event).getFile().getParent() != null;
+  }
+
+  @NotNull
+  private static VirtualFile getCreatedChild(@NotNull VFileEvent event) {
+    if (event instanceof VFileCreateEvent) {
+      final VFileCreateEvent createEvent = (VFileCreateEvent)event;
+      return new FakeVirtualFile(createEvent.getParent(), createEvent.getChildName());
+    }
+    final VFileCopyEvent copyEvent = (VFileCopyEvent)event;
+    return new FakeVirtualFile(copyEvent.getNewParent(), copyEvent.getNewChildName());
+  }
+
+  /**
+   * Applies a run of child creations and deletions, changing the records of all of them in a single {@link FSRecords} batch,
+   * so each affected children list is rewritten once. Attributes of created files are fetched before the batch and cached children
+   * of directories are updated after it, since both may wait for threads reading the records.
+   * <p/>
+   * Files stay valid until the cached children are updated, so events of the run which delete a file already deleted by
+   * an earlier event of the run, or touch a file under such a directory, are skipped within the batch: their records may be freed
+   * or even reused by records created in the batch. Repeated creations of the same child are skipped as well.
+   */
+  private void applyChildrenEvents(@NotNull List<? extends VFileEvent> events) {
+    final int count = events.size();
+    final VirtualFile[] files = new VirtualFile[count];
+    final FileAttributes[] attributes = new FileAttributes[count];
+    final int[] ids = new int[count];
+
+    boolean deleted = false;
+    for (int i = 0; i < count; i++) {
+      final VFileEvent event = events.get(i);
+      try {
+        if (event instanceof VFileDeleteEvent) {
+          final VirtualFile file = ((VFileDeleteEvent)event).getFile();
+          if (!file.exists()) {
+            LOG.error("Deleting a file, which does not exist: " + file.getPath());
+            continue;
+          }
+          files[i] = file;
+          deleted = true;
+        }
+        else {
+          final VirtualFile child = getCreatedChild(event);
+          final VirtualFile parent = child.getParent();
+          assert parent != null : child;
+          attributes[i] = getDelegate(parent).getAttributes(child);
+          if (attributes[i] != null) {
+            files[i] = child;
+          }
+        }
+      }
+      catch (Exception e) {
+        LOG.error(e);
+      }
+    }
+    if (deleted) {
+      clearIdCache();
+    }
+
+    final TIntHashSet deletedIds = new TIntHashSet();
+    final Set<String> createdPaths = new THashSet<String>();
+    FSRecords.startBatch();
     try {
-      if (event instanceof VFileCreateEvent) {
-        final VFileCreateEvent createEvent = (VFileCreateEvent)event;
-        executeCreateChild(createEvent.getParent(), createEvent.getChildName());
+      for (int i = 0; i < count; i++) {
+        final VirtualFile file = files[i];
+        if (file == null) continue;
+        try {
+          final VirtualFile parent = file.getParent();
+          assert parent != null : file;
+          if (!deletedIds.isEmpty() && isDeleted(attributes[i] != null ? parent : file, deletedIds)) continue;
+          final int parentId = getFileId(parent);
+          if (attributes[i] != null) {
+            if (!createdPaths.add(file.getPath())) continue;
+            ids[i] = createAndFillRecord(getDelegate(parent), file, parentId, attributes[i]);
+            FSRecords.addChild(parentId, ids[i]);
+          }
+          else {
+            final int id = getFileId(file);
+            FSRecords.deleteRecordRecursively(id);
+            removeIdFromParentList(parentId, id, parent, file);
+            deletedIds.add(id);
+            ids[i] = id;
+          }
+        }
+        catch (Exception e) {
+          // Exception applying single event should not prevent other events from applying.
+          LOG.error(e);
+        }
+      }
+    }
+    finally {
+      FSRecords.finishBatch();
+    }
+
+    for (int i = 0; i < count; i++) {
+      if (ids[i] == 0) continue;
+      try {
+        final VirtualFile file = files[i];
+        final VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file.getParent();
+        assert dir != null : file;
+        if (attributes[i] != null) {
+          dir.addChild(dir.createChild(file.getName(), ids[i]));
+        }
+        else {
+          dir.removeChild(file);
+          invalidateSubtree(file);
+        }
+      }
+      catch (Exception e) {
+        LOG.error(e);
       }
-      else if (event instanceof VFileDeleteEvent) {
+    }
+  }
+
+  private static boolean isDeleted(@NotNull VirtualFile file, @NotNull TIntHashSet deletedIds) {
+    for (VirtualFile f = file; f != null; f = f.getParent()) {
+      if (deletedIds.contains(getFileId(f))) return true;
+    }
+    return false;
+  }
+
+  private void applyEvent(@NotNull VFileEvent event) {
+    try {
+      if (event instanceof VFileDeleteEvent) {
         final VFileDeleteEvent deleteEvent = (VFileDeleteEvent)event;
-        executeDelete(deleteEvent.getFile());
+        executeDeleteRoot(deleteEvent.getFile());
       }
       else if (event instanceof VFileContentChangeEvent) {
         final VFileContentChangeEvent contentUpdateEvent = (VFileContentChangeEvent)event;
         executeTouch(contentUpdateEvent.getFile(), contentUpdateEvent.isFromRefresh(), contentUpdateEvent.getModificationStamp());
       }
-      else if (event instanceof VFileCopyEvent) {
-        final VFileCopyEvent copyEvent = (VFileCopyEvent)event;
-        executeCreateChild(copyEvent.getNewParent(), copyEvent.getNewChildName());
-      }
       else if (event instanceof VFileMoveEvent) {
         final VFileMoveEvent moveEvent = (VFileMoveEvent)event;
         executeMove(moveEvent.getFile(), moveEvent.getNewParent());
@@ -996,20 +1118,6 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     return "PersistentFS";
   }
 
-  private static void executeCreateChild(@NotNull VirtualFile parent, @NotNull String name) {
-    final NewVirtualFileSystem delegate = getDelegate(parent);
-    final VirtualFile fake = new FakeVirtualFile(parent, name);
-    final FileAttributes attributes = delegate.getAttributes(fake);
-    if (attributes != null) {
-      final int parentId = getFileId(parent);
-      final int childId = createAndFillRecord(delegate, fake, parentId, attributes);
-      appendIdToParentList(parentId, childId);
-      assert parent instanceof VirtualDirectoryImpl : parent;
-      final VirtualDirectoryImpl dir = (VirtualDirectoryImpl)parent;
-      dir.addChild(dir.createChild(name, childId));
-    }
-  }
-
   private static int createAndFillRecord(@NotNull NewVirtualFileSystem delegateSystem,
                                          @NotNull VirtualFile delegateFile,
                                          int parentId,
@@ -1019,13 +1127,8 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     return childId;
   }
 
-  private static void appendIdToParentList(final int parentId, final int childId) {
-    int[] childrenList = FSRecords.list(parentId);
-    childrenList = ArrayUtil.append(childrenList, childId);
-    FSRecords.updateList(parentId, childrenList);
-  }
-
-  private void executeDelete(@NotNull VirtualFile file) {
+  // deletions of other files are applied by applyChildrenEvents()
+  private void executeDeleteRoot(@NotNull VirtualFile file) {
     if (!file.exists()) {
       LOG.error("Deleting a file, which does not exist: " + file.getPath());
     }
@@ -1035,31 +1138,20 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
       final int id = getFileId(file);
       FSRecords.deleteRecordRecursively(id);
 
-      final VirtualFile parent = file.getParent();
-      final int parentId = parent != null ? getFileId(parent) : 0;
-
-      if (parentId != 0) {
-        removeIdFromParentList(parentId, id, parent, file);
-        VirtualDirectoryImpl directory = (VirtualDirectoryImpl)file.getParent();
-        assert directory != null : file;
-        directory.removeChild(file);
-      }
-      else {
-        myRootsLock.writeLock().lock();
+      myRootsLock.writeLock().lock();
+      try {
+        myRoots.remove(file.getUrl());
+        myRootsById.remove(id);
         try {
-          myRoots.remove(file.getUrl());
-          myRootsById.remove(id);
-          try {
-            FSRecords.deleteRootRecord(id);
-          }
-          catch (IOException e) {
-            throw new RuntimeException(e);
-          }
+          FSRecords.deleteRootRecord(id);
         }
-        finally {
-          myRootsLock.writeLock().unlock();
+        catch (IOException e) {
+          throw new RuntimeException(e);
         }
       }
+      finally {
+        myRootsLock.writeLock().unlock();
+      }
 
       invalidateSubtree(file);
     }
@@ -1074,16 +1166,11 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
   }
 
   private static void removeIdFromParentList(final int parentId, final int id, @NotNull VirtualFile parent, VirtualFile file) {
-    int[] childList = FSRecords.list(parentId);
-
-    int index = ArrayUtil.indexOf(childList, id);
-    if (index == -1) {
+    if (!FSRecords.removeChild(parentId, id)) {
       throw new RuntimeException("Cannot find child (" + id + ")" + file
                                  + "\n\tin (" + parentId + ")" + parent
-                                 + "\n\tactual children:" + Arrays.toString(childList));
+                                 + "\n\tactual children:" + Arrays.toString(FSRecords.list(parentId)));
     }
-    childList = ArrayUtil.remove(childList, index);
-    FSRecords.updateList(parentId, childList);
   }
 
   private static void executeRename(@NotNull VirtualFile file, @NotNull final String newName) {
@@ -1134,7 +1221,7 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     final int oldParentId = getFileId(file.getParent());
 
     removeIdFromParentList(oldParentId, fileId, file.getParent(), file);
-    appendIdToParentList(newParentId, fileId);
+    FSRecords.addChild(newParentId, fileId);
 
     ((VirtualFileSystemEntry)file).setParent(newParent);
     FSRecords.setParent(fileId, newParentId);
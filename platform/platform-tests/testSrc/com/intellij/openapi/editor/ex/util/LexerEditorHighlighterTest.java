@@ -0,0 +1,276 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Texts are large enough to be split into chunks, and block comments and strings cross the chunk borders.
+ */
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType CODE = new IElementType("CODE", Language.ANY);
+  private static final IElementType COMMENT = new IElementType("COMMENT", Language.ANY);
+  private static final IElementType STRING = new IElementType("STRING", Language.ANY);
+  private static final int CHUNK_COUNT = 8;
+  private static final int CHUNK_SIZE = 800 * 1024;
+  private static final String PARALLEL_LEXING_KEY = "editor.highlighter.parallel.lexing";
+  private boolean myParallelLexing;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myParallelLexing = Registry.is(PARALLEL_LEXING_KEY);
+    Registry.get(PARALLEL_LEXING_KEY).setValue(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      Registry.get(PARALLEL_LEXING_KEY).setValue(myParallelLexing);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testChunkedLexingIsSameAsSequential() {
+    assertSameSegments(generateText(false), false);
+  }
+
+  public void testChunkedLexingWithLexerRarelyInInitialState() {
+    assertSameSegments(generateText(true), true);
+  }
+
+  public void testChunkedLexingInWriteAction() {
+    final String text = generateText(false);
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        assertSameSegments(text, false);
+      }
+    });
+  }
+
+  private static void assertSameSegments(@NotNull String text, boolean rarelyInitial) {
+    LexerEditorHighlighter sequential = createHighlighter(rarelyInitial, 1);
+    sequential.setText(text);
+    LexerEditorHighlighter chunked = createHighlighter(rarelyInitial, CHUNK_COUNT);
+    chunked.setText(text);
+
+    SegmentArrayWithData expected = sequential.getSegments();
+    SegmentArrayWithData actual = chunked.getSegments();
+    assertEquals(text.length(), expected.getSegmentEnd(expected.getSegmentCount() - 1));
+    assertEquals(expected.getSegmentCount(), actual.getSegmentCount());
+    for (int i = 0; i < expected.getSegmentCount(); i++) {
+      assertEquals(expected.getSegmentStart(i), actual.getSegmentStart(i));
+      assertEquals(expected.getSegmentEnd(i), actual.getSegmentEnd(i));
+      assertEquals(expected.getSegmentData(i), actual.getSegmentData(i));
+    }
+  }
+
+  @NotNull
+  private static LexerEditorHighlighter createHighlighter(final boolean rarelyInitial, final int chunkCount) {
+    SyntaxHighlighterBase highlighter = new SyntaxHighlighterBase() {
+      @NotNull
+      @Override
+      public Lexer getHighlightingLexer() {
+        return new CommentsAndStringsLexer(rarelyInitial);
+      }
+
+      @NotNull
+      @Override
+      public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+        return EMPTY;
+      }
+    };
+    return new LexerEditorHighlighter(highlighter, EditorColorsManager.getInstance().getGlobalScheme()) {
+      @Override
+      int getParallelLexingChunkCount() {
+        return chunkCount;
+      }
+    };
+  }
+
+  /**
+   * Code lines with short comments and strings; a long multiline comment or string crosses every chunk border.
+   * Lines starting with '#' are rare.
+   */
+  @NotNull
+  private static String generateText(boolean rarelyInitial) {
+    Random random = new Random(rarelyInitial ? 1 : 0);
+    StringBuilder text = new StringBuilder();
+    for (int chunk = 1; chunk <= CHUNK_COUNT; chunk++) {
+      int border = chunk * CHUNK_SIZE;
+      appendCode(text, random, chunk < CHUNK_COUNT ? border - CHUNK_SIZE / 4 : border);
+      if (chunk < CHUNK_COUNT) {
+        boolean comment = chunk % 2 == 0;
+        text.append(comment ? "/*" : "\"");
+        while (text.length() < border + CHUNK_SIZE / 4) {
+          text.append("inside line ").append(random.nextInt()).append('\n');
+        }
+        text.append(comment ? "*/" : "\"").append('\n');
+      }
+    }
+    return text.toString();
+  }
+
+  private static void appendCode(@NotNull StringBuilder text, @NotNull Random random, int length) {
+    while (text.length() < length) {
+      if (random.nextInt(5000) == 0) {
+        text.append('#');
+      }
+      text.append("code ").append(random.nextInt(100));
+      switch (random.nextInt(4)) {
+        case 0:
+          text.append(" /* comment */ more");
+          break;
+        case 1:
+          text.append(" \"string\" more");
+          break;
+        case 2:
+          text.append(" /* two\nlines */");
+          break;
+      }
+      text.append('\n');
+    }
+  }
+
+  /**
+   * Block comments and strings may span several lines, each line of them is a separate token. In the "rarely initial" mode code
+   * is lexed in the initial state only at lines starting with '#', so a chunk lexed from a line start is usually lexed in a wrong state.
+   */
+  private static class CommentsAndStringsLexer extends LexerBase {
+    private static final int INITIAL = 0;
+    private static final int IN_COMMENT = 1;
+    private static final int IN_STRING = 2;
+    private static final int IN_CODE = 3;
+    private final boolean myRarelyInitial;
+    private CharSequence myBuffer;
+    private int myBufferEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private int myNextState;
+    private IElementType myTokenType;
+
+    private CommentsAndStringsLexer(boolean rarelyInitial) {
+      myRarelyInitial = rarelyInitial;
+    }
+
+    @Override
+    public void start(CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myBufferEnd = endOffset;
+      myTokenEnd = startOffset;
+      myNextState = initialState;
+      advance();
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      myState = myNextState;
+      if (myTokenStart >= myBufferEnd) {
+        myTokenType = null;
+        return;
+      }
+      int i = myTokenStart;
+      if (myState == IN_COMMENT || myState == IN_STRING) {
+        myTokenType = myState == IN_COMMENT ? COMMENT : STRING;
+        while (i < myBufferEnd) {
+          char c = myBuffer.charAt(i++);
+          if (c == '\n') break;
+          if (myState == IN_COMMENT ? c == '*' && i < myBufferEnd && myBuffer.charAt(i) == '/' : c == '"') {
+            if (myState == IN_COMMENT) i++;
+            myNextState = codeState(i);
+            break;
+          }
+        }
+      }
+      else if (startsComment(i)) {
+        myTokenType = COMMENT;
+        i += 2;
+        myNextState = IN_COMMENT;
+      }
+      else if (myBuffer.charAt(i) == '"') {
+        myTokenType = STRING;
+        i++;
+        myNextState = IN_STRING;
+      }
+      else {
+        myTokenType = CODE;
+        while (i < myBufferEnd && !startsComment(i) && myBuffer.charAt(i) != '"') {
+          if (myBuffer.charAt(i++) == '\n') {
+            myNextState = codeState(i);
+            break;
+          }
+        }
+      }
+      myTokenEnd = i;
+    }
+
+    private boolean startsComment(int offset) {
+      return myBuffer.charAt(offset) == '/' && offset + 1 < myBufferEnd && myBuffer.charAt(offset + 1) == '*';
+    }
+
+    private int codeState(int offset) {
+      if (!myRarelyInitial) return INITIAL;
+      return offset < myBufferEnd && myBuffer.charAt(offset) == '#' ? INITIAL : IN_CODE;
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myBufferEnd;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.LocalTimeCounter;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.text.ImmutableText;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares typical editing patterns on a large document for {@link CharArray} and {@link ImmutableText}.
+ */
+public class CharArrayPerformanceTest {
+  private static final int TEXT_LENGTH = 5 * 1024 * 1024;
+  private static final String TEXT = createText();
+
+  private static final int TYPED_CHARS = 2000;
+  private static final int PASTES = 50;
+  private static final String PASTED_TEXT = TEXT.substring(0, 256 * 1024);
+  private static final int BULK_REPLACEMENTS = 10000;
+
+  @Test
+  public void typingInCharArray() {
+    final CharArray array = createCharArray();
+    PlatformTestUtil.startPerformanceTest("Typing in CharArray", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < TYPED_CHARS; i++) {
+          array.insert("x", TEXT_LENGTH / 2 + i);
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  @Test
+  public void typingInImmutableText() {
+    PlatformTestUtil.startPerformanceTest("Typing in ImmutableText", 100, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        ImmutableText text = ImmutableText.valueOf(TEXT);
+        for (int i = 0; i < TYPED_CHARS; i++) {
+          text = text.insert(TEXT_LENGTH / 2 + i, "x");
+        }
+        assertEquals(TEXT_LENGTH + TYPED_CHARS, text.length());
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  @Test
+  public void largePasteInCharArray() {
+    PlatformTestUtil.startPerformanceTest("Large paste in CharArray", 800, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        CharArray array = createCharArray();
+        for (int i = 0; i < PASTES; i++) {
+          array.insert(PASTED_TEXT, (int)((long)array.length() * i / PASTES));
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  @Test
+  public void largePasteInImmutableText() {
+    PlatformTestUtil.startPerformanceTest("Large paste in ImmutableText", 200, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        ImmutableText text = ImmutableText.valueOf(TEXT);
+        for (int i = 0; i < PASTES; i++) {
+          text = text.insert((int)((long)text.length() * i / PASTES), PASTED_TEXT);
+        }
+        assertEquals(TEXT_LENGTH + PASTES * PASTED_TEXT.length(), text.length());
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  @Test
+  public void bulkReplaceInCharArray() {
+    PlatformTestUtil.startPerformanceTest("Bulk replace in CharArray", 800, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        CharArray array = createCharArray();
+        array.setDeferredChangeMode(true);
+        for (int i = BULK_REPLACEMENTS - 1; i >= 0; i--) {
+          int offset = (int)((long)TEXT_LENGTH * i / BULK_REPLACEMENTS);
+          array.replace(offset, offset + 4, TEXT.subSequence(offset, offset + 4), "abcdef", LocalTimeCounter.currentTime(), false);
+        }
+        array.setDeferredChangeMode(false);
+        assertEquals(TEXT_LENGTH + 2 * BULK_REPLACEMENTS, array.length());
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  @Test
+  public void bulkReplaceInImmutableText() {
+    PlatformTestUtil.startPerformanceTest("Bulk replace in ImmutableText", 300, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        ImmutableText text = ImmutableText.valueOf(TEXT);
+        for (int i = BULK_REPLACEMENTS - 1; i >= 0; i--) {
+          int offset = (int)((long)TEXT_LENGTH * i / BULK_REPLACEMENTS);
+          text = text.replace(offset, offset + 4, "abcdef");
+        }
+        assertEquals(TEXT_LENGTH + 2 * BULK_REPLACEMENTS, text.length());
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static String createText() {
+    StringBuilder builder = new StringBuilder(TEXT_LENGTH);
+    while (builder.length() < TEXT_LENGTH) {
+      builder.append("INSERT INTO t VALUES (").append(builder.length()).append(", 'value');\n");
+    }
+    builder.setLength(TEXT_LENGTH);
+    return builder.toString();
+  }
+
+  @NotNull
+  private static CharArray createCharArray() {
+    char[] chars = TEXT.toCharArray();
+    return new CharArray(0, chars, chars.length) {
+      @Override
+      protected DocumentEvent beforeChangedUpdate(int offset,
+                                                  @Nullable CharSequence oldString,
+                                                  @Nullable CharSequence newString,
+                                                  boolean wholeTextReplaced) {
+        return null;
+      }
+
+      @Override
+      protected void afterChangedUpdate(DocumentEvent event, long newModificationStamp) {
+      }
+
+      @Override
+      protected void assertWriteAccess() {
+      }
+
+      @Override
+      protected void assertReadAccess() {
+      }
+
+      @Override
+      boolean isDebug() {
+        return false;
+      }
+    };
+  }
+}
@@ -63,6 +63,7 @@ public class CharArrayTest {
   private Config myConfig;
   private Mockery myMockery;
   private DocumentImpl myDocument;
+  private boolean myReadAccessAllowed = true;
     
   @Before
   public void setUp() {
@@ -141,6 +142,48 @@ public class CharArrayTest {
     assertArrayEquals("1".toCharArray(), subsSequence.getChars());
   }
   
+  @Config(text = "01234567", deferred = true)
+  @Test
+  public void immutableSnapshotIsUpdatedOnChanges() {
+    replace(0, 2, "abc");
+    CharSequence snapshot = myArray.getImmutableCharSequence();
+    assertEquals("abc234567", snapshot.toString());
+
+    replace(3, 5, "");
+    myArray.setDeferredChangeMode(false);
+    myArray.insert("X", 1);
+    assertEquals("aXbc4567", myArray.getImmutableCharSequence().toString());
+
+    myArray.insert("0123", 0); // exceeds buffer size
+    assertEquals(myArray.toString(), myArray.getImmutableCharSequence().toString());
+    assertEquals("abc234567", snapshot.toString());
+  }
+
+  @Config(text = "0123")
+  @Test
+  public void immutableSnapshotIsDroppedIfNotRequested() {
+    myArray.getImmutableCharSequence();
+    for (int i = 0; i < 1000; i++) {
+      myArray.insert("a", 0);
+    }
+    assertTrue(myArray.hasImmutableText());
+    assertEquals(myArray.toString(), myArray.getImmutableCharSequence().toString());
+
+    for (int i = 0; i < 1001; i++) {
+      myArray.insert("b", 0);
+    }
+    assertFalse(myArray.hasImmutableText());
+    assertEquals(myArray.toString(), myArray.getImmutableCharSequence().toString());
+    assertTrue(myArray.hasImmutableText());
+  }
+
+  @Config(text = "0123")
+  @Test(expected = IllegalStateException.class)
+  public void immutableSnapshotRequiresReadAccess() {
+    myReadAccessAllowed = false;
+    myArray.getImmutableCharSequence();
+  }
+
   private void init(int size) {
     myArray = new CharArray(size, new char[0], 0) {
       @NotNull
@@ -160,6 +203,9 @@ public class CharArrayTest {
 
       @Override
       protected void assertReadAccess() {
+        if (!myReadAccessAllowed) {
+          throw new IllegalStateException("Read access is not allowed");
+        }
       }
     };
   }
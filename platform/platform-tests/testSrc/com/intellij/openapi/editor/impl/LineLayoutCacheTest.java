@@ -0,0 +1,139 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import junit.framework.TestCase;
+
+import java.awt.*;
+
+public class LineLayoutCacheTest extends TestCase {
+  private LineLayoutCache myCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myCache = new LineLayoutCache();
+    myCache.checkFont("Monospaced", 12, true);
+  }
+
+  public void testFragmentsAreKeyedByPositionAndStyle() {
+    put(0, 0, 5, Font.PLAIN);
+    assertNotNull(myCache.get(0, 0, 5, Font.PLAIN));
+    assertNull(myCache.get(0, 0, 5, Font.BOLD));
+    assertNull(myCache.get(0, 0, 4, Font.PLAIN));
+    assertNull(myCache.get(1, 0, 5, Font.PLAIN));
+  }
+
+  public void testLinesAreShiftedOnChanges() {
+    for (int line = 0; line < 10; line++) {
+      put(line, 0, 5, Font.PLAIN);
+    }
+
+    myCache.linesChanged(3, 0, 2); // two lines are inserted into line 3
+    assertCached(0, 1, 2, 6, 7, 8, 9, 10, 11);
+
+    myCache.linesChanged(6, 3, 0); // lines 6-9 are joined
+    assertCached(0, 1, 2, 7, 8);
+  }
+
+  public void testFontChangeClearsCache() {
+    put(0, 0, 5, Font.PLAIN);
+    myCache.checkFont("Monospaced", 12, true);
+    assertNotNull(myCache.get(0, 0, 5, Font.PLAIN));
+    myCache.checkFont("Monospaced", 14, true);
+    assertNull(myCache.get(0, 0, 5, Font.PLAIN));
+  }
+
+  public void testAntialiasingChangeClearsCache() {
+    put(0, 0, 5, Font.PLAIN);
+    myCache.checkFont("Monospaced", 12, false);
+    assertNull(myCache.get(0, 0, 5, Font.PLAIN));
+  }
+
+  public void testFragmentsAreFoundInAnyOrder() {
+    for (int i = 0; i < 10; i++) {
+      put(0, i * 5, i * 5 + 5, i % 2 == 0 ? Font.PLAIN : Font.BOLD);
+    }
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(myCache.get(0, i * 5, i * 5 + 5, i % 2 == 0 ? Font.PLAIN : Font.BOLD));
+    }
+    for (int i = 9; i >= 0; i--) {
+      assertNotNull(myCache.get(0, i * 5, i * 5 + 5, i % 2 == 0 ? Font.PLAIN : Font.BOLD));
+    }
+    assertNull(myCache.get(0, 0, 5, Font.BOLD));
+    assertEquals("lines: 1, chars: 50, hits: 20, misses: 1", myCache.getStatistics());
+  }
+
+  public void testLeastRecentlyPaintedLinesAreEvicted() {
+    for (int line = 0; line < 2000; line++) {
+      put(line, 0, 5, Font.PLAIN);
+      myCache.get(0, 0, 5, Font.PLAIN);
+    }
+    assertTrue(myCache.getLineCount() < 2000);
+    assertNotNull(myCache.get(0, 0, 5, Font.PLAIN));
+    assertNull(myCache.get(1, 0, 5, Font.PLAIN));
+    assertNotNull(myCache.get(1999, 0, 5, Font.PLAIN));
+  }
+
+  public void testCacheIsBoundedByCharacters() {
+    for (int line = 0; line < 500; line++) {
+      put(line, 0, LineLayoutCache.MAX_FRAGMENT_LENGTH, Font.PLAIN);
+    }
+    assertTrue(myCache.getCharCount() <= 128 * 1024);
+    assertEquals(myCache.getCharCount(), myCache.getLineCount() * LineLayoutCache.MAX_FRAGMENT_LENGTH);
+    assertNull(myCache.get(0, 0, LineLayoutCache.MAX_FRAGMENT_LENGTH, Font.PLAIN));
+    assertNotNull(myCache.get(499, 0, LineLayoutCache.MAX_FRAGMENT_LENGTH, Font.PLAIN));
+  }
+
+  public void testCharCountFollowsChanges() {
+    for (int line = 0; line < 10; line++) {
+      put(line, 0, 5, Font.PLAIN);
+    }
+    myCache.linesChanged(3, 2, 0);
+    assertEquals(35, myCache.getCharCount());
+    myCache.linesChanged(0, 0, 1);
+    assertEquals(30, myCache.getCharCount());
+    myCache.clear();
+    assertEquals(0, myCache.getCharCount());
+  }
+
+  public void testFragmentKeepsPerCharacterDataOnlyIfItDiffers() {
+    FontInfo plain = new FontInfo("Monospaced", 12, Font.PLAIN);
+    FontInfo fallback = new FontInfo("Dialog", 12, Font.PLAIN);
+    LineLayoutCache.FragmentLayout same =
+      new LineLayoutCache.FragmentLayout(0, 3, Font.PLAIN, new FontInfo[]{plain, plain, plain}, new int[]{7, 7, 7});
+    assertSame(plain, same.getFont(2));
+    assertEquals(7, same.getWidth(2));
+
+    LineLayoutCache.FragmentLayout mixed =
+      new LineLayoutCache.FragmentLayout(0, 3, Font.PLAIN, new FontInfo[]{plain, fallback, plain}, new int[]{7, 12, 7});
+    assertSame(plain, mixed.getFont(0));
+    assertSame(fallback, mixed.getFont(1));
+    assertEquals(12, mixed.getWidth(1));
+    assertEquals(7, mixed.getWidth(2));
+  }
+
+  private void assertCached(int... lines) {
+    assertEquals(lines.length, myCache.getLineCount());
+    for (int line : lines) {
+      assertNotNull(String.valueOf(line), myCache.get(line, 0, 5, Font.PLAIN));
+    }
+  }
+
+  private void put(int line, int start, int end, int fontType) {
+    myCache.put(line, new LineLayoutCache.FragmentLayout(start, end, fontType, new FontInfo[end - start], new int[end - start]));
+  }
+}
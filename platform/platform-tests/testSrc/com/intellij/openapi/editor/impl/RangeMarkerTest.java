@@ -9,10 +9,14 @@ import com.intellij.openapi.command.undo.UndoManager;
 import com.intellij.openapi.editor.*;
 import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.ex.DisposableIterator;
 import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
 import com.intellij.openapi.editor.ex.RangeMarkerEx;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.Trinity;
@@ -22,7 +26,10 @@ import com.intellij.psi.impl.PsiDocumentManagerImpl;
 import com.intellij.psi.impl.PsiToDocumentSynchronizer;
 import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.Timings;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.ThrowableRunnable;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
@@ -1043,4 +1050,131 @@ public class RangeMarkerTest extends LightPlatformTestCase {
     assertValidMarker(marker1, 2, 2);
     assertValidMarker(marker2, 2, 4);
   }
+
+  public void testLargeMarkupModelIsQueriedConsistentlyBetweenModifications() throws Exception {
+    Document document = EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol(' ', 10000));
+    MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    Random gen = new Random(0);
+    List<RangeHighlighter> highlighters = new ArrayList<RangeHighlighter>();
+    for (int i = 0; i < 3000; i++) {
+      int start = gen.nextInt(document.getTextLength());
+      int end = Math.min(document.getTextLength(), start + gen.nextInt(i % 10 == 0 ? 1000 : 20));
+      highlighters.add(markupModel.addRangeHighlighter(start, end, 0, null, HighlighterTargetArea.EXACT_RANGE));
+    }
+
+    for (int round = 0; round < 20; round++) {
+      // repeated reads without modifications are served from the tree snapshot
+      for (int i = 0; i < 10; i++) {
+        int start = gen.nextInt(document.getTextLength());
+        int end = start + gen.nextInt(100);
+        List<RangeHighlighterEx> found = new ArrayList<RangeHighlighterEx>();
+        markupModel.processRangeHighlightersOverlappingWith(start, end, new CommonProcessors.CollectProcessor<RangeHighlighterEx>(found));
+        List<RangeHighlighter> expected = new ArrayList<RangeHighlighter>();
+        for (RangeHighlighter highlighter : highlighters) {
+          if (highlighter.isValid() && Math.max(highlighter.getStartOffset(), start) <= Math.min(highlighter.getEndOffset(), end)) {
+            expected.add(highlighter);
+          }
+        }
+        assertSameElements(found, expected);
+      }
+
+      int offset = gen.nextInt(document.getTextLength() - 10);
+      document.deleteString(offset, offset + gen.nextInt(10));
+      document.insertString(gen.nextInt(document.getTextLength()), "   ");
+      markupModel.removeHighlighter(highlighters.remove(gen.nextInt(highlighters.size())));
+    }
+  }
+
+  public void testTreeSnapshotIsQueriedSameAsLockedTree() {
+    DocumentEx document = (DocumentEx)EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol(' ', 10000));
+    RangeMarkerTree<RangeMarkerEx> tree = new RangeMarkerTree<RangeMarkerEx>(document);
+    try {
+      Random gen = new Random(0);
+      List<RangeMarkerEx> markers = new ArrayList<RangeMarkerEx>(); // the tree references markers weakly
+      for (int i = 0; i < 3000; i++) {
+        int start = gen.nextInt(document.getTextLength());
+        int end = Math.min(document.getTextLength(), start + gen.nextInt(i % 10 == 0 ? 1000 : 20));
+        RangeMarkerImpl marker = new RangeMarkerImpl(document, start, end, false);
+        tree.addInterval(marker, start, end, false, false, 0);
+        markers.add(marker);
+      }
+
+      for (int round = 0; round < 20; round++) {
+        for (int i = 0; i < 10; i++) {
+          int start = gen.nextInt(document.getTextLength());
+          int end = Math.min(document.getTextLength(), start + gen.nextInt(100));
+          tree.setSnapshotsForced(false);
+          List<List<RangeMarkerEx>> expected = queryTree(tree, start, end);
+          tree.setSnapshotsForced(true);
+          List<List<RangeMarkerEx>> actual = queryTree(tree, start, end);
+          for (int query = 0; query < expected.size(); query++) {
+            assertSameElements(actual.get(query), expected.get(query));
+          }
+        }
+
+        int offset = gen.nextInt(document.getTextLength() - 10);
+        document.deleteString(offset, offset + gen.nextInt(10));
+        document.insertString(gen.nextInt(document.getTextLength()), "   ");
+        tree.removeInterval(markers.remove(gen.nextInt(markers.size())));
+      }
+    }
+    finally {
+      tree.dispose();
+    }
+  }
+
+  /**
+   * @return results of processOverlappingWith, processOverlappingWithOutside, processContaining and overlappingIterator
+   */
+  @NotNull
+  private static List<List<RangeMarkerEx>> queryTree(@NotNull RangeMarkerTree<RangeMarkerEx> tree, int start, int end) {
+    List<List<RangeMarkerEx>> results = new ArrayList<List<RangeMarkerEx>>();
+    List<RangeMarkerEx> overlapping = new ArrayList<RangeMarkerEx>();
+    tree.processOverlappingWith(start, end, new CommonProcessors.CollectProcessor<RangeMarkerEx>(overlapping));
+    results.add(overlapping);
+    List<RangeMarkerEx> outside = new ArrayList<RangeMarkerEx>();
+    tree.processOverlappingWithOutside(start, end, new CommonProcessors.CollectProcessor<RangeMarkerEx>(outside));
+    results.add(outside);
+    List<RangeMarkerEx> containing = new ArrayList<RangeMarkerEx>();
+    tree.processContaining(start, new CommonProcessors.CollectProcessor<RangeMarkerEx>(containing));
+    results.add(containing);
+    List<RangeMarkerEx> iterated = new ArrayList<RangeMarkerEx>();
+    DisposableIterator<RangeMarkerEx> iterator = tree.overlappingIterator(start, end);
+    try {
+      while (iterator.hasNext()) {
+        iterated.add(iterator.next());
+      }
+    }
+    finally {
+      iterator.dispose();
+    }
+    results.add(iterated);
+    return results;
+  }
+
+  public void testAddingHighlightersWhilePaintingPerformance() {
+    final Document document = EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol(' ', 100000));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    final Random gen = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      int start = gen.nextInt(document.getTextLength() - 20);
+      markupModel.addRangeHighlighter(start, start + gen.nextInt(20), 0, null, HighlighterTargetArea.EXACT_RANGE);
+    }
+
+    // a highlighting pass adds highlighters one by one while the editor repaints the visible area
+    PlatformTestUtil.startPerformanceTest("adding highlighters while painting", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+          int start = gen.nextInt(document.getTextLength() - 20);
+          markupModel.addRangeHighlighter(start, start + gen.nextInt(20), 0, null, HighlighterTargetArea.EXACT_RANGE);
+          for (int j = 0; j < 10; j++) {
+            int visibleStart = gen.nextInt(document.getTextLength() - 3000);
+            markupModel.processRangeHighlightersOverlappingWith(visibleStart, visibleStart + 3000,
+                                                                CommonProcessors.<RangeHighlighterEx>alwaysTrue());
+          }
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
 }
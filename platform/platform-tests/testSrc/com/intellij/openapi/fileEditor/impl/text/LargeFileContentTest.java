@@ -0,0 +1,168 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+public class LargeFileContentTest extends TestCase {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private File myFile;
+  private LargeFileContent myContent;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("large", ".log");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (myContent != null) {
+      myContent.dispose();
+    }
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testLineIndex() throws IOException {
+    String text = createLines(0, 100);
+    init(text);
+    assertFalse(myContent.isIndexComplete());
+    assertEquals(-1, myContent.getLineStartOffset(50));
+    myContent.buildIndex(null);
+    assertTrue(myContent.isIndexComplete());
+    assertEquals(101, myContent.getIndexedLineCount());
+
+    for (int line = 0; line < 100; line++) {
+      long offset = myContent.getLineStartOffset(line);
+      assertEquals(text.indexOf("line " + line + " "), offset);
+      assertEquals(line, myContent.getLineNumber(offset));
+      assertEquals(line, myContent.getLineNumber(offset + 3));
+    }
+    assertEquals(text.length(), myContent.getLineStartOffset(100));
+    assertEquals(-1, myContent.getLineStartOffset(101));
+  }
+
+  public void testPageBoundaries() throws IOException {
+    String text = createLines(0, 20);
+    init(text);
+    int lineStart = text.indexOf("line 7 ");
+    int nextLineStart = text.indexOf("line 8 ");
+    assertEquals(lineStart, myContent.findLineStart(lineStart + 5, 1000));
+    assertEquals(nextLineStart, myContent.findLineEnd(lineStart + 5, 1000));
+    assertEquals(lineStart + 5, myContent.findLineStart(lineStart + 5, 3));
+    assertEquals(text.substring(lineStart, nextLineStart), myContent.getText(lineStart, nextLineStart));
+    assertEquals(text, myContent.getText(0, text.length()));
+  }
+
+  public void testMultiByteCharacters() throws IOException {
+    String text = "абвгдеж éè\n";
+    init(text);
+    byte[] bytes = text.getBytes(UTF_8);
+    long end = myContent.findLineEnd(0, 3);
+    assertEquals(4, end); // not in the middle of the second character
+    assertEquals("аб", myContent.getText(0, end));
+    assertEquals(bytes.length, myContent.findLineEnd(0, 1000));
+    assertEquals(15, myContent.find("é", true, 0, true, null));
+  }
+
+  public void testFind() throws IOException {
+    String text = createLines(0, 50) + "Error: something happened\n" + createLines(50, 100);
+    init(text);
+    long error = text.indexOf("Error:");
+    assertEquals(error, myContent.find("Error:", true, 0, true, null));
+    assertEquals(error, myContent.find("error:", false, 0, true, null));
+    assertEquals(-1, myContent.find("error:", true, 0, true, null));
+    assertEquals(-1, myContent.find("Error:", true, error + 1, true, null));
+    assertEquals(error, myContent.find("Error:", true, text.length(), false, null));
+    assertEquals(-1, myContent.find("Error:", true, error, false, null));
+
+    long last = text.lastIndexOf("line 9");
+    assertEquals(last, myContent.find("line 9", true, text.length(), false, null));
+  }
+
+  public void testGrowingAndTruncatedFile() throws IOException {
+    String text = createLines(0, 10);
+    init(text);
+    myContent.buildIndex(null);
+    assertEquals(11, myContent.getIndexedLineCount());
+    assertFalse(myContent.refresh());
+
+    String appended = createLines(10, 30);
+    FileUtil.writeToFile(myFile, appended.getBytes(UTF_8), true);
+    assertTrue(myContent.refresh());
+    assertFalse(myContent.isIndexComplete());
+    myContent.buildIndex(null);
+    assertEquals(31, myContent.getIndexedLineCount());
+    assertEquals(text.length() + appended.indexOf("line 25 "), myContent.getLineStartOffset(25));
+    assertEquals(text.length() + appended.indexOf("line 29 "), myContent.find("line 29", true, 0, true, null));
+
+    writeFile(createLines(0, 3));
+    assertTrue(myContent.refresh());
+    assertEquals(1, myContent.getIndexedLineCount());
+    myContent.buildIndex(null);
+    assertEquals(4, myContent.getIndexedLineCount());
+  }
+
+  public void testDroppedChunksAreUnmapped() throws IOException {
+    String text = createLines(0, 100);
+    init(text);
+    myContent.buildIndex(null);
+    assertEquals(-1, myContent.find("no such line", true, 0, true, null));
+    assertEquals(text, myContent.getText(0, text.length()));
+    assertTrue(myContent.getMappedChunkCount() <= 4);
+
+    FileUtil.writeToFile(myFile, createLines(100, 101).getBytes(UTF_8), true);
+    assertTrue(myContent.refresh());
+    myContent.buildIndex(null);
+    assertTrue(myContent.getMappedChunkCount() <= 4);
+
+    writeFile(createLines(0, 3));
+    assertTrue(myContent.refresh());
+    assertEquals(0, myContent.getMappedChunkCount());
+    assertEquals(createLines(0, 3), myContent.getText(0, myContent.getLength()));
+  }
+
+  private void init(String text) throws IOException {
+    writeFile(text);
+    // small chunks and checkpoints make tests cross their boundaries
+    myContent = new LargeFileContent(myFile, UTF_8, 64, 4);
+  }
+
+  private void writeFile(String text) throws IOException {
+    FileOutputStream stream = new FileOutputStream(myFile);
+    try {
+      stream.write(text.getBytes(UTF_8));
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static String createLines(int from, int to) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      builder.append("line ").append(i).append(" of the log\n");
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.project;
+
+import junit.framework.TestCase;
+
+public class CacheUpdateRunnerTest extends TestCase {
+  public void testDefaultThreadsCountLeavesCoreForLoading() {
+    assertEquals(3, CacheUpdateRunner.getDefaultThreadsCount(4, 8));
+    assertEquals(7, CacheUpdateRunner.getDefaultThreadsCount(8, 8));
+  }
+
+  public void testDefaultThreadsCountIsAtLeastTwo() {
+    assertEquals(2, CacheUpdateRunner.getDefaultThreadsCount(1, 8));
+    assertEquals(2, CacheUpdateRunner.getDefaultThreadsCount(2, 8));
+    assertEquals(2, CacheUpdateRunner.getDefaultThreadsCount(3, 8));
+    assertEquals(2, CacheUpdateRunner.getDefaultThreadsCount(16, 1));
+  }
+
+  public void testDefaultThreadsCountIsCapped() {
+    assertEquals(8, CacheUpdateRunner.getDefaultThreadsCount(16, 8));
+    assertEquals(8, CacheUpdateRunner.getDefaultThreadsCount(64, 8));
+    assertEquals(12, CacheUpdateRunner.getDefaultThreadsCount(64, 12));
+  }
+}
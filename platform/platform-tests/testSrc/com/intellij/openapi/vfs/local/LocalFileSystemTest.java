@@ -16,6 +16,7 @@
 package com.intellij.openapi.vfs.local;
 
 import com.intellij.ide.GeneralSettings;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
@@ -24,7 +25,9 @@ import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.RefreshQueue;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
@@ -35,6 +38,7 @@ import com.intellij.testFramework.PlatformTestUtil;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 public class LocalFileSystemTest extends PlatformLangTestCase {
@@ -306,6 +310,62 @@ public class LocalFileSystemTest extends PlatformLangTestCase {
     assertEquals(expectedCount, children.length);
   }
 
+  public void testOverlappingEventsInOneBatch() throws Exception {
+    File dir = createTempDirectory(false);
+    File subdir = new File(dir, "subdir");
+    assertTrue(subdir.mkdir());
+    assertTrue(new File(subdir, "inner.txt").createNewFile());
+    assertTrue(new File(subdir, "created.txt").createNewFile());
+    File file = new File(dir, "file.txt");
+    assertTrue(file.createNewFile());
+    File kept = new File(dir, "kept.txt");
+    assertTrue(kept.createNewFile());
+    assertTrue(new File(dir, "new.txt").createNewFile());
+
+    final VirtualFile vDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    assertEquals(4, vDir.getChildren().length);
+    final VirtualFile vSubdir = vDir.findChild("subdir");
+    assertNotNull(vSubdir);
+    final VirtualFile vInner = vSubdir.findChild("inner.txt");
+    assertNotNull(vInner);
+    assertEquals(1, vSubdir.getChildren().length);
+    final VirtualFile vFile = vDir.findChild("file.txt");
+    assertNotNull(vFile);
+    final VirtualFile vKept = vDir.findChild("kept.txt");
+    assertNotNull(vKept);
+
+    // the same file is deleted twice, a file is created under a directory deleted earlier in the batch,
+    // and a file is created twice; records freed in the batch must not be touched again
+    final List<VFileEvent> events = Arrays.<VFileEvent>asList(
+      new VFileDeleteEvent(this, vFile, false),
+      new VFileDeleteEvent(this, vSubdir, false),
+      new VFileDeleteEvent(this, vFile, false),
+      new VFileCreateEvent(this, vSubdir, "created.txt", false, false),
+      new VFileCreateEvent(this, vDir, "new.txt", false, false),
+      new VFileCreateEvent(this, vDir, "new.txt", false, false));
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        PersistentFS.getInstance().processEvents(events);
+      }
+    });
+
+    assertFalse(vFile.isValid());
+    assertFalse(vSubdir.isValid());
+    assertFalse(vInner.isValid());
+    assertTrue(vKept.isValid());
+    assertEquals(kept.getPath(), FileUtil.toSystemDependentName(vKept.getPath()));
+
+    String[] persisted = PersistentFS.getInstance().listPersisted(vDir);
+    Arrays.sort(persisted);
+    assertEquals(Arrays.asList("kept.txt", "new.txt"), Arrays.asList(persisted));
+    checkChildCount(vDir, 2);
+    VirtualFile vNew = vDir.findChild("new.txt");
+    assertNotNull(vNew);
+    assertTrue(vNew.isValid());
+  }
+
   public void testSingleFileRootRefresh() throws Exception {
     File file = FileUtil.createTempFile("test.", ".txt");
     VirtualFile virtualFile = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(file);
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.storage.RefCountingStorage;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Files are modelled by slots holding content record ids and are written the same way FSRecords writes file contents.
+ */
+public class ContentHashesTest extends TestCase {
+  private final Lock myLock = new ReentrantLock();
+  private final PagedFileStorage.StorageLock myStorageLock = new PagedFileStorage.StorageLock(false);
+  private File myDir;
+  private RefCountingStorage myContents;
+  private ContentHashes myHashes;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("contentHashes", null);
+    myContents = new RefCountingStorage(new File(myDir, "content.dat").getPath());
+    myHashes = new ContentHashes(new File(myDir, "contentHashes.dat"), myContents, myLock, myStorageLock.myDefaultStorageLockContext);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myHashes.close();
+      myContents.dispose();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testIdenticalContentsShareRecord() throws IOException {
+    int[] files = new int[3];
+    write(files, 0, bytes("content"));
+    write(files, 1, bytes("content"));
+    write(files, 2, bytes("other content"));
+
+    assertEquals(files[0], files[1]);
+    assertEquals(2, myContents.getRefCount(files[0]));
+    assertFalse(files[0] == files[2]);
+    assertEquals(1, myContents.getRefCount(files[2]));
+  }
+
+  public void testRewritingSharedContentKeepsOtherCopy() throws IOException {
+    int[] files = new int[2];
+    write(files, 0, bytes("content"));
+    write(files, 1, bytes("content"));
+    final int shared = files[0];
+
+    write(files, 0, bytes("changed"));
+    assertFalse(files[0] == shared);
+    assertEquals(shared, files[1]);
+    assertContent(files, 0, bytes("changed"));
+    assertContent(files, 1, bytes("content"));
+
+    // the only user of a record reachable by hash doesn't rewrite it in place either
+    write(files, 0, bytes("changed again"));
+    assertContent(files, 0, bytes("changed again"));
+    write(files, 1, bytes("changed again"));
+    assertEquals(files[0], files[1]);
+    assertEquals(0, myContents.getRefCount(shared));
+  }
+
+  public void testReleasedRecordIsNotFound() throws IOException {
+    int[] files = new int[1];
+    write(files, 0, bytes("content"));
+    final int record = files[0];
+    release(files, 0);
+    assertEquals(0, myContents.getRefCount(record));
+
+    // the released record may be reused for a different content
+    write(files, 0, bytes("other content"));
+    write(files, 0, bytes("content"));
+    assertContent(files, 0, bytes("content"));
+    assertEquals(1, myContents.getRefCount(files[0]));
+  }
+
+  public void testConcurrentWritesNeverChangeContentOfOtherFiles() throws Exception {
+    final byte[][] contents = new byte[4][];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = bytes("content " + i);
+    }
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final Random random = new Random(t);
+      threads.add(new Thread("writer " + t) {
+        @Override
+        public void run() {
+          try {
+            int[] files = new int[4];
+            int[] expected = new int[files.length];
+            while (!stop.get() && failure.get() == null) {
+              int file = random.nextInt(files.length);
+              expected[file] = random.nextInt(contents.length);
+              write(files, file, contents[expected[file]]);
+              for (int i = 0; i < files.length; i++) {
+                if (files[i] != 0) assertContent(files, i, contents[expected[i]]);
+              }
+            }
+            for (int i = 0; i < files.length; i++) {
+              if (files[i] != 0) release(files, i);
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(2000);
+    stop.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+  }
+
+  private void write(@NotNull int[] files, int file, @NotNull byte[] bytes) throws IOException {
+    final ByteSequence content = new ByteSequence(bytes);
+    final byte[] hash = ContentHashes.calculateHash(content);
+    int record = myHashes.acquireRecord(hash, content);
+    final boolean shared = record != 0;
+
+    myLock.lock();
+    try {
+      if (!shared) {
+        record = myHashes.acquireNewRecord(hash);
+      }
+      final int current = files[file];
+      files[file] = record;
+      if (current != 0) {
+        myHashes.releaseRecord(current);
+      }
+    }
+    finally {
+      myLock.unlock();
+    }
+
+    if (!shared) {
+      myContents.writeBytes(record, content, false);
+      myHashes.publish(hash, record);
+    }
+  }
+
+  private void release(@NotNull int[] files, int file) throws IOException {
+    myLock.lock();
+    try {
+      myHashes.releaseRecord(files[file]);
+      files[file] = 0;
+    }
+    finally {
+      myLock.unlock();
+    }
+  }
+
+  private void assertContent(@NotNull int[] files, int file, @NotNull byte[] expected) throws IOException {
+    final DataInputStream stream = myContents.readStream(files[file]);
+    try {
+      final byte[] actual = new byte[stream.available()];
+      stream.readFully(actual);
+      assertTrue(new String(actual), Arrays.equals(expected, actual));
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull String s) {
+    return s.getBytes();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OptimisticReadWriteLockTest extends TestCase {
+  private final OptimisticReadWriteLock myLock = new OptimisticReadWriteLock();
+  private final int[] myRecord = new int[16]; // all fields of a completely written record are equal
+
+  public void testReadersNeverSeeHalfWrittenRecord() throws Exception {
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicInteger optimisticReads = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread("reader " + i) {
+        @Override
+        public void run() {
+          try {
+            while (!stop.get()) {
+              if (readRecord()) optimisticReads.incrementAndGet();
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      });
+    }
+    for (int i = 0; i < 2; i++) {
+      threads.add(new Thread("writer " + i) {
+        @Override
+        public void run() {
+          try {
+            for (int value = 1; !stop.get(); value++) {
+              writeRecord(value);
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(2000);
+    stop.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+    assertTrue(optimisticReads.get() > 0);
+  }
+
+  public void testWriterWaitsForOptimisticReader() throws Exception {
+    final int stripe = myLock.startOptimisticRead();
+    assertTrue(stripe >= 0);
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        myLock.writeLock().lock();
+        try {
+          locked.countDown();
+        }
+        finally {
+          myLock.writeLock().unlock();
+        }
+      }
+    };
+    writer.start();
+    assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+
+    myLock.finishOptimisticRead(stripe);
+    assertTrue(locked.await(10, TimeUnit.SECONDS));
+    writer.join();
+  }
+
+  public void testReadsBackOffWhileWriteLocked() {
+    myLock.writeLock().lock();
+    try {
+      myLock.writeLock().lock(); // reentrant
+      myLock.writeLock().unlock();
+      assertEquals(-1, myLock.startOptimisticRead());
+
+      myLock.readLock().lock(); // the writer may read under the read lock
+      myLock.readLock().unlock();
+    }
+    finally {
+      myLock.writeLock().unlock();
+    }
+
+    final int stripe = myLock.startOptimisticRead();
+    assertTrue(stripe >= 0);
+    myLock.finishOptimisticRead(stripe);
+  }
+
+  private void writeRecord(int value) {
+    myLock.writeLock().lock();
+    try {
+      for (int i = 0; i < myRecord.length; i++) {
+        myRecord[i] = value;
+        if (i == myRecord.length / 2) Thread.yield();
+      }
+    }
+    finally {
+      myLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the record was read optimistically
+   */
+  private boolean readRecord() {
+    final int stripe = myLock.startOptimisticRead();
+    if (stripe >= 0) {
+      try {
+        assertRecordComplete();
+        return true;
+      }
+      finally {
+        myLock.finishOptimisticRead(stripe);
+      }
+    }
+
+    myLock.readLock().lock();
+    try {
+      assertRecordComplete();
+      return false;
+    }
+    finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  private void assertRecordComplete() {
+    final int first = myRecord[0];
+    for (int i = 1; i < myRecord.length; i++) {
+      assertEquals(first, myRecord[i]);
+    }
+  }
+}
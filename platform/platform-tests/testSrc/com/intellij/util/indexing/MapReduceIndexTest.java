@@ -0,0 +1,309 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.Processor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+public class MapReduceIndexTest extends TestCase {
+  private static final int INPUT_ID = 1;
+  private static final List<String> KEYS = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+
+  public void testPerKeyUpdateReplacesValues() throws Exception {
+    MapStorage storage = new MapStorage();
+    TestIndex index = new TestIndex(storage, true);
+
+    index.update(INPUT_ID, createData(KEYS.subList(0, 4), 1), Collections.<String>emptyList());
+    index.update(INPUT_ID, createData(KEYS.subList(2, 6), 2), KEYS.subList(0, 4));
+
+    assertEquals(0, index.getData("a").size());
+    assertEquals(0, index.getData("b").size());
+    for (String key : KEYS.subList(2, 6)) {
+      assertEquals(Collections.singletonList(2), index.getData(key).toValueList());
+    }
+  }
+
+  public void testStorageChangesDoNotInterleaveWithPerKeyUpdate() throws Exception {
+    final MapStorage storage = new MapStorage();
+    final TestIndex index = new TestIndex(storage, true);
+    index.update(INPUT_ID, createData(KEYS, 0), Collections.<String>emptyList());
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread updater = new Thread("index updater") {
+      @Override
+      public void run() {
+        try {
+          for (int version = 1; !stop.get(); version++) {
+            index.update(INPUT_ID, createData(KEYS, version), KEYS);
+          }
+        }
+        catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    updater.start();
+    try {
+      long end = System.currentTimeMillis() + 1000;
+      while (System.currentTimeMillis() < end && failure.get() == null) {
+        Lock lock = index.getWriteLock();
+        lock.lock();
+        try {
+          storage.assertConsistent();
+        }
+        finally {
+          lock.unlock();
+        }
+        index.flush();
+      }
+    }
+    finally {
+      stop.set(true);
+      updater.join();
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+    assertTrue(storage.myFlushes > 0);
+  }
+
+  public void testReaderDoesNotWaitForUpdateOfAnotherKey() throws Exception {
+    final CountDownLatch updating = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final MapStorage storage = new MapStorage() {
+      @Override
+      public void addValue(String key, int inputId, Integer value) {
+        if (key.equals("b")) {
+          updating.countDown();
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        super.addValue(key, inputId, value);
+      }
+    };
+    final TestIndex index = new TestIndex(storage, true);
+    storage.addValue("a", INPUT_ID, 0);
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread updater = new Thread("index updater") {
+      @Override
+      public void run() {
+        try {
+          index.update(INPUT_ID + 1, createData(KEYS.subList(1, 2), 1), Collections.<String>emptyList());
+        }
+        catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    updater.start();
+    try {
+      assertTrue(updating.await(10, TimeUnit.SECONDS));
+      assertEquals(Collections.singletonList(0), index.getData("a").toValueList());
+      assertTrue(index.processAllKeys(new Processor<String>() {
+        @Override
+        public boolean process(String key) {
+          return true;
+        }
+      }));
+    }
+    finally {
+      release.countDown();
+      updater.join();
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+    assertEquals(Collections.singletonList(1), index.getData("b").toValueList());
+  }
+
+  /**
+   * Measures how long a reader of a key waits while inputs with other keys are being reindexed by a slow storage.
+   */
+  public void testReaderLatency() throws Exception {
+    long wholeInput = measureMaxReaderLatency(false);
+    long perKey = measureMaxReaderLatency(true);
+    System.out.println("Max reader latency, whole input updates: " + wholeInput + "ms, per-key updates: " + perKey + "ms");
+    assertTrue(wholeInput + " " + perKey, perKey < wholeInput);
+  }
+
+  private static long measureMaxReaderLatency(boolean perKeyUpdates) throws Exception {
+    final List<String> keys = new ArrayList<String>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      keys.add(String.valueOf(c));
+    }
+    final MapStorage storage = new MapStorage() {
+      @Override
+      public void addValue(String key, int inputId, Integer value) {
+        try {
+          Thread.sleep(1);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        super.addValue(key, inputId, value);
+      }
+    };
+    final TestIndex index = new TestIndex(storage, perKeyUpdates);
+    storage.addValue("A", INPUT_ID, 0);
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicLong maxLatency = new AtomicLong();
+    Thread reader = new Thread("index reader") {
+      @Override
+      public void run() {
+        try {
+          while (!stop.get()) {
+            long started = System.nanoTime();
+            assertEquals(1, index.getData("A").size());
+            long latency = System.nanoTime() - started;
+            if (latency > maxLatency.get()) maxLatency.set(latency);
+          }
+        }
+        catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    reader.start();
+    try {
+      for (int version = 1; version <= 20; version++) {
+        index.update(INPUT_ID + 1, createData(keys, version), version == 1 ? Collections.<String>emptyList() : keys);
+      }
+    }
+    finally {
+      stop.set(true);
+      reader.join();
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+    return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+  }
+
+  @NotNull
+  private static Map<String, Integer> createData(@NotNull List<String> keys, int version) {
+    Map<String, Integer> data = new HashMap<String, Integer>();
+    for (String key : keys) {
+      data.put(key, version);
+    }
+    return data;
+  }
+
+  private static class TestIndex extends MapReduceIndex<String, Integer, Object> {
+    private TestIndex(@NotNull IndexStorage<String, Integer> storage, boolean perKeyUpdates) {
+      super(null, null, storage, perKeyUpdates);
+    }
+
+    private void update(int inputId, @NotNull Map<String, Integer> data, @NotNull final Collection<String> oldKeys)
+      throws StorageException {
+      updateWithMap(inputId, data, new Callable<Collection<String>>() {
+        @Override
+        public Collection<String> call() throws Exception {
+          return oldKeys;
+        }
+      });
+    }
+  }
+
+  /**
+   * Allows operations on different keys to run concurrently. Checks on flush that all keys of the input are associated with the same
+   * version.
+   */
+  private static class MapStorage implements IndexStorage<String, Integer> {
+    private final Map<String, ValueContainerImpl<Integer>> myMap = new ConcurrentHashMap<String, ValueContainerImpl<Integer>>();
+    private int myFlushes;
+
+    @Override
+    public void addValue(String key, int inputId, Integer value) {
+      ValueContainerImpl<Integer> container = myMap.get(key);
+      if (container == null) {
+        container = new ValueContainerImpl<Integer>();
+        myMap.put(key, container);
+      }
+      synchronized (container) {
+        container.addValue(inputId, value);
+      }
+    }
+
+    @Override
+    public void removeAllValues(String key, int inputId) {
+      ValueContainerImpl<Integer> container = myMap.get(key);
+      if (container != null) {
+        synchronized (container) {
+          container.removeAssociatedValue(inputId);
+        }
+      }
+    }
+
+    @Override
+    public void clear() {
+      myMap.clear();
+    }
+
+    @NotNull
+    @Override
+    public ValueContainer<Integer> read(String key) {
+      ValueContainerImpl<Integer> container = myMap.get(key);
+      if (container == null) return new ValueContainerImpl<Integer>();
+      synchronized (container) {
+        return container.copy();
+      }
+    }
+
+    @Override
+    public boolean processKeys(Processor<String> processor) {
+      for (String key : myMap.keySet()) {
+        if (!processor.process(key)) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public Collection<String> getKeys() {
+      return new ArrayList<String>(myMap.keySet());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void flush() {
+      assertConsistent();
+      myFlushes++;
+    }
+
+    private void assertConsistent() {
+      Set<Integer> versions = new HashSet<Integer>();
+      for (String key : KEYS) {
+        versions.addAll(read(key).toValueList());
+      }
+      assertEquals(versions.toString(), 1, versions.size());
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class SortedIdSetTest extends TestCase {
+  public void testAscendingAdditionsAndRemovalOfLast() {
+    SortedIdSet set = new SortedIdSet(2);
+    for (int id = 1; id <= 100; id++) {
+      assertTrue(set.add(id));
+    }
+    assertFalse(set.add(100));
+    assertTrue(set.remove(100));
+    assertFalse(set.remove(100));
+    assertFalse(set.contains(100));
+    assertTrue(set.add(100));
+    assertContent(set, range(1, 100));
+  }
+
+  public void testRandomChangesAroundBufferLimits() {
+    // buffers are merged after 8 changes for small sets, after size / 16 for larger ones and after 1024 changes at most
+    for (int size : new int[]{0, 1, 7, 8, 9, 127, 128, 129, 16383, 16384, 16385, 20000}) {
+      checkRandomChanges(size, new Random(size));
+    }
+  }
+
+  public void testRemoveAddedAndReAddRemoved() {
+    SortedIdSet set = new SortedIdSet(4);
+    TreeSet<Integer> expected = range(10, 50);
+    for (int id : expected) {
+      set.add(id);
+    }
+
+    assertTrue(set.add(5));      // goes to the added buffer
+    assertTrue(set.remove(5));   // and leaves it
+    assertTrue(set.remove(20));  // goes to the removed buffer
+    assertFalse(set.remove(20));
+    assertTrue(set.add(20));     // and leaves it
+    assertFalse(set.add(20));
+    assertContent(set, expected);
+  }
+
+  public void testIterationSkipsRemovedAndMergesAdded() {
+    SortedIdSet set = new SortedIdSet(4);
+    for (int id = 10; id <= 100; id += 10) {
+      set.add(id);
+    }
+    set.remove(10);
+    set.remove(50);
+    set.add(5);
+    set.add(55);
+    set.add(1000);
+    set.remove(100);
+
+    ValueContainer.IntIterator iterator = set.iterator();
+    assertEquals(10, iterator.size());
+    List<Integer> ids = new ArrayList<Integer>();
+    while (iterator.hasNext()) {
+      ids.add(iterator.next());
+    }
+    assertEquals("[5, 20, 30, 40, 55, 60, 70, 80, 90, 1000]", ids.toString());
+  }
+
+  public void testCloneIsIndependent() {
+    SortedIdSet set = new SortedIdSet(4);
+    for (int id = 1; id <= 20; id++) {
+      set.add(id);
+    }
+    set.remove(3);
+    set.add(100);
+    set.add(50);
+
+    SortedIdSet clone = set.clone();
+    clone.remove(4);
+    clone.add(3);
+    clone.remove(50);
+
+    assertTrue(set.contains(4));
+    assertFalse(set.contains(3));
+    assertTrue(set.contains(50));
+    assertFalse(clone.contains(4));
+    assertTrue(clone.contains(3));
+    assertFalse(clone.contains(50));
+  }
+
+  public void testCompactKeepsContent() {
+    SortedIdSet set = new SortedIdSet(4);
+    TreeSet<Integer> expected = range(1, 1000);
+    for (int id : expected) {
+      set.add(id);
+    }
+    for (int id = 1; id <= 1000; id += 3) {
+      set.remove(id);
+      expected.remove(id);
+    }
+    set.add(2000);
+    expected.add(2000);
+    set.compact();
+    assertContent(set, expected);
+  }
+
+  private static void checkRandomChanges(int initialSize, Random random) {
+    SortedIdSet set = new SortedIdSet(4);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    int bound = Math.max(16, initialSize * 2);
+    while (expected.size() < initialSize) {
+      int id = random.nextInt(bound) + 1;
+      assertEquals(expected.add(id), set.add(id));
+    }
+
+    int changes = Math.max(3000, initialSize / 4);
+    for (int i = 0; i < changes; i++) {
+      int id = random.nextInt(bound) + 1;
+      if (random.nextBoolean()) {
+        assertEquals(String.valueOf(id), expected.add(id), set.add(id));
+      }
+      else {
+        assertEquals(String.valueOf(id), expected.remove(id), set.remove(id));
+      }
+      if (i % 500 == 0) {
+        assertContent(set, expected);
+      }
+    }
+    assertContent(set, expected);
+  }
+
+  private static TreeSet<Integer> range(int from, int to) {
+    TreeSet<Integer> result = new TreeSet<Integer>();
+    for (int id = from; id <= to; id++) {
+      result.add(id);
+    }
+    return result;
+  }
+
+  private static void assertContent(SortedIdSet set, TreeSet<Integer> expected) {
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected.isEmpty(), set.isEmpty());
+
+    List<Integer> actual = new ArrayList<Integer>();
+    ValueContainer.IntIterator iterator = set.iterator();
+    assertEquals(expected.size(), iterator.size());
+    while (iterator.hasNext()) {
+      actual.add(iterator.next());
+    }
+    assertEquals(new ArrayList<Integer>(expected), actual);
+
+    int max = expected.isEmpty() ? 0 : expected.last();
+    for (int id = 0; id <= max + 1; id++) {
+      assertEquals(String.valueOf(id), expected.contains(id), set.contains(id));
+    }
+  }
+}
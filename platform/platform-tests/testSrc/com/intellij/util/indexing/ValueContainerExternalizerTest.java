@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.*;
+
+public class ValueContainerExternalizerTest extends TestCase {
+  private final ValueContainerMap.ValueContainerExternalizer<String> myExternalizer =
+    new ValueContainerMap.ValueContainerExternalizer<String>(new EnumeratorStringDescriptor());
+
+  public void testSingleAndSeveralIds() throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.addValue(7, "single");
+    for (int id : new int[]{30, 10, 20, 40}) {
+      container.addValue(id, "several");
+    }
+
+    ValueContainerImpl<String> read = read(save(container));
+    assertEquals(ids(container), ids(read));
+    assertFalse(read.needsCompacting());
+  }
+
+  public void testLargeIdGaps() throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    for (int id : new int[]{1, 2, 127, 128, 16384, 1000000, Integer.MAX_VALUE - 1, Integer.MAX_VALUE}) {
+      container.addValue(id, "value");
+    }
+    assertEquals(ids(container), ids(read(save(container))));
+  }
+
+  public void testManyIds() throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      container.addValue(random.nextInt(5000000) + 1, "v" + random.nextInt(10));
+    }
+    assertEquals(ids(container), ids(read(save(container))));
+  }
+
+  public void testInvalidateCommandsAreApplied() throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    for (int id = 1; id <= 10; id++) {
+      container.addValue(id * 1000, "a");
+    }
+    container.addValue(5, "b");
+
+    ValueContainerImpl<String> added = new ValueContainerImpl<String>();
+    added.addValue(3000, "c");
+
+    // record as written by ValueContainerMap.doPut(): the base container followed by appended deltas
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    myExternalizer.save(out, container);
+    ValueContainerMap.ValueContainerExternalizer.saveInvalidateCommand(out, 5);
+    ValueContainerMap.ValueContainerExternalizer.saveInvalidateCommand(out, 3000);
+    myExternalizer.save(out, added);
+    out.close();
+
+    ValueContainerImpl<String> read = read(bytes.toByteArray());
+    assertTrue(read.needsCompacting());
+
+    Map<String, List<Integer>> expected = new TreeMap<String, List<Integer>>();
+    expected.put("a", Arrays.asList(1000, 2000, 4000, 5000, 6000, 7000, 8000, 9000, 10000));
+    expected.put("c", Arrays.asList(3000));
+    assertEquals(expected, ids(read));
+  }
+
+  public void testRecordsWithAbsoluteIdsAreRead() throws IOException {
+    // format used before id lists were delta-encoded: non-negative id count followed by absolute ids
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    DataInputOutputUtil.writeSINT(out, 1);
+    new EnumeratorStringDescriptor().save(out, "value");
+    DataInputOutputUtil.writeSINT(out, 3);
+    for (int id : new int[]{500, 7, 100000}) {
+      DataInputOutputUtil.writeSINT(out, id);
+    }
+    out.close();
+
+    Map<String, List<Integer>> expected = new TreeMap<String, List<Integer>>();
+    expected.put("value", Arrays.asList(7, 500, 100000));
+    assertEquals(expected, ids(read(bytes.toByteArray())));
+  }
+
+  @NotNull
+  private byte[] save(@NotNull ValueContainer<String> container) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    myExternalizer.save(out, container);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @NotNull
+  private ValueContainerImpl<String> read(@NotNull byte[] bytes) throws IOException {
+    return myExternalizer.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  @NotNull
+  private static Map<String, List<Integer>> ids(@NotNull ValueContainer<String> container) {
+    Map<String, List<Integer>> result = new TreeMap<String, List<Integer>>();
+    for (Iterator<String> values = container.getValueIterator(); values.hasNext(); ) {
+      String value = values.next();
+      List<Integer> ids = new ArrayList<Integer>();
+      for (ValueContainer.IntIterator iterator = container.getInputIdsIterator(value); iterator.hasNext(); ) {
+        ids.add(iterator.next());
+      }
+      Collections.sort(ids);
+      result.put(value, ids);
+    }
+    return result;
+  }
+}
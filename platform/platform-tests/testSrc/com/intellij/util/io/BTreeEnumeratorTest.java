@@ -56,6 +56,29 @@ public class BTreeEnumeratorTest extends TestCase {
     assertEquals(index, myEnumerator.enumerate("IntelliJ IDEA"));
   }
 
+  public void testTraverseRecordsByParts() throws IOException {
+    final Set<Integer> all = new HashSet<Integer>();
+    for (int i = 0; i < 20000; ++i) {
+      all.add(myEnumerator.enumerate("string" + i));
+    }
+    all.add(myEnumerator.enumerate(COLLISION_1));
+    all.add(myEnumerator.enumerate(COLLISION_2));
+
+    for (int parts : new int[]{1, 2, 7, 64}) {
+      final Set<Integer> traversed = new HashSet<Integer>();
+      for (int part = 0; part < parts; part++) {
+        myEnumerator.traverseRecords(part, parts, new PersistentEnumeratorBase.RecordsProcessor() {
+          @Override
+          public boolean process(int record) throws IOException {
+            assertTrue(String.valueOf(record), traversed.add(record));
+            return true;
+          }
+        });
+      }
+      assertEquals(all, traversed);
+    }
+  }
+
   public void testAddEqualStringsAndMuchGarbage() throws IOException {
     final Map<Integer,String> strings = new THashMap<Integer, String>(10001);
     String s = "IntelliJ IDEA";
@@ -1,15 +1,15 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.CommonProcessors;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.IntObjectCache;
 import com.intellij.util.io.storage.Storage;
 import junit.framework.TestCase;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 
 /**
@@ -248,6 +248,222 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testIncrementalCompaction() throws IOException {
+    final int keysCount = 100;
+    final String longValue = StringUtil.repeat("x", 20 * 1024);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < keysCount; i++) {
+        myMap.put("key" + i, round + longValue + i);
+      }
+    }
+    assertTrue(myMap.getWastedSpaceRatio() > 0.5);
+    final long sizeBefore = myDataFile.length();
+
+    assertFalse(myMap.compactIncrementally(100 * 1024));
+    for (int i = 0; i < keysCount; i++) {
+      assertEquals(2 + longValue + i, myMap.get("key" + i));
+    }
+    myMap.put("key0", "new");
+    myMap.remove("key1");
+    myMap.put("newKey", "newValue");
+
+    myMap.close(); // unfinished compaction is completed on open
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals("new", myMap.get("key0"));
+    assertNull(myMap.get("key1"));
+    assertEquals("newValue", myMap.get("newKey"));
+    for (int i = 2; i < keysCount; i++) {
+      assertEquals(2 + longValue + i, myMap.get("key" + i));
+    }
+    assertTrue(myDataFile.length() < sizeBefore / 2);
+    assertEquals(0.0, myMap.getWastedSpaceRatio());
+  }
+
+  public void testIncrementalCompactionOfManyKeysWithModificationsBetweenSlices() throws IOException {
+    final int keysCount = 50000; // keys are collected in several parts
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < keysCount; i++) {
+        expected.put("key" + i, "value" + round + "_" + i);
+        myMap.put("key" + i, "value" + round + "_" + i);
+      }
+    }
+
+    int slices = 0;
+    while (!myMap.compactIncrementally(64 * 1024)) {
+      slices++;
+      myMap.put("key" + slices, "updated" + slices);
+      expected.put("key" + slices, "updated" + slices);
+      myMap.remove("key" + (keysCount - slices));
+      expected.remove("key" + (keysCount - slices));
+      myMap.put("newKey" + slices, "new" + slices);
+      expected.put("newKey" + slices, "new" + slices);
+    }
+    assertTrue(slices > 1);
+
+    for (int i = 0; i < keysCount; i++) {
+      assertEquals(expected.get("key" + i), myMap.get("key" + i));
+    }
+    for (int i = 1; i <= slices; i++) {
+      assertEquals("new" + i, myMap.get("newKey" + i));
+    }
+    assertEquals(0.0, myMap.getWastedSpaceRatio());
+  }
+
+  public void testIncrementalCompactionWithWriteAheadLogKeepsMapFilesClean() throws IOException {
+    final File file = FileUtil.createTempFile("persistent", "walCompaction");
+    PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 1024, true);
+    try {
+      final String longValue = StringUtil.repeat("x", 20 * 1024);
+      for (int round = 0; round < 3; round++) {
+        for (int i = 0; i < 100; i++) {
+          map.put("key" + i, round + longValue + i);
+        }
+      }
+      map.force();
+
+      assertFalse(map.compactIncrementally(100 * 1024));
+      assertFalse(map.isDirty()); // the slice was moved by a checkpoint
+      map.put("key0", "new");
+
+      map.close();
+      map = new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 1024, true);
+      assertEquals("new", map.get("key0"));
+      for (int i = 1; i < 100; i++) {
+        assertEquals(2 + longValue + i, map.get("key" + i));
+      }
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  public void testWriteAheadLogReplay() throws IOException {
+    final DataExternalizer<List<Integer>> intListExternalizer = new DataExternalizer<List<Integer>>() {
+      @Override
+      public void save(DataOutput out, List<Integer> value) throws IOException {
+        for (Integer i : value) {
+          out.writeInt(i);
+        }
+      }
+
+      @Override
+      public List<Integer> read(DataInput in) throws IOException {
+        List<Integer> result = new ArrayList<Integer>();
+        while (((DataInputStream)in).available() > 0) {
+          result.add(in.readInt());
+        }
+        return result;
+      }
+    };
+    final File file = FileUtil.createTempFile("persistent", "wal");
+    final File copy = new File(file.getParentFile(), file.getName() + "_crashed");
+    PersistentHashMap<String, List<Integer>> map =
+      new PersistentHashMap<String, List<Integer>>(file, new EnumeratorStringDescriptor(), intListExternalizer, 1024, true);
+    PersistentHashMap<String, List<Integer>> restored = null;
+    try {
+      map.put("A", Arrays.asList(1, 2));
+      map.put("B", Arrays.asList(3));
+      map.put("C", Arrays.asList(4));
+      for (int i = 0; i < 3; i++) {
+        final int value = 10 + i;
+        map.appendData("A", new PersistentHashMap.ValueDataAppender() {
+          @Override
+          public void append(DataOutput out) throws IOException {
+            out.writeInt(value);
+          }
+        });
+      }
+      map.remove("B");
+      assertEquals(Arrays.asList(1, 2, 10, 11, 12), map.get("A"));
+      assertNull(map.get("B"));
+      assertTrue(map.containsMapping("C"));
+      map.force();
+      assertFalse(map.isDirty());
+
+      // files of the open map are what a crash would leave
+      final File[] files = file.getParentFile().listFiles(new FileFilter() {
+        @Override
+        public boolean accept(File pathname) {
+          return pathname.getName().startsWith(file.getName());
+        }
+      });
+      assertNotNull(files);
+      for (File f : files) {
+        FileUtil.copy(f, new File(f.getParentFile(), copy.getName() + f.getName().substring(file.getName().length())));
+      }
+      assertTrue(new File(copy.getPath() + PersistentHashMap.WAL_FILE_EXTENSION).length() > 0);
+
+      restored = new PersistentHashMap<String, List<Integer>>(copy, new EnumeratorStringDescriptor(), intListExternalizer, 1024, true);
+      assertEquals(Arrays.asList(1, 2, 10, 11, 12), restored.get("A"));
+      assertNull(restored.get("B"));
+      assertEquals(Arrays.asList(4), restored.get("C"));
+      assertEquals(new HashSet<String>(Arrays.asList("A", "C")), new HashSet<String>(restored.getAllKeysWithExistingMapping()));
+      assertTrue(new File(copy.getPath() + PersistentHashMap.WAL_FILE_EXTENSION).length() > 0); // listing keys doesn't checkpoint
+    }
+    finally {
+      if (restored != null) {
+        clearMap(copy, restored);
+      }
+      clearMap(file, map);
+    }
+  }
+
+  public void testListingKeysDoesNotCheckpointWriteAheadLog() throws IOException {
+    final File file = FileUtil.createTempFile("persistent", "walKeys");
+    PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 1024, true);
+    try {
+      map.put("stored", "1");
+      map.put("removed", "2");
+      map.dropMemoryCaches(); // checkpoint
+      final File walFile = new File(file.getPath() + PersistentHashMap.WAL_FILE_EXTENSION);
+      assertEquals(0, walFile.length());
+
+      map.put("new", "3");
+      map.remove("removed");
+      map.appendData("appended", new PersistentHashMap.ValueDataAppender() {
+        @Override
+        public void append(DataOutput out) throws IOException {
+          out.writeUTF("4");
+        }
+      });
+      map.force();
+      final long walLength = walFile.length();
+      assertTrue(walLength > 0);
+
+      assertEquals(new HashSet<String>(Arrays.asList("stored", "new", "appended")),
+                   new HashSet<String>(map.getAllKeysWithExistingMapping()));
+      final Set<String> allKeys = new HashSet<String>();
+      map.processKeys(new CommonProcessors.CollectProcessor<String>(allKeys));
+      assertEquals(new HashSet<String>(Arrays.asList("stored", "removed", "new", "appended")), allKeys);
+      assertEquals(walLength, walFile.length());
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  public void testWriteAheadLogIsSyncedWithoutFurtherWrites() throws Exception {
+    final File file = FileUtil.createTempFile("persistent", "walSync");
+    PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 1024, true);
+    try {
+      final File walFile = new File(file.getPath() + PersistentHashMap.WAL_FILE_EXTENSION);
+      map.put("key", "value");
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (walFile.length() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(walFile.length() > 0);
+      assertFalse(map.isDirty());
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
   public void testPerformance() throws IOException {
     final IntObjectCache<String> stringCache = new IntObjectCache<String>(2000);
     final IntObjectCache.DeletedPairsListener listener = new IntObjectCache.DeletedPairsListener() {
@@ -68,4 +68,8 @@ public abstract class ByteBufferWrapper {
   public static ByteBufferWrapper readOnly(final File file, final int offset) {
     return new ReadOnlyMappedBufferWrapper(file, offset);
   }
+
+  public static ByteBufferWrapper readOnly(final File file, final long offset, final long length) {
+    return new ReadOnlyMappedBufferWrapper(file, offset, length);
+  }
 }
@@ -58,7 +58,7 @@ public abstract class DirectBufferWrapper extends ByteBufferWrapper {
     myBuffer = null;
   }
 
- static boolean disposeDirectBuffer(final DirectBuffer buffer) {
+  static boolean disposeDirectBuffer(final DirectBuffer buffer) {
     return AccessController.doPrivileged(new PrivilegedAction<Object>() {
       @Nullable
       public Object run() {
@@ -1089,24 +1089,41 @@ class IntToIntBtree {
   }
 
   public boolean processMappings(@NotNull KeyValueProcessor processor) throws IOException {
+    return processMappings(Integer.MIN_VALUE, Integer.MAX_VALUE, processor);
+  }
+
+  /**
+   * Processes mappings with keys from {@code fromKey} to {@code toKey} inclusive, pages which can't contain such keys are not visited.
+   */
+  public boolean processMappings(final int fromKey, final int toKey, @NotNull final KeyValueProcessor processor) throws IOException {
     doFlush();
     root.syncWithStore();
 
-    if (hasZeroKey) {
+    if (hasZeroKey && fromKey <= 0 && 0 <= toKey) {
       if(!processor.process(0, zeroKeyValue)) return false;
     }
-    return processLeafPages(root, processor);
+    return processLeafPages(root, fromKey, toKey, new KeyValueProcessor() {
+      @Override
+      public boolean process(int key, int value) throws IOException {
+        return key < fromKey || key > toKey || processor.process(key, value);
+      }
+    });
   }
 
-  private boolean processLeafPages(@NotNull BtreeIndexNodeView node, @NotNull KeyValueProcessor processor) throws IOException {
+  private boolean processLeafPages(@NotNull BtreeIndexNodeView node, int fromKey, int toKey, @NotNull KeyValueProcessor processor)
+    throws IOException {
     if (node.isIndexLeaf()) {
       return node.processMappings(processor);
     }
     BtreeIndexNodeView child = null;
-    for(int i = 0; i <= node.getChildrenCount(); ++i) {
+    final int childrenCount = node.getChildrenCount();
+    for(int i = 0; i <= childrenCount; ++i) {
+      // i-th child holds keys from keyAt(i - 1) inclusive to keyAt(i) exclusive
+      if (i < childrenCount && node.keyAt(i) <= fromKey) continue;
+      if (i > 0 && node.keyAt(i - 1) > toKey) break;
       if (child == null) child = new BtreeIndexNodeView(this);
       child.setAddress(-node.addressAt(i));
-      if (!processLeafPages(child, processor))  return false;
+      if (!processLeafPages(child, fromKey, toKey, processor))  return false;
     }
     return true;
   }
@@ -33,6 +33,7 @@ import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author max
@@ -68,6 +69,15 @@ public class PagedFileStorage implements Forceable {
              "; mmap=" + (!ByteBufferWrapper.NO_MMAP));
   }
 
+  /**
+   * @return size limit for pages mapped by a family of storages sharing a {@link StorageLock},
+   *         set with -Didea.max.paged.storage.cache.&lt;family&gt;=&lt;MB&gt; and the common limit by default
+   */
+  public static long getPageCacheSizeLimit(@NonNls String family) {
+    final long limit = (long)SystemProperties.getIntProperty("idea.max.paged.storage.cache." + family, UPPER_LIMIT / MB) * MB;
+    return ByteBufferWrapper.NO_MMAP ? Math.min(limit, UPPER_LIMIT) : limit;
+  }
+
   private final StorageLockContext myStorageLockContext;
   private int myLastPage = UNKNOWN_PAGE;
   private int myLastPage2 = UNKNOWN_PAGE;
@@ -363,19 +373,19 @@ public class PagedFileStorage implements Forceable {
   private ByteBuffer getBuffer(int page, boolean modify) {
     if (myLastPage == page) {
       ByteBuffer buf = myLastBuffer.getCachedBuffer();
-      if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+      if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.getMappingChangeCount(myStorageIndex)) {
         if (modify) myLastBuffer.markDirty();
         return buf;
       }
     } else if (myLastPage2 == page) {
       ByteBuffer buf = myLastBuffer2.getCachedBuffer();
-      if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+      if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.getMappingChangeCount(myStorageIndex)) {
         if (modify) myLastBuffer2.markDirty();
         return buf;
       }
     } else if (myLastPage3 == page) {
       ByteBuffer buf = myLastBuffer3.getCachedBuffer();
-      if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+      if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.getMappingChangeCount(myStorageIndex)) {
         if (modify) myLastBuffer3.markDirty();
         return buf;
       }
@@ -406,7 +416,7 @@ public class PagedFileStorage implements Forceable {
         myLastBuffer = byteBufferWrapper;
       }
 
-      myLastChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount;
+      myLastChangeCount = myStorageLockContext.myStorageLock.getMappingChangeCount(myStorageIndex);
 
       return buf;
     }
@@ -437,47 +447,41 @@ public class PagedFileStorage implements Forceable {
   public static class StorageLock {
     private static final int FILE_INDEX_MASK = 0xFFFF0000;
     private static final int FILE_INDEX_SHIFT = 16;
+    private static final int STRIPES_COUNT = 16; // power of 2
     private final boolean checkThreadAccess;
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentHashMap<Integer, PagedFileStorage> myIndex2Storage = new ConcurrentHashMap<Integer, PagedFileStorage>();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final SequenceLock mySegmentsAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
+    // all pages of a storage are kept in the same stripe, stripes have separate LRU orders and locks
+    private final SegmentsStripe[] myStripes = new SegmentsStripe[STRIPES_COUNT];
 
     private final SequenceLock mySegmentsAllocationLock = new SequenceLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
-    private volatile long mySize;
+    private final AtomicLong mySize = new AtomicLong();
     private volatile long mySizeLimit;
-    private volatile int myMappingChangeCount;
+
+    private final AtomicLong myMissCount = new AtomicLong();
+    private final AtomicLong myEvictionCount = new AtomicLong();
 
     public StorageLock() {
       this(true);
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, UPPER_LIMIT);
+    }
+
+    /**
+     * @param sizeLimit maximum total size of pages mapped by the storages using this lock, see {@link #getPageCacheSizeLimit(String)}
+     */
+    public StorageLock(boolean checkThreadAccess, long sizeLimit) {
       this.checkThreadAccess = checkThreadAccess;
       myDefaultStorageLockContext = new StorageLockContext(this);
 
-      mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
-
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
+      mySizeLimit = Math.max(sizeLimit, BUFFER_SIZE);
+      for (int i = 0; i < STRIPES_COUNT; i++) {
+        myStripes[i] = new SegmentsStripe();
+      }
     }
 
     public void lock() {
@@ -488,6 +492,39 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext.myLock.unlock();
     }
 
+    /**
+     * @return number of page requests served by already mapped pages
+     */
+    public long getHitCount() {
+      long result = 0;
+      for (SegmentsStripe stripe : myStripes) {
+        result += stripe.myHitCount;
+      }
+      return result;
+    }
+
+    /**
+     * @return number of page requests that needed a page to be mapped
+     */
+    public long getMissCount() {
+      return myMissCount.get();
+    }
+
+    /**
+     * @return number of pages unmapped to stay within the size limit
+     */
+    public long getEvictionCount() {
+      return myEvictionCount.get();
+    }
+
+    public long getMappedSize() {
+      return mySize.get();
+    }
+
+    public long getSizeLimit() {
+      return mySizeLimit;
+    }
+
     private int registerPagedFileStorage(PagedFileStorage storage) {
       int registered = myIndex2Storage.size();
       assert registered <= MAX_LIVE_STORAGES_COUNT;
@@ -504,28 +541,44 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    private SegmentsStripe getStripe(int key) {
+      return myStripes[(key >>> FILE_INDEX_SHIFT) & (STRIPES_COUNT - 1)];
+    }
+
+    private int getMappingChangeCount(int storageIndex) {
+      return getStripe(storageIndex).myMappingChangeCount;
+    }
+
     private ByteBufferWrapper get(Integer key) {
+      final SegmentsStripe stripe = getStripe(key);
       ByteBufferWrapper wrapper;
       try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
+        stripe.myAccessLock.lock();
+        wrapper = stripe.mySegments.get(key);
+        if (wrapper != null) {
+          stripe.myHitCount++;
+          return wrapper;
+        }
       }
       finally {
-        mySegmentsAccessLock.unlock();
+        stripe.myAccessLock.unlock();
       }
 
       mySegmentsAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
+        stripe.myAccessLock.lock();
         try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
+          wrapper = stripe.mySegments.get(key);
+          if (wrapper != null) {
+            stripe.myHitCount++;
+            return wrapper;
+          }
         } finally {
-          mySegmentsAccessLock.unlock();
+          stripe.myAccessLock.unlock();
         }
 
+        myMissCount.incrementAndGet();
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
         wrapper = createValue(key);
 
@@ -537,13 +590,14 @@ public class PagedFileStorage implements Forceable {
           }
         }
 
-        mySegmentsAccessLock.lock();
+        stripe.myAccessLock.lock();
         try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
+          stripe.mySegments.put(key, wrapper);
+          stripe.myStripeSize += wrapper.myLength;
+          mySize.addAndGet(wrapper.myLength);
         }
         finally {
-          mySegmentsAccessLock.unlock();
+          stripe.myAccessLock.unlock();
         }
 
         ensureSize(mySizeLimit);
@@ -567,14 +621,23 @@ public class PagedFileStorage implements Forceable {
     private void ensureSize(long sizeLimit) {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
 
-      try {
-        mySegmentsAccessLock.lock();
-        while (mySize > sizeLimit) {
-          // we still have to drop something
-          mySegments.doRemoveEldestEntry();
+      while (mySize.get() > sizeLimit) {
+        // we still have to drop something: the least recently used page of the largest stripe,
+        // so that storages actively mapping new pages mostly evict their own ones
+        SegmentsStripe largest = myStripes[0];
+        for (SegmentsStripe stripe : myStripes) {
+          if (stripe.myStripeSize > largest.myStripeSize) largest = stripe;
+        }
+
+        largest.myAccessLock.lock();
+        try {
+          if (largest.mySegments.isEmpty()) break;
+          largest.mySegments.doRemoveEldestEntry();
+          myEvictionCount.incrementAndGet();
+        }
+        finally {
+          largest.myAccessLock.unlock();
         }
-      } finally {
-        mySegmentsAccessLock.unlock();
       }
 
       disposeRemovedSegments();
@@ -611,7 +674,7 @@ public class PagedFileStorage implements Forceable {
             if (mySizeLimit > LOWER_LIMIT) {
               mySizeLimit -= owner.myPageSize;
             }
-            long newSize = mySize - owner.myPageSize;
+            long newSize = mySize.get() - owner.myPageSize;
             if (newSize >= 0) {
               ensureSize(newSize);
               continue; // next try
@@ -635,11 +698,12 @@ public class PagedFileStorage implements Forceable {
     }
 
     private @Nullable Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
-      mySegmentsAccessLock.lock();
+      final SegmentsStripe stripe = getStripe(index);
+      stripe.myAccessLock.lock();
       try {
         checkThreadAccess(storageLockContext);
         Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
+        for (Map.Entry<Integer, ByteBufferWrapper> entry : stripe.mySegments.entrySet()) {
           if ((entry.getKey() & FILE_INDEX_MASK) == index) {
             if (mineBuffers == null) {
               mineBuffers = new TreeMap<Integer, ByteBufferWrapper>(new Comparator<Integer>() {
@@ -655,7 +719,7 @@ public class PagedFileStorage implements Forceable {
         return mineBuffers;
       }
       finally {
-        mySegmentsAccessLock.unlock();
+        stripe.myAccessLock.unlock();
       }
     }
 
@@ -663,14 +727,15 @@ public class PagedFileStorage implements Forceable {
       final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
       if (buffers != null) {
-        mySegmentsAccessLock.lock();
+        final SegmentsStripe stripe = getStripe(index);
+        stripe.myAccessLock.lock();
         try {
           for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
+            stripe.mySegments.remove(key);
           }
         }
         finally {
-          mySegmentsAccessLock.unlock();
+          stripe.myAccessLock.unlock();
         }
 
         mySegmentsAllocationLock.lock();
@@ -699,11 +764,12 @@ public class PagedFileStorage implements Forceable {
     }
 
     public void invalidateBuffer(int page) {
-      mySegmentsAccessLock.lock();
+      final SegmentsStripe stripe = getStripe(page);
+      stripe.myAccessLock.lock();
       try {
-        mySegments.remove(page);
+        stripe.mySegments.remove(page);
       } finally {
-        mySegmentsAccessLock.unlock();
+        stripe.myAccessLock.unlock();
       }
       mySegmentsAllocationLock.lock();
       try {
@@ -713,6 +779,28 @@ public class PagedFileStorage implements Forceable {
         mySegmentsAllocationLock.unlock();
       }
     }
+
+    private class SegmentsStripe {
+      private final SequenceLock myAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, and the counters
+      private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
+        @Nullable
+        @Override
+        public ByteBufferWrapper remove(Object key) {
+          // this method is also called by doRemoveEldestEntry
+          ByteBufferWrapper wrapper = super.remove(key);
+          if (wrapper != null) {
+            ++myMappingChangeCount;
+            mySegmentsToRemove.offer(wrapper);
+            myStripeSize -= wrapper.myLength;
+            StorageLock.this.mySize.addAndGet(-wrapper.myLength);
+          }
+          return wrapper;
+        }
+      };
+      private volatile long myStripeSize;
+      private volatile int myMappingChangeCount;
+      private volatile long myHitCount;
+    }
   }
 
   public static class StorageLockContext {
@@ -196,9 +196,22 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
 
   @Override
   public boolean traverseAllRecords(@NotNull final RecordsProcessor p) throws IOException {
+    return traverseRecordsWithKeys(Integer.MIN_VALUE, Integer.MAX_VALUE, p);
+  }
+
+  @Override
+  public boolean traverseRecords(int part, int parts, @NotNull RecordsProcessor p) throws IOException {
+    // a record stays under the hash code of its key, parts are ranges of hash codes
+    final long rangeSize = (1L << 32) / parts;
+    final int fromKey = (int)(Integer.MIN_VALUE + rangeSize * part);
+    final int toKey = part == parts - 1 ? Integer.MAX_VALUE : (int)(Integer.MIN_VALUE + rangeSize * (part + 1) - 1);
+    return traverseRecordsWithKeys(fromKey, toKey, p);
+  }
+
+  private boolean traverseRecordsWithKeys(int fromKey, int toKey, @NotNull final RecordsProcessor p) throws IOException {
     try {
       lockStorage();
-      return btree.processMappings(new IntToIntBtree.KeyValueProcessor() {
+      return btree.processMappings(fromKey, toKey, new IntToIntBtree.KeyValueProcessor() {
         public boolean process(int key, int value) throws IOException {
           p.setCurrentKey(key);
 
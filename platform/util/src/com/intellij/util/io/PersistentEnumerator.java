@@ -65,13 +65,21 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
   }
 
   public synchronized boolean traverseAllRecords(@NotNull RecordsProcessor p) throws IOException {
-    return traverseRecords(FIRST_VECTOR_OFFSET, SLOTS_PER_FIRST_VECTOR, p);
+    return traverseVector(FIRST_VECTOR_OFFSET, 0, SLOTS_PER_FIRST_VECTOR, p);
   }
 
-  private boolean traverseRecords(int vectorStart, int slotsCount, @NotNull RecordsProcessor p) throws IOException {
+  @Override
+  public synchronized boolean traverseRecords(int part, int parts, @NotNull RecordsProcessor p) throws IOException {
+    // a record stays in the same slot of the first vector
+    final int fromSlot = (int)((long)SLOTS_PER_FIRST_VECTOR * part / parts);
+    final int toSlot = (int)((long)SLOTS_PER_FIRST_VECTOR * (part + 1) / parts);
+    return traverseVector(FIRST_VECTOR_OFFSET, fromSlot, toSlot, p);
+  }
+
+  private boolean traverseVector(int vectorStart, int fromSlot, int toSlot, @NotNull RecordsProcessor p) throws IOException {
     lockStorage();
     try {
-      for (int slotIdx = 0; slotIdx < slotsCount; slotIdx++) {
+      for (int slotIdx = fromSlot; slotIdx < toSlot; slotIdx++) {
         final int vector = myStorage.getInt(vectorStart + slotIdx * 4);
         if (vector < 0) {
           for (int record = -vector; record != 0; record = nextCanditate(record)) {
@@ -79,7 +87,7 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
           }
         }
         else if (vector > 0) {
-          if (!traverseRecords(vector, SLOTS_PER_VECTOR, p)) return false;
+          if (!traverseVector(vector, 0, SLOTS_PER_VECTOR, p)) return false;
         }
       }
       return true;
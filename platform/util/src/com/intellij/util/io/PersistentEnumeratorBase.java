@@ -121,7 +121,9 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     return ourFlyweight;
   }
 
-  protected static final PagedFileStorage.StorageLock ourLock = new PagedFileStorage.StorageLock();
+  // enumerators and maps not given a lock context share these pages, bounded separately from the other storage families
+  protected static final PagedFileStorage.StorageLock ourLock =
+    new PagedFileStorage.StorageLock(true, PagedFileStorage.getPageCacheSizeLimit("enumerators"));
 
   private static final int ENUMERATION_CACHE_SIZE;
   static {
@@ -368,6 +370,13 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
 
   public abstract boolean traverseAllRecords(RecordsProcessor p) throws IOException;
 
+  /**
+   * Traverses records of one of {@code parts} disjoint parts, traversing parts from 0 to {@code parts - 1} processes all records.
+   * A record always belongs to the same part, so records existing before the first part is traversed are processed even if there
+   * are modifications between traversals of different parts.
+   */
+  public abstract boolean traverseRecords(int part, int parts, RecordsProcessor p) throws IOException;
+
   protected abstract int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException;
 
   protected boolean isKeyAtIndex(final Data value, final int idx) throws IOException {
@@ -83,6 +83,10 @@ public class PersistentEnumeratorDelegate<Data> implements Closeable, Forceable
     return myEnumerator.traverseAllRecords(recordsProcessor);
   }
 
+  public boolean traverseRecords(int part, int parts, PersistentEnumeratorBase.RecordsProcessor recordsProcessor) throws IOException {
+    return myEnumerator.traverseRecords(part, parts, recordsProcessor);
+  }
+
   public Collection<Data> getAllDataObjects(@Nullable final PersistentEnumeratorBase.DataFilter filter) throws IOException {
     return myEnumerator.getAllDataObjects(filter);
   }
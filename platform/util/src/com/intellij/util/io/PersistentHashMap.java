@@ -19,10 +19,19 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
+import gnu.trove.TObjectHashingStrategy;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,6 +40,10 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eugene Zhuravlev
@@ -50,6 +63,37 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @NonNls
   public static final String DATA_FILE_EXTENSION = ".values";
+  @NonNls
+  public static final String WAL_FILE_EXTENSION = ".wal";
+
+  private static final boolean ourUseWriteAheadLog = SystemProperties.getBooleanProperty("idea.persistent.map.wal", false);
+  private static final int ourWalGroupCommitInterval = SystemProperties.getIntProperty("idea.persistent.map.wal.group.commit.ms", 50);
+  private static final int ourWalCheckpointSize = SystemProperties.getIntProperty("idea.persistent.map.wal.checkpoint.kb", 4 * 1024) * 1024;
+
+  /**
+   * In write-ahead log mode modifications are logged and kept in {@link #myPendingValues} instead of being written to the map files,
+   * the files are changed only on checkpoint and stay clean in between, so after a crash the map is restored by replaying the log
+   * instead of being rebuilt.
+   */
+  @Nullable private PersistentHashMapWriteAheadLog myWal;
+  // syncs the log when records stay unsynced for the group commit interval, so that the interval bounds the data lost by a crash
+  @Nullable private ScheduledFuture<?> myWalSyncFuture;
+  @NotNull private final Map<Key, PendingValue> myPendingValues;
+  private long myPendingValuesSize;
+  private final BufferExposingByteArrayOutputStream myKeyBuffer = new BufferExposingByteArrayOutputStream();
+  private final DataOutputStream myKeyOutput = new DataOutputStream(myKeyBuffer);
+
+  private static final boolean ourBackgroundCompaction = SystemProperties.getBooleanProperty("idea.persistent.map.background.compaction", false);
+  private static final int ourCompactionBudget = SystemProperties.getIntProperty("idea.persistent.map.compaction.kb.per.second", 4 * 1024) * 1024;
+  private static final int COMPACTION_SLICE = 256 * 1024; // bytes moved under one lock acquisition
+  private static final int COMPACTION_KEYS_PER_PART = 16 * 1024; // keys collected under one lock acquisition, on average
+  private static final ScheduledThreadPoolExecutor ourCompactionExecutor =
+    ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap compaction", Thread.MIN_PRIORITY);
+  private static final ScheduledThreadPoolExecutor ourWalSyncExecutor =
+    ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap log sync");
+
+  @Nullable private Compaction myCompaction;
+  @Nullable private ScheduledFuture<?> myCompactionFuture;
   private long myLiveAndGarbageKeysCounter; // first four bytes contain live keys count (updated via LIVE_KEY_MASK), last four bytes - number of dead keys
   private int myReadCompactionGarbageSize;
   private static final long LIVE_KEY_MASK = (1L << 32);
@@ -91,6 +135,114 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   });  
 
+  private static class PendingValue {
+    private boolean myReplacesStoredValue;
+    @Nullable private BufferExposingByteArrayOutputStream myBytes; // null if the mapping was removed
+
+    private PendingValue(boolean replacesStoredValue, @Nullable BufferExposingByteArrayOutputStream bytes) {
+      myReplacesStoredValue = replacesStoredValue;
+      myBytes = bytes;
+    }
+  }
+
+  /**
+   * Moves live values to a new values file while the map stays available. Moved values are read from and appended to the new file,
+   * the others are read from the old one, which isn't changed anymore. Ids of moved keys are saved when the map is flushed, so an
+   * unfinished compaction is completed on the next open.
+   * <p/>
+   * Keys to move are collected part by part (see {@link PersistentEnumeratorBase#traverseRecords(int, int, PersistentEnumeratorBase.RecordsProcessor)}),
+   * so that a large map isn't traversed under one lock acquisition. Keys added after compaction started have their values in the new
+   * file already.
+   */
+  private class Compaction {
+    private final PersistentHashMapValueStorage myStorage;
+    private final TIntHashSet myMovedKeys;
+    private final int myParts;
+    private int myNextPart;
+    private final TIntArrayList myRecords = new TIntArrayList(); // key id and processing key of every key with a value in the current part
+    private int myPosition;
+    private long myMovedBytes;
+    private final long myOldSize = myValueStorage.getSize();
+    private final long myStarted = System.currentTimeMillis();
+
+    private Compaction(@NotNull PersistentHashMapValueStorage storage, @NotNull TIntHashSet movedKeys, int parts) {
+      myStorage = storage;
+      myMovedKeys = movedKeys;
+      myParts = parts;
+    }
+
+    private PersistentHashMapValueStorage getStorage(int keyId) {
+      return myMovedKeys.contains(keyId) ? myStorage : myValueStorage;
+    }
+
+    private int move(int keyId, long address, @Nullable Key key, int processingKey) throws IOException {
+      final PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(address);
+      final long newAddress = myStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+      myMovedKeys.add(updateValueId(keyId, newAddress, address, key, processingKey));
+      myMovedBytes += readResult.buffer.length;
+      return readResult.buffer.length;
+    }
+
+    /**
+     * @return true if all values are moved
+     */
+    private boolean step(int byteBudget) throws IOException {
+      myEnumerator.markDirty(true);
+      int moved = 0;
+      boolean partCollected = false;
+      while (moved < byteBudget) {
+        if (myPosition == myRecords.size()) {
+          if (myNextPart == myParts) return true;
+          if (partCollected) return false;
+          collectRecords(myNextPart++);
+          partCollected = true;
+          continue;
+        }
+        final int keyId = myRecords.get(myPosition);
+        final int processingKey = myRecords.get(myPosition + 1);
+        myPosition += 2;
+        if (myMovedKeys.contains(keyId)) continue;
+        final long address = readValueId(keyId);
+        if (address != NULL_ADDR) {
+          moved += move(keyId, address, null, processingKey);
+        }
+      }
+      return myPosition == myRecords.size() && myNextPart == myParts;
+    }
+
+    private void collectRecords(int part) throws IOException {
+      myRecords.resetQuick();
+      myPosition = 0;
+      traverseRecords(part, myParts, new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          if (!myMovedKeys.contains(keyId) && readValueId(keyId) != NULL_ADDR) {
+            myRecords.add(keyId);
+            myRecords.add(getCurrentKey());
+          }
+          return true;
+        }
+      });
+    }
+
+    private void save() throws IOException {
+      myStorage.force();
+      final File movedKeysFile = getMovedKeysFile(myEnumerator.myFile);
+      final File tempFile = new File(movedKeysFile.getPath() + ".tmp");
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        output.writeInt(myMovedKeys.size());
+        for (TIntIterator iterator = myMovedKeys.iterator(); iterator.hasNext();) {
+          output.writeInt(iterator.next());
+        }
+      }
+      finally {
+        output.close();
+      }
+      FileUtil.rename(tempFile, movedKeysFile);
+    }
+  }
+
   private final SLRUCache<Key, AppendStream> myAppendCache = new SLRUCache<Key, AppendStream>(16 * 1024, 4 * 1024) {
     @Override
     @NotNull
@@ -103,15 +255,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myEnumerator.lockStorage();
       try {
         final BufferExposingByteArrayOutputStream bytes = value.getInternalBuffer();
-        final int id = enumerate(key);
-        long oldHeaderRecord = readValueId(id);
-
-        long headerRecord = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), oldHeaderRecord);
-
-        updateValueId(id, headerRecord, oldHeaderRecord, key, 0);
-        if (oldHeaderRecord == NULL_ADDR) {
-          myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
-        }
+        appendStoredBytes(key, bytes.getInternalBuffer(), bytes.size());
 
         myStreamPool.recycle(value);
       }
@@ -141,8 +285,28 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
   
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, initialSize, ourUseWriteAheadLog);
+  }
+
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull final KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           boolean writeAheadLog) throws IOException {
     super(checkDataFiles(file), keyDescriptor, initialSize);
 
+    myPendingValues = new THashMap<Key, PendingValue>(new TObjectHashingStrategy<Key>() {
+      @Override
+      public int computeHashCode(Key key) {
+        return keyDescriptor.getHashCode(key);
+      }
+
+      @Override
+      public boolean equals(Key key1, Key key2) {
+        return keyDescriptor.isEqual(key1, key2);
+      }
+    });
+
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
     myRecordBuffer = new byte[myParentValueRefOffset + 8];
@@ -188,6 +352,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myReadCompactionGarbageSize = (int)(data2 >>> 32);
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
+      completeInterruptedCompaction(file);
+      openWriteAheadLog(file, writeAheadLog);
+
       if (makesSenseToCompact()) {
         compact();
       }
@@ -213,11 +380,40 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  private void openWriteAheadLog(@NotNull File file, boolean enabled) throws IOException {
+    final File walFile = getWalFile(file);
+    if (!enabled && !walFile.exists()) return;
+
+    myWal = new PersistentHashMapWriteAheadLog(walFile, ourWalGroupCommitInterval, new PersistentHashMapWriteAheadLog.RecordProcessor() {
+      @Override
+      public void process(byte operation, @NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        final Key k = myEnumerator.myDataDescriptor.read(new DataInputStream(new UnsyncByteArrayInputStream(key)));
+        addPendingValue(k, operation, value, value.length);
+      }
+    });
+
+    if (!enabled) {
+      // the log was left by a session which used it, apply it and continue without it
+      checkpoint();
+      myWal.closeAndDelete();
+      myWal = null;
+    }
+    else if (myEnumerator.isDirty()) {
+      forceEnumerator(); // the log is replayed only on top of clean map files
+    }
+  }
+
   public void dropMemoryCaches() {
     synchronized (myEnumerator) {
       myEnumerator.lockStorage();
       try {
         clearAppenderCaches();
+        if (myWal != null) {
+          checkpoint();
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
       }
       finally {
         myEnumerator.unlockStorage();
@@ -229,6 +425,19 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return estimated part of the values file occupied by overwritten values and copies left by read compaction
+   */
+  public double getWastedSpaceRatio() {
+    synchronized (myEnumerator) {
+      final long fileSize = myValueStorage.getSize() + (myCompaction != null ? myCompaction.myStorage.getSize() : 0);
+      final int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      final int deadKeys = (int)(myLiveAndGarbageKeysCounter & 0xFFFFFFFF);
+      if (fileSize == 0 || liveKeys + deadKeys == 0) return 0;
+      return Math.min(1, (double)deadKeys / (liveKeys + deadKeys) + (double)myReadCompactionGarbageSize / fileSize);
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -257,6 +466,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private static File checkDataFiles(@NotNull final File file) {
     if (!file.exists()) {
       deleteFilesStartingWith(getDataFile(file));
+      FileUtil.delete(getWalFile(file));
     }
     return file;
   }
@@ -281,6 +491,21 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return new File(file.getParentFile(), file.getName() + DATA_FILE_EXTENSION);
   }
 
+  @NotNull
+  private static File getCompactionFile(@NotNull final File file) {
+    return new File(getDataFile(file).getPath() + ".new");
+  }
+
+  @NotNull
+  private static File getMovedKeysFile(@NotNull final File file) {
+    return new File(getDataFile(file).getPath() + ".moved");
+  }
+
+  @NotNull
+  private static File getWalFile(@NotNull final File file) {
+    return new File(file.getParentFile(), file.getName() + WAL_FILE_EXTENSION);
+  }
+
   @Override
   public final void put(Key key, Value value) throws IOException {
     synchronized (myEnumerator) {
@@ -291,35 +516,61 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   protected void doPut(Key key, Value value) throws IOException {
     myEnumerator.lockStorage();
     try {
-      myEnumerator.markDirty(true);
-      myAppendCache.remove(key);
-
       final AppendStream record = new AppendStream();
       myValueExternalizer.save(record, value);
       final BufferExposingByteArrayOutputStream bytes = record.getInternalBuffer();
-      final int id = enumerate(key);
 
-      long oldheader = readValueId(id);
-      if (oldheader != NULL_ADDR) {
-        myLiveAndGarbageKeysCounter++;
-      }
-      else {
-        myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+      if (myWal != null) {
+        logModification(key, PersistentHashMapWriteAheadLog.PUT, bytes.getInternalBuffer(), bytes.size());
+        return;
       }
 
-      long header = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), 0);
-
-      updateValueId(id, header, oldheader, key, 0);
+      myEnumerator.markDirty(true);
+      myAppendCache.remove(key);
+      putStoredBytes(key, bytes.getInternalBuffer(), bytes.size());
     }
     finally {
       myEnumerator.unlockStorage();
     }
   }
 
+  private void putStoredBytes(Key key, byte[] bytes, int length) throws IOException {
+    final int id = enumerate(key);
+
+    long oldheader = readValueId(id);
+    if (oldheader != NULL_ADDR) {
+      myLiveAndGarbageKeysCounter++;
+    }
+    else {
+      myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+    }
+
+    long header = getAppendStorage().appendBytes(bytes, 0, length, 0);
+
+    keyMoved(updateValueId(id, header, oldheader, key, 0));
+  }
+
+  private void appendStoredBytes(Key key, byte[] bytes, int length) throws IOException {
+    int id = enumerate(key);
+    long oldHeaderRecord = readValueId(id);
+    if (myCompaction != null && oldHeaderRecord != NULL_ADDR && !myCompaction.myMovedKeys.contains(id)) {
+      myCompaction.move(id, oldHeaderRecord, key, 0); // chunks of one value should be in the same file
+      id = enumerate(key);
+      oldHeaderRecord = readValueId(id);
+    }
+
+    long headerRecord = getAppendStorage().appendBytes(bytes, 0, length, oldHeaderRecord);
+
+    keyMoved(updateValueId(id, headerRecord, oldHeaderRecord, key, 0));
+    if (oldHeaderRecord == NULL_ADDR) {
+      myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+    }
+  }
+
   @Override
   public final int enumerate(Key name) throws IOException {
     synchronized (myEnumerator) {
-      myIntAddressForNewRecord = canUseIntAddressForNewRecord(myValueStorage.getSize());
+      myIntAddressForNewRecord = canUseIntAddressForNewRecord(getAppendStorage().getSize());
       return super.enumerate(name);
     }
   }
@@ -335,6 +586,19 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected void doAppendData(Key key, @NotNull ValueDataAppender appender) throws IOException {
+    if (myWal != null) {
+      final AppendStream stream = myStreamPool.alloc();
+      try {
+        appender.append(stream);
+        final BufferExposingByteArrayOutputStream bytes = stream.getInternalBuffer();
+        logModification(key, PersistentHashMapWriteAheadLog.APPEND, bytes.getInternalBuffer(), bytes.size());
+      }
+      finally {
+        myStreamPool.recycle(stream);
+      }
+      return;
+    }
+
     myEnumerator.markDirty(true);
 
     final AppendStream stream = myAppendCache.get(key);
@@ -349,7 +613,22 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final boolean processKeys(Processor<Key> processor) throws IOException {
     synchronized (myEnumerator) {
       myAppendCache.clear();
-      return myEnumerator.iterateData(processor);
+      // keys logged since the last checkpoint may be not enumerated yet
+      final List<Key> notEnumerated = new ArrayList<Key>();
+      if (myWal != null) {
+        myEnumerator.lockStorage();
+        try {
+          for (Key key : myPendingValues.keySet()) {
+            if (tryEnumerate(key) == PersistentEnumerator.NULL_ID) {
+              notEnumerated.add(key);
+            }
+          }
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+      }
+      return myEnumerator.iterateData(processor) && ContainerUtil.process(notEnumerated, processor);
     }
   }
 
@@ -360,15 +639,40 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return values;
   }
 
-  public final boolean processKeysWithExistingMapping(Processor<Key> processor) throws IOException {
+  public final boolean processKeysWithExistingMapping(final Processor<Key> processor) throws IOException {
     synchronized (myEnumerator) {
       myAppendCache.clear();
-      return myEnumerator.processAllDataObject(processor, new PersistentEnumerator.DataFilter() {
+      if (myWal == null || myPendingValues.isEmpty()) {
+        return myEnumerator.processAllDataObject(processor, new PersistentEnumerator.DataFilter() {
+          @Override
+          public boolean accept(final int id) {
+            return readValueId(id) != NULL_ADDR;
+          }
+        });
+      }
+
+      // mappings of the keys logged since the last checkpoint are defined by the pending values, not by the map files
+      @SuppressWarnings("unchecked")
+      final Map<Key, PendingValue> pendingValues = (Map<Key, PendingValue>)((THashMap<Key, PendingValue>)myPendingValues).clone();
+      final List<Key> pendingWithMapping = new ArrayList<Key>();
+      for (Map.Entry<Key, PendingValue> entry : pendingValues.entrySet()) {
+        final PendingValue pending = entry.getValue();
+        if (!pending.myReplacesStoredValue || pending.myBytes != null) {
+          pendingWithMapping.add(entry.getKey());
+        }
+      }
+      final boolean processed = myEnumerator.processAllDataObject(new Processor<Key>() {
+        @Override
+        public boolean process(Key key) {
+          return pendingValues.containsKey(key) || processor.process(key);
+        }
+      }, new PersistentEnumerator.DataFilter() {
         @Override
         public boolean accept(final int id) {
           return readValueId(id) != NULL_ADDR;
         }
       });
+      return processed && ContainerUtil.process(pendingWithMapping, processor);
     }
   }
 
@@ -384,34 +688,70 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     myEnumerator.lockStorage();
     try {
       myAppendCache.remove(key);
-      final int id = tryEnumerate(key);
-      if (id == PersistentEnumerator.NULL_ID) {
-        return null;
-      }
-      final long oldHeader = readValueId(id);
-      if (oldHeader == PersistentEnumerator.NULL_ID) {
-        return null;
+      PendingValue pending = myWal != null ? myPendingValues.get(key) : null;
+      if (pending == null || !pending.myReplacesStoredValue) {
+        final byte[] stored = readStoredBytes(key);
+        pending = myWal != null ? myPendingValues.get(key) : null; // read compaction may have turned it into the full value
+        if (pending == null) {
+          return stored != null ? readValue(stored, stored.length) : null;
+        }
+        if (!pending.myReplacesStoredValue) {
+          final BufferExposingByteArrayOutputStream bytes = pending.myBytes;
+          assert bytes != null;
+          if (stored == null) {
+            return readValue(bytes.getInternalBuffer(), bytes.size());
+          }
+          final byte[] value = new byte[stored.length + bytes.size()];
+          System.arraycopy(stored, 0, value, 0, stored.length);
+          System.arraycopy(bytes.getInternalBuffer(), 0, value, stored.length, bytes.size());
+          return readValue(value, value.length);
+        }
       }
 
-      PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(oldHeader);
-      if (readResult.offset != oldHeader) {
+      final BufferExposingByteArrayOutputStream bytes = pending.myBytes;
+      return bytes != null ? readValue(bytes.getInternalBuffer(), bytes.size()) : null;
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
+
+  @Nullable
+  private byte[] readStoredBytes(Key key) throws IOException {
+    final int id = tryEnumerate(key);
+    if (id == PersistentEnumerator.NULL_ID) {
+      return null;
+    }
+    final long oldHeader = readValueId(id);
+    if (oldHeader == PersistentEnumerator.NULL_ID) {
+      return null;
+    }
+
+    final PersistentHashMapValueStorage storage = myCompaction != null ? myCompaction.getStorage(id) : myValueStorage;
+    PersistentHashMapValueStorage.ReadResult readResult = storage.readBytes(oldHeader);
+    if (readResult.offset != oldHeader) {
+      myReadCompactionGarbageSize += readResult.buffer.length;
+      if (myWal != null) {
+        // map files are changed only on checkpoint, until then keep the compacted value in memory
+        addCompactedValue(key, readResult.buffer);
+      }
+      else {
         myEnumerator.markDirty(true);
 
-        updateValueId(id, readResult.offset, oldHeader, key, 0);
+        keyMoved(updateValueId(id, readResult.offset, oldHeader, key, 0)); // the old values file isn't changed by compaction
         myLiveAndGarbageKeysCounter++;
-        myReadCompactionGarbageSize += readResult.buffer.length;
       }
+    }
+    return readResult.buffer;
+  }
 
-      final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
-      try {
-        return myValueExternalizer.read(input);
-      }
-      finally {
-        input.close();
-      }
+  private Value readValue(byte[] bytes, int length) throws IOException {
+    final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(bytes, 0, length));
+    try {
+      return myValueExternalizer.read(input);
     }
     finally {
-      myEnumerator.unlockStorage();
+      input.close();
     }
   }
 
@@ -425,6 +765,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     myEnumerator.lockStorage();
     try {
       myAppendCache.remove(key);
+      final PendingValue pending = myWal != null ? myPendingValues.get(key) : null;
+      if (pending != null) {
+        return !pending.myReplacesStoredValue || pending.myBytes != null;
+      }
       final int id = tryEnumerate(key);
       if (id == PersistentEnumerator.NULL_ID) {
         return false;
@@ -445,19 +789,159 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   protected void doRemove(Key key) throws IOException {
     myEnumerator.lockStorage();
     try {
-      myAppendCache.remove(key);
-      final int id = tryEnumerate(key);
-      if (id == PersistentEnumerator.NULL_ID) {
+      if (myWal != null) {
+        logModification(key, PersistentHashMapWriteAheadLog.REMOVE, ArrayUtil.EMPTY_BYTE_ARRAY, 0);
         return;
       }
-      myEnumerator.markDirty(true);
+      myAppendCache.remove(key);
+      removeStoredValue(key);
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
 
-      final long record = readValueId(id);
-      if (record != NULL_ADDR) {
-        myLiveAndGarbageKeysCounter++;
+  private void removeStoredValue(Key key) throws IOException {
+    final int id = tryEnumerate(key);
+    if (id == PersistentEnumerator.NULL_ID) {
+      return;
+    }
+    myEnumerator.markDirty(true);
+
+    final long record = readValueId(id);
+    if (record != NULL_ADDR) {
+      myLiveAndGarbageKeysCounter++;
+    }
+
+    updateValueId(id, NULL_ADDR, record, key, 0);
+  }
+
+  private void logModification(Key key, byte operation, byte[] bytes, int length) throws IOException {
+    assert myWal != null;
+    myKeyBuffer.reset();
+    myEnumerator.myDataDescriptor.save(myKeyOutput, key);
+    myWal.log(operation, myKeyBuffer.getInternalBuffer(), myKeyBuffer.size(), bytes, length);
+    addPendingValue(key, operation, bytes, length);
+
+    if (myPendingValuesSize + myWal.length() > ourWalCheckpointSize) {
+      checkpoint();
+    }
+    else if (myWal.hasUnsyncedRecords() && myWalSyncFuture == null) {
+      myWalSyncFuture = ourWalSyncExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          syncWriteAheadLog();
+        }
+      }, ourWalGroupCommitInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void syncWriteAheadLog() {
+    synchronized (myEnumerator) {
+      myWalSyncFuture = null;
+      if (myWal == null) return; // the map was closed
+      myEnumerator.lockStorage();
+      try {
+        myWal.sync();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        myEnumerator.markCorrupted(); // the log may end with a partially written group
+      }
+      finally {
+        myEnumerator.unlockStorage();
       }
+    }
+  }
+
+  private void addPendingValue(Key key, byte operation, byte[] bytes, int length) {
+    final PendingValue pending = myPendingValues.get(key);
+    if (operation == PersistentHashMapWriteAheadLog.APPEND && pending != null) {
+      if (pending.myBytes == null) {
+        pending.myBytes = new BufferExposingByteArrayOutputStream(length); // appending to removed mapping
+      }
+      pending.myBytes.write(bytes, 0, length);
+    }
+    else {
+      BufferExposingByteArrayOutputStream value = null;
+      if (operation != PersistentHashMapWriteAheadLog.REMOVE) {
+        value = new BufferExposingByteArrayOutputStream(length);
+        value.write(bytes, 0, length);
+      }
+      myPendingValues.put(key, new PendingValue(operation != PersistentHashMapWriteAheadLog.APPEND, value));
+    }
+    myPendingValuesSize += length;
+  }
+
+  private void addCompactedValue(Key key, byte[] stored) {
+    final PendingValue pending = myPendingValues.get(key);
+    final BufferExposingByteArrayOutputStream value = new BufferExposingByteArrayOutputStream(stored.length);
+    value.write(stored, 0, stored.length);
+    if (pending == null) {
+      myPendingValues.put(key, new PendingValue(true, value));
+    }
+    else if (!pending.myReplacesStoredValue) {
+      assert pending.myBytes != null;
+      value.write(pending.myBytes.getInternalBuffer(), 0, pending.myBytes.size());
+      pending.myReplacesStoredValue = true;
+      pending.myBytes = value;
+    }
+    else {
+      return;
+    }
+    myPendingValuesSize += stored.length;
+  }
+
+  private void checkpoint() throws IOException {
+    checkpoint(0);
+  }
 
-      updateValueId(id, NULL_ADDR, record, key, 0);
+  /**
+   * Writes modifications collected since the last checkpoint to the map files and truncates the log. The map is marked clean only
+   * after the log is truncated: a crash in between leaves the map corrupted instead of applying the logged appends twice.
+   * <p/>
+   * A running compaction changes the map files only here, moving about {@code compactionBudget} bytes of values, so that the files
+   * stay clean between checkpoints.
+   * @return true if compaction is completed
+   */
+  private boolean checkpoint(int compactionBudget) throws IOException {
+    assert myWal != null;
+    final Compaction compaction = compactionBudget > 0 ? myCompaction : null;
+    if (compaction == null && myPendingValues.isEmpty() && myWal.length() == 0) return false;
+
+    myEnumerator.lockStorage();
+    try {
+      boolean compacted = false;
+      if (!myPendingValues.isEmpty() || compaction != null) {
+        myEnumerator.markDirty(true);
+        for (Map.Entry<Key, PendingValue> entry : myPendingValues.entrySet()) {
+          final PendingValue pending = entry.getValue();
+          final BufferExposingByteArrayOutputStream bytes = pending.myBytes;
+          if (bytes == null) {
+            removeStoredValue(entry.getKey());
+          }
+          else if (pending.myReplacesStoredValue) {
+            putStoredBytes(entry.getKey(), bytes.getInternalBuffer(), bytes.size());
+          }
+          else {
+            appendStoredBytes(entry.getKey(), bytes.getInternalBuffer(), bytes.size());
+          }
+        }
+        myPendingValues.clear();
+        myPendingValuesSize = 0;
+        if (compaction != null) {
+          compacted = compaction.step(compactionBudget);
+        }
+        myValueStorage.force();
+      }
+      myWal.reset();
+      if (compacted) {
+        completeCompaction(); // marks the map clean after the files are switched
+      }
+      else {
+        forceEnumerator();
+      }
+      return compacted;
     }
     finally {
       myEnumerator.unlockStorage();
@@ -471,6 +955,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  @Override
+  public boolean isDirty() {
+    synchronized (myEnumerator) {
+      return super.isDirty() || myWal != null && myWal.hasUnsyncedRecords();
+    }
+  }
+
   @Override
   public final void force() {
     synchronized (myEnumerator) {
@@ -482,17 +973,37 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     myEnumerator.lockStorage();
     try {
       try {
+        if (myWal != null) {
+          myWal.sync(); // the map files are written on checkpoint
+        }
         clearAppenderCaches();
       }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
       finally {
-        super.force();
+        forceEnumerator();
       }
+      scheduleBackgroundCompaction();
     }
     finally {
       myEnumerator.unlockStorage();
     }
   }
 
+  private void forceEnumerator() {
+    if (myCompaction != null) {
+      try {
+        myCompaction.save();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        myEnumerator.markCorrupted(); // map files can't be marked clean without the ids of moved keys
+      }
+    }
+    super.force();
+  }
+
   private void clearAppenderCaches() {
     myAppendCache.clear();
     myValueStorage.force();
@@ -511,10 +1022,46 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       try {
         myAppendCacheFlusher.stop();
         myAppendCache.clear();
+        if (myCompactionFuture != null) {
+          myCompactionFuture.cancel(false);
+          myCompactionFuture = null;
+        }
+        if (myWalSyncFuture != null) {
+          myWalSyncFuture.cancel(false);
+          myWalSyncFuture = null;
+        }
+        final PersistentHashMapWriteAheadLog wal = myWal;
+        if (wal != null) {
+          try {
+            checkpoint();
+            myWal = null;
+            wal.closeAndDelete();
+          }
+          finally {
+            if (myWal != null) {
+              myWal = null;
+              wal.close();
+            }
+          }
+        }
         final PersistentHashMapValueStorage valueStorage = myValueStorage;
         if (valueStorage != null) {
           valueStorage.dispose();
         }
+        final Compaction compaction = myCompaction;
+        if (compaction != null) {
+          try {
+            compaction.save(); // it is completed on next open
+          }
+          catch (IOException e) {
+            LOG.info(e);
+            myEnumerator.markCorrupted();
+          }
+          finally {
+            myCompaction = null;
+            compaction.myStorage.dispose();
+          }
+        }
       }
       finally {
         super.close();
@@ -528,6 +1075,19 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      if (myWal != null) {
+        checkpoint();
+      }
+      if (myCompaction != null) {
+        myEnumerator.lockStorage();
+        try {
+          completeCompaction();
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+        return;
+      }
       final long now = System.currentTimeMillis();
       final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
       final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
@@ -565,6 +1125,150 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  private PersistentHashMapValueStorage getAppendStorage() {
+    return myCompaction != null ? myCompaction.myStorage : myValueStorage;
+  }
+
+  private void keyMoved(int keyId) {
+    if (myCompaction != null) {
+      myCompaction.myMovedKeys.add(keyId);
+    }
+  }
+
+  private void scheduleBackgroundCompaction() {
+    if (!ourBackgroundCompaction || myCompactionFuture != null || isClosed() || !makesSenseToCompact()) return;
+
+    LOG.info("Scheduling compaction of " + myEnumerator.myFile.getPath() + ", values file size " + myValueStorage.getSize() +
+             ", wasted space ratio " + getWastedSpaceRatio());
+    myCompactionFuture = ourCompactionExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        performBackgroundCompaction();
+      }
+    }, 0, 1, TimeUnit.SECONDS);
+  }
+
+  private void performBackgroundCompaction() {
+    int budget = ourCompactionBudget;
+    while (budget > 0) {
+      synchronized (myEnumerator) {
+        if (myCompactionFuture == null) return; // the map was closed
+        try {
+          final int slice = Math.min(budget, COMPACTION_SLICE);
+          if (compactIncrementally(slice)) {
+            myCompactionFuture.cancel(false);
+            myCompactionFuture = null;
+            return;
+          }
+          budget -= slice;
+        }
+        catch (Throwable e) {
+          LOG.info(e);
+          myCompactionFuture.cancel(false);
+          myCompactionFuture = null;
+          myEnumerator.markCorrupted();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves about {@code byteBudget} bytes of live values to the new values file, starts compaction if it is not started yet.
+   * @return true if compaction is completed
+   */
+  // made public for tests
+  public boolean compactIncrementally(int byteBudget) throws IOException {
+    synchronized (myEnumerator) {
+      myEnumerator.lockStorage();
+      try {
+        if (myCompaction == null) {
+          startCompaction(null);
+        }
+        if (myWal != null) {
+          return checkpoint(byteBudget);
+        }
+        if (myCompaction.step(byteBudget)) {
+          completeCompaction();
+          return true;
+        }
+        return false;
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+  }
+
+  private void startCompaction(@Nullable TIntHashSet movedKeys) throws IOException {
+    final File compactionFile = getCompactionFile(myEnumerator.myFile);
+    if (movedKeys == null) {
+      FileUtil.delete(compactionFile);
+    }
+    final int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+    myValueStorage.switchToCompactionMode();
+    myCompaction = new Compaction(PersistentHashMapValueStorage.create(compactionFile.getPath()),
+                                  movedKeys != null ? movedKeys : new TIntHashSet(), liveKeys / COMPACTION_KEYS_PER_PART + 1);
+  }
+
+  private void completeCompaction() throws IOException {
+    final Compaction compaction = myCompaction;
+    assert compaction != null;
+    while (!compaction.step(Integer.MAX_VALUE)) ;
+
+    myCompaction = null;
+    if (myCompactionFuture != null) {
+      myCompactionFuture.cancel(false);
+      myCompactionFuture = null;
+    }
+    compaction.myStorage.dispose();
+    myValueStorage.dispose();
+
+    final File dataFile = getDataFile(myEnumerator.myFile);
+    FileUtil.rename(getCompactionFile(myEnumerator.myFile), dataFile);
+    myValueStorage = PersistentHashMapValueStorage.create(dataFile.getPath());
+    FileUtil.delete(getMovedKeysFile(myEnumerator.myFile));
+
+    myLiveAndGarbageKeysCounter = myLiveAndGarbageKeysCounter / LIVE_KEY_MASK * LIVE_KEY_MASK;
+    myReadCompactionGarbageSize = 0;
+    super.force();
+
+    LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - compaction.myStarted) + "ms: " +
+             compaction.myOldSize + " -> " + myValueStorage.getSize() + " bytes, " + compaction.myMovedBytes + " bytes moved");
+  }
+
+  private void completeInterruptedCompaction(@NotNull File file) throws IOException {
+    final File movedKeysFile = getMovedKeysFile(file);
+    final File compactionFile = getCompactionFile(file);
+    if (!movedKeysFile.exists() || !compactionFile.exists()) {
+      FileUtil.delete(movedKeysFile);
+      FileUtil.delete(compactionFile);
+      return;
+    }
+
+    final TIntHashSet movedKeys = new TIntHashSet();
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(movedKeysFile)));
+    try {
+      for (int i = input.readInt(); i > 0; i--) {
+        movedKeys.add(input.readInt());
+      }
+    }
+    finally {
+      input.close();
+    }
+
+    synchronized (myEnumerator) {
+      myEnumerator.lockStorage();
+      try {
+        startCompaction(movedKeys);
+        completeCompaction();
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of {@link PersistentHashMap} modifications made since the last checkpoint.
+ *
+ * Every record is [payload length][crc32 of payload][payload], payload is [operation][key length][key bytes][value bytes].
+ * Records are collected in memory and written to disk with a single fsync (group commit) either on {@link #sync()} or when
+ * enough data or time has been accumulated, so a crash loses at most the last group. The map calls {@link #sync()} by a timer when
+ * records stay unsynced for the group commit interval, so the interval holds without further writes too. A torn or damaged tail is
+ * ignored on replay.
+ *
+ * Not thread safe, the map accesses the log under its own lock.
+ */
+class PersistentHashMapWriteAheadLog {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.PersistentHashMapWriteAheadLog");
+
+  static final byte PUT = 1;
+  static final byte APPEND = 2;
+  static final byte REMOVE = 3;
+
+  private static final int HEADER_SIZE = 8;
+  private static final int GROUP_COMMIT_SIZE = 256 * 1024;
+
+  interface RecordProcessor {
+    void process(byte operation, @NotNull byte[] key, @NotNull byte[] value) throws IOException;
+  }
+
+  private final File myFile;
+  private final long myGroupCommitIntervalNanos;
+  private final RandomAccessFile myRaf;
+  private final BufferExposingByteArrayOutputStream myPendingRecords = new BufferExposingByteArrayOutputStream();
+  private final BufferExposingByteArrayOutputStream myPayload = new BufferExposingByteArrayOutputStream();
+  private final DataOutputStream myPayloadOutput = new DataOutputStream(myPayload);
+  private final CRC32 myCrc = new CRC32();
+  private long myLength;
+  private long myLastSyncNanos = System.nanoTime();
+  private long mySyncCount;
+
+  /**
+   * Opens the log, passes its valid records to the processor and positions the log after the last of them.
+   */
+  PersistentHashMapWriteAheadLog(@NotNull File file, long groupCommitIntervalMs, @NotNull RecordProcessor replayProcessor)
+    throws IOException {
+    myFile = file;
+    myGroupCommitIntervalNanos = groupCommitIntervalMs * 1000000L;
+    myLength = file.exists() ? replay(file, replayProcessor) : 0;
+    myRaf = new RandomAccessFile(file, "rw");
+    try {
+      if (myRaf.length() != myLength) {
+        myRaf.setLength(myLength);
+      }
+      myRaf.seek(myLength);
+    }
+    catch (IOException e) {
+      myRaf.close();
+      throw e;
+    }
+  }
+
+  void log(byte operation, @NotNull byte[] key, int keyLength, @NotNull byte[] value, int valueLength) throws IOException {
+    myPayload.reset();
+    myPayloadOutput.writeByte(operation);
+    DataInputOutputUtil.writeINT(myPayloadOutput, keyLength);
+    myPayloadOutput.write(key, 0, keyLength);
+    myPayloadOutput.write(value, 0, valueLength);
+
+    myCrc.reset();
+    myCrc.update(myPayload.getInternalBuffer(), 0, myPayload.size());
+    final DataOutputStream out = new DataOutputStream(myPendingRecords);
+    out.writeInt(myPayload.size());
+    out.writeInt((int)myCrc.getValue());
+    out.write(myPayload.getInternalBuffer(), 0, myPayload.size());
+
+    if (myPendingRecords.size() >= GROUP_COMMIT_SIZE || System.nanoTime() - myLastSyncNanos >= myGroupCommitIntervalNanos) {
+      sync();
+    }
+  }
+
+  boolean hasUnsyncedRecords() {
+    return myPendingRecords.size() > 0;
+  }
+
+  /**
+   * @return size of the log on disk and in memory
+   */
+  long length() {
+    return myLength + myPendingRecords.size();
+  }
+
+  long getSyncCount() {
+    return mySyncCount;
+  }
+
+  void sync() throws IOException {
+    myLastSyncNanos = System.nanoTime();
+    if (myPendingRecords.size() == 0) return;
+    myRaf.write(myPendingRecords.getInternalBuffer(), 0, myPendingRecords.size());
+    myRaf.getChannel().force(false);
+    myLength += myPendingRecords.size();
+    myPendingRecords.reset();
+    mySyncCount++;
+  }
+
+  /**
+   * Drops all records, called after they were applied to the map and the map was flushed.
+   */
+  void reset() throws IOException {
+    myPendingRecords.reset();
+    myRaf.setLength(0);
+    myRaf.seek(0);
+    myRaf.getChannel().force(false);
+    myLength = 0;
+  }
+
+  void close() throws IOException {
+    myRaf.close();
+  }
+
+  void closeAndDelete() throws IOException {
+    close();
+    FileUtil.delete(myFile);
+  }
+
+  private static long replay(@NotNull File file, @NotNull RecordProcessor processor) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    final CRC32 crc = new CRC32();
+    final long fileLength = file.length();
+    long validLength = 0;
+    int records = 0;
+    try {
+      while (fileLength - validLength >= HEADER_SIZE) {
+        final int payloadLength = input.readInt();
+        final int checksum = input.readInt();
+        if (payloadLength <= 0 || payloadLength > fileLength - validLength - HEADER_SIZE) break;
+
+        final byte[] payload = new byte[payloadLength];
+        input.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, payloadLength);
+        if ((int)crc.getValue() != checksum) break;
+
+        final DataInputStream record = new DataInputStream(new UnsyncByteArrayInputStream(payload));
+        final byte operation = record.readByte();
+        final byte[] key = new byte[DataInputOutputUtil.readINT(record)];
+        record.readFully(key);
+        final byte[] value = new byte[record.available()];
+        record.readFully(value);
+        processor.process(operation, key, value);
+
+        validLength += HEADER_SIZE + payloadLength;
+        records++;
+      }
+    }
+    finally {
+      input.close();
+    }
+
+    if (validLength != fileLength) {
+      LOG.info("Ignored " + (fileLength - validLength) + " bytes of incomplete records in " + file.getPath());
+    }
+    if (records > 0) {
+      LOG.info("Replayed " + records + " records from " + file.getPath());
+    }
+    return validLength;
+  }
+}
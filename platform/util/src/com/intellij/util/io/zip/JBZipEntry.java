@@ -449,6 +449,26 @@ public class JBZipEntry implements Cloneable {
     setData(bytes, time);
   }
 
+  /**
+   * Copies the compressed data of an entry from another archive without inflating and deflating it again.
+   */
+  public void setRawDataFrom(JBZipEntry source) throws IOException {
+    method = source.getMethod();
+    time = source.getTime();
+    crc = source.getCrc();
+    size = source.getSize();
+    csize = source.getCompressedSize();
+    extra = source.getExtra();
+
+    final InputStream data = source.getRawInputStream();
+    try {
+      myFile.getOutputStream().putNextEntryRawData(this, data);
+    }
+    finally {
+      data.close();
+    }
+  }
+
   public byte[] getData() throws IOException {
     if (size == -1) throw new IOException("no data");
 
@@ -461,6 +481,10 @@ public class JBZipEntry implements Cloneable {
     }
   }
 
+  private InputStream getRawInputStream() throws IOException {
+    return new BoundedInputStream(calcDataOffset(), getCompressedSize());
+  }
+
   private long calcDataOffset() throws IOException {
     long offset = getHeaderOffset();
     myFile.archive.seek(offset + JBZipFile.LFH_OFFSET_FOR_FILENAME_LENGTH);
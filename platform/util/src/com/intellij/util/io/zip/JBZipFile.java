@@ -93,6 +93,7 @@ public class JBZipFile {
    */
   final RandomAccessFile archive;
 
+  private final boolean myIsReadonly;
   private JBZipOutputStream myOutputStream;
   private long currentcfdfoffset = 0;
 
@@ -139,13 +140,26 @@ public class JBZipFile {
    * @throws IOException if an error occurs while reading the file.
    */
   public JBZipFile(File f, String encoding) throws IOException {
+    this(f, encoding, false);
+  }
+
+  /**
+   * Opens the given file, assuming the specified encoding for file names.
+   *
+   * @param f        the archive.
+   * @param encoding the encoding to use for file names
+   * @param readonly if <code>true</code> the archive is opened for reading only and entries cannot be added or erased
+   * @throws IOException if an error occurs while reading the file.
+   */
+  public JBZipFile(File f, String encoding, boolean readonly) throws IOException {
     this.encoding = encoding;
-    archive = new RandomAccessFile(f, "rw");
+    myIsReadonly = readonly;
+    archive = new RandomAccessFile(f, readonly ? "r" : "rw");
     try {
       if (archive.length() > 0) {
         populateFromCentralDirectory();
       }
-      else {
+      else if (!readonly) {
         getOutputStream(); // Ensure we'll write central directory when closed even if no single entry created.
       }
     }
@@ -449,7 +463,36 @@ public class JBZipFile {
     nameMap.remove(entry.getName());
   }
 
+  /**
+   * Returns the number of bytes occupied by the data of erased and replaced entries. The data of a replaced entry is
+   * appended to the archive, so the space may be reclaimed only by copying the live entries to a new archive.
+   */
+  public long getGarbageSize() throws IOException {
+    long liveSize = 0;
+    for (JBZipEntry entry : entries) {
+      liveSize += LFH_OFFSET_FOR_FILENAME_LENGTH + WORD + getBytes(entry.getName()).length + entry.getLocalFileDataExtra().length +
+                  entry.getCompressedSize();
+    }
+    final long dataSize = myOutputStream != null ? myOutputStream.written : currentcfdfoffset;
+    return Math.max(0, dataSize - liveSize);
+  }
+
+  private byte[] getBytes(String s) throws ZipException {
+    if (encoding == null) {
+      return s.getBytes();
+    }
+    try {
+      return s.getBytes(encoding);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new ZipException(e.getMessage());
+    }
+  }
+
   JBZipOutputStream getOutputStream() throws IOException {
+    if (myIsReadonly) {
+      throw new IOException("Archive is opened in read-only mode");
+    }
     if (myOutputStream == null) {
       myOutputStream = new JBZipOutputStream(this, currentcfdfoffset);
     }
@@ -23,6 +23,7 @@ package com.intellij.util.io.zip;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
@@ -372,13 +373,15 @@ class JBZipOutputStream {
 
   private void writeOut(byte[] data, int offset, int length) throws IOException {
     myBuffer.write(data, offset, length);
+    written += length;
     if (myBuffer.size() > 8192) {
       flushBuffer();
     }
-    written += length;
   }
 
   private void flushBuffer() throws IOException {
+    // entries may be read in between, so the file pointer may have been moved
+    raf.seek(written - myBuffer.size());
     raf.write(myBuffer.getInternalBuffer(), 0, myBuffer.size());
     myBuffer.reset();
   }
@@ -401,6 +404,7 @@ class JBZipOutputStream {
     final byte[] outputBytes;
     final int outputBytesLength;
     if (entry.getMethod() == ZipEntry.DEFLATED) {
+      def.reset();
       def.setLevel(level);
       final BufferExposingByteArrayOutputStream compressedBytesStream = new BufferExposingByteArrayOutputStream();
       final DeflaterOutputStream stream = new DeflaterOutputStream(compressedBytesStream, def);
@@ -422,4 +426,16 @@ class JBZipOutputStream {
     writeLocalFileHeader(entry);
     writeOut(outputBytes, 0, outputBytesLength);
   }
+
+  /**
+   * Writes already compressed data of the entry, method, crc and sizes of the entry must be set by the caller.
+   */
+  void putNextEntryRawData(JBZipEntry entry, InputStream rawData) throws IOException {
+    writeLocalFileHeader(entry);
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = rawData.read(buffer)) > 0) {
+      writeOut(buffer, 0, read);
+    }
+  }
 }
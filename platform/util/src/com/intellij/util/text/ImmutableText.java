@@ -0,0 +1,337 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+
+/**
+ * Immutable text stored as a balanced tree of char array blocks (rope). Insertion, deletion and taking a sub-text cost
+ * O(log n) and share all untouched blocks with the original text, so every modification produces a new cheap snapshot
+ * which may be read from any thread.
+ * <p/>
+ * The tree is kept balanced by weight: when one operand of a concatenation is more than twice as long as the other one,
+ * its subtrees are rotated and the shorter operand is concatenated with the nearest subtree.
+ * <p/>
+ * {@link #getChars()} flattens the text into a new array (cached until garbage collected), so clients which need
+ * a flat array of a large text should use it sparingly.
+ */
+public final class ImmutableText implements CharSequenceBackedByArray {
+  /**
+   * Blocks are copied on concatenation while their total length doesn't exceed this value.
+   */
+  static final int BLOCK_SIZE = 512;
+
+  public static final ImmutableText EMPTY = new ImmutableText(new Leaf(new char[0]));
+
+  private final Node myNode;
+  private volatile Reference<char[]> myCharsRef;
+  private volatile BlockHit myLastBlock; // speeds up sequential charAt() calls
+
+  private ImmutableText(@NotNull Node node) {
+    myNode = node;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) {
+      return (ImmutableText)text;
+    }
+    if (text.length() == 0) {
+      return EMPTY;
+    }
+    final char[] chars = new char[text.length()];
+    CharArrayUtil.getChars(text, chars, 0);
+    return new ImmutableText(createBalanced(chars, 0, chars.length));
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull char[] chars, int start, int end) {
+    return start == end ? EMPTY : new ImmutableText(createBalanced(chars, start, end));
+  }
+
+  @NotNull
+  private static Node createBalanced(@NotNull char[] chars, int start, int end) {
+    final int length = end - start;
+    if (length <= BLOCK_SIZE) {
+      final char[] data = new char[length];
+      System.arraycopy(chars, start, data, 0, length);
+      return new Leaf(data);
+    }
+    // split at a multiple of the block size, so all the blocks except the last one are full
+    final int half = (length / BLOCK_SIZE + 1) / 2 * BLOCK_SIZE;
+    return new Composite(createBalanced(chars, start, start + half), createBalanced(chars, start + half, end));
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull CharSequence text) {
+    return ensureNew(concat(myNode, valueOf(text).myNode));
+  }
+
+  @NotNull
+  public ImmutableText insert(int index, @NotNull CharSequence text) {
+    checkIndex(index, length());
+    if (text.length() == 0) {
+      return this;
+    }
+    return ensureNew(concat(concat(myNode.subNode(0, index), valueOf(text).myNode), myNode.subNode(index, length())));
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    checkRange(start, end);
+    if (start == end) {
+      return this;
+    }
+    return ensureNew(concat(myNode.subNode(0, start), myNode.subNode(end, length())));
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) {
+      return valueOf(text);
+    }
+    final Node head = concat(myNode.subNode(0, start), valueOf(text).myNode);
+    return ensureNew(concat(head, myNode.subNode(end, length())));
+  }
+
+  @NotNull
+  public ImmutableText subtext(int start, int end) {
+    checkRange(start, end);
+    return ensureNew(myNode.subNode(start, end));
+  }
+
+  @NotNull
+  private ImmutableText ensureNew(@NotNull Node node) {
+    if (node == myNode) {
+      return this;
+    }
+    return node.length == 0 ? EMPTY : new ImmutableText(node);
+  }
+
+  @Override
+  public int length() {
+    return myNode.length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    checkIndex(index, length() - 1);
+    final BlockHit hit = myLastBlock;
+    if (hit != null && index >= hit.offset && index < hit.offset + hit.data.length) {
+      return hit.data[index - hit.offset];
+    }
+    Node node = myNode;
+    int offset = 0;
+    while (node instanceof Composite) {
+      final Composite composite = (Composite)node;
+      if (index - offset < composite.head.length) {
+        node = composite.head;
+      }
+      else {
+        offset += composite.head.length;
+        node = composite.tail;
+      }
+    }
+    final char[] data = ((Leaf)node).data;
+    myLastBlock = new BlockHit(offset, data);
+    return data[index - offset];
+  }
+
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return subtext(start, end);
+  }
+
+  @NotNull
+  @Override
+  public char[] getChars() {
+    final Reference<char[]> ref = myCharsRef;
+    char[] chars = ref == null ? null : ref.get();
+    if (chars == null) {
+      chars = new char[length()];
+      myNode.getChars(0, length(), chars, 0);
+      myCharsRef = new SoftReference<char[]>(chars);
+    }
+    return chars;
+  }
+
+  @Override
+  public void getChars(@NotNull char[] dst, int dstOffset) {
+    myNode.getChars(0, length(), dst, dstOffset);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return new String(getChars(), 0, length());
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + length());
+    }
+  }
+
+  private static void checkIndex(int index, int max) {
+    if (index < 0 || index > max) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; max: " + max);
+    }
+  }
+
+  @NotNull
+  private static Node concat(@NotNull Node head, @NotNull Node tail) {
+    if (head.length == 0) {
+      return tail;
+    }
+    if (tail.length == 0) {
+      return head;
+    }
+    final int length = head.length + tail.length;
+    if (length <= BLOCK_SIZE) {
+      final char[] data = new char[length];
+      head.getChars(0, head.length, data, 0);
+      tail.getChars(0, tail.length, data, head.length);
+      return new Leaf(data);
+    }
+    if (head.length << 1 < tail.length && tail instanceof Composite) {
+      // head is too short: (head + tail.head) + tail.tail
+      Composite composite = (Composite)tail;
+      if (composite.head.length > composite.tail.length) {
+        composite = composite.rotateRight();
+      }
+      return new Composite(concat(head, composite.head), composite.tail);
+    }
+    if (tail.length << 1 < head.length && head instanceof Composite) {
+      // tail is too short: head.head + (head.tail + tail)
+      Composite composite = (Composite)head;
+      if (composite.tail.length > composite.head.length) {
+        composite = composite.rotateLeft();
+      }
+      return new Composite(composite.head, concat(composite.tail, tail));
+    }
+    return new Composite(head, tail);
+  }
+
+  private abstract static class Node {
+    final int length;
+
+    Node(int length) {
+      this.length = length;
+    }
+
+    abstract void getChars(int start, int end, @NotNull char[] dst, int dstOffset);
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+  }
+
+  private static class Leaf extends Node {
+    private final char[] data;
+
+    Leaf(@NotNull char[] data) {
+      super(data.length);
+      this.data = data;
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+      System.arraycopy(data, start, dst, dstOffset, end - start);
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == length) {
+        return this;
+      }
+      final char[] sub = new char[end - start];
+      System.arraycopy(data, start, sub, 0, sub.length);
+      return new Leaf(sub);
+    }
+  }
+
+  private static class Composite extends Node {
+    private final Node head;
+    private final Node tail;
+
+    Composite(@NotNull Node head, @NotNull Node tail) {
+      super(head.length + tail.length);
+      this.head = head;
+      this.tail = tail;
+    }
+
+    @NotNull
+    Composite rotateRight() {
+      if (!(head instanceof Composite)) {
+        return this;
+      }
+      final Composite p = (Composite)head;
+      return new Composite(p.head, new Composite(p.tail, tail));
+    }
+
+    @NotNull
+    Composite rotateLeft() {
+      if (!(tail instanceof Composite)) {
+        return this;
+      }
+      final Composite q = (Composite)tail;
+      return new Composite(new Composite(head, q.head), q.tail);
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+      final int headLength = head.length;
+      if (start < headLength) {
+        head.getChars(start, Math.min(end, headLength), dst, dstOffset);
+        dstOffset += Math.min(end, headLength) - start;
+      }
+      if (end > headLength) {
+        tail.getChars(Math.max(0, start - headLength), end - headLength, dst, dstOffset);
+      }
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      final int headLength = head.length;
+      if (end <= headLength) {
+        return head.subNode(start, end);
+      }
+      if (start >= headLength) {
+        return tail.subNode(start - headLength, end - headLength);
+      }
+      if (start == 0 && end == length) {
+        return this;
+      }
+      return concat(head.subNode(start, headLength), tail.subNode(0, end - headLength));
+    }
+  }
+
+  private static class BlockHit {
+    private final int offset;
+    private final char[] data;
+
+    BlockHit(int offset, @NotNull char[] data) {
+      this.offset = offset;
+      this.data = data;
+    }
+  }
+}
@@ -84,6 +84,43 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testPageCacheStatistics() throws IOException {
+    final PagedFileStorage.StorageLock smallLock = new PagedFileStorage.StorageLock(true, PagedFileStorage.BUFFER_SIZE);
+    final int pageSize = PagedFileStorage.BUFFER_SIZE / 4;
+    final File file = FileUtil.createTempFile("storage", ".tmp");
+    smallLock.lock();
+    try {
+      PagedFileStorage storage = new PagedFileStorage(file, smallLock, pageSize, false);
+      try {
+        storage.resize(pageSize * 8); // maps every page to fill it with zeros
+        assertTrue(smallLock.getMissCount() >= 8);
+        assertTrue(smallLock.getEvictionCount() >= 4);
+
+        long misses = smallLock.getMissCount();
+        for (int page = 0; page < 8; page++) {
+          storage.putInt(page * pageSize, page);
+        }
+        assertTrue(smallLock.getMissCount() > misses);
+        assertTrue(smallLock.getMappedSize() <= smallLock.getSizeLimit());
+
+        long hits = smallLock.getHitCount();
+        for (int i = 0; i < 2; i++) {
+          for (int page = 4; page < 8; page++) {
+            assertEquals(page, storage.getInt(page * pageSize));
+          }
+        }
+        assertTrue(smallLock.getHitCount() > hits);
+      }
+      finally {
+        storage.close();
+      }
+    }
+    finally {
+      smallLock.unlock();
+      FileUtil.delete(file);
+    }
+  }
+
   public void testResizeableMappedFile() throws Exception {
     lock.lock();
     try {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ImmutableTextTest extends TestCase {
+  public void testEditsDontChangeOriginal() {
+    ImmutableText text = ImmutableText.valueOf("0123456789");
+    ImmutableText inserted = text.insert(5, "abc");
+    ImmutableText deleted = inserted.delete(0, 2);
+    ImmutableText replaced = deleted.replace(1, 4, "X");
+
+    assertEquals("0123456789", text.toString());
+    assertEquals("01234abc56789", inserted.toString());
+    assertEquals("234abc56789", deleted.toString());
+    assertEquals("2Xbc56789", replaced.toString());
+    assertEquals("bc5", replaced.subSequence(2, 5).toString());
+    assertSame(ImmutableText.EMPTY, replaced.delete(0, replaced.length()));
+  }
+
+  public void testLargeTextIsSplitIntoBlocks() {
+    String s = createText(10 * ImmutableText.BLOCK_SIZE + 3, new Random(0));
+    ImmutableText text = ImmutableText.valueOf(s);
+    assertEquals(s, text.toString());
+    for (int i = 0; i < s.length(); i++) {
+      assertEquals(s.charAt(i), text.charAt(i));
+    }
+    char[] chars = new char[s.length() + 2];
+    text.getChars(chars, 2);
+    assertEquals(s, new String(chars, 2, s.length()));
+  }
+
+  public void testRandomEdits() {
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder(createText(5000, random));
+    ImmutableText text = ImmutableText.valueOf(expected);
+    for (int i = 0; i < 3000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(i % 100 == 0 ? 2000 : 10));
+      String s = createText(random.nextInt(i % 100 == 50 ? 2000 : 5), random);
+      text = text.replace(start, end, s);
+      expected.replace(start, end, s);
+
+      assertEquals(expected.length(), text.length());
+      int index = random.nextInt(expected.length());
+      assertEquals(expected.charAt(index), text.charAt(index));
+    }
+    assertEquals(expected.toString(), text.toString());
+    assertEquals(expected.substring(100, 3000), text.subtext(100, 3000).toString());
+  }
+
+  public void testTypingKeepsTextUsable() {
+    ImmutableText text = ImmutableText.EMPTY;
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      String s = String.valueOf((char)('a' + i % 26));
+      text = text.insert(text.length() / 2, s);
+      expected.insert(expected.length() / 2, s);
+    }
+    assertEquals(expected.toString(), text.toString());
+  }
+
+  private static String createText(int length, Random random) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char)('a' + random.nextInt(26)));
+    }
+    return builder.toString();
+  }
+}